@@ -36,11 +36,13 @@ android {
     }
     buildFeatures {
         compose = true
+        aidl = true
     }
 }
 
 dependencies {
 
+    implementation(project(":core"))
     implementation(libs.appcompat)
     implementation(libs.material)
     implementation(libs.activity)
@@ -14,35 +14,47 @@ import android.util.Log;
 
 import androidx.core.app.ActivityCompat;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
+import com.example.remoteswitch.core.Command;
+import com.example.remoteswitch.core.CommandTiming;
+import com.example.remoteswitch.core.ConnectionStateMachine;
+import com.example.remoteswitch.core.ConnectionlessFrame;
+import com.example.remoteswitch.core.GattOperation;
+import com.example.remoteswitch.core.GattSession;
+import com.example.remoteswitch.core.GattUuids;
+import com.example.remoteswitch.core.Provisioning;
+import com.example.remoteswitch.core.ServoProfile;
+import com.example.remoteswitch.core.SleepSchedule;
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
+/*
+Android side of one connection. The decisions live in GattSession (core), this class only translates
+BluetoothGattCallback into session inputs and the session's outgoing calls into BluetoothGatt calls.
+Every session is recorded into a trace (GattTraceStore) that can be replayed on the JVM.
+Everything runs on the BLE thread (BleWorker): the GATT callbacks, the session and the listener calls.
+Public methods can be called from any thread, the ones that return a result only on the BLE thread.
+*/
 public class BleConnectManager {
     private static final String TAG = "BleConnectManager";
 
-    private static UUID uuidFromShortUuid16(int uuid16) {
-        // 128_bit_UUID = 16_bit_UUID * 2^96 + Bluetooth_Base_UUID(00000000-0000-1000-8000-00805F9B34FB)
-        String uuidStr = String.format("%04X", uuid16);
-        return UUID.fromString("0000" + uuidStr + "-0000-1000-8000-00805F9B34FB");
-    }
-
-    // UUIDs from the Arduino Sketch
-    public static final UUID SERVICE_UUID_TIMESYNC = uuidFromShortUuid16(0x1805);
-    public static final UUID CHARACTERISTIC_UUID_PHONETIME = uuidFromShortUuid16(0x2A2B);
-    public static final UUID SERVICE_UUID_SERVOCONTROL = uuidFromShortUuid16(0x1815);
-    public static final UUID CHARACTERISTIC_UUID_SERVOSIGNAL = uuidFromShortUuid16(0x2A56);
-
-    // This UUID is standard for enabling notifications/indications
     private final Context context;
     private final BluetoothDevice device;
-    private final OnDeviceConnectedListener listener;
+    private volatile OnDeviceConnectedListener listener;
+    private final GattTraceStore traceStore;
+    private final GattSession session;
     private BluetoothGatt bluetoothGatt;
-    private BluetoothGattCharacteristic phoneTimeCharacteristic;
-    private BluetoothGattCharacteristic servoSignalCharacteristic;
+    // Discovered characteristics by UUID, for the calls the session makes
+    private final Map<UUID, BluetoothGattCharacteristic> characteristics = new HashMap<>();
+    private GattTraceStore.Recording recording;
+    // BLUETOOTH_CONNECT, checked once per connect(): revoking a runtime permission kills the process
+    private boolean permitted = false;
 
-    // Listener for connection events
+    // Listener for connection events, called on the BLE thread
     public interface OnDeviceConnectedListener {
         void onDeviceConnected(BluetoothDevice device);
 
@@ -51,160 +63,384 @@ public class BleConnectManager {
         void onConnectFailed(String errorMessage);
 
         void onTimeSynced();
+
+        void onServoCommandSent(String command);
+
+        void onDiagnosticsRead(byte[] value);
+
+        void onServoProfilesRead(List<ServoProfile> profiles);
+
+        // After readConnectionless(), null if the switch would not give out its key
+        default void onConnectionlessRead(ConnectionlessFrame.Settings settings) {
+        }
+
+        // After readCommandTiming(), null if the value was too short
+        default void onCommandTimingRead(CommandTiming.Record record) {
+        }
+
+        // After writeProvisioning(), see ProvisioningSession
+        default void onProvisioned() {
+        }
+
+        default void onWriteFailed(UUID characteristic, int status) {
+        }
     }
 
     public BleConnectManager(Context context, BluetoothDevice device, OnDeviceConnectedListener listener) {
         this.context = context;
         this.device = device;
         this.listener = listener;
+        this.traceStore = GattTraceStore.getInstance(context);
+        this.session = new GattSession(port, sessionListener);
+    }
+
+    // Hand the connection to another owner, e.g. MainActivity taking over a pre-connection (see PresenceReceiver).
+    public void setListener(OnDeviceConnectedListener listener) {
+        this.listener = listener;
     }
 
     public void connect() {
-        if (device == null) {
-            listener.onConnectFailed("Device is null. Please reset the app.");
-            return;
-        }
-        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-            listener.onConnectFailed(context.getString(R.string.need_permission));
-            return;
-        }
-        Log.d(TAG, "Connecting to GATT server.");
-        // The third parameter 'false' means we are not using auto-connect.
-        bluetoothGatt = device.connectGatt(context, false, gattCallback);
+        BleWorker.run(() -> {
+            if (device == null) {
+                listener.onConnectFailed("Device is null. Please reset the app.");
+                return;
+            }
+            permitted = ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED;
+            if (!permitted) {
+                listener.onConnectFailed(context.getString(R.string.need_permission));
+                return;
+            }
+            if (session.getState() != ConnectionStateMachine.State.DISCONNECTED) {
+                Log.d(TAG, "Already " + session.getState() + ".");
+                return;
+            }
+            recording = traceStore.start(device.getAddress());
+            session.setRecorder(recording.writer);
+            Log.d(TAG, "Connecting to GATT server.");
+            session.connect();
+        });
     }
 
     public void disconnect() {
-        if (bluetoothGatt == null) {
-            return;
-        }
-        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-            return; // Cannot disconnect without permission
-        }
-        Log.d(TAG, "Disconnecting from GATT server.");
-        bluetoothGatt.disconnect();
+        BleWorker.run(() -> {
+            if (bluetoothGatt == null || !permitted) {
+                return; // Cannot disconnect without permission
+            }
+            Log.d(TAG, "Disconnecting from GATT server.");
+            session.disconnect();
+        });
+    }
+
+    public ConnectionStateMachine.State getState() {
+        return session.getState();
+    }
+
+    public boolean isReady() {
+        return session.isReady();
     }
 
-    // The main callback for GATT events
+    // The main callback for GATT events, on the BLE thread
     private final BluetoothGattCallback gattCallback = new BluetoothGattCallback() {
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-                listener.onConnectFailed(context.getString(R.string.need_permission));
-                return;
-            }
-
             if (newState == BluetoothProfile.STATE_CONNECTED) {
                 Log.i(TAG, "Connected to GATT server.");
-                // Discover services after a successful connection.
-                gatt.discoverServices();
+                session.onConnectionStateChange(status, true);
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 Log.i(TAG, "Disconnected from GATT server.");
-                listener.onDeviceDisconnected();
-
-                // Clean up resources
-                if (bluetoothGatt == null) {
-                    return;
-                }
-                if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-                    return;
-                }
-                bluetoothGatt.close();
-                bluetoothGatt = null;
+                session.onConnectionStateChange(status, false);
+                saveRecording();
             }
         }
 
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            List<UUID[]> layout = new ArrayList<>();
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.w(TAG, "Services discovered.");
-
-                // print all services and characteristics
+                // Keep them for the session and the registry, the layout is in the trace and in SwitchRecord
                 for (BluetoothGattService service : gatt.getServices()) {
-                    Log.d(TAG, "Service UUID: " + service.getUuid());
-
                     for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
-                        Log.d(TAG, "  Characteristic UUID: " + characteristic.getUuid());
+                        layout.add(new UUID[]{service.getUuid(), characteristic.getUuid()});
+                        characteristics.put(characteristic.getUuid(), characteristic);
                     }
                 }
-
-                // Get the servo control characteristic
-                BluetoothGattService servoService = gatt.getService(SERVICE_UUID_SERVOCONTROL);
-                if (servoService != null) {
-                    servoSignalCharacteristic = servoService.getCharacteristic(CHARACTERISTIC_UUID_SERVOSIGNAL);
-                    if (servoSignalCharacteristic == null)
-                        Log.e(TAG, "Servo characteristic not found!");
-                } else {
-                    Log.e(TAG, "Servo service not found!");
-                }
-
-                // Get the time sync characteristic and enable notifications
-                BluetoothGattService timeService = gatt.getService(SERVICE_UUID_TIMESYNC);
-                if (timeService != null) {
-                    phoneTimeCharacteristic = timeService.getCharacteristic(CHARACTERISTIC_UUID_PHONETIME);
-                    if (phoneTimeCharacteristic == null) {
-                        Log.e(TAG, "Time characteristic not found!");
-                    }
-                } else {
-                    Log.e(TAG, "Time service not found!");
-                }
+                Log.d(TAG, "Services discovered, " + layout.size() + " characteristics.");
             } else {
                 Log.w(TAG, "onServicesDiscovered received: " + status);
             }
+            session.onServicesDiscovered(status, layout);
+        }
 
-            // If both characteristics are found, notify onDeviceConnected listener.
-            if (phoneTimeCharacteristic != null && servoSignalCharacteristic != null) {
-                listener.onDeviceConnected(device);
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            session.onCharacteristicWrite(characteristic.getUuid(), status);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            session.onCharacteristicRead(characteristic.getUuid(), status, characteristic.getValue());
+        }
+    };
+
+    // The session's outgoing calls
+    private final GattSession.Port port = new GattSession.Port() {
+        @Override
+        public boolean connect() {
+            if (!permitted) {
+                return false;
             }
+            // Not auto-connect. The callbacks come on the BLE thread instead of a binder thread.
+            bluetoothGatt = device.connectGatt(context, false, gattCallback, BluetoothDevice.TRANSPORT_LE,
+                    BluetoothDevice.PHY_LE_1M_MASK, BleWorker.getHandler());
+            return bluetoothGatt != null;
         }
 
         @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                if (CHARACTERISTIC_UUID_PHONETIME.equals(characteristic.getUuid())) {
-                    Log.i(TAG, "Time successfully written to device.");
-                    listener.onTimeSynced();
-                }
-                if (CHARACTERISTIC_UUID_SERVOSIGNAL.equals(characteristic.getUuid())) {
-                    Log.i(TAG, "Servo command sent: " + new String(characteristic.getValue()));
-                }
+        public boolean discoverServices() {
+            if (bluetoothGatt == null || !permitted) {
+                return false;
+            }
+            return bluetoothGatt.discoverServices();
+        }
+
+        @Override
+        public boolean read(UUID uuid) {
+            BluetoothGattCharacteristic characteristic = characteristics.get(uuid);
+            if (bluetoothGatt == null || characteristic == null || !permitted) {
+                return false;
             }
+            return bluetoothGatt.readCharacteristic(characteristic);
+        }
+
+        @Override
+        public boolean write(UUID uuid, byte[] value) {
+            BluetoothGattCharacteristic characteristic = characteristics.get(uuid);
+            if (bluetoothGatt == null || characteristic == null || !permitted) {
+                return false;
+            }
+            characteristic.setValue(value);
+            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+            return bluetoothGatt.writeCharacteristic(characteristic);
+        }
+
+        @Override
+        public void disconnect() {
+            if (bluetoothGatt == null || !permitted) {
+                return;
+            }
+            bluetoothGatt.disconnect();
+        }
+
+        @Override
+        public void close() {
+            // Clean up resources
+            characteristics.clear();
+            if (bluetoothGatt == null || !permitted) {
+                return;
+            }
+            bluetoothGatt.close();
+            bluetoothGatt = null;
         }
     };
 
-    public void writeCurrentTime() {
-        if (phoneTimeCharacteristic == null || bluetoothGatt == null) {
-            Log.e(TAG, "Cannot write time, characteristic or gatt is null.");
-            return;
+    private final GattSession.Listener sessionListener = new GattSession.Listener() {
+        @Override
+        public void onReady() {
+            listener.onDeviceConnected(device);
         }
-        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-            return;
+
+        @Override
+        public void onDisconnected() {
+            listener.onDeviceDisconnected();
+        }
+
+        @Override
+        public void onTimeSynced() {
+            Log.i(TAG, "Time successfully written to device.");
+            listener.onTimeSynced();
+        }
+
+        @Override
+        public void onServoCommandSent(String command) {
+            Log.i(TAG, "Servo command sent: " + command);
+            listener.onServoCommandSent(command);
+        }
+
+        @Override
+        public void onDiagnosticsRead(byte[] value) {
+            Log.i(TAG, "Diagnostics read: " + value.length + " bytes.");
+            listener.onDiagnosticsRead(value);
+        }
+
+        @Override
+        public void onServoProfilesRead(List<ServoProfile> profiles) {
+            listener.onServoProfilesRead(profiles);
+        }
+
+        @Override
+        public void onConnectionlessRead(ConnectionlessFrame.Settings settings) {
+            listener.onConnectionlessRead(settings);
+        }
+
+        @Override
+        public void onCommandTimingRead(CommandTiming.Record record) {
+            listener.onCommandTimingRead(record);
+        }
+
+        @Override
+        public void onProvisioned() {
+            Log.i(TAG, "Provisioning written.");
+            listener.onProvisioned();
         }
-        // Format time as "HH:MM:SS"
-        SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss", Locale.getDefault());
-        String currentTime = sdf.format(new Date());
 
-        phoneTimeCharacteristic.setValue(currentTime);
-        phoneTimeCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-        bluetoothGatt.writeCharacteristic(phoneTimeCharacteristic);
+        @Override
+        public void onWriteFailed(UUID characteristic, int status) {
+            Log.w(TAG, "Write to " + characteristic + " failed with status " + status);
+            listener.onWriteFailed(characteristic, status);
+        }
+
+        @Override
+        public void onStateChanged(ConnectionStateMachine.State from, ConnectionStateMachine.State to, ConnectionStateMachine.Event event) {
+            Log.d(TAG, "State " + from + " -> " + to + " on " + event);
+            if (event == ConnectionStateMachine.Event.DISCOVERY_FAILED) {
+                Log.e(TAG, "Required characteristics not found!");
+            }
+        }
+    };
+
+    private void saveRecording() {
+        GattTraceStore.Recording done = recording;
+        recording = null;
+        session.setRecorder(null);
+        if (done != null) {
+            traceStore.save(done);
+        }
+    }
+
+    // Time from connect() until both characteristics were discovered.
+    public long getConnectLatencyMs() {
+        return session.getConnectLatencyNanos() / 1000000;
+    }
+
+    public List<String> getGattLayout() {
+        return session.getGattLayout();
+    }
+
+    // Time sync, then the diagnostics read. Both go through the queue, so they never overlap.
+    public void writeCurrentTime() {
+        BleWorker.run(() -> {
+            syncTime();
+            session.readDiagnostics();
+        });
+    }
+
+    // With milliseconds, for scenes. Firmware before 1.5.0 ignores them. On the BLE thread.
+    public boolean syncTime() {
+        boolean queued = session.writeTimeMillis((int) (LocalTime.now().toNanoOfDay() / 1000000));
+        logIfDropped(queued, GattUuids.CHARACTERISTIC_PHONETIME);
+        return queued;
+    }
+
+    public void readDiagnostics() {
+        BleWorker.run(session::readDiagnostics);
+    }
+
+    public boolean hasServoProfiles() {
+        return session.hasCharacteristic(GattUuids.CHARACTERISTIC_SERVOPROFILE);
+    }
+
+    public void readServoProfiles() {
+        submit(GattOperation.read(GattUuids.CHARACTERISTIC_SERVOPROFILE));
+    }
+
+    public void writeServoProfile(ServoProfile profile) {
+        submit(GattOperation.write(GattUuids.CHARACTERISTIC_SERVOPROFILE, profile.encodeSet()));
+    }
+
+    // The firmware flips the switch several times while calibrating, read the profiles afterwards to get the result.
+    public void calibrateServo(int servo) {
+        submit(GattOperation.write(GattUuids.CHARACTERISTIC_SERVOPROFILE, new byte[]{ServoProfile.OP_CALIBRATE, (byte) servo}));
+    }
+
+    public void resetServoProfile(int servo) {
+        submit(GattOperation.write(GattUuids.CHARACTERISTIC_SERVOPROFILE, new byte[]{ServoProfile.OP_RESET, (byte) servo}));
+    }
+
+    // The servo was replaced: its wear counters start over (firmware 1.14.0)
+    public void resetServoWear(int servo) {
+        submit(GattOperation.write(GattUuids.CHARACTERISTIC_SERVOPROFILE, new byte[]{ServoProfile.OP_RESET_WEAR, (byte) servo}));
+    }
+
+    public boolean hasCommandTiming() {
+        return session.hasCharacteristic(GattUuids.CHARACTERISTIC_COMMAND_TIMING);
+    }
+
+    // The switch's timing of the last command written on this connection
+    public void readCommandTiming() {
+        submit(GattOperation.read(GattUuids.CHARACTERISTIC_COMMAND_TIMING));
+    }
+
+    // The phone's side of the last command, null before the first
+    public CommandTiming.Sent getLastCommandSent() {
+        return session.getLastCommandSent();
+    }
+
+    public boolean hasConnectionless() {
+        return session.hasCharacteristic(GattUuids.CHARACTERISTIC_CONNECTIONLESS);
+    }
+
+    // Encrypted on the switch: Android bonds first if the link is not encrypted yet
+    public void readConnectionless() {
+        submit(GattOperation.read(GattUuids.CHARACTERISTIC_CONNECTIONLESS));
+    }
+
+    // Start or stop the switch's scan, then read back what it uses
+    public void setConnectionless(boolean enabled) {
+        byte op = enabled ? ConnectionlessFrame.OP_ENABLE : ConnectionlessFrame.OP_DISABLE;
+        submit(GattOperation.write(GattUuids.CHARACTERISTIC_CONNECTIONLESS, new byte[]{op}));
+        readConnectionless();
+    }
+
+    public boolean hasProvisioning() {
+        return session.hasCharacteristic(GattUuids.CHARACTERISTIC_PROVISIONING);
+    }
+
+    // Encrypted on the switch like the connectionless key. On the BLE thread.
+    public boolean writeProvisioning(SleepSchedule schedule, String label) {
+        boolean queued = session.submit(GattOperation.write(GattUuids.CHARACTERISTIC_PROVISIONING, Provisioning.encode(schedule, label)));
+        logIfDropped(queued, GattUuids.CHARACTERISTIC_PROVISIONING);
+        return queued;
     }
 
     public void sendServoCommand(String command) {
-        if (servoSignalCharacteristic == null || bluetoothGatt == null) {
-            Log.e(TAG, "Cannot send command, characteristic or gatt is null.");
-            return;
-        }
-        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+        Command servoCommand = Command.fromName(command);
+        if (servoCommand == null) {
             return;
         }
+        BleWorker.run(() -> sendServoCommand(servoCommand));
+    }
 
-        if (command.equals("on")) {
-            servoSignalCharacteristic.setValue("1");
-        } else if (command.equals("off")) {
-            servoSignalCharacteristic.setValue("0");
-        } else return;
+    // On the BLE thread
+    public boolean sendServoCommand(Command command) {
+        boolean queued = session.sendServoCommand(command);
+        logIfDropped(queued, GattUuids.CHARACTERISTIC_SERVOSIGNAL);
+        return queued;
+    }
 
-        servoSignalCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-        bluetoothGatt.writeCharacteristic(servoSignalCharacteristic);
+    // Fire at a time of day on the switch's clock, see SceneDispatcher. On the BLE thread.
+    public boolean sendServoCommandAt(Command command, int millisOfDay) {
+        boolean queued = session.sendServoCommandAt(command, millisOfDay);
+        logIfDropped(queued, GattUuids.CHARACTERISTIC_SERVOSIGNAL);
+        return queued;
     }
-}
 
+    private void submit(GattOperation operation) {
+        BleWorker.run(() -> logIfDropped(session.submit(operation), operation.characteristic));
+    }
+
+    private void logIfDropped(boolean queued, UUID characteristic) {
+        if (!queued) {
+            Log.e(TAG, "Cannot queue operation on " + characteristic + ", not ready or characteristic missing.");
+        }
+    }
+}
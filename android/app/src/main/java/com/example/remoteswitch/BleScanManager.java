@@ -9,6 +9,7 @@ Or worse, you connection may break because Android decided to recreate your Acti
 package com.example.remoteswitch;
 
 import android.Manifest;
+import android.app.PendingIntent;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.le.BluetoothLeScanner;
@@ -17,13 +18,16 @@ import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.Context;
+import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
 import androidx.core.app.ActivityCompat;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -32,6 +36,9 @@ public class BleScanManager {
     private static final String TAG = "BleScanManager";
     private static final long SCAN_PERIOD = 15000; // Stops scanning after 15 seconds.
 
+    private static final int PRESENCE_REQUEST_CODE = 1;
+
+    private final BluetoothAdapter bluetoothAdapter;
     private final BluetoothLeScanner bluetoothLeScanner;
     private final Handler scanHandler = new Handler(Looper.getMainLooper());
     private final Context context;
@@ -53,6 +60,7 @@ public class BleScanManager {
         if (bluetoothAdapter == null) {
             throw new IllegalStateException("Bluetooth not supported on this device.");
         }
+        this.bluetoothAdapter = bluetoothAdapter;
         this.bluetoothLeScanner = bluetoothAdapter.getBluetoothLeScanner();
     }
 
@@ -102,6 +110,61 @@ public class BleScanManager {
         Log.d(TAG, "Scan stopped.");
     }
 
+    /*
+    Background presence scan for bonded switches. Results go to PresenceReceiver through a PendingIntent,
+    so the system delivers them even when the app has no running process, and the scan stays registered
+    until stopBackgroundScan() (or until Bluetooth is turned off, the app registers it again on start).
+    The filters hold the exact addresses, so a controller with offloaded filtering matches them itself and
+    only wakes the phone when a switch starts advertising (FIRST_MATCH) or stops (MATCH_LOST).
+    Without offloading the scan is opportunistic: it never turns the radio on, it only sees what other scans find.
+    */
+    public boolean startBackgroundScan(List<String> addresses) {
+        if (bluetoothLeScanner == null || addresses.isEmpty()) {
+            return false;
+        }
+        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED) {
+            return false;
+        }
+        List<ScanFilter> filters = new ArrayList<>(addresses.size());
+        for (String address : addresses) {
+            filters.add(new ScanFilter.Builder().setDeviceAddress(address).build());
+        }
+
+        ScanSettings.Builder settings = new ScanSettings.Builder();
+        if (bluetoothAdapter.isOffloadedFilteringSupported()) {
+            settings.setScanMode(ScanSettings.SCAN_MODE_LOW_POWER)
+                    .setCallbackType(ScanSettings.CALLBACK_TYPE_FIRST_MATCH | ScanSettings.CALLBACK_TYPE_MATCH_LOST)
+                    .setMatchMode(ScanSettings.MATCH_MODE_STICKY)
+                    .setNumOfMatches(ScanSettings.MATCH_NUM_ONE_ADVERTISEMENT);
+        } else {
+            settings.setScanMode(ScanSettings.SCAN_MODE_OPPORTUNISTIC);
+        }
+
+        PendingIntent pendingIntent = presenceIntent();
+        bluetoothLeScanner.stopScan(pendingIntent); // replace an earlier registration with the current address list
+        int result = bluetoothLeScanner.startScan(filters, settings.build(), pendingIntent);
+        Log.d(TAG, "Background scan for " + addresses.size() + " switch(es) "
+                + (result == 0 ? "started" : "failed with error code " + result) + ".");
+        return result == 0;
+    }
+
+    public void stopBackgroundScan() {
+        if (bluetoothLeScanner == null
+                || ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+        bluetoothLeScanner.stopScan(presenceIntent());
+        Log.d(TAG, "Background scan stopped.");
+    }
+
+    // The same request code and intent every time, so stopScan() finds the registration again.
+    private PendingIntent presenceIntent() {
+        Intent intent = new Intent(context, PresenceReceiver.class).setAction(PresenceReceiver.ACTION_PRESENCE);
+        // The system adds the scan results as extras, so the intent has to stay mutable.
+        int flags = PendingIntent.FLAG_UPDATE_CURRENT | (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S ? PendingIntent.FLAG_MUTABLE : 0);
+        return PendingIntent.getBroadcast(context, PRESENCE_REQUEST_CODE, intent, flags);
+    }
+
     private final ScanCallback leScanCallback = new ScanCallback() {
 
         @Override
@@ -0,0 +1,40 @@
+package com.example.remoteswitch;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+/*
+The one thread all BLE work runs on: the GATT callbacks (connectGatt gets its Handler), the sessions,
+SwitchConnections, SceneDispatcher and the automation API. Events are handled in the order they arrive
+and never on the main thread or a binder thread. The screen only gets LinkSnapshots from here.
+*/
+public final class BleWorker {
+    private static Handler handler;
+
+    private BleWorker() {
+    }
+
+    public static synchronized Handler getHandler() {
+        if (handler == null) {
+            HandlerThread thread = new HandlerThread("ble", Process.THREAD_PRIORITY_FOREGROUND);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+        return handler;
+    }
+
+    public static boolean isCurrentThread() {
+        return Looper.myLooper() == getHandler().getLooper();
+    }
+
+    // Runs the task at once if already on the BLE thread, otherwise after everything queued before it
+    public static void run(Runnable task) {
+        if (isCurrentThread()) {
+            task.run();
+        } else {
+            getHandler().post(task);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.remoteswitch;
+
+import android.Manifest;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.AdvertiseCallback;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.core.app.ActivityCompat;
+
+import com.example.remoteswitch.core.Command;
+import com.example.remoteswitch.core.ConnectionlessFrame;
+
+import java.time.LocalTime;
+
+/*
+Sends a command without connecting (firmware 1.10.0): advertises a ConnectionlessFrame for ADVERTISE_MS, long
+enough for a few of the switch's scan windows. The sequence is taken from the registry and committed to disk before
+the frame goes out, so a command is never sent twice with the same number even if the app dies.
+One command at a time: a new one replaces the frame still on air. Call on the BLE thread (BleWorker).
+*/
+public class CommandAdvertiser {
+    private static final String TAG = "CommandAdvertiser";
+    private static final int ADVERTISE_MS = 1500; // more than the switch's scan interval
+
+    private static CommandAdvertiser instance;
+
+    private final Context context;
+    private final SwitchRegistry registry;
+    private AdvertiseCallback current;
+
+    public static synchronized CommandAdvertiser getInstance(Context context) {
+        if (instance == null) {
+            instance = new CommandAdvertiser(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private CommandAdvertiser(Context context) {
+        this.context = context;
+        this.registry = SwitchRegistry.getInstance(context);
+    }
+
+    // A key was read and the switch listens
+    public static boolean isAvailable(SwitchRecord record) {
+        return record != null && record.connectionlessKey != null && record.connectionlessEnabled;
+    }
+
+    // Returns false if the switch has no key, the phone cannot advertise, the permission is missing or the sequence
+    // could not be saved.
+    public boolean send(String address, Command command) {
+        SwitchRecord record = registry.get(address);
+        BluetoothLeAdvertiser advertiser = getAdvertiser();
+        if (!isAvailable(record) || advertiser == null || !permitted()) {
+            return false;
+        }
+        long sequence = record.connectionlessSequence + 1;
+        registry.update(address, r -> r.connectionlessSequence = sequence);
+        if (!registry.commit()) {
+            return false; // the switch would drop the next frame with this number
+        }
+        int millisOfDay = (int) (LocalTime.now().toNanoOfDay() / 1000000);
+        // Each phone counts its own sequence, where the switch keeps one per phone
+        byte[] frame = record.connectionlessVersion >= ConnectionlessFrame.VERSION
+                ? ConnectionlessFrame.encode(record.connectionlessKey, address, registry.getPhoneId(), sequence, command, millisOfDay)
+                : ConnectionlessFrame.encodeV1(record.connectionlessKey, address, sequence, command, millisOfDay);
+
+        stop(advertiser);
+        AdvertiseSettings settings = new AdvertiseSettings.Builder()
+                .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY) // every 100ms
+                .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_HIGH)
+                .setConnectable(false)
+                .setTimeout(ADVERTISE_MS)
+                .build();
+        AdvertiseData data = new AdvertiseData.Builder()
+                .setIncludeDeviceName(false)
+                .setIncludeTxPowerLevel(false)
+                .addManufacturerData(ConnectionlessFrame.COMPANY_ID, frame)
+                .build();
+        long started = SystemClock.elapsedRealtime();
+        current = new AdvertiseCallback() {
+            @Override
+            public void onStartSuccess(AdvertiseSettings settingsInEffect) {
+                Log.d(TAG, command.name + " #" + sequence + " on air after " + (SystemClock.elapsedRealtime() - started) + "ms");
+            }
+
+            @Override
+            public void onStartFailure(int errorCode) {
+                Log.w(TAG, command.name + " #" + sequence + " not advertised, error " + errorCode);
+            }
+        };
+        advertiser.startAdvertising(settings, data, current);
+        return true;
+    }
+
+    private void stop(BluetoothLeAdvertiser advertiser) {
+        if (current != null) {
+            advertiser.stopAdvertising(current);
+            current = null;
+        }
+    }
+
+    private BluetoothLeAdvertiser getAdvertiser() {
+        BluetoothManager manager = context.getSystemService(BluetoothManager.class);
+        BluetoothAdapter adapter = manager == null ? null : manager.getAdapter();
+        return adapter == null || !adapter.isEnabled() ? null : adapter.getBluetoothLeAdvertiser();
+    }
+
+    private boolean permitted() {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.S
+                || ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_ADVERTISE) == PackageManager.PERMISSION_GRANTED;
+    }
+}
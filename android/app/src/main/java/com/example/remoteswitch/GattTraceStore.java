@@ -0,0 +1,95 @@
+package com.example.remoteswitch;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.example.remoteswitch.core.GattTrace;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+Keeps GATT traces of the last sessions in files/gatt-traces, one file per connection (see GattTrace).
+A session records into memory and the file is only written when it ends, off the GATT thread.
+On a debuggable build: adb exec-out run-as com.example.remoteswitch cat files/gatt-traces/<name> > <name>
+*/
+public class GattTraceStore {
+    private static final String TAG = "GattTraceStore";
+    private static final String DIRECTORY_NAME = "gatt-traces";
+    private static final int MAX_TRACE_BYTES = 64 * 1024; // a normal session is a few hundred bytes
+    private static final int MAX_TRACES = 20;
+
+    private static GattTraceStore instance;
+
+    private final File directory;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+    public static synchronized GattTraceStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new GattTraceStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private GattTraceStore(Context context) {
+        directory = new File(context.getFilesDir(), DIRECTORY_NAME);
+    }
+
+    public static class Recording {
+        public final GattTrace.Writer writer;
+        private final String name;
+        private final ByteArrayOutputStream bytes;
+
+        private Recording(String name, ByteArrayOutputStream bytes) {
+            this.name = name;
+            this.bytes = bytes;
+            this.writer = new GattTrace.Writer(bytes, System.currentTimeMillis(), System.nanoTime(), MAX_TRACE_BYTES);
+        }
+    }
+
+    public Recording start(String address) {
+        String time = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        return new Recording(address.replace(":", "") + "-" + time + ".trace", new ByteArrayOutputStream(1024));
+    }
+
+    // Write the trace out and drop the oldest ones beyond MAX_TRACES.
+    public void save(Recording recording) {
+        recording.writer.close();
+        writer.execute(() -> {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                Log.e(TAG, "Cannot create " + directory);
+                return;
+            }
+            try (FileOutputStream out = new FileOutputStream(new File(directory, recording.name))) {
+                recording.bytes.writeTo(out);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to save " + recording.name, e);
+                return;
+            }
+            Log.d(TAG, "Saved " + recording.name + " (" + recording.bytes.size() + " bytes"
+                    + (recording.writer.isTruncated() ? ", truncated)." : ")."));
+            prune();
+        });
+    }
+
+    private void prune() {
+        File[] traces = directory.listFiles((dir, name) -> name.endsWith(".trace"));
+        if (traces == null || traces.length <= MAX_TRACES) {
+            return;
+        }
+        Arrays.sort(traces, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (int i = 0; i < traces.length - MAX_TRACES; i++) {
+            if (!traces[i].delete()) {
+                Log.w(TAG, "Failed to delete " + traces[i].getName());
+            }
+        }
+    }
+}
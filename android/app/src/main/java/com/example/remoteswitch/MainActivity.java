@@ -7,47 +7,83 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
+import android.view.View;
 import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.EditText;
+import android.widget.LinearLayout;
+import android.widget.RadioGroup;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 
 import android.bluetooth.BluetoothDevice;
 import android.widget.Toast;
 
+import com.example.remoteswitch.core.Command;
+import com.example.remoteswitch.core.CommandTiming;
+import com.example.remoteswitch.core.ConnectionStateMachine;
+import com.example.remoteswitch.core.ConnectionlessFrame;
+import com.example.remoteswitch.core.DiagnosticsRecord;
+import com.example.remoteswitch.core.LinkSnapshot;
+import com.example.remoteswitch.core.ProvisioningPipeline;
+import com.example.remoteswitch.core.Scene;
+import com.example.remoteswitch.core.SceneTiming;
+import com.example.remoteswitch.core.ServoProfile;
+import com.example.remoteswitch.core.ServoWear;
+import com.example.remoteswitch.core.SleepSchedule;
+import com.example.remoteswitch.core.SnapshotCoalescer;
+
 import java.lang.reflect.Method;
-import java.util.Set;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 @SuppressLint("SetTextI18n")
 public class MainActivity extends AppCompatActivity
-        implements BleScanManager.OnDeviceFoundListener,
-                   BleConnectManager.OnDeviceConnectedListener {
+        implements BleScanManager.OnDeviceFoundListener {
     private static final String TAG = "MainActivity";
-    private Button scanButton, connectButton, disconnectButton, onButton, offButton, resetButton, helpButton;
+    private Button scanButton, connectButton, disconnectButton, onButton, offButton, resetButton, servoButton, helpButton, sceneButton,
+            timingButton, provisionButton;
     private TextView statusTextView;
+    private CheckBox preConnectCheckBox, connectionlessCheckBox;
 
     private BleScanManager bleScanManager;
     private BleConnectManager bleConnectManager;
+    private volatile LinkListener link; // of bleConnectManager, events of older links are dropped
     private BluetoothAdapter bluetoothAdapter;
     private BluetoothDevice device;
+    private SwitchRegistry switchRegistry;
+    private SceneDispatcher sceneDispatcher;
+    private ProvisioningSession provisioningSession;
+    private List<ServoProfile> servoProfileTemplate; // last read from the selected switch, offered to provisioning
     private final String DEVICE_NAME = "Remote Switch";
-    private static final String DEVICE_ADDRESS_KEY_NAME = "device_address";
     private static final int BLUETOOTH_PERMISSION_REQUEST_CODE = 100;
+    private static final long TIMING_RETRY_MS = 300; // until the switch has finished the command
+    private static final int TIMING_MAX_READS = 30; // a scene command may wait 5s for its time
+    // Commands of this process, added on the BLE thread and shown on the main thread
+    private static final CommandTiming.Stats commandTimings = new CommandTiming.Stats(100);
 
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        switchRegistry = SwitchRegistry.getInstance(this);
 
         // Request permissions
         requestBluetoothPermissions();
@@ -72,6 +108,17 @@ public class MainActivity extends AppCompatActivity
             new Handler(Looper.getMainLooper()).postDelayed(this::initializeStatus, 500);
         });
 
+        servoButton.setOnClickListener(v -> {
+            if (!isConnected()) {
+                return;
+            }
+            if (!bleConnectManager.hasServoProfiles()) {
+                Toast.makeText(this, getString(R.string.servo_profiles_unsupported), Toast.LENGTH_SHORT).show();
+                return;
+            }
+            bleConnectManager.readServoProfiles(); // the dialog opens in onServoProfilesRead()
+        });
+
         helpButton.setOnClickListener(v -> {
             Intent intent = new Intent(MainActivity.this, HelpActivity.class);
             startActivity(intent);
@@ -85,8 +132,24 @@ public class MainActivity extends AppCompatActivity
             statusTextView.setText(getString(R.string.status_connecting));
             connectButton.setEnabled(false); // Disable button during connection attempt
 
+            // Take over the link the background scan opened when the switch woke up, if there is one
+            LinkListener listener = new LinkListener(device.getAddress());
+            link = listener;
+            BleConnectManager preConnection = PresenceReceiver.takePreConnection(device.getAddress());
+            if (preConnection != null) {
+                Log.d(TAG, "Using pre-connection in state " + preConnection.getState());
+                bleConnectManager = preConnection;
+                listener.manager = preConnection;
+                preConnection.setListener(listener);
+                if (preConnection.isReady()) {
+                    BleWorker.run(() -> listener.onDeviceConnected(device));
+                }
+                return;
+            }
+
             // Instantiate and connect
-            bleConnectManager = new BleConnectManager(this, device, this);
+            bleConnectManager = new BleConnectManager(this, device, listener);
+            listener.manager = bleConnectManager;
             bleConnectManager.connect();
         });
 
@@ -96,19 +159,53 @@ public class MainActivity extends AppCompatActivity
             }
         });
 
-        onButton.setOnClickListener(v -> {
-            if (bleConnectManager != null) {
-                bleConnectManager.sendServoCommand("on");
-            }
-        });
+        onButton.setOnClickListener(v -> sendCommand(Command.ON));
 
-        offButton.setOnClickListener(v -> {
-            if (bleConnectManager != null) {
-                bleConnectManager.sendServoCommand("off");
+        offButton.setOnClickListener(v -> sendCommand(Command.OFF));
+
+        sceneButton.setOnClickListener(v -> showSceneDialog());
+
+        timingButton.setOnClickListener(v -> showTimingDialog());
+
+        provisionButton.setOnClickListener(v -> showProvisioningDialog());
+    }
+
+    private boolean isConnected() {
+        return bleConnectManager != null && bleConnectManager.isReady();
+    }
+
+    // Over the link if there is one, otherwise advertised if the switch listens (see CommandAdvertiser)
+    private void sendCommand(Command command) {
+        if (isConnected()) {
+            bleConnectManager.sendServoCommand(command.name);
+            return;
+        }
+        if (device == null) {
+            return;
+        }
+        String address = device.getAddress();
+        BleWorker.run(() -> {
+            if (!CommandAdvertiser.getInstance(this).send(address, command)) {
+                runOnUiThread(() -> Toast.makeText(this, getString(R.string.connectionless_failed), Toast.LENGTH_SHORT).show());
             }
         });
     }
 
+    private boolean isConnectionlessAvailable() {
+        return device != null && CommandAdvertiser.isAvailable(switchRegistry.get(device.getAddress()));
+    }
+
+    // Buttons that depend on the connection state
+    private void setControlsEnabled(boolean connected) {
+        boolean commands = connected || isConnectionlessAvailable();
+        connectButton.setEnabled(!connected);
+        disconnectButton.setEnabled(connected);
+        onButton.setEnabled(commands);
+        offButton.setEnabled(commands);
+        servoButton.setEnabled(connected);
+        connectionlessCheckBox.setEnabled(connected);
+    }
+
     private void initializeStatus() {
         // Initialize UI elements
         statusTextView = findViewById(R.id.statusTextView);
@@ -119,7 +216,13 @@ public class MainActivity extends AppCompatActivity
         onButton = findViewById(R.id.onButton);
         offButton = findViewById(R.id.offButton);
         resetButton = findViewById(R.id.resetButton);
+        servoButton = findViewById(R.id.servoButton);
         helpButton = findViewById(R.id.helpButton);
+        sceneButton = findViewById(R.id.sceneButton);
+        timingButton = findViewById(R.id.timingButton);
+        provisionButton = findViewById(R.id.provisionButton);
+        preConnectCheckBox = findViewById(R.id.preConnectCheckBox);
+        connectionlessCheckBox = findViewById(R.id.connectionlessCheckBox);
 
         IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
         registerReceiver(bondStateReceiver, filter);
@@ -127,29 +230,77 @@ public class MainActivity extends AppCompatActivity
 
         // Set initial button states
         if (device != null) {
-            statusTextView.setText(getString(R.string.status_bonded_disconnected, DEVICE_NAME));
+            SwitchRecord record = switchRegistry.get(device.getAddress());
+            boolean present = record != null && record.present;
+            statusTextView.setText(getString(present ? R.string.status_bonded_present : R.string.status_bonded_disconnected, deviceLabel()));
             scanButton.setEnabled(false);
+            preConnectCheckBox.setChecked(record != null && record.preConnect);
+            connectionlessCheckBox.setChecked(CommandAdvertiser.isAvailable(record));
         } else {
             statusTextView.setText(getString(R.string.status_not_bonded));
             scanButton.setEnabled(true);
-            connectButton.setEnabled(false);
+            preConnectCheckBox.setChecked(false);
+            connectionlessCheckBox.setChecked(false);
         }
-        disconnectButton.setEnabled(false);
-        onButton.setEnabled(false);
-        offButton.setEnabled(false);
+        setControlsEnabled(false);
+        connectButton.setEnabled(device != null);
+        preConnectCheckBox.setEnabled(device != null);
+        preConnectCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            if (device != null) {
+                switchRegistry.update(device.getAddress(), record -> record.preConnect = isChecked);
+            }
+        });
+        // Only changed on the switch, the box follows what it reads back (onConnectionlessRead)
+        connectionlessCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            if (!buttonView.isPressed() || !isConnected()) {
+                return;
+            }
+            if (!bleConnectManager.hasConnectionless()) {
+                Toast.makeText(this, getString(R.string.connectionless_unsupported), Toast.LENGTH_SHORT).show();
+                buttonView.setChecked(!isChecked);
+                return;
+            }
+            bleConnectManager.setConnectionless(isChecked);
+        });
 
         bleScanManager = new BleScanManager(this, bluetoothAdapter, this);
-        bleConnectManager = new BleConnectManager(this, device,this);
+        bleConnectManager = null;
+        link = null;
+        if (sceneDispatcher == null) {
+            sceneDispatcher = new SceneDispatcher(this, bluetoothAdapter);
+        }
+        if (provisioningSession == null) {
+            provisioningSession = new ProvisioningSession(this, bluetoothAdapter);
+        }
+        updatePresenceScan();
+    }
+
+    // Watch every known switch in the background, the scan survives the app's process (see PresenceReceiver).
+    private void updatePresenceScan() {
+        if (bleScanManager == null) {
+            return;
+        }
+        List<String> addresses = new ArrayList<>();
+        for (SwitchRecord record : switchRegistry.getAll()) {
+            addresses.add(record.address);
+        }
+        if (addresses.isEmpty()) {
+            bleScanManager.stopBackgroundScan();
+        } else {
+            bleScanManager.startBackgroundScan(addresses);
+        }
     }
 
     // Permissions request
     private void requestBluetoothPermissions() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) { // Android 12+
             if (checkSelfPermission(Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED ||
-                    checkSelfPermission(Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+                    checkSelfPermission(Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED ||
+                    checkSelfPermission(Manifest.permission.BLUETOOTH_ADVERTISE) != PackageManager.PERMISSION_GRANTED) {
                 requestPermissions(new String[]{
                         Manifest.permission.BLUETOOTH_SCAN,
-                        Manifest.permission.BLUETOOTH_CONNECT
+                        Manifest.permission.BLUETOOTH_CONNECT,
+                        Manifest.permission.BLUETOOTH_ADVERTISE
                 }, BLUETOOTH_PERMISSION_REQUEST_CODE);
             }
         } else { // Android 11 and below
@@ -182,16 +333,17 @@ public class MainActivity extends AppCompatActivity
     // Implement BleScannerManager.OnDeviceFoundListener methods
     public void onDeviceFound(BluetoothDevice device) {
         runOnUiThread(() -> {
-            statusTextView.setText(getString(R.string.status_found_device, DEVICE_NAME));
+            statusTextView.setText(getString(R.string.status_found_device, deviceLabel()));
             this.device = device;
             if (ActivityCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
                 requestBluetoothPermissions();
             }
             if (device.getBondState() == BluetoothDevice.BOND_BONDED) {
-                statusTextView.setText(getString(R.string.status_bonded_disconnected, DEVICE_NAME));
+                saveDevice();
+                statusTextView.setText(getString(R.string.status_bonded_disconnected, deviceLabel()));
                 connectButton.setEnabled(true);
             } else {
-                statusTextView.setText(getString(R.string.status_bonding, DEVICE_NAME));
+                statusTextView.setText(getString(R.string.status_bonding, deviceLabel()));
                 device.createBond();
             }
         });
@@ -204,49 +356,557 @@ public class MainActivity extends AppCompatActivity
         });
     }
 
-    // Implement BleScannerManager.OnDeviceConnectedListener methods
-    @Override
-    public void onDeviceConnected(BluetoothDevice device) {
-        runOnUiThread(() -> {
-            statusTextView.setText(getString(R.string.status_connected));
-            connectButton.setEnabled(false);
-            disconnectButton.setEnabled(true);
-            onButton.setEnabled(true);
-            offButton.setEnabled(true);
-            bleConnectManager.writeCurrentTime();
-        });
+    /*
+    Events of one connection, on the BLE thread. They update the registry there and publish LinkSnapshots,
+    the screen renders the newest one (render()), so a burst of events costs one pass on the main thread.
+    */
+    private class LinkListener implements BleConnectManager.OnDeviceConnectedListener {
+        final String address;
+        BleConnectManager manager;
+        private LinkSnapshot snapshot = LinkSnapshot.IDLE; // BLE thread
+        private LinkSnapshot rendered = LinkSnapshot.IDLE; // main thread
+        private CommandTiming.Sent timingPending; // BLE thread: a command whose timing is not read yet
+        private int timingReads;
+        private int lastTimingSequence = 0; // the switch starts each connection at 0
+        private final SnapshotCoalescer<LinkSnapshot> snapshots = new SnapshotCoalescer<>();
+
+        LinkListener(String address) {
+            this.address = address;
+        }
+
+        private void publish(LinkSnapshot next) {
+            snapshot = next;
+            if (link == this && snapshots.publish(next)) {
+                runOnUiThread(this::render);
+            }
+        }
+
+        // On the main thread: what changed since the last rendered snapshot
+        private void render() {
+            LinkSnapshot next = snapshots.take();
+            if (link != this || next == null) {
+                return;
+            }
+            LinkSnapshot previous = rendered;
+            rendered = next;
+            if (next.failures > previous.failures) {
+                statusTextView.setText(getString(R.string.status_bonded_disconnected, deviceLabel()));
+                Toast.makeText(MainActivity.this, next.failure, Toast.LENGTH_SHORT).show();
+                setControlsEnabled(false);
+                bleConnectManager = null;
+            } else if (next.isReady() && !previous.isReady()) {
+                statusTextView.setText(getString(R.string.status_connected));
+                setControlsEnabled(true);
+            } else if (!next.isReady() && previous.isReady()) {
+                statusTextView.setText(getString(R.string.status_bonded_disconnected, deviceLabel()));
+                setControlsEnabled(false);
+                bleConnectManager = null; // Clear the old manager instance
+            }
+            if (next.timeSyncs > previous.timeSyncs) {
+                Toast.makeText(MainActivity.this, getString(R.string.time_synced), Toast.LENGTH_SHORT).show();
+            }
+            if (next.servoProfileReads > previous.servoProfileReads) {
+                servoProfileTemplate = next.servoProfiles;
+                showServoProfileDialog(next.servoProfiles);
+            }
+            if (next.diagnosticsReads > previous.diagnosticsReads) {
+                if (next.batteryTier >= DiagnosticsRecord.BATTERY_TIER_LOW) {
+                    int message = next.batteryTier == DiagnosticsRecord.BATTERY_TIER_RESERVE
+                            ? R.string.battery_reserve : R.string.battery_low;
+                    Toast.makeText(MainActivity.this, getString(message), Toast.LENGTH_LONG).show();
+                }
+                for (int servo = 0; servo < next.raisedWear.size(); servo++) {
+                    if (next.raisedWear.get(servo) != null) {
+                        showWearDialog(servo, next.raisedWear.get(servo));
+                    }
+                }
+            }
+            if (next.connectionlessReads > previous.connectionlessReads) {
+                connectionlessCheckBox.setChecked(next.connectionlessEnabled);
+            }
+        }
+
+        @Override
+        public void onDeviceConnected(BluetoothDevice connected) {
+            if (manager != null) {
+                long latency = manager.getConnectLatencyMs();
+                List<String> layout = manager.getGattLayout();
+                switchRegistry.update(address, record -> {
+                    record.connectCount++;
+                    record.lastConnectLatencyMs = latency;
+                    record.averageConnectLatencyMs += (latency - record.averageConnectLatencyMs) / record.connectCount;
+                    record.gattLayout = layout;
+                    record.lastSeen = System.currentTimeMillis();
+                });
+                manager.writeCurrentTime();
+                if (manager.hasConnectionless()) {
+                    manager.readConnectionless();
+                }
+            }
+            publish(snapshot.withState(ConnectionStateMachine.State.READY));
+        }
+
+        @Override
+        public void onDeviceDisconnected() {
+            publish(snapshot.withState(ConnectionStateMachine.State.DISCONNECTED));
+        }
+
+        @Override
+        public void onConnectFailed(String errorMessage) {
+            switchRegistry.update(address, record -> record.connectFailures++);
+            // The switch cannot be reached in its deep sleep windows, say so instead of only reporting the failure
+            SwitchRecord record = switchRegistry.get(address);
+            SleepSchedule schedule = record != null ? record.getSleepSchedule() : SleepSchedule.FIRMWARE_DEFAULT;
+            int secondsUntilAwake = schedule.secondsUntilAwake(LocalTime.now().toSecondOfDay());
+            String message = secondsUntilAwake > 0
+                    ? errorMessage + " " + getString(R.string.maybe_asleep, LocalTime.now().plusSeconds(secondsUntilAwake).withSecond(0).withNano(0).toString())
+                    : errorMessage;
+            publish(snapshot.withFailure(message));
+        }
+
+        @Override
+        public void onTimeSynced() {
+            publish(snapshot.withTimeSynced());
+        }
+
+        @Override
+        public void onServoCommandSent(String command) {
+            int state = command.equals("on") ? SwitchRecord.STATE_ON : SwitchRecord.STATE_OFF;
+            switchRegistry.update(address, record -> {
+                record.lastState = state;
+                record.lastSeen = System.currentTimeMillis();
+            });
+            // The switch answers the write at once and reports the actuation when it is over
+            if (manager != null && manager.hasCommandTiming()) {
+                timingPending = manager.getLastCommandSent();
+                timingReads = 0;
+                BleWorker.getHandler().postDelayed(this::readCommandTiming, TIMING_RETRY_MS);
+            }
+        }
+
+        private void readCommandTiming() {
+            if (link != this || manager == null || timingPending == null) {
+                return;
+            }
+            if (++timingReads > TIMING_MAX_READS) {
+                timingPending = null;
+                return;
+            }
+            manager.readCommandTiming();
+        }
+
+        @Override
+        public void onCommandTimingRead(CommandTiming.Record record) {
+            if (timingPending == null || record == null) {
+                return;
+            }
+            if (!record.isDone() || record.sequence == lastTimingSequence) {
+                BleWorker.getHandler().postDelayed(this::readCommandTiming, TIMING_RETRY_MS);
+                return;
+            }
+            lastTimingSequence = record.sequence;
+            CommandTiming.Waterfall waterfall = CommandTiming.merge(timingPending, record);
+            timingPending = null;
+            synchronized (commandTimings) {
+                commandTimings.add(waterfall);
+            }
+            Log.d(TAG, "Command #" + record.sequence + " took " + waterfall.totalMicros() / 1000 + "ms: "
+                    + formatPhases(waterfall));
+        }
+
+        @Override
+        public void onDiagnosticsRead(byte[] value) {
+            DiagnosticsRecord diagnostics = DiagnosticsRecord.parse(value);
+            Log.d(TAG, "Firmware " + diagnostics.firmwareVersion + ", advertising mode " + diagnostics.advertisingMode
+                    + " (" + diagnostics.advertisingMinIntervalMs + "-" + diagnostics.advertisingMaxIntervalMs + "ms)");
+            if (diagnostics.connectionIntervalMicros >= 0) {
+                Log.d(TAG, "Link " + diagnostics.connectionIntervalMicros / 1000 + "ms, latency " + diagnostics.peripheralLatency
+                        + ", held " + diagnostics.heldSeconds + "s (" + diagnostics.idleSeconds + "s idle, " + diagnostics.idleEvents
+                        + " events), " + diagnostics.commandsOnIdleLink + " commands without reconnecting");
+            }
+            if (diagnostics.clients >= 0) {
+                Log.d(TAG, diagnostics.clients + " phone(s) connected, " + diagnostics.evictions + " dropped for another");
+            }
+            if (diagnostics.connectionlessEnabled >= 0) {
+                SwitchRecord record = switchRegistry.get(address);
+                Log.d(TAG, "Connectionless: " + diagnostics.connectionlessAccepted + " commands, latency "
+                        + diagnostics.connectionlessLastLatencyMs + "ms (average " + diagnostics.connectionlessAverageLatencyMs
+                        + "ms, max " + diagnostics.connectionlessMaxLatencyMs + "ms) against "
+                        + (record != null ? record.averageConnectLatencyMs : -1) + "ms to connect; listened "
+                        + diagnostics.scanSeconds + "s for " + diagnostics.scanChargeMicroAh + "uAh, "
+                        + diagnostics.connectionlessRejected + " rejected, " + diagnostics.connectionlessReplayed + " replayed");
+            }
+            if (diagnostics.advertisingMicros >= 0) {
+                Log.d(TAG, "Boot to advertising " + diagnostics.advertisingMicros / 1000 + "ms ("
+                        + wakeCauseName(diagnostics.wakeCause) + "), average "
+                        + diagnostics.averageAdvertisingMicros / 1000 + "ms, max " + diagnostics.maxAdvertisingMicros / 1000
+                        + "ms over " + diagnostics.boots + " boots");
+            }
+            if (diagnostics.batteryTier >= 0) {
+                Log.d(TAG, "Battery tier " + diagnostics.batteryTier + ", " + diagnostics.batteryMillivolts + "mV (lowest "
+                        + diagnostics.batteryLowestMillivolts + "mV), " + diagnostics.batteryTierChanges + " tier changes");
+            }
+            ServoWear[] raised = new ServoWear[diagnostics.servoWear != null ? diagnostics.servoWear.length : 0];
+            if (diagnostics.servoWear != null) {
+                // Flag a servo once per step towards its rating, the scene list keeps showing it
+                SwitchRecord known = switchRegistry.get(address);
+                ServoWear[] before = known != null ? known.servoWear : null;
+                for (int servo = 0; servo < diagnostics.servoWear.length; servo++) {
+                    ServoWear wear = diagnostics.servoWear[servo];
+                    Log.d(TAG, "Servo " + servo + ": " + wear.actuations + " actuations, " + wear.activeMs / 1000 + "s powered, "
+                            + wear.failed + " failed, " + wear.retried + " retried, " + wear.level());
+                    ServoWear.Level previous = before != null && servo < before.length && before[servo] != null
+                            ? before[servo].level() : ServoWear.Level.OK;
+                    if (wear.level().compareTo(previous) > 0) {
+                        raised[servo] = wear;
+                    }
+                }
+            }
+            switchRegistry.update(address, record -> record.takeDiagnostics(value, diagnostics));
+            publish(snapshot.withDiagnostics(diagnostics.batteryTier, raised));
+        }
+
+        @Override
+        public void onServoProfilesRead(List<ServoProfile> profiles) {
+            publish(snapshot.withServoProfiles(profiles));
+        }
+
+        @Override
+        public void onConnectionlessRead(ConnectionlessFrame.Settings settings) {
+            if (settings == null) {
+                return;
+            }
+            // A new key restarts the switch's sequence, otherwise never go below what it has run
+            switchRegistry.update(address, record -> {
+                boolean newKey = record.connectionlessKey != null && !Arrays.equals(record.connectionlessKey, settings.key);
+                record.connectionlessKey = settings.key;
+                record.connectionlessEnabled = settings.enabled;
+                record.connectionlessVersion = settings.version;
+                record.connectionlessSequence = newKey ? settings.lastSequence
+                        : Math.max(record.connectionlessSequence, settings.lastSequence);
+            });
+            publish(snapshot.withConnectionless(settings.enabled));
+        }
     }
 
-    @Override
-    public void onDeviceDisconnected() {
-        runOnUiThread(() -> {
-            statusTextView.setText(getString(R.string.status_bonded_disconnected, DEVICE_NAME));
-            connectButton.setEnabled(true);
-            disconnectButton.setEnabled(false);
-            onButton.setEnabled(false);
-            offButton.setEnabled(false);
-            this.bleConnectManager = null; // Clear the old manager instance
-        });
+    private static String formatPhases(CommandTiming.Waterfall waterfall) {
+        StringBuilder text = new StringBuilder();
+        for (int phase = 0; phase < waterfall.phaseMicros.length; phase++) {
+            if (phase > 0) {
+                text.append(", ");
+            }
+            text.append(CommandTiming.PHASE_NAMES[phase]).append(' ').append(waterfall.phaseMicros[phase] / 1000.0).append("ms");
+        }
+        return text.toString();
     }
 
-    @Override
-    public void onConnectFailed(String errorMessage) {
-        runOnUiThread(() -> {
-            statusTextView.setText(getString(R.string.status_bonded_disconnected, DEVICE_NAME));
-            Toast.makeText(MainActivity.this, errorMessage, Toast.LENGTH_SHORT).show();
-            connectButton.setEnabled(true);
-            disconnectButton.setEnabled(false);
-            onButton.setEnabled(false);
-            offButton.setEnabled(false);
-            this.bleConnectManager = null;
-        });
+    // The last command as a waterfall, then p50/p90/p99 of every phase
+    private void showTimingDialog() {
+        StringBuilder text = new StringBuilder();
+        synchronized (commandTimings) {
+            CommandTiming.Waterfall last = commandTimings.last();
+            if (last == null) {
+                text.append(getString(R.string.timing_none));
+            } else {
+                final int width = 24;
+                long total = Math.max(1, last.totalMicros());
+                text.append(getString(R.string.timing_last)).append('\n');
+                for (int phase = 0; phase < last.phaseMicros.length; phase++) {
+                    int start = (int) (last.startMicros(phase) * width / total);
+                    int length = Math.max(last.phaseMicros[phase] > 0 ? 1 : 0, (int) (last.phaseMicros[phase] * width / total));
+                    StringBuilder bar = new StringBuilder();
+                    for (int i = 0; i < width; i++) {
+                        bar.append(i >= start && i < start + length ? '#' : '.');
+                    }
+                    text.append(String.format(Locale.ROOT, "%-12s %s %8.1f%n", CommandTiming.PHASE_NAMES[phase], bar,
+                            last.phaseMicros[phase] / 1000.0));
+                }
+                text.append('\n').append(getString(R.string.timing_percentiles, commandTimings.size())).append('\n');
+                text.append(String.format(Locale.ROOT, "%-12s %8s %8s %8s%n", "", "p50", "p90", "p99"));
+                for (int phase = 0; phase <= CommandTiming.PHASE_TOTAL; phase++) {
+                    text.append(String.format(Locale.ROOT, "%-12s %8.1f %8.1f %8.1f%n", CommandTiming.PHASE_NAMES[phase],
+                            commandTimings.percentileMicros(phase, 50) / 1000.0,
+                            commandTimings.percentileMicros(phase, 90) / 1000.0,
+                            commandTimings.percentileMicros(phase, 99) / 1000.0));
+                }
+            }
+        }
+        View view = getLayoutInflater().inflate(R.layout.dialog_timing, null);
+        TextView timingTextView = view.findViewById(R.id.timingTextView);
+        timingTextView.setText(text);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.timing)
+                .setView(view)
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
     }
 
-    @Override
-    public void onTimeSynced() {
-        runOnUiThread(() -> {
-            Toast.makeText(MainActivity.this, getString(R.string.time_synced), Toast.LENGTH_SHORT).show();
-        });
+    // A servo close to its rating or failing too often: replace it, then the switch counts from 0 again
+    private void showWearDialog(int servo, ServoWear wear) {
+        String name = getString(servo == ServoProfile.SERVO_ON ? R.string.servo_on : R.string.servo_off);
+        int message = wear.level() == ServoWear.Level.WORN ? R.string.wear_worn : R.string.wear_near;
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.wear_title)
+                .setMessage(getString(message, name, wear.actuations, Math.round(wear.usedFraction() * 100),
+                        wear.failed, wear.retried))
+                .setPositiveButton(R.string.wear_replaced, (dialog, which) -> {
+                    if (bleConnectManager != null) {
+                        bleConnectManager.resetServoWear(servo);
+                        bleConnectManager.readDiagnostics();
+                    }
+                })
+                .setNegativeButton(R.string.wear_later, null)
+                .show();
+    }
+
+    private static String wakeCauseName(int wakeCause) {
+        switch (wakeCause) {
+            case DiagnosticsRecord.WAKE_TIMER:
+                return "timer wake";
+            case DiagnosticsRecord.WAKE_BUTTON:
+                return "button wake";
+            default:
+                return "power-on";
+        }
+    }
+
+    private void showServoProfileDialog(List<ServoProfile> profiles) {
+        if (profiles.size() < 2) {
+            return;
+        }
+        View view = getLayoutInflater().inflate(R.layout.dialog_servo_profile, null);
+        RadioGroup servoRadioGroup = view.findViewById(R.id.servoRadioGroup);
+        EditText targetAngleEdit = view.findViewById(R.id.targetAngleEdit);
+        EditText returnAngleEdit = view.findViewById(R.id.returnAngleEdit);
+        EditText rampSpeedEdit = view.findViewById(R.id.rampSpeedEdit);
+        EditText holdTimeEdit = view.findViewById(R.id.holdTimeEdit);
+        TextView sourceTextView = view.findViewById(R.id.servoSourceTextView);
+        String[] sources = {"default", "user", "calibrated", "calibration failed", "calibrating"};
+
+        RadioGroup.OnCheckedChangeListener fill = (group, checkedId) -> {
+            ServoProfile profile = profiles.get(checkedId == R.id.servoOnRadio ? ServoProfile.SERVO_ON : ServoProfile.SERVO_OFF);
+            targetAngleEdit.setText(String.valueOf(profile.targetAngle));
+            returnAngleEdit.setText(String.valueOf(profile.returnAngle));
+            rampSpeedEdit.setText(String.valueOf(profile.rampSpeed));
+            holdTimeEdit.setText(String.valueOf(profile.holdTimeMs));
+            String source = profile.source < sources.length ? sources[profile.source] : String.valueOf(profile.source);
+            sourceTextView.setText(getString(R.string.servo_source, source));
+        };
+        servoRadioGroup.setOnCheckedChangeListener(fill);
+        fill.onCheckedChanged(servoRadioGroup, servoRadioGroup.getCheckedRadioButtonId());
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.servo_profile_title)
+                .setView(view)
+                .setPositiveButton(R.string.servo_save, (dialog, which) -> {
+                    if (bleConnectManager == null) {
+                        return;
+                    }
+                    int servo = servoRadioGroup.getCheckedRadioButtonId() == R.id.servoOnRadio ? ServoProfile.SERVO_ON : ServoProfile.SERVO_OFF;
+                    try {
+                        bleConnectManager.writeServoProfile(new ServoProfile(servo,
+                                Integer.parseInt(targetAngleEdit.getText().toString()),
+                                Integer.parseInt(returnAngleEdit.getText().toString()),
+                                Integer.parseInt(rampSpeedEdit.getText().toString()),
+                                Integer.parseInt(holdTimeEdit.getText().toString())));
+                    } catch (NumberFormatException e) {
+                        Log.w(TAG, "Invalid servo profile input.", e);
+                    }
+                })
+                .setNeutralButton(R.string.servo_calibrate, (dialog, which) -> {
+                    if (bleConnectManager == null) {
+                        return;
+                    }
+                    int servo = servoRadioGroup.getCheckedRadioButtonId() == R.id.servoOnRadio ? ServoProfile.SERVO_ON : ServoProfile.SERVO_OFF;
+                    bleConnectManager.calibrateServo(servo);
+                    Toast.makeText(this, getString(R.string.servo_calibrating), Toast.LENGTH_LONG).show();
+                })
+                .setNegativeButton(R.string.cancel, null)
+                .show();
+    }
+
+    // "All off", "All on" and the saved scenes, for every switch in the registry
+    private void showSceneDialog() {
+        List<String> addresses = new ArrayList<>();
+        for (SwitchRecord record : switchRegistry.getAll()) {
+            addresses.add(record.address);
+        }
+        if (addresses.isEmpty()) {
+            Toast.makeText(this, getString(R.string.scene_no_switches), Toast.LENGTH_SHORT).show();
+            return;
+        }
+        List<Scene> scenes = new ArrayList<>();
+        scenes.add(Scene.all(getString(R.string.scene_all_off), addresses, Command.OFF));
+        scenes.add(Scene.all(getString(R.string.scene_all_on), addresses, Command.ON));
+        scenes.addAll(SceneStore.getInstance(this).getAll());
+        String[] names = new String[scenes.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = scenes.get(i).name;
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.scenes)
+                .setItems(names, (dialog, which) -> runScene(scenes.get(which)))
+                .setPositiveButton(R.string.scene_new, (dialog, which) -> showNewSceneDialog())
+                .setNegativeButton(R.string.cancel, null)
+                .show();
+    }
+
+    private void showNewSceneDialog() {
+        View view = getLayoutInflater().inflate(R.layout.dialog_scene, null);
+        EditText sceneNameEdit = view.findViewById(R.id.sceneNameEdit);
+        RadioGroup sceneCommandRadioGroup = view.findViewById(R.id.sceneCommandRadioGroup);
+        LinearLayout sceneSwitchList = view.findViewById(R.id.sceneSwitchList);
+        List<SwitchRecord> records = switchRegistry.getAll();
+        List<CheckBox> checkBoxes = new ArrayList<>();
+        for (SwitchRecord record : records) {
+            CheckBox checkBox = new CheckBox(this);
+            String name = record.label != null ? record.label : record.address;
+            checkBox.setText(ServoWear.worst(record.servoWear) == ServoWear.Level.OK ? name : getString(R.string.wear_flagged, name));
+            checkBox.setChecked(true);
+            sceneSwitchList.addView(checkBox);
+            checkBoxes.add(checkBox);
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.scene_new)
+                .setView(view)
+                .setPositiveButton(R.string.servo_save, (dialog, which) -> {
+                    String name = sceneNameEdit.getText().toString().trim();
+                    Command command = sceneCommandRadioGroup.getCheckedRadioButtonId() == R.id.sceneOnRadio ? Command.ON : Command.OFF;
+                    List<Scene.Target> targets = new ArrayList<>();
+                    for (int i = 0; i < records.size(); i++) {
+                        if (checkBoxes.get(i).isChecked()) {
+                            targets.add(new Scene.Target(records.get(i).address, command));
+                        }
+                    }
+                    if (name.isEmpty() || targets.isEmpty()) {
+                        return;
+                    }
+                    SceneStore.getInstance(this).save(new Scene(name, targets));
+                })
+                .setNegativeButton(R.string.cancel, null)
+                .show();
+    }
+
+    private void runScene(Scene scene) {
+        // The scene opens its own connections, Android shares the link with bleConnectManager if it is connected
+        if (!sceneDispatcher.run(scene, (done, result) -> runOnUiThread(() -> onSceneDone(done, result)))) {
+            Toast.makeText(this, getString(R.string.scene_busy), Toast.LENGTH_SHORT).show();
+            return;
+        }
+        Toast.makeText(this, getString(R.string.scene_running, scene.name), Toast.LENGTH_SHORT).show();
+    }
+
+    private void onSceneDone(Scene scene, SceneTiming.Result result) {
+        String message = result.fired > 1
+                ? getString(R.string.scene_result, scene.name, result.fired, result.targets, result.skewMillis, result.uncertaintyMillis)
+                : getString(R.string.scene_result_single, scene.name, result.fired, result.targets);
+        if (!result.missed.isEmpty()) {
+            Log.w(TAG, scene.name + " missed " + result.missed);
+        }
+        Toast.makeText(this, message, Toast.LENGTH_LONG).show();
+    }
+
+    // Label prefix, sleep windows and servo profiles for every new switch in range, see ProvisioningSession
+    private void showProvisioningDialog() {
+        if (provisioningSession.isRunning()) {
+            Toast.makeText(this, getString(R.string.provisioning_busy), Toast.LENGTH_SHORT).show();
+            return;
+        }
+        View view = getLayoutInflater().inflate(R.layout.dialog_provisioning, null);
+        EditText prefixEdit = view.findViewById(R.id.provisioningPrefixEdit);
+        EditText dayWindowEdit = view.findViewById(R.id.provisioningDayWindowEdit);
+        EditText nightWindowEdit = view.findViewById(R.id.provisioningNightWindowEdit);
+        CheckBox profilesCheckBox = view.findViewById(R.id.provisioningProfilesCheckBox);
+        dayWindowEdit.setText(formatWindow(SleepSchedule.FIRMWARE_DEFAULT.getWindow(0)));
+        nightWindowEdit.setText(formatWindow(SleepSchedule.FIRMWARE_DEFAULT.getWindow(1)));
+        List<ServoProfile> template = servoProfileTemplate;
+        if (template != null) {
+            profilesCheckBox.setText(getString(R.string.provisioning_copy_profiles, deviceLabel()));
+            profilesCheckBox.setVisibility(View.VISIBLE);
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.provisioning)
+                .setView(view)
+                .setPositiveButton(R.string.provisioning_start, (dialog, which) -> {
+                    int[] day = parseWindow(dayWindowEdit.getText().toString());
+                    int[] night = parseWindow(nightWindowEdit.getText().toString());
+                    if (day == null || night == null) {
+                        Toast.makeText(this, getString(R.string.provisioning_bad_window), Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+                    String prefix = prefixEdit.getText().toString().trim();
+                    startProvisioning(prefix.isEmpty() ? DEVICE_NAME : prefix, new SleepSchedule(new int[][]{day, night}),
+                            profilesCheckBox.isChecked() ? template : null);
+                })
+                .setNegativeButton(R.string.cancel, null)
+                .show();
+    }
+
+    private void startProvisioning(String prefix, SleepSchedule schedule, List<ServoProfile> profiles) {
+        Map<String, ProvisioningPipeline.Unit> progress = new LinkedHashMap<>(); // main thread
+        AlertDialog dialog = new AlertDialog.Builder(this)
+                .setTitle(R.string.provisioning)
+                .setMessage(getString(R.string.provisioning_scanning))
+                .setNegativeButton(R.string.cancel, (d, which) -> provisioningSession.cancel())
+                .setCancelable(false)
+                .show();
+        ProvisioningSession.Listener listener = new ProvisioningSession.Listener() {
+            @Override
+            public void onProgress(ProvisioningPipeline.Unit unit) {
+                runOnUiThread(() -> {
+                    progress.put(unit.address, unit);
+                    StringBuilder text = new StringBuilder();
+                    for (ProvisioningPipeline.Unit u : progress.values()) {
+                        String stage = u.stage.name().toLowerCase(Locale.ROOT) + (u.failure != null ? ", " + u.failure : "");
+                        text.append(getString(R.string.provisioning_unit, u.label, u.address, stage)).append('\n');
+                    }
+                    dialog.setMessage(text);
+                });
+            }
+
+            @Override
+            public void onFinished(List<ProvisioningPipeline.Unit> units) {
+                runOnUiThread(() -> {
+                    dialog.dismiss();
+                    int done = 0;
+                    for (ProvisioningPipeline.Unit unit : units) {
+                        if (unit.stage == ProvisioningPipeline.Stage.DONE) {
+                            done++;
+                        } else {
+                            Log.w(TAG, unit.label + " (" + unit.address + ") not provisioned: " + unit.failure);
+                        }
+                    }
+                    String message = units.isEmpty() ? getString(R.string.provisioning_none)
+                            : getString(R.string.provisioning_result, done, units.size());
+                    Toast.makeText(MainActivity.this, message, Toast.LENGTH_LONG).show();
+                    updatePresenceScan();
+                });
+            }
+        };
+        if (!provisioningSession.start(prefix, schedule, profiles, listener)) {
+            dialog.dismiss();
+            Toast.makeText(this, getString(R.string.provisioning_busy), Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    private static String formatWindow(int[] window) {
+        return String.format(Locale.ROOT, "%02d:%02d-%02d:%02d", window[0] / 3600, window[0] / 60 % 60, window[1] / 3600, window[1] / 60 % 60);
+    }
+
+    // "HH:MM-HH:MM" to {start, end} in seconds of day, null if malformed
+    private static int[] parseWindow(String text) {
+        String[] parts = text.trim().split("-");
+        if (parts.length != 2) {
+            return null;
+        }
+        try {
+            return new int[]{LocalTime.parse(parts[0].trim()).toSecondOfDay(), LocalTime.parse(parts[1].trim()).toSecondOfDay()};
+        } catch (DateTimeParseException e) {
+            return null;
+        }
     }
 
     private final BroadcastReceiver bondStateReceiver = new BroadcastReceiver() {
@@ -267,10 +927,12 @@ public class MainActivity extends AppCompatActivity
                     case BluetoothDevice.BOND_BONDING:
                         break;
                     case BluetoothDevice.BOND_BONDED:
-                        statusTextView.setText(getString(R.string.status_bonded_disconnected, DEVICE_NAME));
+                        statusTextView.setText(getString(R.string.status_bonded_disconnected, deviceLabel()));
                         saveDevice();
                         connectButton.setEnabled(true); // Enable connect button after bonding
                         scanButton.setEnabled(false);
+                        preConnectCheckBox.setEnabled(true);
+                        updatePresenceScan();
                         break;
                     case BluetoothDevice.BOND_NONE:
                         statusTextView.setText(getString(R.string.status_not_bonded));
@@ -284,48 +946,43 @@ public class MainActivity extends AppCompatActivity
 
     };
 
-    // Shared Preferences
+    // Switch registry
+    private String deviceLabel() {
+        if (device != null) {
+            SwitchRecord record = switchRegistry.get(device.getAddress());
+            if (record != null && record.label != null) {
+                return record.label;
+            }
+        }
+        return DEVICE_NAME;
+    }
+
     private void saveDevice() {
         if (device != null) {
-            SharedPreferences prefs = getSharedPreferences("Bond Information", Context.MODE_PRIVATE);
-            SharedPreferences.Editor editor = prefs.edit();
-            editor.putString(DEVICE_ADDRESS_KEY_NAME, device.getAddress());
-            editor.apply();
+            switchRegistry.select(device.getAddress(), DEVICE_NAME);
         }
     }
 
     private void restoreDevice() {
         bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
 
-        SharedPreferences prefs = getSharedPreferences("Bond Information", Context.MODE_PRIVATE);
-        String deviceAddress = prefs.getString(DEVICE_ADDRESS_KEY_NAME, null);
-
-        if (deviceAddress != null && bluetoothAdapter != null) {
-            // Try to obtain the BluetoothDevice object through the address.
-            BluetoothDevice savedDevice = bluetoothAdapter.getRemoteDevice(deviceAddress);
-            if (savedDevice != null) {
-                if (ActivityCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-                    requestBluetoothPermissions();
-                }
-                if (savedDevice.getBondState() == BluetoothDevice.BOND_BONDED) {
-                    device = savedDevice;
-                    Log.d(TAG, "Restored device (" + deviceAddress + ")");
-                } else {
-                    // The saved device not being bonded indicates a mismatch, so clear the saved device.
-                    clearSavedDevice();
-                }
-            } else {
-                // Considering the situation that the device it already bonded we haven't saved it, we need to search it by name for a second check.
-                Set<BluetoothDevice> pairedDevices = bluetoothAdapter.getBondedDevices();
-                if (pairedDevices != null && !pairedDevices.isEmpty()) {
-                    for (BluetoothDevice device : pairedDevices) {
-                        if (DEVICE_NAME.equals(device.getName())) {
-                            this.device = device;
-                            saveDevice();
-                        }
-                    }
-                }
-            }
+        // The registry is already in memory, so this never touches the disk or the system bond list.
+        SwitchRecord selected = switchRegistry.getSelected();
+        if (selected == null || bluetoothAdapter == null) {
+            return;
+        }
+        // Try to obtain the BluetoothDevice object through the address.
+        BluetoothDevice savedDevice = bluetoothAdapter.getRemoteDevice(selected.address);
+        if (ActivityCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+            requestBluetoothPermissions();
+        }
+        if (savedDevice.getBondState() == BluetoothDevice.BOND_BONDED) {
+            device = savedDevice;
+            Log.d(TAG, "Restored device (" + selected.address + ")");
+        } else {
+            // The saved device not being bonded indicates a mismatch, so forget it.
+            Log.d(TAG, "Saved device (" + selected.address + ") is no longer bonded.");
+            switchRegistry.remove(selected.address);
         }
     }
     private void clearSavedDevice() {
@@ -350,11 +1007,11 @@ public class MainActivity extends AppCompatActivity
                 onDestroy();
             }
         }
+        if (device != null) {
+            switchRegistry.remove(device.getAddress());
+        }
         device = null;
-        SharedPreferences prefs = getSharedPreferences("Bond Information", Context.MODE_PRIVATE);
-        SharedPreferences.Editor editor = prefs.edit();
-        editor.remove(DEVICE_ADDRESS_KEY_NAME);
-        editor.apply();
+        updatePresenceScan();
         Toast.makeText(MainActivity.this, getString(R.string.device_cleared), Toast.LENGTH_SHORT).show();
     }
 
@@ -377,5 +1034,6 @@ public class MainActivity extends AppCompatActivity
             bleConnectManager.disconnect();
         }
         unregisterReceiver(bondStateReceiver);
+        switchRegistry.flush();
     }
 }
\ No newline at end of file
@@ -0,0 +1,200 @@
+package com.example.remoteswitch;
+
+import android.Manifest;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import androidx.core.app.ActivityCompat;
+
+import com.example.remoteswitch.core.DiagnosticsRecord;
+import com.example.remoteswitch.core.ServoProfile;
+
+import java.util.List;
+
+/*
+Receives the results of the background presence scan (see BleScanManager.startBackgroundScan).
+The system starts the process for it if needed, so this only updates the registry and, for switches
+with preConnect set, opens the connection and syncs the time. MainActivity picks that connection up
+with takePreConnection() instead of connecting again. The broadcast stays pending (goAsync()) until the time is
+synced, the connection failed or PRE_CONNECT_TIMEOUT_MS is over: a process the system started just for the
+broadcast would otherwise count as cached and could be killed before the switch has its time.
+*/
+public class PresenceReceiver extends BroadcastReceiver {
+    private static final String TAG = "PresenceReceiver";
+    public static final String ACTION_PRESENCE = "com.example.remoteswitch.action.PRESENCE";
+    private static final long PRE_CONNECT_TIMEOUT_MS = 9000; // under the 10s a pending broadcast may take
+
+    // At most one pre-connection, the firmware keeps an unused link at a low duty cycle and drops it after MAX_IDLE_HOLD
+    private static BleConnectManager preConnection;
+    private static String preConnectionAddress;
+    private static PendingResult pendingResult; // of the broadcast that started the pre-connection
+    private static final Runnable pendingTimeout = () -> {
+        Log.w(TAG, "Pre-connection did not sync in time, releasing the broadcast.");
+        finishPending();
+    };
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!ACTION_PRESENCE.equals(intent.getAction())) {
+            return;
+        }
+        int errorCode = intent.getIntExtra(BluetoothLeScanner.EXTRA_ERROR_CODE, 0);
+        if (errorCode != 0) {
+            Log.e(TAG, "Background scan failed with error code: " + errorCode);
+            return;
+        }
+        List<ScanResult> results = intent.getParcelableArrayListExtra(BluetoothLeScanner.EXTRA_LIST_SCAN_RESULT);
+        if (results == null) {
+            return;
+        }
+        boolean lost = intent.getIntExtra(BluetoothLeScanner.EXTRA_CALLBACK_TYPE, ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+                == ScanSettings.CALLBACK_TYPE_MATCH_LOST;
+
+        SwitchRegistry registry = SwitchRegistry.getInstance(context);
+        BluetoothDevice preConnectDevice = null;
+        for (ScanResult result : results) {
+            String address = result.getDevice().getAddress();
+            SwitchRecord record = registry.get(address);
+            if (record == null) {
+                continue;
+            }
+            Log.d(TAG, "Switch " + address + (lost ? " stopped advertising." : " is advertising, RSSI: " + result.getRssi() + "dBm"));
+            // Firmware 1.12.0 advertises its battery tier
+            int batteryTier = lost || result.getScanRecord() == null ? -1 : DiagnosticsRecord.advertisedBatteryTier(
+                    result.getScanRecord().getManufacturerSpecificData(DiagnosticsRecord.BATTERY_COMPANY_ID));
+            if (batteryTier >= DiagnosticsRecord.BATTERY_TIER_LOW) {
+                Log.w(TAG, "Switch " + address + " battery tier " + batteryTier);
+            }
+            registry.update(address, r -> {
+                r.present = !lost;
+                if (!lost) {
+                    r.lastSeen = System.currentTimeMillis();
+                }
+                if (batteryTier >= 0) {
+                    r.batteryTier = batteryTier;
+                }
+            });
+            if (!lost && record.preConnect
+                    && ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED
+                    && result.getDevice().getBondState() == BluetoothDevice.BOND_BONDED) {
+                preConnectDevice = result.getDevice();
+            }
+        }
+        registry.flush();
+        if (preConnectDevice != null) {
+            preConnect(context.getApplicationContext(), preConnectDevice, this);
+        }
+    }
+
+    private static synchronized void preConnect(Context context, BluetoothDevice device, BroadcastReceiver receiver) {
+        if (preConnection != null) {
+            return;
+        }
+        Log.d(TAG, "Pre-connecting to " + device.getAddress());
+        pendingResult = receiver.goAsync();
+        BleWorker.getHandler().postDelayed(pendingTimeout, PRE_CONNECT_TIMEOUT_MS);
+        preConnectionAddress = device.getAddress();
+        preConnection = new BleConnectManager(context, device, new PreConnectListener(context, device.getAddress()));
+        preConnection.connect();
+    }
+
+    // The pre-connection has done what it was for, or gave up: the process may go back to the cache
+    private static synchronized void finishPending() {
+        BleWorker.getHandler().removeCallbacks(pendingTimeout);
+        if (pendingResult != null) {
+            pendingResult.finish();
+            pendingResult = null;
+        }
+    }
+
+    // Hand the pre-connection over to the caller, null if there is none for this address or it was lost.
+    public static synchronized BleConnectManager takePreConnection(String address) {
+        BleConnectManager taken = null;
+        if (preConnection != null && address.equals(preConnectionAddress)) {
+            taken = preConnection;
+            preConnection = null;
+            preConnectionAddress = null;
+        }
+        return taken;
+    }
+
+    private static synchronized void dropPreConnection(String address) {
+        if (address.equals(preConnectionAddress)) {
+            preConnection = null;
+            preConnectionAddress = null;
+        }
+    }
+
+    // Keeps the registry up to date while nobody else owns the connection
+    private static class PreConnectListener implements BleConnectManager.OnDeviceConnectedListener {
+        private final Context context;
+        private final String address;
+
+        PreConnectListener(Context context, String address) {
+            this.context = context;
+            this.address = address;
+        }
+
+        @Override
+        public void onDeviceConnected(BluetoothDevice device) {
+            BleConnectManager manager;
+            synchronized (PresenceReceiver.class) {
+                manager = preConnection;
+            }
+            if (manager == null) {
+                return;
+            }
+            long latency = manager.getConnectLatencyMs();
+            SwitchRegistry.getInstance(context).update(address, record -> {
+                record.connectCount++;
+                record.lastConnectLatencyMs = latency;
+                record.averageConnectLatencyMs += (latency - record.averageConnectLatencyMs) / record.connectCount;
+                record.gattLayout = manager.getGattLayout();
+                record.lastSeen = System.currentTimeMillis();
+            });
+            // The switch just woke up, this is the moment its clock matters most
+            manager.writeCurrentTime();
+        }
+
+        @Override
+        public void onDeviceDisconnected() {
+            dropPreConnection(address);
+            finishPending();
+        }
+
+        @Override
+        public void onConnectFailed(String errorMessage) {
+            Log.w(TAG, "Pre-connection to " + address + " failed: " + errorMessage);
+            SwitchRegistry.getInstance(context).update(address, record -> record.connectFailures++);
+            dropPreConnection(address);
+            finishPending();
+        }
+
+        @Override
+        public void onTimeSynced() {
+            Log.d(TAG, "Time synced on pre-connection to " + address);
+            finishPending();
+        }
+
+        @Override
+        public void onServoCommandSent(String command) {
+        }
+
+        @Override
+        public void onDiagnosticsRead(byte[] value) {
+            DiagnosticsRecord diagnostics = DiagnosticsRecord.parse(value);
+            SwitchRegistry.getInstance(context).update(address, record -> record.takeDiagnostics(value, diagnostics));
+        }
+
+        @Override
+        public void onServoProfilesRead(List<ServoProfile> profiles) {
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package com.example.remoteswitch;
+
+import android.Manifest;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.util.Log;
+
+import androidx.core.app.ActivityCompat;
+
+import com.example.remoteswitch.core.DiagnosticsRecord;
+import com.example.remoteswitch.core.Provisioning;
+import com.example.remoteswitch.core.ProvisioningPipeline;
+import com.example.remoteswitch.core.ServoProfile;
+import com.example.remoteswitch.core.SleepSchedule;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+Provisions every new switch in range at once (firmware 1.13.0):
+1. Scan for SCAN_MS and pick up every switch whose advertisement has no Provisioning.STATUS_PROVISIONED.
+   Each one joins the ProvisioningPipeline as soon as it is seen, labelled with the prefix and a number.
+2. The pipeline bonds them one after the other and runs up to ProvisioningPipeline.DEFAULT_MAX_ACTIVE write
+   sessions next to it. A session is one connection with the whole batch queued at once: the time, the servo
+   profiles (the ones last read from the selected switch, if any) and last the schedule and label. The GATT queue
+   runs them back to back, the provisioning write's acknowledgement closes the session.
+3. A provisioned switch is added to the registry with its label and schedule, and the background scan watches it.
+Every unit's progress and failure goes to the listener. Like SceneDispatcher, all state is touched on the BLE
+thread (BleWorker) only and the listener is called there too.
+*/
+public class ProvisioningSession {
+    private static final String TAG = "ProvisioningSession";
+    private static final long SCAN_MS = 20000; // a few of the slowest advertising intervals
+    private static final long TICK_MS = 1000;
+
+    public interface Listener {
+        void onProgress(ProvisioningPipeline.Unit unit);
+
+        void onFinished(List<ProvisioningPipeline.Unit> units);
+    }
+
+    private final Context context;
+    private final BluetoothAdapter bluetoothAdapter;
+    private final Handler handler = BleWorker.getHandler();
+    private final AtomicBoolean running = new AtomicBoolean(false); // from the start of start() to the end of finish()
+    private final Map<String, Member> members = new HashMap<>(); // write sessions in progress
+    private final Map<String, String> labels = new HashMap<>(); // by address, numbered in the order found
+    private final Runnable endScan = this::endScan;
+    private final Runnable tick = this::tick;
+    private ProvisioningPipeline pipeline;
+    private Listener listener;
+    private String labelPrefix;
+    private SleepSchedule schedule;
+    private List<ServoProfile> profiles;
+    private BluetoothLeScanner scanner;
+    private int found = 0;
+
+    // One switch's write session. A session that was aborted no longer reports.
+    private class Member implements BleConnectManager.OnDeviceConnectedListener {
+        final String address;
+        final String label;
+        final BleConnectManager manager;
+        boolean done = false;
+
+        Member(String address, String label) {
+            this.address = address;
+            this.label = label;
+            this.manager = new BleConnectManager(context, bluetoothAdapter.getRemoteDevice(address), this);
+        }
+
+        boolean isCurrent() {
+            return members.get(address) == this;
+        }
+
+        @Override
+        public void onDeviceConnected(BluetoothDevice device) {
+            handler.post(() -> {
+                if (!isCurrent()) {
+                    return;
+                }
+                if (!manager.hasProvisioning()) {
+                    fail("firmware before 1.13.0");
+                    return;
+                }
+                // All queued at once: the GATT queue sends them back to back on this connection
+                boolean queued = manager.syncTime();
+                if (manager.hasServoProfiles()) {
+                    for (ServoProfile profile : profiles) {
+                        manager.writeServoProfile(profile);
+                    }
+                }
+                queued &= manager.writeProvisioning(schedule, label);
+                if (!queued) {
+                    fail("batch not queued");
+                }
+            });
+        }
+
+        @Override
+        public void onProvisioned() {
+            handler.post(() -> {
+                if (!isCurrent()) {
+                    return;
+                }
+                done = true;
+                members.remove(address);
+                SleepSchedule written = schedule;
+                SwitchRegistry registry = SwitchRegistry.getInstance(context);
+                registry.add(address, label);
+                registry.update(address, record -> {
+                    record.label = Provisioning.fitLabel(label);
+                    record.sleepWindows = new int[]{written.getWindow(0)[0], written.getWindow(0)[1],
+                            written.getWindow(1)[0], written.getWindow(1)[1]};
+                    record.lastSeen = System.currentTimeMillis();
+                });
+                manager.disconnect();
+                pipeline.onWritten(address);
+            });
+        }
+
+        @Override
+        public void onWriteFailed(UUID characteristic, int status) {
+            handler.post(() -> fail("write refused, status " + status));
+        }
+
+        @Override
+        public void onDeviceDisconnected() {
+            handler.post(() -> fail("disconnected"));
+        }
+
+        @Override
+        public void onConnectFailed(String errorMessage) {
+            handler.post(() -> fail(errorMessage));
+        }
+
+        @Override
+        public void onTimeSynced() {
+        }
+
+        @Override
+        public void onServoCommandSent(String command) {
+        }
+
+        @Override
+        public void onDiagnosticsRead(byte[] value) {
+        }
+
+        @Override
+        public void onServoProfilesRead(List<ServoProfile> profiles) {
+        }
+
+        void fail(String reason) {
+            if (done || !isCurrent()) {
+                return;
+            }
+            Log.w(TAG, address + " write session failed: " + reason);
+            pipeline.onWriteFailed(address, reason); // aborts this session, maybe starts a new one
+        }
+    }
+
+    private final ProvisioningPipeline.Port port = new ProvisioningPipeline.Port() {
+        @Override
+        public boolean bond(String address) {
+            BluetoothDevice device = bluetoothAdapter.getRemoteDevice(address);
+            if (device.getBondState() == BluetoothDevice.BOND_BONDED) {
+                handler.post(() -> {
+                    if (pipeline != null) {
+                        pipeline.onBonded(address, true);
+                    }
+                });
+                return true;
+            }
+            return device.createBond();
+        }
+
+        @Override
+        public boolean write(String address) {
+            Member member = new Member(address, labels.get(address));
+            members.put(address, member);
+            member.manager.connect();
+            return true;
+        }
+
+        @Override
+        public void abort(String address) {
+            Member member = members.remove(address);
+            if (member != null) {
+                member.manager.disconnect();
+            }
+        }
+    };
+
+    private final ProvisioningPipeline.Listener pipelineListener = new ProvisioningPipeline.Listener() {
+        @Override
+        public void onProgress(ProvisioningPipeline.Unit unit) {
+            Log.d(TAG, unit.address + " (" + unit.label + ") " + unit.stage + (unit.failure != null ? ": " + unit.failure : ""));
+            listener.onProgress(unit);
+        }
+
+        @Override
+        public void onFinished(List<ProvisioningPipeline.Unit> done) {
+            handler.post(() -> finish(done)); // after the pipeline call that finished it has returned
+        }
+    };
+
+    // Pairing of the switches in the pipeline, delivered on the BLE thread
+    private final BroadcastReceiver bondReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            int state = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.ERROR);
+            if (device == null || pipeline == null) {
+                return;
+            }
+            if (state == BluetoothDevice.BOND_BONDED) {
+                pipeline.onBonded(device.getAddress(), true);
+            } else if (state == BluetoothDevice.BOND_NONE) {
+                pipeline.onBonded(device.getAddress(), false);
+            }
+        }
+    };
+
+    public ProvisioningSession(Context context, BluetoothAdapter bluetoothAdapter) {
+        this.context = context.getApplicationContext();
+        this.bluetoothAdapter = bluetoothAdapter;
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    // Returns false if provisioning is already running. Call from any thread, the scan starts on the BLE thread.
+    public boolean start(String labelPrefix, SleepSchedule schedule, List<ServoProfile> profiles, Listener listener) {
+        if (bluetoothAdapter == null || !running.compareAndSet(false, true)) {
+            return false;
+        }
+        handler.post(() -> begin(labelPrefix, schedule, profiles, listener));
+        return true;
+    }
+
+    // Stops the scan and fails every switch that is not done yet
+    public void cancel() {
+        handler.post(() -> {
+            if (pipeline != null && !pipeline.isFinished()) {
+                stopScan();
+                pipeline.cancel();
+            }
+        });
+    }
+
+    private void begin(String labelPrefix, SleepSchedule schedule, List<ServoProfile> profiles, Listener listener) {
+        this.labelPrefix = labelPrefix;
+        this.schedule = schedule;
+        this.profiles = profiles == null ? Collections.emptyList() : new ArrayList<>(profiles);
+        this.listener = listener;
+        found = 0;
+        members.clear();
+        pipeline = new ProvisioningPipeline(port, pipelineListener);
+        context.registerReceiver(bondReceiver, new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED), null, handler);
+
+        scanner = bluetoothAdapter.getBluetoothLeScanner();
+        if (scanner == null || ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED) {
+            Log.w(TAG, "Cannot scan.");
+            pipeline.endOfUnits();
+            return;
+        }
+        ScanFilter filter = new ScanFilter.Builder().setDeviceName(context.getString(R.string.app_name)).build();
+        ScanSettings settings = new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY).build();
+        scanner.startScan(Collections.singletonList(filter), settings, scanCallback);
+        handler.postDelayed(endScan, SCAN_MS);
+        handler.postDelayed(tick, TICK_MS);
+        Log.d(TAG, "Scanning for new switches.");
+    }
+
+    private final ScanCallback scanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            ScanRecord record = result.getScanRecord();
+            byte[] status = record == null ? null : record.getManufacturerSpecificData(DiagnosticsRecord.BATTERY_COMPANY_ID);
+            if (!Provisioning.isNew(status)) {
+                return;
+            }
+            String address = result.getDevice().getAddress();
+            handler.post(() -> {
+                if (pipeline != null && !pipeline.isFinished() && !labels.containsKey(address)) {
+                    labels.put(address, labelPrefix + " " + ++found);
+                    pipeline.add(address, labels.get(address));
+                }
+            });
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.e(TAG, "Scan failed with error code: " + errorCode);
+            handler.post(ProvisioningSession.this::endScan);
+        }
+    };
+
+    private void endScan() {
+        if (pipeline == null || scanner == null) {
+            return;
+        }
+        stopScan();
+        Log.d(TAG, "Scan over, " + found + " new switch(es).");
+        pipeline.endOfUnits();
+    }
+
+    private void stopScan() {
+        handler.removeCallbacks(endScan);
+        if (scanner != null && ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_SCAN) == PackageManager.PERMISSION_GRANTED) {
+            scanner.stopScan(scanCallback);
+        }
+        scanner = null;
+    }
+
+    private void tick() {
+        if (pipeline == null || pipeline.isFinished()) {
+            return;
+        }
+        pipeline.tick();
+        handler.postDelayed(tick, TICK_MS);
+    }
+
+    private void finish(List<ProvisioningPipeline.Unit> done) {
+        if (pipeline == null) {
+            return;
+        }
+        handler.removeCallbacks(tick);
+        stopScan();
+        context.unregisterReceiver(bondReceiver);
+        for (Member member : members.values()) {
+            member.manager.disconnect();
+        }
+        members.clear();
+        labels.clear();
+        Listener doneListener = listener;
+        pipeline = null;
+        listener = null;
+        SwitchRegistry.getInstance(context).flush();
+        running.set(false);
+        Log.i(TAG, "Provisioning over: " + done.size() + " switch(es).");
+        doneListener.onFinished(done);
+    }
+}
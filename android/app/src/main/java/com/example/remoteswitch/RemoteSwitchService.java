@@ -0,0 +1,160 @@
+package com.example.remoteswitch;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.example.remoteswitch.core.Command;
+
+import java.util.Locale;
+import java.util.function.IntConsumer;
+
+/*
+The control API for automation apps (IRemoteSwitchService.aidl), exported and protected by the CONTROL_SWITCH permission.
+Binder calls only post to the BLE thread (BleWorker), commands go through the shared SwitchConnections,
+so callers asking for the same switch at the same time share its connection and its write.
+Arguments from the other app are checked on the binder thread, before anything is posted: an exception on the
+shared BLE thread would take down the whole app. The calls are oneway, so an invalid one is logged and dropped.
+The result codes of CommandMultiplexer and IRemoteSwitchService have the same values.
+*/
+public class RemoteSwitchService extends Service {
+    private static final String TAG = "RemoteSwitchService";
+
+    private final Handler handler = BleWorker.getHandler();
+    private SwitchRegistry registry;
+    private SwitchConnections connections;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        registry = SwitchRegistry.getInstance(this);
+        connections = SwitchConnections.getInstance(this);
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    private final IRemoteSwitchService.Stub binder = new IRemoteSwitchService.Stub() {
+        @Override
+        public int getApiVersion() {
+            return API_VERSION;
+        }
+
+        @Override
+        public void sendCommand(int requestId, String address, String command, IRemoteSwitchCallback callback) {
+            if (!valid(requestId, callback)) {
+                return;
+            }
+            handler.post(() -> send(address, command, result -> {
+                try {
+                    callback.onCommandResult(requestId, address, command, result);
+                } catch (RemoteException e) {
+                    Log.w(TAG, "Caller of request " + requestId + " is gone.", e);
+                }
+            }));
+        }
+
+        @Override
+        public void queryState(int requestId, String address, IRemoteSwitchCallback callback) {
+            if (!valid(requestId, callback)) {
+                return;
+            }
+            handler.post(() -> {
+                try {
+                    if (address == null) {
+                        for (SwitchRecord record : registry.getAll()) {
+                            deliverState(requestId, record, callback);
+                        }
+                        return;
+                    }
+                    SwitchRecord record = registry.get(normalize(address));
+                    if (record == null) {
+                        callback.onStateResult(requestId, address, IRemoteSwitchService.RESULT_UNKNOWN_SWITCH, null,
+                                IRemoteSwitchService.STATE_UNKNOWN, false, 0, null);
+                        return;
+                    }
+                    deliverState(requestId, record, callback);
+                } catch (RemoteException e) {
+                    Log.w(TAG, "Caller of request " + requestId + " is gone.", e);
+                }
+            });
+        }
+
+        @Override
+        public void submitBatch(int requestId, String[] addresses, String[] commands, IRemoteSwitchCallback callback) {
+            if (!valid(requestId, callback)) {
+                return;
+            }
+            String[] batch = addresses != null ? addresses : new String[0];
+            if (batch.length > 0 && (commands == null || commands.length != batch.length)) {
+                Log.w(TAG, "Batch " + requestId + " has " + batch.length + " addresses but "
+                        + (commands == null ? "no" : String.valueOf(commands.length)) + " commands, dropped.");
+                return;
+            }
+            handler.post(() -> {
+                int[] results = new int[batch.length];
+                int[] remaining = {batch.length};
+                Runnable done = () -> {
+                    try {
+                        callback.onBatchResult(requestId, batch, results);
+                    } catch (RemoteException e) {
+                        Log.w(TAG, "Caller of batch " + requestId + " is gone.", e);
+                    }
+                };
+                if (batch.length == 0) {
+                    done.run();
+                    return;
+                }
+                // Every entry is submitted before the first result, so entries for one switch are batched like concurrent callers
+                for (int i = 0; i < batch.length; i++) {
+                    int index = i;
+                    send(batch[i], commands[i], result -> {
+                        results[index] = result;
+                        if (--remaining[0] == 0) {
+                            done.run();
+                        }
+                    });
+                }
+            });
+        }
+    };
+
+    // On the binder thread
+    private static boolean valid(int requestId, IRemoteSwitchCallback callback) {
+        if (callback == null) {
+            Log.w(TAG, "Request " + requestId + " has no callback, dropped.");
+            return false;
+        }
+        return true;
+    }
+
+    // On the BLE thread. onResult gets IRemoteSwitchService.RESULT_*, at once if the request is invalid.
+    private void send(String address, String commandName, IntConsumer onResult) {
+        Command command = Command.fromName(commandName);
+        if (command == null) {
+            onResult.accept(IRemoteSwitchService.RESULT_INVALID_COMMAND);
+            return;
+        }
+        String known = address == null ? null : normalize(address);
+        if (known == null || registry.get(known) == null) {
+            onResult.accept(IRemoteSwitchService.RESULT_UNKNOWN_SWITCH);
+            return;
+        }
+        connections.send(known, command, (a, c, result) -> onResult.accept(result));
+    }
+
+    private static void deliverState(int requestId, SwitchRecord record, IRemoteSwitchCallback callback) throws RemoteException {
+        callback.onStateResult(requestId, record.address, IRemoteSwitchService.RESULT_OK, record.label, record.lastState,
+                record.present, record.lastSeen, record.firmwareVersion);
+    }
+
+    // Android reports addresses in upper case
+    private static String normalize(String address) {
+        return address.toUpperCase(Locale.ROOT);
+    }
+}
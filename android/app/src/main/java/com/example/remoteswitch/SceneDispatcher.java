@@ -0,0 +1,283 @@
+package com.example.remoteswitch;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+import com.example.remoteswitch.core.Command;
+import com.example.remoteswitch.core.DiagnosticsRecord;
+import com.example.remoteswitch.core.Scene;
+import com.example.remoteswitch.core.SceneTiming;
+import com.example.remoteswitch.core.ServoProfile;
+import com.example.remoteswitch.core.TimeCodec;
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+Runs a scene on all its switches at once:
+1. Connect to every switch in parallel and write the time with milliseconds, timing each write's round trip.
+2. When all are synced (or CONNECT_TIMEOUT_MS is over), pick a time of day far enough ahead for the slowest
+   link (SceneTiming.leadMillis) and send every switch its command with that time. The firmware holds it
+   and fires on its own clock, so the switches flip together however the writes are spread out. The firmware
+   refuses times more than SceneTiming.MAX_LEAD_MILLIS ahead, so a switch whose link is too slow for that is
+   left out instead of holding the others back.
+3. Once the fire time is over, read each switch's diagnostics for when it really fired, and report the skew
+   (SceneTiming). A switch busy with another phone's command fires later, its record is read again until it shows up.
+Every switch gets its own BleConnectManager. If the app is already connected to one, Android shares the link.
+All state is touched on the BLE thread (BleWorker) only, the listener is called there too.
+*/
+public class SceneDispatcher {
+    private static final String TAG = "SceneDispatcher";
+    private static final long CONNECT_TIMEOUT_MS = 10000;
+    private static final long RESULT_TIMEOUT_MS = 5000; // after the fire time: actuation plus the diagnostics read
+    private static final long RESULT_RETRY_MS = 300;
+
+    public interface Listener {
+        void onSceneDone(Scene scene, SceneTiming.Result result);
+    }
+
+    private final Context context;
+    private final BluetoothAdapter bluetoothAdapter;
+    private final Handler handler = BleWorker.getHandler();
+    private final List<Member> members = new ArrayList<>();
+    private final Runnable fireTimeout = this::fire;
+    private final Runnable finishTimeout = this::finish;
+    private final AtomicBoolean running = new AtomicBoolean(false); // from the start of run() to the end of finish()
+    private Scene scene;
+    private Listener listener;
+    private boolean fired = false;
+
+    // One switch of the running scene
+    private class Member implements BleConnectManager.OnDeviceConnectedListener {
+        final Scene.Target target;
+        BleConnectManager manager;
+        long syncSentNanos = 0;
+        long syncRoundTripMillis = -1;
+        int requestedMillis = -1;
+        long fireAtNanos;
+        DiagnosticsRecord diagnostics;
+        boolean failed = false;
+
+        Member(Scene.Target target) {
+            this.target = target;
+        }
+
+        @Override
+        public void onDeviceConnected(BluetoothDevice device) {
+            handler.post(() -> {
+                syncSentNanos = System.nanoTime();
+                if (!manager.syncTime()) {
+                    fail("time sync not queued");
+                }
+            });
+        }
+
+        @Override
+        public void onTimeSynced() {
+            long acked = System.nanoTime();
+            handler.post(() -> {
+                syncRoundTripMillis = (acked - syncSentNanos) / 1000000;
+                Log.d(TAG, target.address + " synced, round trip " + syncRoundTripMillis + "ms");
+                if (allSynced()) {
+                    fire();
+                }
+            });
+        }
+
+        @Override
+        public void onServoCommandSent(String command) {
+            // The firmware answers the write at once and fires from its main loop, in turn with other phones' commands
+            handler.post(() -> handler.postDelayed(this::readResult, Math.max(0, (fireAtNanos - System.nanoTime()) / 1000000)));
+        }
+
+        @Override
+        public void onDiagnosticsRead(byte[] value) {
+            handler.post(() -> {
+                DiagnosticsRecord record = DiagnosticsRecord.parse(value);
+                if (record.sceneRequestedMillis != requestedMillis) {
+                    handler.postDelayed(this::readResult, RESULT_RETRY_MS); // not fired yet, until finishTimeout
+                    return;
+                }
+                diagnostics = record;
+                if (allReported()) {
+                    finish();
+                }
+            });
+        }
+
+        void readResult() {
+            if (!failed && members.contains(this)) {
+                manager.readDiagnostics();
+            }
+        }
+
+        @Override
+        public void onDeviceDisconnected() {
+            handler.post(() -> {
+                if (diagnostics == null) {
+                    fail("disconnected");
+                }
+            });
+        }
+
+        @Override
+        public void onConnectFailed(String errorMessage) {
+            handler.post(() -> fail(errorMessage));
+        }
+
+        @Override
+        public void onServoProfilesRead(List<ServoProfile> profiles) {
+        }
+
+        void fail(String reason) {
+            if (failed || !members.contains(this)) {
+                return; // or a member of a scene that is already over
+            }
+            Log.w(TAG, target.address + " dropped out of the scene: " + reason);
+            failed = true;
+            if (!fired && allSynced()) {
+                fire();
+            } else if (fired && allReported()) {
+                finish();
+            }
+        }
+    }
+
+    public SceneDispatcher(Context context, BluetoothAdapter bluetoothAdapter) {
+        this.context = context.getApplicationContext();
+        this.bluetoothAdapter = bluetoothAdapter;
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    // Returns false if another scene is still running. Call from any thread, the scene starts on the BLE thread.
+    public boolean run(Scene scene, Listener listener) {
+        if (bluetoothAdapter == null || !running.compareAndSet(false, true)) {
+            return false;
+        }
+        handler.post(() -> start(scene, listener));
+        return true;
+    }
+
+    private void start(Scene scene, Listener listener) {
+        this.scene = scene;
+        this.listener = listener;
+        fired = false;
+        members.clear();
+        for (Scene.Target target : scene.targets) {
+            Member member = new Member(target);
+            members.add(member);
+            BluetoothDevice device = bluetoothAdapter.getRemoteDevice(target.address);
+            member.manager = new BleConnectManager(context, device, member);
+        }
+        Log.d(TAG, "Running " + scene.name + " on " + members.size() + " switch(es).");
+        for (Member member : members) {
+            member.manager.connect();
+        }
+        handler.postDelayed(fireTimeout, CONNECT_TIMEOUT_MS);
+    }
+
+    private boolean allSynced() {
+        for (Member member : members) {
+            if (!member.failed && member.syncRoundTripMillis < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean allReported() {
+        for (Member member : members) {
+            if (!member.failed && member.requestedMillis >= 0 && member.diagnostics == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void fire() {
+        if (scene == null || fired) {
+            return;
+        }
+        fired = true;
+        handler.removeCallbacks(fireTimeout);
+
+        long maxRoundTrip = 0;
+        for (Member member : members) {
+            if (!member.failed && member.syncRoundTripMillis >= 0 && !SceneTiming.fitsLead(member.syncRoundTripMillis)) {
+                Log.w(TAG, member.target.address + " round trip " + member.syncRoundTripMillis + "ms, too slow for the scene.");
+                member.failed = true;
+            }
+            if (!member.failed && member.syncRoundTripMillis >= 0) {
+                maxRoundTrip = Math.max(maxRoundTrip, member.syncRoundTripMillis);
+            }
+        }
+        int lead = SceneTiming.leadMillis(maxRoundTrip);
+        int at = (int) ((LocalTime.now().toNanoOfDay() / 1000000 + lead) % TimeCodec.MILLIS_PER_DAY);
+        long fireAtNanos = System.nanoTime() + lead * 1000000L;
+        for (Member member : members) {
+            if (member.failed || member.syncRoundTripMillis < 0) {
+                continue;
+            }
+            if (member.manager.sendServoCommandAt(member.target.command, at)) {
+                member.requestedMillis = at;
+                member.fireAtNanos = fireAtNanos;
+            } else {
+                member.failed = true;
+            }
+        }
+        Log.d(TAG, scene.name + " fires in " + lead + "ms.");
+        if (allReported()) {
+            finish();
+            return;
+        }
+        handler.postDelayed(finishTimeout, lead + RESULT_TIMEOUT_MS);
+    }
+
+    private void finish() {
+        if (scene == null) {
+            return;
+        }
+        handler.removeCallbacks(fireTimeout);
+        handler.removeCallbacks(finishTimeout);
+        Scene done = scene;
+        Listener doneListener = listener;
+        scene = null;
+        listener = null;
+
+        List<String> targets = new ArrayList<>(members.size());
+        List<SceneTiming.Sample> samples = new ArrayList<>(members.size());
+        SwitchRegistry registry = SwitchRegistry.getInstance(context);
+        for (Member member : members) {
+            targets.add(member.target.address);
+            DiagnosticsRecord diagnostics = member.diagnostics;
+            if (diagnostics != null && member.requestedMillis >= 0 && diagnostics.sceneRequestedMillis == member.requestedMillis) {
+                SceneTiming.Sample sample = new SceneTiming.Sample(member.target.address, member.syncRoundTripMillis,
+                        diagnostics.sceneRequestedMillis, diagnostics.sceneFiredMillis, diagnostics.sceneResult);
+                samples.add(sample);
+                if (sample.fired()) {
+                    int state = member.target.command == Command.ON ? SwitchRecord.STATE_ON : SwitchRecord.STATE_OFF;
+                    registry.update(member.target.address, record -> {
+                        record.lastState = state;
+                        record.lastSeen = System.currentTimeMillis();
+                    });
+                }
+            }
+            member.manager.disconnect();
+        }
+        members.clear();
+
+        SceneTiming.Result result = SceneTiming.measure(targets, samples);
+        running.set(false);
+        Log.i(TAG, done.name + ": " + result.fired + "/" + result.targets + " fired, skew " + result.skewMillis
+                + "ms +- " + result.uncertaintyMillis + "ms");
+        doneListener.onSceneDone(done, result);
+    }
+}
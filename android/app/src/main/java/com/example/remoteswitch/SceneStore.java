@@ -0,0 +1,96 @@
+package com.example.remoteswitch;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.example.remoteswitch.core.Command;
+import com.example.remoteswitch.core.Scene;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The scenes the user defined, by name, in the "Scenes" SharedPreferences. "All on" and "All off" are not stored.
+public class SceneStore {
+    private static final String TAG = "SceneStore";
+    private static final String PREFS_NAME = "Scenes";
+    private static final String SCENE_KEY_PREFIX = "scene:";
+
+    private static SceneStore instance;
+
+    private final SharedPreferences prefs;
+    private final Map<String, Scene> scenes = new LinkedHashMap<>();
+
+    public static synchronized SceneStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new SceneStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private SceneStore(Context context) {
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            if (!entry.getKey().startsWith(SCENE_KEY_PREFIX) || !(entry.getValue() instanceof String)) {
+                continue;
+            }
+            try {
+                Scene scene = fromJson(new JSONObject((String) entry.getValue()));
+                scenes.put(scene.name, scene);
+            } catch (JSONException e) {
+                Log.e(TAG, "Dropping unreadable scene " + entry.getKey(), e);
+            }
+        }
+    }
+
+    public synchronized List<Scene> getAll() {
+        return new ArrayList<>(scenes.values());
+    }
+
+    public synchronized Scene get(String name) {
+        return scenes.get(name);
+    }
+
+    // Replaces a scene with the same name
+    public synchronized void save(Scene scene) {
+        try {
+            prefs.edit().putString(SCENE_KEY_PREFIX + scene.name, toJson(scene).toString()).apply();
+            scenes.put(scene.name, scene);
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to serialize scene " + scene.name, e);
+        }
+    }
+
+    public synchronized void remove(String name) {
+        if (scenes.remove(name) != null) {
+            prefs.edit().remove(SCENE_KEY_PREFIX + name).apply();
+        }
+    }
+
+    private static JSONObject toJson(Scene scene) throws JSONException {
+        JSONArray targets = new JSONArray();
+        for (Scene.Target target : scene.targets) {
+            targets.put(new JSONObject().put("address", target.address).put("command", target.command.name));
+        }
+        return new JSONObject().put("name", scene.name).put("targets", targets);
+    }
+
+    private static Scene fromJson(JSONObject json) throws JSONException {
+        JSONArray array = json.getJSONArray("targets");
+        List<Scene.Target> targets = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject target = array.getJSONObject(i);
+            Command command = Command.fromName(target.getString("command"));
+            if (command != null) {
+                targets.add(new Scene.Target(target.getString("address"), command));
+            }
+        }
+        return new Scene(json.getString("name"), targets);
+    }
+}
@@ -0,0 +1,204 @@
+package com.example.remoteswitch;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+import com.example.remoteswitch.core.Command;
+import com.example.remoteswitch.core.CommandMultiplexer;
+import com.example.remoteswitch.core.DiagnosticsRecord;
+import com.example.remoteswitch.core.ServoProfile;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+Connections for commands that do not come from the screen, shared by all their callers (see RemoteSwitchService).
+The decisions live in CommandMultiplexer (core): callers that arrive together share one connect, the same command
+asked twice is written once, and a link is kept for a minute for follow-up commands.
+One BleConnectManager per switch. A link the background scan already opened (PresenceReceiver) is taken over.
+All state is touched on the BLE thread (BleWorker) only, where the managers call back.
+*/
+public class SwitchConnections {
+    private static final String TAG = "SwitchConnections";
+    private static final long TICK_MS = 1000;
+
+    private static SwitchConnections instance;
+
+    private final Context context;
+    private final BluetoothAdapter bluetoothAdapter;
+    private final SwitchRegistry registry;
+    private final Handler handler = BleWorker.getHandler();
+    private final Map<String, BleConnectManager> managers = new HashMap<>();
+    private final CommandMultiplexer multiplexer;
+    private final Runnable tick = this::tick;
+    private boolean ticking = false;
+
+    public static synchronized SwitchConnections getInstance(Context context) {
+        if (instance == null) {
+            instance = new SwitchConnections(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private SwitchConnections(Context context) {
+        this.context = context;
+        this.bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        this.registry = SwitchRegistry.getInstance(context);
+        this.multiplexer = new CommandMultiplexer(port);
+    }
+
+    // Call on the BLE thread, the waiter is called there too. address must be a known switch.
+    public void send(String address, Command command, CommandMultiplexer.Waiter waiter) {
+        multiplexer.submit(address, command, waiter);
+        if (!ticking) {
+            ticking = true;
+            handler.postDelayed(tick, TICK_MS);
+        }
+    }
+
+    private void tick() {
+        multiplexer.tick();
+        if (multiplexer.hasLinks()) {
+            handler.postDelayed(tick, TICK_MS);
+            return;
+        }
+        ticking = false;
+        Log.d(TAG, "All links closed. Commands: " + multiplexer.getSubmitted() + ", written: " + multiplexer.getSent()
+                + ", joined: " + multiplexer.getJoined() + ", superseded: " + multiplexer.getSuperseded()
+                + ", connects: " + multiplexer.getConnects());
+        registry.flush();
+    }
+
+    private final CommandMultiplexer.Port port = new CommandMultiplexer.Port() {
+        @Override
+        public void connect(String address) {
+            Link link = new Link(address);
+            BleConnectManager preConnection = PresenceReceiver.takePreConnection(address);
+            if (preConnection != null) {
+                Log.d(TAG, "Using pre-connection to " + address + " in state " + preConnection.getState());
+                link.manager = preConnection;
+                managers.put(address, preConnection);
+                preConnection.setListener(link);
+                if (preConnection.isReady()) {
+                    handler.post(link::ready);
+                }
+                return;
+            }
+            if (bluetoothAdapter == null) {
+                handler.post(() -> multiplexer.onDisconnected(address));
+                return;
+            }
+            link.manager = new BleConnectManager(context, bluetoothAdapter.getRemoteDevice(address), link);
+            managers.put(address, link.manager);
+            link.manager.connect();
+        }
+
+        @Override
+        public boolean send(String address, Command command) {
+            BleConnectManager manager = managers.get(address);
+            return manager != null && manager.sendServoCommand(command);
+        }
+
+        @Override
+        public void disconnect(String address) {
+            BleConnectManager manager = managers.remove(address);
+            if (manager != null) {
+                manager.disconnect();
+            }
+        }
+    };
+
+    // Events of one BleConnectManager. Ignored once the multiplexer dropped the link and a new one may have started.
+    private class Link implements BleConnectManager.OnDeviceConnectedListener {
+        final String address;
+        BleConnectManager manager;
+
+        Link(String address) {
+            this.address = address;
+        }
+
+        boolean isCurrent() {
+            return manager != null && managers.get(address) == manager;
+        }
+
+        void ready() {
+            if (!isCurrent()) {
+                return;
+            }
+            long latency = manager.getConnectLatencyMs();
+            List<String> layout = manager.getGattLayout();
+            registry.update(address, record -> {
+                record.connectCount++;
+                record.lastConnectLatencyMs = latency;
+                record.averageConnectLatencyMs += (latency - record.averageConnectLatencyMs) / record.connectCount;
+                record.gattLayout = layout;
+                record.lastSeen = System.currentTimeMillis();
+            });
+            multiplexer.onReady(address);
+            // After the command, the session queue keeps them in order
+            manager.writeCurrentTime();
+        }
+
+        void down() {
+            if (!isCurrent()) {
+                return;
+            }
+            managers.remove(address);
+            multiplexer.onDisconnected(address);
+        }
+
+        @Override
+        public void onDeviceConnected(BluetoothDevice device) {
+            handler.post(this::ready);
+        }
+
+        @Override
+        public void onDeviceDisconnected() {
+            handler.post(this::down);
+        }
+
+        @Override
+        public void onConnectFailed(String errorMessage) {
+            Log.w(TAG, "Connection to " + address + " failed: " + errorMessage);
+            handler.post(() -> {
+                if (isCurrent()) {
+                    registry.update(address, record -> record.connectFailures++);
+                }
+                down();
+            });
+        }
+
+        @Override
+        public void onServoCommandSent(String command) {
+            handler.post(() -> {
+                if (!isCurrent()) {
+                    return;
+                }
+                int state = Command.ON.name.equals(command) ? SwitchRecord.STATE_ON : SwitchRecord.STATE_OFF;
+                registry.update(address, record -> record.lastState = state);
+                multiplexer.onCommandSent(address);
+            });
+        }
+
+        @Override
+        public void onDiagnosticsRead(byte[] value) {
+            String firmwareVersion = DiagnosticsRecord.parse(value).firmwareVersion;
+            registry.update(address, record -> {
+                record.diagnostics = value;
+                record.firmwareVersion = firmwareVersion;
+            });
+        }
+
+        @Override
+        public void onTimeSynced() {
+        }
+
+        @Override
+        public void onServoProfilesRead(List<ServoProfile> profiles) {
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.example.remoteswitch;
+
+import android.util.Base64;
+
+import com.example.remoteswitch.core.DiagnosticsRecord;
+import com.example.remoteswitch.core.ServoWear;
+import com.example.remoteswitch.core.SleepSchedule;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Everything the app remembers about one switch, keyed by its MAC address.
+public class SwitchRecord {
+    public static final int STATE_UNKNOWN = -1;
+    public static final int STATE_OFF = 0;
+    public static final int STATE_ON = 1;
+
+    public final String address;
+    public String label;
+    public int lastState = STATE_UNKNOWN;
+    public String firmwareVersion;
+    public List<String> gattLayout = Collections.emptyList(); // "serviceUuid/characteristicUuid" entries from the last discovery
+
+    // Link stats
+    public int connectCount = 0;
+    public int connectFailures = 0;
+    public long lastConnectLatencyMs = 0;
+    public long averageConnectLatencyMs = 0;
+
+    public long lastSeen = 0; // System.currentTimeMillis() of the last scan hit or connection
+    public boolean present = false; // advertising as of the last background scan result, see PresenceReceiver
+    public boolean preConnect = false; // connect as soon as the background scan sees the switch
+    public byte[] diagnostics; // raw value of the last diagnostics read, see DiagnosticsRecord
+    public int batteryTier = -1; // DiagnosticsRecord.BATTERY_TIER_*, from the advertisement or diagnostics, -1 if unknown
+    public int[] sleepWindows; // day start, end, night start, end (s of day) as provisioned, null for the firmware's defaults
+    public ServoWear[] servoWear; // per servo from the last diagnostics read, null before firmware 1.14.0
+
+    // Commands without a connection, see CommandAdvertiser
+    public byte[] connectionlessKey; // read from the switch on the encrypted link, null until then
+    public boolean connectionlessEnabled = false; // the switch listens, as of the last read or write
+    public long connectionlessSequence = 0; // of the last frame sent, never below what the switch has run
+    public int connectionlessVersion = 1; // the frame version the switch takes, see ConnectionlessFrame
+
+    public SwitchRecord(String address, String label) {
+        this.address = address;
+        this.label = label;
+    }
+
+    public SwitchRecord copy() {
+        SwitchRecord copy = new SwitchRecord(address, label);
+        copy.lastState = lastState;
+        copy.firmwareVersion = firmwareVersion;
+        copy.gattLayout = gattLayout;
+        copy.connectCount = connectCount;
+        copy.connectFailures = connectFailures;
+        copy.lastConnectLatencyMs = lastConnectLatencyMs;
+        copy.averageConnectLatencyMs = averageConnectLatencyMs;
+        copy.lastSeen = lastSeen;
+        copy.present = present;
+        copy.preConnect = preConnect;
+        copy.diagnostics = diagnostics;
+        copy.batteryTier = batteryTier;
+        copy.sleepWindows = sleepWindows;
+        copy.servoWear = servoWear;
+        copy.connectionlessKey = connectionlessKey;
+        copy.connectionlessEnabled = connectionlessEnabled;
+        copy.connectionlessSequence = connectionlessSequence;
+        copy.connectionlessVersion = connectionlessVersion;
+        return copy;
+    }
+
+    public DiagnosticsRecord getDiagnostics() {
+        return diagnostics == null ? null : DiagnosticsRecord.parse(diagnostics);
+    }
+
+    // Everything the record keeps from one diagnostics read
+    public void takeDiagnostics(byte[] value, DiagnosticsRecord parsed) {
+        diagnostics = value;
+        firmwareVersion = parsed.firmwareVersion;
+        if (parsed.batteryTier >= 0) {
+            batteryTier = parsed.batteryTier;
+        }
+        if (parsed.servoWear != null) {
+            servoWear = parsed.servoWear;
+        }
+    }
+
+    public SleepSchedule getSleepSchedule() {
+        if (sleepWindows == null) {
+            return SleepSchedule.FIRMWARE_DEFAULT;
+        }
+        return new SleepSchedule(new int[][]{{sleepWindows[0], sleepWindows[1]}, {sleepWindows[2], sleepWindows[3]}});
+    }
+
+    JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("address", address);
+        json.put("label", label);
+        json.put("lastState", lastState);
+        if (firmwareVersion != null) {
+            json.put("firmwareVersion", firmwareVersion);
+        }
+        json.put("gattLayout", new JSONArray(gattLayout));
+        json.put("connectCount", connectCount);
+        json.put("connectFailures", connectFailures);
+        json.put("lastConnectLatencyMs", lastConnectLatencyMs);
+        json.put("averageConnectLatencyMs", averageConnectLatencyMs);
+        json.put("lastSeen", lastSeen);
+        json.put("present", present);
+        json.put("preConnect", preConnect);
+        if (diagnostics != null) {
+            json.put("diagnostics", Base64.encodeToString(diagnostics, Base64.NO_WRAP));
+        }
+        if (connectionlessKey != null) {
+            json.put("connectionlessKey", Base64.encodeToString(connectionlessKey, Base64.NO_WRAP));
+        }
+        json.put("batteryTier", batteryTier);
+        if (sleepWindows != null) {
+            json.put("sleepWindows", new JSONArray(sleepWindows));
+        }
+        if (servoWear != null) {
+            JSONArray wear = new JSONArray();
+            for (ServoWear servo : servoWear) {
+                wear.put(new JSONArray().put(servo.actuations).put(servo.activeMs).put(servo.failed).put(servo.retried));
+            }
+            json.put("servoWear", wear);
+        }
+        json.put("connectionlessEnabled", connectionlessEnabled);
+        json.put("connectionlessSequence", connectionlessSequence);
+        json.put("connectionlessVersion", connectionlessVersion);
+        return json;
+    }
+
+    static SwitchRecord fromJson(JSONObject json) throws JSONException {
+        SwitchRecord record = new SwitchRecord(json.getString("address"), json.optString("label", null));
+        record.lastState = json.optInt("lastState", STATE_UNKNOWN);
+        record.firmwareVersion = json.has("firmwareVersion") ? json.getString("firmwareVersion") : null;
+        JSONArray layout = json.optJSONArray("gattLayout");
+        if (layout != null) {
+            List<String> entries = new ArrayList<>(layout.length());
+            for (int i = 0; i < layout.length(); i++) {
+                entries.add(layout.getString(i));
+            }
+            record.gattLayout = Collections.unmodifiableList(entries);
+        }
+        record.connectCount = json.optInt("connectCount", 0);
+        record.connectFailures = json.optInt("connectFailures", 0);
+        record.lastConnectLatencyMs = json.optLong("lastConnectLatencyMs", 0);
+        record.averageConnectLatencyMs = json.optLong("averageConnectLatencyMs", 0);
+        record.lastSeen = json.optLong("lastSeen", 0);
+        record.present = json.optBoolean("present", false);
+        record.preConnect = json.optBoolean("preConnect", false);
+        if (json.has("diagnostics")) {
+            record.diagnostics = Base64.decode(json.getString("diagnostics"), Base64.NO_WRAP);
+        }
+        if (json.has("connectionlessKey")) {
+            record.connectionlessKey = Base64.decode(json.getString("connectionlessKey"), Base64.NO_WRAP);
+        }
+        record.batteryTier = json.optInt("batteryTier", -1);
+        JSONArray windows = json.optJSONArray("sleepWindows");
+        if (windows != null && windows.length() == 4) {
+            record.sleepWindows = new int[4];
+            for (int i = 0; i < 4; i++) {
+                record.sleepWindows[i] = windows.getInt(i);
+            }
+        }
+        JSONArray wear = json.optJSONArray("servoWear");
+        if (wear != null && wear.length() == 2) {
+            record.servoWear = new ServoWear[2];
+            for (int i = 0; i < 2; i++) {
+                JSONArray servo = wear.getJSONArray(i);
+                record.servoWear[i] = new ServoWear(servo.getLong(0), servo.getLong(1), servo.getInt(2), servo.getInt(3));
+            }
+        }
+        record.connectionlessEnabled = json.optBoolean("connectionlessEnabled", false);
+        record.connectionlessSequence = json.optLong("connectionlessSequence", 0);
+        record.connectionlessVersion = json.optInt("connectionlessVersion", 1);
+        return record;
+    }
+}
@@ -0,0 +1,237 @@
+package com.example.remoteswitch;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/*
+Persistent registry of known switches.
+The whole store is read once into memory when the app starts, so lookups never touch the disk
+or the system bond list. Changes are only marked dirty and written back in one batch shortly after.
+The store holds the switches' connectionless keys, it is excluded from backup and device transfer (res/xml).
+*/
+public class SwitchRegistry {
+    private static final String TAG = "SwitchRegistry";
+    private static final String PREFS_NAME = "Switch Registry";
+    private static final String RECORD_KEY_PREFIX = "switch:";
+    private static final String SELECTED_ADDRESS_KEY_NAME = "selected_address";
+    private static final String PHONE_ID_KEY_NAME = "phone_id";
+    private static final long FLUSH_DELAY_MS = 500;
+
+    // Legacy single-device storage used before the registry existed.
+    private static final String LEGACY_PREFS_NAME = "Bond Information";
+    private static final String LEGACY_DEVICE_ADDRESS_KEY_NAME = "device_address";
+
+    private static SwitchRegistry instance;
+
+    private final SharedPreferences prefs;
+    private final Map<String, SwitchRecord> records = new LinkedHashMap<>();
+    private final Set<String> dirtyAddresses = new HashSet<>();
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+    private String selectedAddress;
+    private boolean selectionDirty = false;
+    private boolean flushScheduled = false;
+    private int phoneId; // 0 until the first connectionless command
+
+    public static synchronized SwitchRegistry getInstance(Context context) {
+        if (instance == null) {
+            instance = new SwitchRegistry(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private SwitchRegistry(Context context) {
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        load();
+        migrateLegacy(context);
+    }
+
+    private void load() {
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            if (!entry.getKey().startsWith(RECORD_KEY_PREFIX) || !(entry.getValue() instanceof String)) {
+                continue;
+            }
+            try {
+                SwitchRecord record = SwitchRecord.fromJson(new JSONObject((String) entry.getValue()));
+                records.put(record.address, record);
+            } catch (JSONException e) {
+                Log.w(TAG, "Dropping unreadable record " + entry.getKey(), e);
+            }
+        }
+        selectedAddress = prefs.getString(SELECTED_ADDRESS_KEY_NAME, null);
+        phoneId = prefs.getInt(PHONE_ID_KEY_NAME, 0);
+        if (selectedAddress != null && !records.containsKey(selectedAddress)) {
+            selectedAddress = null;
+        }
+        Log.d(TAG, "Loaded " + records.size() + " switch(es).");
+    }
+
+    private void migrateLegacy(Context context) {
+        SharedPreferences legacy = context.getSharedPreferences(LEGACY_PREFS_NAME, Context.MODE_PRIVATE);
+        String address = legacy.getString(LEGACY_DEVICE_ADDRESS_KEY_NAME, null);
+        if (address == null) {
+            return;
+        }
+        Log.d(TAG, "Migrating legacy device (" + address + ")");
+        select(address, null);
+        legacy.edit().remove(LEGACY_DEVICE_ADDRESS_KEY_NAME).apply();
+    }
+
+    public synchronized SwitchRecord get(String address) {
+        SwitchRecord record = records.get(address);
+        return record == null ? null : record.copy();
+    }
+
+    public synchronized List<SwitchRecord> getAll() {
+        List<SwitchRecord> all = new ArrayList<>(records.size());
+        for (SwitchRecord record : records.values()) {
+            all.add(record.copy());
+        }
+        return all;
+    }
+
+    // This phone in connectionless frames (see ConnectionlessFrame): random once per install, 1-65535
+    public synchronized int getPhoneId() {
+        if (phoneId == 0) {
+            phoneId = 1 + new SecureRandom().nextInt(0xFFFF);
+            prefs.edit().putInt(PHONE_ID_KEY_NAME, phoneId).apply();
+        }
+        return phoneId;
+    }
+
+    public synchronized SwitchRecord getSelected() {
+        return selectedAddress == null ? null : get(selectedAddress);
+    }
+
+    // Add the switch if it is unknown and make it the one the UI controls.
+    public synchronized void select(String address, String defaultLabel) {
+        if (!records.containsKey(address)) {
+            records.put(address, new SwitchRecord(address, defaultLabel));
+            markDirty(address);
+        }
+        if (!address.equals(selectedAddress)) {
+            selectedAddress = address;
+            selectionDirty = true;
+            scheduleFlush();
+        }
+    }
+
+    // Add the switch if it is unknown, without changing the selection (see ProvisioningSession).
+    public synchronized void add(String address, String defaultLabel) {
+        if (!records.containsKey(address)) {
+            records.put(address, new SwitchRecord(address, defaultLabel));
+            markDirty(address);
+        }
+    }
+
+    // Apply a change to a known switch. Unknown addresses are ignored.
+    public synchronized void update(String address, Consumer<SwitchRecord> change) {
+        SwitchRecord record = records.get(address);
+        if (record == null) {
+            return;
+        }
+        change.accept(record);
+        markDirty(address);
+    }
+
+    public synchronized void remove(String address) {
+        if (records.remove(address) == null) {
+            return;
+        }
+        markDirty(address);
+        if (address.equals(selectedAddress)) {
+            selectedAddress = null;
+            selectionDirty = true;
+        }
+    }
+
+    // Write pending changes now instead of waiting for the batch delay.
+    public void flush() {
+        writer.execute(() -> writeDirty(false));
+    }
+
+    // Write pending changes and wait until they are on disk, for what must not be lost if the process dies next
+    // (see CommandAdvertiser). Blocks the caller for the write. Returns false if it failed.
+    public boolean commit() {
+        try {
+            return writer.submit(() -> writeDirty(true)).get();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to write the registry", e);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void markDirty(String address) {
+        dirtyAddresses.add(address);
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled) {
+            return;
+        }
+        flushScheduled = true;
+        writer.schedule(() -> writeDirty(false), FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // On the writer thread. sync: commit() instead of apply(), returns whether it reached the disk.
+    private boolean writeDirty(boolean sync) {
+        SharedPreferences.Editor editor = prefs.edit();
+        int written = 0;
+        synchronized (this) {
+            flushScheduled = false;
+            for (String address : dirtyAddresses) {
+                SwitchRecord record = records.get(address);
+                if (record == null) {
+                    editor.remove(RECORD_KEY_PREFIX + address);
+                    written++;
+                    continue;
+                }
+                try {
+                    editor.putString(RECORD_KEY_PREFIX + address, record.toJson().toString());
+                    written++;
+                } catch (JSONException e) {
+                    Log.e(TAG, "Failed to serialize record " + address, e);
+                }
+            }
+            dirtyAddresses.clear();
+            if (selectionDirty) {
+                if (selectedAddress == null) {
+                    editor.remove(SELECTED_ADDRESS_KEY_NAME);
+                } else {
+                    editor.putString(SELECTED_ADDRESS_KEY_NAME, selectedAddress);
+                }
+                selectionDirty = false;
+                written++;
+            }
+        }
+        if (written == 0) {
+            return true;
+        }
+        Log.d(TAG, "Writing " + written + " registry change(s).");
+        if (sync) {
+            return editor.commit();
+        }
+        editor.apply();
+        return true;
+    }
+}
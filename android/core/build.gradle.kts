@@ -0,0 +1,33 @@
+plugins {
+    `java-library`
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+dependencies {
+    testImplementation(libs.junit)
+}
+
+jmh {
+    jmhVersion = libs.versions.jmh.get()
+    profilers = listOf("gc") // allocation rate per operation
+    resultFormat = "JSON"
+    resultsFile = layout.buildDirectory.file("results/jmh/results.json")
+}
+
+// Keep one result file per build so runs can be compared, e.g. ./gradlew :core:jmh -PbuildId=42. They stay under
+// build/, CI collects build/benchmarks/ as an artifact: nothing is written to the source tree.
+val archiveJmhResults by tasks.registering(Copy::class) {
+    val buildId = providers.gradleProperty("buildId").orElse(providers.provider { System.currentTimeMillis().toString() })
+    from(layout.buildDirectory.file("results/jmh/results.json"))
+    into(layout.buildDirectory.dir("benchmarks"))
+    rename { "jmh-${buildId.get()}.json" }
+}
+
+tasks.named("jmh") {
+    finalizedBy(archiveJmhResults)
+}
@@ -0,0 +1,76 @@
+package com.example.remoteswitch.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// Encode/decode throughput of the protocol codec. Run with ./gradlew :core:jmh
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    private final byte[] onValue = Command.ON.encode();
+    private final byte[] timeValue = TimeCodec.encode(12 * 3600 + 34 * 60 + 56);
+    private final byte[] timeBuffer = new byte[TimeCodec.LENGTH];
+    private final byte[] diagnosticsValue = {
+            0x01, 5, '1', '.', '2', '.', '0',
+            0x02, 7, 1, 0x30, 0x00, 0x50, 0x00, 12, 0,
+            0x03, 24, 0, 0, 0, 0, 0, 0, 0, 1, 2, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 3, 9, 4, 1
+    };
+    private int secondOfDay = 0;
+
+    @Benchmark
+    public byte[] encodeCommand() {
+        return Command.ON.encode();
+    }
+
+    @Benchmark
+    public Command decodeCommand() {
+        return Command.decode(onValue);
+    }
+
+    @Benchmark
+    public byte[] encodeTime() {
+        return TimeCodec.encode(secondOfDay++);
+    }
+
+    @Benchmark
+    public byte[] encodeTimeIntoBuffer() {
+        TimeCodec.encode(secondOfDay++, timeBuffer, 0);
+        return timeBuffer;
+    }
+
+    @Benchmark
+    public int decodeTime() {
+        return TimeCodec.decode(timeValue);
+    }
+
+    @Benchmark
+    public DiagnosticsRecord parseDiagnostics() {
+        return DiagnosticsRecord.parse(diagnosticsValue);
+    }
+
+    @Benchmark
+    public UUID uuidFromShort16() {
+        return GattUuids.fromShort16(0x2A56);
+    }
+
+    // What BleConnectManager did before the codec moved here, kept as the baseline.
+    @Benchmark
+    public UUID uuidFromShort16ViaString() {
+        String uuidStr = String.format("%04X", 0x2A56);
+        return UUID.fromString("0000" + uuidStr + "-0000-1000-8000-00805F9B34FB");
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.remoteswitch.core;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Cost of one command through the GATT operation queue and the connection state machine.
+// The gc profiler configured in build.gradle.kts reports the allocation rate per command.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PipelineBenchmark {
+    // Commands already waiting when a new one arrives
+    @Param({"0", "16", "256"})
+    public int backlog;
+
+    private OperationQueue queue;
+    private ConnectionStateMachine stateMachine;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        queue = new OperationQueue();
+        for (int i = 0; i < backlog; i++) {
+            queue.submit(GattOperation.write(GattUuids.CHARACTERISTIC_PHONETIME, TimeCodec.encode(i)));
+        }
+        stateMachine = new ConnectionStateMachine(null);
+    }
+
+    // Submit, start and complete one command while the backlog stays constant.
+    @Benchmark
+    public GattOperation commandThroughQueue() {
+        queue.submit(GattOperation.write(GattUuids.CHARACTERISTIC_SERVOSIGNAL, Command.ON.encode()));
+        queue.next();
+        return queue.complete();
+    }
+
+    // A burst of taps on the same button collapses into one pending write.
+    @Benchmark
+    public boolean coalescedCommand() {
+        return queue.submit(GattOperation.write(GattUuids.CHARACTERISTIC_SERVOSIGNAL, Command.OFF.encode(), "servo"));
+    }
+
+    @Benchmark
+    public ConnectionStateMachine.State connectionCycle() {
+        stateMachine.fire(ConnectionStateMachine.Event.CONNECT);
+        stateMachine.fire(ConnectionStateMachine.Event.LINK_UP);
+        stateMachine.fire(ConnectionStateMachine.Event.DISCOVERY_OK);
+        stateMachine.fire(ConnectionStateMachine.Event.DISCONNECT);
+        stateMachine.fire(ConnectionStateMachine.Event.LINK_DOWN);
+        return stateMachine.getState();
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class QueueLatency {
+        public long averageQueueNanos;
+        public long maxQueueNanos;
+    }
+
+    // Queue latency under load: a burst of commands is submitted, then drained one completion at a time.
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 5, batchSize = 1)
+    @Measurement(iterations = 20, batchSize = 1)
+    public long drainBurst(QueueLatency latency) {
+        OperationQueue burst = new OperationQueue();
+        for (int i = 0; i < backlog + 1; i++) {
+            burst.submit(GattOperation.write(GattUuids.CHARACTERISTIC_SERVOSIGNAL, Command.ON.encode()));
+        }
+        long drained = 0;
+        while (burst.next() != null) {
+            burst.complete();
+            drained++;
+        }
+        latency.averageQueueNanos = burst.getAverageQueueNanos();
+        latency.maxQueueNanos = burst.getMaxQueueNanos();
+        return drained;
+    }
+}
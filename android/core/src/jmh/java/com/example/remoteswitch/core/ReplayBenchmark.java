@@ -0,0 +1,138 @@
+package com.example.remoteswitch.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// Cost of the session logic per recorded session: a connection with time sync and a number of commands,
+// replayed without waiting. Recording and parsing are measured separately.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReplayBenchmark {
+    private static final List<UUID[]> LAYOUT = Arrays.asList(
+            new UUID[]{GattUuids.SERVICE_TIMESYNC, GattUuids.CHARACTERISTIC_PHONETIME},
+            new UUID[]{GattUuids.SERVICE_SERVOCONTROL, GattUuids.CHARACTERISTIC_SERVOSIGNAL});
+
+    private static final GattSession.Port PORT = new GattSession.Port() {
+        @Override
+        public boolean connect() {
+            return true;
+        }
+
+        @Override
+        public boolean discoverServices() {
+            return true;
+        }
+
+        @Override
+        public boolean read(UUID characteristic) {
+            return true;
+        }
+
+        @Override
+        public boolean write(UUID characteristic, byte[] value) {
+            return true;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private static final GattSession.Listener LISTENER = new GattSession.Listener() {
+        @Override
+        public void onReady() {
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+
+        @Override
+        public void onTimeSynced() {
+        }
+
+        @Override
+        public void onServoCommandSent(String command) {
+        }
+
+        @Override
+        public void onDiagnosticsRead(byte[] value) {
+        }
+
+        @Override
+        public void onServoProfilesRead(List<ServoProfile> profiles) {
+        }
+    };
+
+    @Param({"1", "32"})
+    public int commands;
+
+    private byte[] bytes;
+    private GattTrace trace;
+    private long clock;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        bytes = record();
+        trace = GattTrace.read(new ByteArrayInputStream(bytes));
+    }
+
+    private byte[] record() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        clock = 0;
+        GattSession session = new GattSession(PORT, LISTENER, () -> clock += 1_000_000);
+        session.setRecorder(new GattTrace.Writer(out, 0, 0, Integer.MAX_VALUE));
+        session.connect();
+        session.onConnectionStateChange(GattSession.GATT_SUCCESS, true);
+        session.onServicesDiscovered(GattSession.GATT_SUCCESS, LAYOUT);
+        session.writeTime(0);
+        session.onCharacteristicWrite(GattUuids.CHARACTERISTIC_PHONETIME, GattSession.GATT_SUCCESS);
+        for (int i = 0; i < commands; i++) {
+            session.sendServoCommand(i % 2 == 0 ? Command.ON : Command.OFF);
+            session.onCharacteristicWrite(GattUuids.CHARACTERISTIC_SERVOSIGNAL, GattSession.GATT_SUCCESS);
+        }
+        session.onConnectionStateChange(GattSession.GATT_SUCCESS, false);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] recordSession() {
+        return record();
+    }
+
+    @Benchmark
+    public GattTrace parseTrace() throws IOException {
+        return GattTrace.read(new ByteArrayInputStream(bytes));
+    }
+
+    @Benchmark
+    public TraceReplayer.Result replaySession() throws InterruptedException {
+        return new TraceReplayer(trace).replay(LISTENER, TraceReplayer.AS_FAST_AS_POSSIBLE);
+    }
+}
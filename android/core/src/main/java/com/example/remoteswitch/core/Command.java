@@ -0,0 +1,47 @@
+package com.example.remoteswitch.core;
+
+// Servo commands and their encoding on the servo signal characteristic.
+// A scene command also carries the time of day to fire at (firmware 1.5.0).
+public enum Command {
+    OFF("off", (byte) '0'),
+    ON("on", (byte) '1');
+
+    public static final int AT_LENGTH = 5; // code, then u32 ms of day little-endian
+
+    public final String name;
+    private final byte code;
+
+    Command(String name, byte code) {
+        this.name = name;
+        this.code = code;
+    }
+
+    // A fresh array, the caller may hand it to the Bluetooth stack.
+    public byte[] encode() {
+        return new byte[]{code};
+    }
+
+    public byte[] encodeAt(int millisOfDay) {
+        int ms = Math.floorMod(millisOfDay, TimeCodec.MILLIS_PER_DAY);
+        return new byte[]{code, (byte) ms, (byte) (ms >> 8), (byte) (ms >> 16), (byte) (ms >> 24)};
+    }
+
+    // The time a scene command fires at, -1 for a plain command.
+    public static int decodeAt(byte[] value) {
+        if (value == null || value.length != AT_LENGTH) return -1;
+        return (value[1] & 0xFF) | (value[2] & 0xFF) << 8 | (value[3] & 0xFF) << 16 | (value[4] & 0xFF) << 24;
+    }
+
+    public static Command fromName(String name) {
+        if (ON.name.equals(name)) return ON;
+        if (OFF.name.equals(name)) return OFF;
+        return null;
+    }
+
+    public static Command decode(byte[] value) {
+        if (value == null || (value.length != 1 && value.length != AT_LENGTH)) return null;
+        if (value[0] == ON.code) return ON;
+        if (value[0] == OFF.code) return OFF;
+        return null;
+    }
+}
@@ -0,0 +1,238 @@
+package com.example.remoteswitch.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+Servo commands from several callers (the automation API, see RemoteSwitchService) onto one connection per switch.
+- A switch is connected once for everything that arrives while it connects, and the link is kept for IDLE_HOLD_NANOS.
+- Per switch at most one command is in flight and one waits. A caller asking for the command that is already
+  in flight or waiting joins it and gets the same result. A different command replaces the waiting one,
+  whose callers get RESULT_SUPERSEDED: the switch ends up where the last caller wanted it.
+The platform side is a Port, like GattSession. Not thread-safe, use it from one thread.
+*/
+public class CommandMultiplexer {
+    public static final int RESULT_OK = 0;
+    public static final int RESULT_SUPERSEDED = 1; // a later caller asked for the other command before this one was sent
+    public static final int RESULT_CONNECT_FAILED = 2; // could not connect, or the link went down before the write was acknowledged
+    public static final int RESULT_SEND_FAILED = 3;
+    public static final int RESULT_TIMEOUT = 4;
+
+    public static final long COMMAND_TIMEOUT_NANOS = 20_000_000_000L; // the switch advertises every few seconds at most
+    public static final long IDLE_HOLD_NANOS = 60_000_000_000L; // the firmware slows an idle link down, a follow-up command is cheap
+
+    public interface Port {
+        void connect(String address);
+
+        // false if the write could not be queued
+        boolean send(String address, Command command);
+
+        void disconnect(String address);
+    }
+
+    public interface Waiter {
+        void onResult(String address, Command command, int result);
+    }
+
+    private static final class Pending {
+        final Command command;
+        final long submittedNanos;
+        final List<Waiter> waiters = new ArrayList<>(1);
+
+        Pending(Command command, long submittedNanos) {
+            this.command = command;
+            this.submittedNanos = submittedNanos;
+        }
+    }
+
+    private static final class Link {
+        boolean connecting = false;
+        boolean ready = false;
+        Pending inFlight;
+        Pending waiting;
+        long lastActivityNanos;
+    }
+
+    private final Port port;
+    private final OperationQueue.NanoClock clock;
+    private final Map<String, Link> links = new HashMap<>();
+
+    // Stats
+    private long submitted = 0;
+    private long joined = 0;
+    private long superseded = 0;
+    private long connects = 0;
+    private long sent = 0;
+
+    public CommandMultiplexer(Port port) {
+        this(port, System::nanoTime);
+    }
+
+    public CommandMultiplexer(Port port, OperationQueue.NanoClock clock) {
+        this.port = port;
+        this.clock = clock;
+    }
+
+    // Inputs from the callers
+
+    public void submit(String address, Command command, Waiter waiter) {
+        submitted++;
+        long now = clock.nanoTime();
+        Link link = links.get(address);
+        if (link == null) {
+            link = new Link();
+            links.put(address, link);
+        }
+        link.lastActivityNanos = now;
+
+        if (link.waiting != null) {
+            if (link.waiting.command == command) {
+                join(link.waiting, waiter);
+                return;
+            }
+            finish(address, link.waiting, RESULT_SUPERSEDED);
+            superseded++;
+            link.waiting = null;
+        }
+        if (link.inFlight != null && link.inFlight.command == command) {
+            join(link.inFlight, waiter);
+            return;
+        }
+        link.waiting = new Pending(command, now);
+        link.waiting.waiters.add(waiter);
+
+        if (!link.ready && !link.connecting) {
+            link.connecting = true;
+            connects++;
+            port.connect(address);
+            return;
+        }
+        drain(address, link);
+    }
+
+    // Inputs from the platform
+
+    public void onReady(String address) {
+        Link link = links.get(address);
+        if (link == null) {
+            return;
+        }
+        link.connecting = false;
+        link.ready = true;
+        link.lastActivityNanos = clock.nanoTime();
+        drain(address, link);
+    }
+
+    // The write of the in-flight command was acknowledged
+    public void onCommandSent(String address) {
+        Link link = links.get(address);
+        if (link == null || link.inFlight == null) {
+            return;
+        }
+        finish(address, link.inFlight, RESULT_OK);
+        link.inFlight = null;
+        link.lastActivityNanos = clock.nanoTime();
+        drain(address, link);
+    }
+
+    // Connect failed or the link went down
+    public void onDisconnected(String address) {
+        Link link = links.remove(address);
+        if (link == null) {
+            return;
+        }
+        if (link.inFlight != null) {
+            finish(address, link.inFlight, RESULT_CONNECT_FAILED);
+        }
+        if (link.waiting != null) {
+            finish(address, link.waiting, RESULT_CONNECT_FAILED);
+        }
+    }
+
+    // Call about once a second while hasLinks(): times out commands and drops idle or stuck links.
+    public void tick() {
+        long now = clock.nanoTime();
+        List<String> drop = new ArrayList<>();
+        for (Map.Entry<String, Link> entry : links.entrySet()) {
+            Link link = entry.getValue();
+            if (link.inFlight != null && now - link.inFlight.submittedNanos > COMMAND_TIMEOUT_NANOS) {
+                drop.add(entry.getKey()); // the write was never acknowledged, start over with a new link
+            } else if (link.waiting != null && now - link.waiting.submittedNanos > COMMAND_TIMEOUT_NANOS) {
+                finish(entry.getKey(), link.waiting, RESULT_TIMEOUT); // the switch did not show up
+                link.waiting = null;
+            } else if (link.inFlight == null && link.waiting == null && now - link.lastActivityNanos > IDLE_HOLD_NANOS) {
+                drop.add(entry.getKey());
+            }
+        }
+        for (String address : drop) {
+            Link link = links.remove(address);
+            if (link.inFlight != null) {
+                finish(address, link.inFlight, RESULT_TIMEOUT);
+            }
+            if (link.waiting != null) {
+                finish(address, link.waiting, RESULT_TIMEOUT);
+            }
+            port.disconnect(address);
+        }
+    }
+
+    // State
+
+    public boolean hasLinks() {
+        return !links.isEmpty();
+    }
+
+    public List<String> getAddresses() {
+        return Collections.unmodifiableList(new ArrayList<>(links.keySet()));
+    }
+
+    public long getSubmitted() {
+        return submitted;
+    }
+
+    // Callers that got the result of a command someone else asked for
+    public long getJoined() {
+        return joined;
+    }
+
+    public long getSuperseded() {
+        return superseded;
+    }
+
+    public long getConnects() {
+        return connects;
+    }
+
+    // Writes actually sent to a switch
+    public long getSent() {
+        return sent;
+    }
+
+    private void drain(String address, Link link) {
+        if (!link.ready || link.inFlight != null || link.waiting == null) {
+            return;
+        }
+        link.inFlight = link.waiting;
+        link.waiting = null;
+        if (port.send(address, link.inFlight.command)) {
+            sent++;
+        } else {
+            finish(address, link.inFlight, RESULT_SEND_FAILED);
+            link.inFlight = null;
+        }
+    }
+
+    private void join(Pending pending, Waiter waiter) {
+        pending.waiters.add(waiter);
+        joined++;
+    }
+
+    private static void finish(String address, Pending pending, int result) {
+        for (Waiter waiter : pending.waiters) {
+            waiter.onResult(address, pending.command, result);
+        }
+    }
+}
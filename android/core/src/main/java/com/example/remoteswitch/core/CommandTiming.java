@@ -0,0 +1,168 @@
+package com.example.remoteswitch.core;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/*
+Where the time of one command goes, from the tap until the servo is back (firmware 1.11.0).
+The phone knows when its write was queued, started and acknowledged (Sent). The switch times the rest on its
+microsecond timer from the moment the write arrived: leaving its queue, the servo starting, settled, at the target,
+done holding and back (Record, read from the command timing characteristic). The clocks are not synced, so the
+arrival is placed half a write round trip after the write started; the ack travels back while the switch works.
+*/
+public final class CommandTiming {
+    public static final int RECORD_LENGTH = 28;
+    public static final int FLAG_DONE = 0x01; // ran to the end or was refused, the record is complete
+    public static final int FLAG_TIMED = 0x02; // a scene command, the wait includes the time until it fired
+    public static final int FLAG_REFUSED = 0x04;
+
+    public static final int PHASE_APP_QUEUE = 0; // behind other GATT operations on the phone
+    public static final int PHASE_RADIO = 1; // half the write's round trip
+    public static final int PHASE_DEVICE_QUEUE = 2; // until the loop took it: waking up, other phones' commands
+    public static final int PHASE_WAIT = 3; // for a scene command's time
+    public static final int PHASE_SETTLE = 4; // supply settling before the servo is attached
+    public static final int PHASE_TRAVEL = 5;
+    public static final int PHASE_HOLD = 6;
+    public static final int PHASE_RETURN = 7;
+    public static final int PHASE_TOTAL = 8; // for Stats only
+    public static final String[] PHASE_NAMES = {
+            "app queue", "radio", "device queue", "wait", "settle", "travel", "hold", "return", "total"};
+    private static final int PHASES = 8;
+    private static final int STEPS = 6;
+
+    private CommandTiming() {
+    }
+
+    // What the switch reports for the last command of this connection
+    public static final class Record {
+        public final int sequence; // 0 if the connection has not run a command yet
+        public final int servo;
+        public final int flags;
+        // us since the write arrived: dequeued, servo entered, settled, at the target, hold over, done. 0 if it did not happen.
+        private final long[] steps;
+
+        private Record(int sequence, int servo, int flags, long[] steps) {
+            this.sequence = sequence;
+            this.servo = servo;
+            this.flags = flags;
+            this.steps = steps;
+        }
+
+        // null if the value is too short
+        public static Record parse(byte[] value) {
+            if (value == null || value.length < RECORD_LENGTH) {
+                return null;
+            }
+            long[] steps = new long[STEPS];
+            for (int i = 0; i < STEPS; i++) {
+                steps[i] = DiagnosticsRecord.u32(value, 4 + 4 * i);
+            }
+            return new Record(DiagnosticsRecord.u16(value, 0), value[2] & 0xFF, value[3] & 0xFF, steps);
+        }
+
+        public boolean isDone() {
+            return (flags & FLAG_DONE) != 0;
+        }
+
+        public long stepMicros(int step) {
+            return steps[step];
+        }
+    }
+
+    // The phone's side of one servo write, System.nanoTime()
+    public static final class Sent {
+        public final long enqueuedNanos;
+        public final long startedNanos;
+        public final long ackedNanos;
+
+        public Sent(long enqueuedNanos, long startedNanos, long ackedNanos) {
+            this.enqueuedNanos = enqueuedNanos;
+            this.startedNanos = startedNanos;
+            this.ackedNanos = ackedNanos;
+        }
+    }
+
+    // One command end to end, one duration per phase
+    public static final class Waterfall {
+        public final long[] phaseMicros;
+        public final boolean refused;
+
+        private Waterfall(long[] phaseMicros, boolean refused) {
+            this.phaseMicros = phaseMicros;
+            this.refused = refused;
+        }
+
+        public long totalMicros() {
+            long total = 0;
+            for (long micros : phaseMicros) {
+                total += micros;
+            }
+            return total;
+        }
+
+        // When the phase starts, after the tap
+        public long startMicros(int phase) {
+            long start = 0;
+            for (int i = 0; i < phase; i++) {
+                start += phaseMicros[i];
+            }
+            return start;
+        }
+    }
+
+    public static Waterfall merge(Sent sent, Record record) {
+        long[] phases = new long[PHASES];
+        phases[PHASE_APP_QUEUE] = Math.max(0, sent.startedNanos - sent.enqueuedNanos) / 1000;
+        phases[PHASE_RADIO] = Math.max(0, sent.ackedNanos - sent.startedNanos) / 2000;
+        long previous = 0;
+        for (int step = 0; step < STEPS; step++) {
+            long at = record.stepMicros(step);
+            if (at == 0 && step > 0) {
+                continue; // refused before the servo moved
+            }
+            phases[PHASE_DEVICE_QUEUE + step] = Math.max(0, at - previous);
+            previous = at;
+        }
+        return new Waterfall(phases, (record.flags & FLAG_REFUSED) != 0);
+    }
+
+    // Percentiles per phase over the last commands. Not thread-safe.
+    public static final class Stats {
+        private final int capacity;
+        private final ArrayDeque<Waterfall> recent = new ArrayDeque<>();
+
+        public Stats(int capacity) {
+            this.capacity = capacity;
+        }
+
+        public void add(Waterfall waterfall) {
+            if (recent.size() == capacity) {
+                recent.removeFirst();
+            }
+            recent.addLast(waterfall);
+        }
+
+        public int size() {
+            return recent.size();
+        }
+
+        public Waterfall last() {
+            return recent.peekLast();
+        }
+
+        // Nearest rank, phase is PHASE_* or PHASE_TOTAL. -1 without samples.
+        public long percentileMicros(int phase, int percent) {
+            if (recent.isEmpty()) {
+                return -1;
+            }
+            long[] values = new long[recent.size()];
+            int i = 0;
+            for (Waterfall waterfall : recent) {
+                values[i++] = phase == PHASE_TOTAL ? waterfall.totalMicros() : waterfall.phaseMicros[phase];
+            }
+            Arrays.sort(values);
+            int rank = (int) Math.ceil(percent / 100.0 * values.length);
+            return values[Math.max(0, rank - 1)];
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.remoteswitch.core;
+
+/*
+Connection life cycle of one switch:
+
+DISCONNECTED --CONNECT--> CONNECTING --LINK_UP--> DISCOVERING --DISCOVERY_OK--> READY
+Any state but DISCONNECTED goes to DISCONNECTING on DISCONNECT (or a failed discovery),
+and to DISCONNECTED when the link goes down. Events that do not apply to the current state are ignored.
+*/
+public class ConnectionStateMachine {
+    public enum State { DISCONNECTED, CONNECTING, DISCOVERING, READY, DISCONNECTING }
+
+    public enum Event { CONNECT, LINK_UP, DISCOVERY_OK, DISCOVERY_FAILED, DISCONNECT, LINK_DOWN }
+
+    public interface Listener {
+        void onStateChanged(State from, State to, Event event);
+    }
+
+    private static final State[] STATES = State.values();
+    private static final int IGNORE = -1;
+
+    // TRANSITIONS[state][event] = next state ordinal, or IGNORE
+    private static final int[][] TRANSITIONS = new int[STATES.length][Event.values().length];
+
+    static {
+        for (int[] row : TRANSITIONS) {
+            java.util.Arrays.fill(row, IGNORE);
+        }
+        on(State.DISCONNECTED, Event.CONNECT, State.CONNECTING);
+        on(State.CONNECTING, Event.LINK_UP, State.DISCOVERING);
+        on(State.DISCOVERING, Event.DISCOVERY_OK, State.READY);
+        on(State.DISCOVERING, Event.DISCOVERY_FAILED, State.DISCONNECTING);
+        for (State state : new State[]{State.CONNECTING, State.DISCOVERING, State.READY}) {
+            on(state, Event.DISCONNECT, State.DISCONNECTING);
+        }
+        for (State state : new State[]{State.CONNECTING, State.DISCOVERING, State.READY, State.DISCONNECTING}) {
+            on(state, Event.LINK_DOWN, State.DISCONNECTED);
+        }
+    }
+
+    private static void on(State from, Event event, State to) {
+        TRANSITIONS[from.ordinal()][event.ordinal()] = to.ordinal();
+    }
+
+    private final Listener listener;
+    private State state = State.DISCONNECTED;
+
+    public ConnectionStateMachine(Listener listener) {
+        this.listener = listener;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isReady() {
+        return state == State.READY;
+    }
+
+    // Returns false if the event was ignored in the current state.
+    public boolean fire(Event event) {
+        int next = TRANSITIONS[state.ordinal()][event.ordinal()];
+        if (next == IGNORE) {
+            return false;
+        }
+        State from = state;
+        state = STATES[next];
+        if (listener != null) {
+            listener.onStateChanged(from, state, event);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.remoteswitch.core;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+A command sent without connecting (firmware 1.10.0): the phone advertises it as manufacturer data and the switch
+picks it up with a duty-cycled scan. Same layout as the firmware's connectionless.h, little-endian:
+  version u8   address hash 4 bytes   phone u16   sequence u32   command u8   sent at u32 (ms of day)   MAC 8 bytes
+after the company ID, which Android's advertiser adds itself. The address hash is the start of SHA-256 over the
+switch's address, the MAC is HMAC-SHA256 with the key read from the connectionless characteristic.
+Every phone that read the key counts its own sequence, the switch keeps one per phone. Switches that report no
+frame version in their settings only take version 1, without the phone: there all phones share one sequence.
+*/
+public final class ConnectionlessFrame {
+    public static final int COMPANY_ID = 0xFFFF; // reserved for tests, the same as the firmware's
+    public static final int VERSION = 2;
+    public static final int LENGTH = 24;
+    public static final int LENGTH_V1 = 22;
+    public static final int KEY_LENGTH = 16;
+    public static final int MAC_LENGTH = 8;
+    public static final int SETTINGS_LENGTH = 21; // without the version, which older switches do not report
+
+    // Write opcodes of the connectionless characteristic
+    public static final byte OP_DISABLE = 0x00;
+    public static final byte OP_ENABLE = 0x01;
+    public static final byte OP_NEW_KEY = 0x02;
+
+    // What the characteristic reads: the key, whether the switch listens, the last sequence it ran (the highest of
+    // any phone) and the frame version it takes
+    public static class Settings {
+        public final byte[] key;
+        public final boolean enabled;
+        public final long lastSequence;
+        public final int version;
+
+        Settings(byte[] key, boolean enabled, long lastSequence, int version) {
+            this.key = key;
+            this.enabled = enabled;
+            this.lastSequence = lastSequence;
+            this.version = version;
+        }
+    }
+
+    private ConnectionlessFrame() {
+    }
+
+    // null if the value is too short, e.g. read without encryption
+    public static Settings decodeSettings(byte[] value) {
+        if (value == null || value.length < SETTINGS_LENGTH) {
+            return null;
+        }
+        int version = value.length > SETTINGS_LENGTH ? value[SETTINGS_LENGTH] & 0xFF : 1;
+        return new Settings(Arrays.copyOf(value, KEY_LENGTH), value[KEY_LENGTH] != 0,
+                DiagnosticsRecord.u32(value, KEY_LENGTH + 1), version);
+    }
+
+    // address as Android reports it, "24:58:7C:12:34:56". phone is this phone's id (1-65535), the sequence must be
+    // higher than the last one the switch ran from it.
+    public static byte[] encode(byte[] key, String address, int phone, long sequence, Command command, int millisOfDay) {
+        byte[] frame = new byte[LENGTH];
+        frame[0] = VERSION;
+        System.arraycopy(addressHash(address), 0, frame, 1, 4);
+        frame[5] = (byte) phone;
+        frame[6] = (byte) (phone >> 8);
+        putBody(frame, 7, sequence, command, millisOfDay);
+        return sign(key, frame);
+    }
+
+    // For switches that take version 1 only. The sequence must be higher than the last one the switch ran from any phone.
+    public static byte[] encodeV1(byte[] key, String address, long sequence, Command command, int millisOfDay) {
+        byte[] frame = new byte[LENGTH_V1];
+        frame[0] = 1;
+        System.arraycopy(addressHash(address), 0, frame, 1, 4);
+        putBody(frame, 5, sequence, command, millisOfDay);
+        return sign(key, frame);
+    }
+
+    private static void putBody(byte[] frame, int pos, long sequence, Command command, int millisOfDay) {
+        putU32(frame, pos, sequence);
+        frame[pos + 4] = command.encode()[0];
+        putU32(frame, pos + 5, Math.floorMod(millisOfDay, TimeCodec.MILLIS_PER_DAY));
+    }
+
+    private static byte[] sign(byte[] key, byte[] frame) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            mac.update(frame, 0, frame.length - MAC_LENGTH);
+            System.arraycopy(mac.doFinal(), 0, frame, frame.length - MAC_LENGTH, MAC_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 not available", e);
+        }
+        return frame;
+    }
+
+    static byte[] addressHash(String address) {
+        String[] parts = address.split(":");
+        byte[] bytes = new byte[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(parts[i], 16);
+        }
+        try {
+            return Arrays.copyOf(MessageDigest.getInstance("SHA-256").digest(bytes), 4);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static void putU32(byte[] buf, int pos, long value) {
+        for (int i = 0; i < 4; i++) {
+            buf[pos + i] = (byte) (value >> (8 * i));
+        }
+    }
+}
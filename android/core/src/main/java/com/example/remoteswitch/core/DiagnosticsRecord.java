@@ -0,0 +1,212 @@
+package com.example.remoteswitch.core;
+
+// Parsed value of the firmware's diagnostics characteristic: a list of [tag][length][value] entries,
+// multi-byte values little-endian. Unknown tags are skipped so older apps can read newer firmware.
+public class DiagnosticsRecord {
+    public static final int TAG_FIRMWARE_VERSION = 0x01;
+    public static final int TAG_ADVERTISING = 0x02;
+    public static final int TAG_USAGE_HISTOGRAM = 0x03;
+    public static final int TAG_LINK = 0x04;
+    public static final int TAG_SCENE = 0x05;
+    public static final int TAG_BOOT = 0x06;
+    public static final int TAG_CONNECTIONLESS = 0x07;
+    public static final int TAG_BATTERY = 0x08;
+    public static final int TAG_WEAR = 0x09;
+
+    public static final int SCENE_NONE = 0;
+    public static final int SCENE_ON_TIME = 1;
+    public static final int SCENE_LATE = 2; // arrived after its time, fired at once
+    public static final int SCENE_REFUSED = 3;
+
+    public static final int WAKE_POWER_ON = 0; // power-on or RST
+    public static final int WAKE_TIMER = 1;
+    public static final int WAKE_BUTTON = 2; // the wake button, in a sleep window
+
+    public static final int ADV_MODE_NORMAL = 0;
+    public static final int ADV_MODE_FAST = 1;
+    public static final int ADV_MODE_SLOW = 2;
+    public static final int ADV_MODE_RESERVE = 3; // every 10s, battery in reserve
+
+    public static final int BATTERY_TIER_NORMAL = 0;
+    public static final int BATTERY_TIER_SAVING = 1;
+    public static final int BATTERY_TIER_LOW = 2; // slower, the last weeks of the battery
+    public static final int BATTERY_TIER_RESERVE = 3; // servo commands are refused
+    public static final int BATTERY_COMPANY_ID = 0xFFFF; // of the advertised status, the same as ConnectionlessFrame's
+    public static final int BATTERY_STATUS_LOW = 0x80;
+
+    public String firmwareVersion;
+
+    // Advertising governor
+    public int advertisingMode = -1;
+    public int advertisingMinIntervalMs = 0;
+    public int advertisingMaxIntervalMs = 0;
+    public int fastBurstLeftSeconds = 0;
+    public int[] usageHistogram; // commands per hour of day
+
+    // Connection parameters and keep-alive accounting (firmware 1.4.0), -1 if not reported
+    public int connectionIntervalMicros = -1;
+    public int peripheralLatency = -1;
+    public int supervisionTimeoutMs = -1;
+    public int connections;
+    public int idleEntries;
+    public int rejectedParameterUpdates;
+    public int commandsOnIdleLink; // each one a reconnect the idle link saved
+    public int idleHoldDisconnects;
+    public int timeoutDisconnects;
+    public long heldSeconds;
+    public long idleSeconds;
+    public long idleEvents; // connection events the switch attended while idle
+
+    // Several phones at once (firmware 1.9.0), -1 if not reported
+    public int clients = -1; // connected when the record was read
+    public int evictions; // phones dropped to make room for another
+
+    // Last timed command (firmware 1.5.0), ms of day on the switch's clock
+    public int sceneResult = SCENE_NONE;
+    public long sceneRequestedMillis;
+    public long sceneFiredMillis;
+
+    // Boot to advertising (firmware 1.6.0), in us since the app started on the chip, -1 if not reported
+    public int wakeCause = -1;
+    public int boots;
+    public long setupMicros = -1;
+    public long advertisingMicros = -1; // of the last boot
+    public long averageAdvertisingMicros = -1;
+    public long maxAdvertisingMicros = -1;
+
+    // Commands without a connection (firmware 1.10.0), -1 if not reported
+    public int connectionlessEnabled = -1;
+    public int scanWindowMs;
+    public int scanIntervalMs;
+    public long scanSeconds; // listening, the windows only
+    public long scanChargeMicroAh; // estimated from the receive current
+    public int connectionlessAccepted;
+    public int connectionlessRejected; // wrong MAC
+    public int connectionlessReplayed; // old sequence
+    public int connectionlessLastLatencyMs = -1; // from the phone starting to advertise to the switch receiving it
+    public int connectionlessAverageLatencyMs = -1;
+    public int connectionlessMaxLatencyMs = -1;
+
+    // Battery governor (firmware 1.12.0), -1 if not reported. Millivolts are 0 without a battery ADC.
+    public int batteryTier = -1;
+    public int batteryMillivolts;
+    public int batteryLowestMillivolts;
+    public int batteryTierChanges;
+
+    // Servo wear (firmware 1.14.0), per servo, ServoProfile.SERVO_OFF first. null if not reported.
+    public ServoWear[] servoWear;
+
+    public static DiagnosticsRecord parse(byte[] value) {
+        DiagnosticsRecord record = new DiagnosticsRecord();
+        int pos = 0;
+        while (value != null && pos + 2 <= value.length) {
+            int tag = value[pos] & 0xFF;
+            int len = value[pos + 1] & 0xFF;
+            int start = pos + 2;
+            if (start + len > value.length) {
+                break; // truncated entry
+            }
+            switch (tag) {
+                case TAG_FIRMWARE_VERSION:
+                    record.firmwareVersion = new String(value, start, len);
+                    break;
+                case TAG_ADVERTISING:
+                    if (len >= 7) {
+                        record.advertisingMode = value[start] & 0xFF;
+                        record.advertisingMinIntervalMs = u16(value, start + 1) * 625 / 1000;
+                        record.advertisingMaxIntervalMs = u16(value, start + 3) * 625 / 1000;
+                        record.fastBurstLeftSeconds = u16(value, start + 5);
+                    }
+                    break;
+                case TAG_USAGE_HISTOGRAM:
+                    record.usageHistogram = new int[len];
+                    for (int i = 0; i < len; i++) {
+                        record.usageHistogram[i] = value[start + i] & 0xFF;
+                    }
+                    break;
+                case TAG_LINK:
+                    if (len >= 30) {
+                        record.connectionIntervalMicros = u16(value, start) * 1250;
+                        record.peripheralLatency = u16(value, start + 2);
+                        record.supervisionTimeoutMs = u16(value, start + 4) * 10;
+                        record.connections = u16(value, start + 6);
+                        record.idleEntries = u16(value, start + 8);
+                        record.rejectedParameterUpdates = u16(value, start + 10);
+                        record.commandsOnIdleLink = u16(value, start + 12);
+                        record.idleHoldDisconnects = u16(value, start + 14);
+                        record.timeoutDisconnects = u16(value, start + 16);
+                        record.heldSeconds = u32(value, start + 18);
+                        record.idleSeconds = u32(value, start + 22);
+                        record.idleEvents = u32(value, start + 26);
+                    }
+                    if (len >= 33) {
+                        record.evictions = u16(value, start + 30);
+                        record.clients = value[start + 32] & 0xFF;
+                    }
+                    break;
+                case TAG_SCENE:
+                    if (len >= 9) {
+                        record.sceneRequestedMillis = u32(value, start);
+                        record.sceneFiredMillis = u32(value, start + 4);
+                        record.sceneResult = value[start + 8] & 0xFF;
+                    }
+                    break;
+                case TAG_BOOT:
+                    if (len >= 19) {
+                        record.wakeCause = value[start] & 0xFF;
+                        record.boots = u16(value, start + 1);
+                        record.setupMicros = u32(value, start + 3);
+                        record.advertisingMicros = u32(value, start + 7);
+                        record.averageAdvertisingMicros = u32(value, start + 11);
+                        record.maxAdvertisingMicros = u32(value, start + 15);
+                    }
+                    break;
+                case TAG_CONNECTIONLESS:
+                    if (len >= 25) {
+                        record.connectionlessEnabled = value[start] & 0xFF;
+                        record.scanWindowMs = u16(value, start + 1);
+                        record.scanIntervalMs = u16(value, start + 3);
+                        record.scanSeconds = u32(value, start + 5);
+                        record.scanChargeMicroAh = u32(value, start + 9);
+                        record.connectionlessAccepted = u16(value, start + 13);
+                        record.connectionlessRejected = u16(value, start + 15);
+                        record.connectionlessReplayed = u16(value, start + 17);
+                        record.connectionlessLastLatencyMs = u16(value, start + 19);
+                        record.connectionlessAverageLatencyMs = u16(value, start + 21);
+                        record.connectionlessMaxLatencyMs = u16(value, start + 23);
+                    }
+                    break;
+                case TAG_BATTERY:
+                    if (len >= 7) {
+                        record.batteryTier = value[start] & 0xFF;
+                        record.batteryMillivolts = u16(value, start + 1);
+                        record.batteryLowestMillivolts = u16(value, start + 3);
+                        record.batteryTierChanges = u16(value, start + 5);
+                    }
+                    break;
+                case TAG_WEAR:
+                    record.servoWear = ServoWear.parse(value, start, len);
+                    break;
+            }
+            pos = start + len;
+        }
+        return record;
+    }
+
+    // The tier from the manufacturer data of the switch's advertisement (after the company ID), -1 if it has none.
+    // Connectionless frames from phones use the same company ID but are longer.
+    public static int advertisedBatteryTier(byte[] manufacturerData) {
+        if (manufacturerData == null || manufacturerData.length != 1) {
+            return -1;
+        }
+        return manufacturerData[0] & 0x03;
+    }
+
+    public static int u16(byte[] value, int pos) {
+        return (value[pos] & 0xFF) | (value[pos + 1] & 0xFF) << 8;
+    }
+
+    public static long u32(byte[] value, int pos) {
+        return u16(value, pos) | (long) u16(value, pos + 2) << 16;
+    }
+}
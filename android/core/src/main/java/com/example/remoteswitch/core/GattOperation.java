@@ -0,0 +1,43 @@
+package com.example.remoteswitch.core;
+
+import java.util.UUID;
+
+// One read or write on a characteristic, waiting in an OperationQueue.
+public class GattOperation {
+    public enum Type { READ, WRITE }
+
+    public final Type type;
+    public final UUID characteristic;
+    public final String coalesceKey; // pending writes with the same key collapse into the latest value, null to never collapse
+    byte[] value;
+    long enqueuedNanos;
+    long startedNanos;
+
+    private GattOperation(Type type, UUID characteristic, byte[] value, String coalesceKey) {
+        this.type = type;
+        this.characteristic = characteristic;
+        this.value = value;
+        this.coalesceKey = coalesceKey;
+    }
+
+    public static GattOperation read(UUID characteristic) {
+        return new GattOperation(Type.READ, characteristic, null, null);
+    }
+
+    public static GattOperation write(UUID characteristic, byte[] value) {
+        return new GattOperation(Type.WRITE, characteristic, value, null);
+    }
+
+    public static GattOperation write(UUID characteristic, byte[] value, String coalesceKey) {
+        return new GattOperation(Type.WRITE, characteristic, value, coalesceKey);
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
+
+    // Time the operation spent waiting before it was started.
+    public long getQueueNanos() {
+        return startedNanos - enqueuedNanos;
+    }
+}
@@ -0,0 +1,326 @@
+package com.example.remoteswitch.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/*
+Everything BleConnectManager decides about one connection, without Android types:
+the state machine, the operation queue and what to do on each GATT callback.
+The platform side is a Port for outgoing calls and plain method calls for the callbacks,
+which lets a recorded trace drive the same code on the JVM (see GattTrace, TraceReplayer).
+
+Every entry point runs with the session locked, including the Listener calls it makes,
+so a recorder sees inputs and outgoing calls in the order they were processed.
+Listeners should post their work elsewhere instead of blocking.
+*/
+public class GattSession {
+    public static final int GATT_SUCCESS = 0;
+    private static final String SERVO_COALESCE_KEY = "servo"; // only the latest pending servo command matters
+
+    // Characteristics looked up after discovery. Diagnostics is missing on firmware before 1.1.0, servo profile before 1.2.0,
+    // connectionless before 1.10.0, command timing before 1.11.0, provisioning before 1.13.0.
+    private static final UUID[][] PATHS = {
+            {GattUuids.SERVICE_SERVOCONTROL, GattUuids.CHARACTERISTIC_SERVOSIGNAL},
+            {GattUuids.SERVICE_TIMESYNC, GattUuids.CHARACTERISTIC_PHONETIME},
+            {GattUuids.SERVICE_CONFIG, GattUuids.CHARACTERISTIC_DIAGNOSTICS},
+            {GattUuids.SERVICE_CONFIG, GattUuids.CHARACTERISTIC_SERVOPROFILE},
+            {GattUuids.SERVICE_CONFIG, GattUuids.CHARACTERISTIC_CONNECTIONLESS},
+            {GattUuids.SERVICE_CONFIG, GattUuids.CHARACTERISTIC_COMMAND_TIMING},
+            {GattUuids.SERVICE_CONFIG, GattUuids.CHARACTERISTIC_PROVISIONING}};
+
+    // Outgoing calls on the platform GATT client. false means the call was not started.
+    public interface Port {
+        boolean connect();
+
+        boolean discoverServices();
+
+        boolean read(UUID characteristic);
+
+        boolean write(UUID characteristic, byte[] value);
+
+        void disconnect();
+
+        void close();
+    }
+
+    public interface Listener {
+        void onReady();
+
+        void onDisconnected();
+
+        void onTimeSynced();
+
+        void onServoCommandSent(String command);
+
+        void onDiagnosticsRead(byte[] value);
+
+        void onServoProfilesRead(List<ServoProfile> profiles);
+
+        // null if the switch would not hand out its settings
+        default void onConnectionlessRead(ConnectionlessFrame.Settings settings) {
+        }
+
+        // null if the value was too short
+        default void onCommandTimingRead(CommandTiming.Record record) {
+        }
+
+        // The provisioning write was acknowledged, the switch keeps the schedule and label
+        default void onProvisioned() {
+        }
+
+        // A write the switch refused or the stack gave up on, e.g. without encryption
+        default void onWriteFailed(UUID characteristic, int status) {
+        }
+
+        default void onStateChanged(ConnectionStateMachine.State from, ConnectionStateMachine.State to, ConnectionStateMachine.Event event) {
+        }
+    }
+
+    private final Port port;
+    private final Listener listener;
+    private final OperationQueue.NanoClock clock;
+    private final OperationQueue operationQueue;
+    private final ConnectionStateMachine stateMachine;
+    private final Set<UUID> characteristics = new HashSet<>();
+    private GattTrace.Writer recorder;
+    private List<String> gattLayout = Collections.emptyList();
+    private long connectStartNanos = 0;
+    private long connectLatencyNanos = 0;
+    private CommandTiming.Sent lastCommandSent;
+
+    public GattSession(Port port, Listener listener) {
+        this(port, listener, System::nanoTime);
+    }
+
+    public GattSession(Port port, Listener listener, OperationQueue.NanoClock clock) {
+        this.port = port;
+        this.listener = listener;
+        this.clock = clock;
+        this.operationQueue = new OperationQueue(clock);
+        this.stateMachine = new ConnectionStateMachine(listener::onStateChanged);
+    }
+
+    // Record every input and outgoing call from now on, null to stop.
+    public synchronized void setRecorder(GattTrace.Writer recorder) {
+        this.recorder = recorder;
+    }
+
+    public synchronized GattTrace.Writer getRecorder() {
+        return recorder;
+    }
+
+    // Inputs from the app
+
+    public synchronized void connect() {
+        record(GattTrace.Record.connect(clock.nanoTime()));
+        if (!stateMachine.fire(ConnectionStateMachine.Event.CONNECT)) {
+            return;
+        }
+        connectStartNanos = clock.nanoTime();
+        boolean started = port.connect();
+        record(GattTrace.Record.call(GattTrace.Kind.CALL_CONNECT, clock.nanoTime(), null, null, started));
+        if (!started) {
+            stateMachine.fire(ConnectionStateMachine.Event.LINK_DOWN);
+            listener.onDisconnected();
+        }
+    }
+
+    public synchronized void disconnect() {
+        record(GattTrace.Record.disconnect(clock.nanoTime()));
+        if (!stateMachine.fire(ConnectionStateMachine.Event.DISCONNECT)) {
+            return;
+        }
+        port.disconnect();
+        record(GattTrace.Record.call(GattTrace.Kind.CALL_DISCONNECT, clock.nanoTime(), null, null, true));
+    }
+
+    // Returns false if the session is not ready or the characteristic is missing.
+    public synchronized boolean submit(GattOperation operation) {
+        record(GattTrace.Record.submit(clock.nanoTime(), operation));
+        if (!stateMachine.isReady() || !characteristics.contains(operation.characteristic)) {
+            return false;
+        }
+        operationQueue.submit(operation);
+        drainOperations();
+        return true;
+    }
+
+    public boolean writeTime(int secondOfDay) {
+        return submit(GattOperation.write(GattUuids.CHARACTERISTIC_PHONETIME, TimeCodec.encode(secondOfDay)));
+    }
+
+    // The time is taken when the write is queued, so call it on an idle session for millisecond accuracy.
+    public boolean writeTimeMillis(int millisOfDay) {
+        return submit(GattOperation.write(GattUuids.CHARACTERISTIC_PHONETIME, TimeCodec.encodeMillis(millisOfDay)));
+    }
+
+    public void readDiagnostics() {
+        if (hasCharacteristic(GattUuids.CHARACTERISTIC_DIAGNOSTICS)) {
+            submit(GattOperation.read(GattUuids.CHARACTERISTIC_DIAGNOSTICS));
+        }
+    }
+
+    public boolean sendServoCommand(Command command) {
+        return submit(GattOperation.write(GattUuids.CHARACTERISTIC_SERVOSIGNAL, command.encode(), SERVO_COALESCE_KEY));
+    }
+
+    // Fire at the given time of day on the switch's clock, see Scene
+    public boolean sendServoCommandAt(Command command, int millisOfDay) {
+        return submit(GattOperation.write(GattUuids.CHARACTERISTIC_SERVOSIGNAL, command.encodeAt(millisOfDay), SERVO_COALESCE_KEY));
+    }
+
+    // Inputs from the platform GATT callbacks
+
+    public synchronized void onConnectionStateChange(int status, boolean connected) {
+        record(GattTrace.Record.connectionState(clock.nanoTime(), status, connected));
+        if (connected) {
+            stateMachine.fire(ConnectionStateMachine.Event.LINK_UP);
+            // Discover services after a successful connection.
+            boolean started = port.discoverServices();
+            record(GattTrace.Record.call(GattTrace.Kind.CALL_DISCOVER, clock.nanoTime(), null, null, started));
+            return;
+        }
+        stateMachine.fire(ConnectionStateMachine.Event.LINK_DOWN);
+        operationQueue.clear();
+        characteristics.clear();
+        listener.onDisconnected();
+        port.close();
+        record(GattTrace.Record.call(GattTrace.Kind.CALL_CLOSE, clock.nanoTime(), null, null, true));
+    }
+
+    // layout holds {service, characteristic} pairs as discovered
+    public synchronized void onServicesDiscovered(int status, List<UUID[]> layout) {
+        record(GattTrace.Record.servicesDiscovered(clock.nanoTime(), status, layout));
+        if (status == GATT_SUCCESS) {
+            List<String> entries = new ArrayList<>(layout.size());
+            for (UUID[] entry : layout) {
+                entries.add(entry[0] + "/" + entry[1]);
+            }
+            gattLayout = Collections.unmodifiableList(entries);
+            for (UUID[] path : PATHS) {
+                for (UUID[] entry : layout) {
+                    if (path[0].equals(entry[0]) && path[1].equals(entry[1])) {
+                        characteristics.add(path[1]);
+                    }
+                }
+            }
+        }
+
+        // Both required characteristics must be there
+        boolean ready = characteristics.contains(GattUuids.CHARACTERISTIC_PHONETIME)
+                && characteristics.contains(GattUuids.CHARACTERISTIC_SERVOSIGNAL);
+        stateMachine.fire(ready ? ConnectionStateMachine.Event.DISCOVERY_OK : ConnectionStateMachine.Event.DISCOVERY_FAILED);
+        if (ready) {
+            connectLatencyNanos = clock.nanoTime() - connectStartNanos;
+            listener.onReady();
+        } else {
+            port.disconnect();
+            record(GattTrace.Record.call(GattTrace.Kind.CALL_DISCONNECT, clock.nanoTime(), null, null, true));
+        }
+    }
+
+    public synchronized void onCharacteristicWrite(UUID characteristic, int status) {
+        record(GattTrace.Record.characteristicWrite(clock.nanoTime(), characteristic, status));
+        GattOperation done = operationQueue.complete();
+        if (status == GATT_SUCCESS) {
+            if (GattUuids.CHARACTERISTIC_PHONETIME.equals(characteristic)) {
+                listener.onTimeSynced();
+            }
+            if (GattUuids.CHARACTERISTIC_SERVOSIGNAL.equals(characteristic)) {
+                Command command = done == null ? null : Command.decode(done.getValue());
+                if (done != null) {
+                    lastCommandSent = new CommandTiming.Sent(done.enqueuedNanos, done.startedNanos, clock.nanoTime());
+                }
+                if (command != null) {
+                    listener.onServoCommandSent(command.name);
+                }
+            }
+            if (GattUuids.CHARACTERISTIC_PROVISIONING.equals(characteristic)) {
+                listener.onProvisioned();
+            }
+        } else {
+            listener.onWriteFailed(characteristic, status);
+        }
+        drainOperations();
+    }
+
+    public synchronized void onCharacteristicRead(UUID characteristic, int status, byte[] value) {
+        record(GattTrace.Record.characteristicRead(clock.nanoTime(), characteristic, status, value));
+        operationQueue.complete();
+        if (status == GATT_SUCCESS && GattUuids.CHARACTERISTIC_DIAGNOSTICS.equals(characteristic)) {
+            listener.onDiagnosticsRead(value);
+        }
+        if (status == GATT_SUCCESS && GattUuids.CHARACTERISTIC_SERVOPROFILE.equals(characteristic)) {
+            listener.onServoProfilesRead(ServoProfile.decodeAll(value));
+        }
+        if (status == GATT_SUCCESS && GattUuids.CHARACTERISTIC_CONNECTIONLESS.equals(characteristic)) {
+            listener.onConnectionlessRead(ConnectionlessFrame.decodeSettings(value));
+        }
+        if (status == GATT_SUCCESS && GattUuids.CHARACTERISTIC_COMMAND_TIMING.equals(characteristic)) {
+            listener.onCommandTimingRead(CommandTiming.Record.parse(value));
+        }
+        drainOperations();
+    }
+
+    // State
+
+    public synchronized ConnectionStateMachine.State getState() {
+        return stateMachine.getState();
+    }
+
+    public synchronized boolean isReady() {
+        return stateMachine.isReady();
+    }
+
+    public synchronized boolean hasCharacteristic(UUID characteristic) {
+        return characteristics.contains(characteristic);
+    }
+
+    // Queued, started and acknowledged times of the last servo write, null before the first
+    public synchronized CommandTiming.Sent getLastCommandSent() {
+        return lastCommandSent;
+    }
+
+    // Time from connect() until both required characteristics were discovered.
+    public synchronized long getConnectLatencyNanos() {
+        return connectLatencyNanos;
+    }
+
+    public synchronized List<String> getGattLayout() {
+        return gattLayout;
+    }
+
+    public synchronized long getAverageQueueNanos() {
+        return operationQueue.getAverageQueueNanos();
+    }
+
+    public synchronized long getMaxQueueNanos() {
+        return operationQueue.getMaxQueueNanos();
+    }
+
+    // Start the next queued operation if none is in flight
+    private void drainOperations() {
+        GattOperation operation;
+        while ((operation = operationQueue.next()) != null) {
+            boolean started = operation.type == GattOperation.Type.READ
+                    ? port.read(operation.characteristic)
+                    : port.write(operation.characteristic, operation.getValue());
+            GattTrace.Kind kind = operation.type == GattOperation.Type.READ ? GattTrace.Kind.CALL_READ : GattTrace.Kind.CALL_WRITE;
+            record(GattTrace.Record.call(kind, clock.nanoTime(), operation.characteristic, operation.getValue(), started));
+            if (started) {
+                return;
+            }
+            operationQueue.complete(); // skip it
+        }
+    }
+
+    private void record(GattTrace.Record record) {
+        if (recorder != null) {
+            recorder.append(record);
+        }
+    }
+}
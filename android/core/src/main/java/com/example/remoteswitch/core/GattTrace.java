@@ -0,0 +1,435 @@
+package com.example.remoteswitch.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+
+/*
+Binary trace of one GattSession: the app's calls into it, the GATT callbacks it got
+and the outgoing calls it made, each with a nanosecond timestamp.
+
+Layout: "RSGT", version u8, wall clock at start i64 (ms), start i64 (ns), then records of
+kind u8, ns since the previous record (varint), and the kind's fields. Varints are unsigned LEB128.
+A 16-bit Bluetooth UUID takes 3 bytes, any other 17. Byte arrays and strings are a varint
+length + 1 (0 for null) followed by the bytes. A trace cut off mid-record reads up to the last whole record.
+*/
+public final class GattTrace {
+    private static final byte[] MAGIC = {'R', 'S', 'G', 'T'};
+    private static final int VERSION = 1;
+    private static final long BASE_LSB = 0x800000805F9B34FBL;
+    private static final long BASE_MSB_MASK = 0xFFFF0000FFFFFFFFL;
+    private static final long BASE_MSB = 0x0000000000001000L;
+
+    public enum Kind {
+        // App -> session
+        CONNECT(0x01), DISCONNECT(0x02), SUBMIT(0x03),
+        // Session -> platform, recorded after the call returned
+        CALL_CONNECT(0x10), CALL_DISCOVER(0x11), CALL_READ(0x12), CALL_WRITE(0x13), CALL_DISCONNECT(0x14), CALL_CLOSE(0x15),
+        // Platform callbacks -> session
+        ON_CONNECTION_STATE(0x20), ON_SERVICES_DISCOVERED(0x21), ON_WRITE(0x22), ON_READ(0x23);
+
+        public final int code;
+
+        Kind(int code) {
+            this.code = code;
+        }
+
+        public boolean isCall() {
+            return code >= 0x10 && code < 0x20;
+        }
+
+        static Kind fromCode(int code) throws IOException {
+            for (Kind kind : values()) {
+                if (kind.code == code) {
+                    return kind;
+                }
+            }
+            throw new IOException("Unknown record kind " + code);
+        }
+    }
+
+    public static final class Record {
+        public final Kind kind;
+        public final long nanos;
+        public final UUID characteristic;
+        public final byte[] value;
+        // Status of a callback, result of a call (1 = started), or GattOperation.Type ordinal of a submit
+        public final int status;
+        public final String coalesceKey;
+        public final List<UUID[]> layout;
+        public final boolean connected;
+
+        private Record(Kind kind, long nanos, UUID characteristic, byte[] value, int status, String coalesceKey, List<UUID[]> layout) {
+            this(kind, nanos, characteristic, value, status, coalesceKey, layout, false);
+        }
+
+        private Record(Kind kind, long nanos, UUID characteristic, byte[] value, int status, String coalesceKey, List<UUID[]> layout, boolean connected) {
+            this.kind = kind;
+            this.nanos = nanos;
+            this.characteristic = characteristic;
+            this.value = value;
+            this.status = status;
+            this.coalesceKey = coalesceKey;
+            this.layout = layout;
+            this.connected = connected;
+        }
+
+        public static Record connect(long nanos) {
+            return new Record(Kind.CONNECT, nanos, null, null, 0, null, null);
+        }
+
+        public static Record disconnect(long nanos) {
+            return new Record(Kind.DISCONNECT, nanos, null, null, 0, null, null);
+        }
+
+        public static Record submit(long nanos, GattOperation operation) {
+            return new Record(Kind.SUBMIT, nanos, operation.characteristic, operation.getValue(), operation.type.ordinal(), operation.coalesceKey, null);
+        }
+
+        public static Record call(Kind kind, long nanos, UUID characteristic, byte[] value, boolean started) {
+            return new Record(kind, nanos, characteristic, value, started ? 1 : 0, null, null);
+        }
+
+        public static Record connectionState(long nanos, int status, boolean connected) {
+            return new Record(Kind.ON_CONNECTION_STATE, nanos, null, null, status, null, null, connected);
+        }
+
+        public static Record servicesDiscovered(long nanos, int status, List<UUID[]> layout) {
+            return new Record(Kind.ON_SERVICES_DISCOVERED, nanos, null, null, status, null, layout);
+        }
+
+        public static Record characteristicWrite(long nanos, UUID characteristic, int status) {
+            return new Record(Kind.ON_WRITE, nanos, characteristic, null, status, null, null);
+        }
+
+        public static Record characteristicRead(long nanos, UUID characteristic, int status, byte[] value) {
+            return new Record(Kind.ON_READ, nanos, characteristic, value, status, null, null);
+        }
+
+        public boolean isStarted() {
+            return status != 0;
+        }
+
+        public GattOperation toOperation() {
+            if (status == GattOperation.Type.READ.ordinal()) {
+                return GattOperation.read(characteristic);
+            }
+            return GattOperation.write(characteristic, value, coalesceKey);
+        }
+
+        // Same call on the same characteristic with the same value; results and timestamps are not compared.
+        public boolean sameCall(Record other) {
+            return kind == other.kind && Objects.equals(characteristic, other.characteristic) && Arrays.equals(value, other.value);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder().append(kind);
+            if (kind == Kind.ON_CONNECTION_STATE) {
+                return builder.append(connected ? " connected" : " disconnected").append(" status ").append(status).toString();
+            }
+            if (characteristic != null) {
+                builder.append(' ').append(characteristic.toString(), 4, 8);
+            }
+            if (value != null) {
+                builder.append(" [").append(value.length).append(" bytes]");
+            }
+            return builder.append(kind.isCall() ? (isStarted() ? " started" : " not started") : " status " + status).toString();
+        }
+    }
+
+    public final long startWallMillis;
+    public final long startNanos;
+    public final List<Record> records;
+
+    GattTrace(long startWallMillis, long startNanos, List<Record> records) {
+        this.startWallMillis = startWallMillis;
+        this.startNanos = startNanos;
+        this.records = Collections.unmodifiableList(records);
+    }
+
+    // Time from the start of the trace to its last record
+    public long getDurationNanos() {
+        return records.isEmpty() ? 0 : records.get(records.size() - 1).nanos - startNanos;
+    }
+
+    /*
+    Appends records to a stream as they happen. Never throws from append(): recording must not
+    break the connection, so an I/O error or reaching maxBytes just stops the trace.
+    */
+    public static final class Writer {
+        private final OutputStream out;
+        private final int maxBytes;
+        private final ByteArrayOutputStream scratch = new ByteArrayOutputStream(64);
+        private long lastNanos;
+        private int size = 0;
+        private boolean stopped = false;
+        private boolean truncated = false;
+
+        public Writer(OutputStream out, long startWallMillis, long startNanos, int maxBytes) {
+            this.out = out;
+            this.maxBytes = maxBytes;
+            this.lastNanos = startNanos;
+            scratch.write(MAGIC, 0, MAGIC.length);
+            scratch.write(VERSION);
+            putLong(scratch, startWallMillis);
+            putLong(scratch, startNanos);
+            flushScratch();
+        }
+
+        public synchronized void append(Record record) {
+            if (stopped) {
+                return;
+            }
+            scratch.write(record.kind.code);
+            putVarint(scratch, Math.max(0, record.nanos - lastNanos));
+            lastNanos = Math.max(lastNanos, record.nanos);
+            switch (record.kind) {
+                case SUBMIT:
+                    scratch.write(record.status);
+                    putUuid(scratch, record.characteristic);
+                    putBytes(scratch, record.coalesceKey == null ? null : record.coalesceKey.getBytes(StandardCharsets.UTF_8));
+                    putBytes(scratch, record.value);
+                    break;
+                case CALL_CONNECT:
+                case CALL_DISCOVER:
+                case CALL_DISCONNECT:
+                case CALL_CLOSE:
+                    scratch.write(record.status);
+                    break;
+                case CALL_READ:
+                    scratch.write(record.status);
+                    putUuid(scratch, record.characteristic);
+                    break;
+                case CALL_WRITE:
+                    scratch.write(record.status);
+                    putUuid(scratch, record.characteristic);
+                    putBytes(scratch, record.value);
+                    break;
+                case ON_CONNECTION_STATE:
+                    putVarint(scratch, record.status);
+                    scratch.write(record.connected ? 1 : 0);
+                    break;
+                case ON_SERVICES_DISCOVERED:
+                    putVarint(scratch, record.status);
+                    putVarint(scratch, record.layout.size());
+                    for (UUID[] entry : record.layout) {
+                        putUuid(scratch, entry[0]);
+                        putUuid(scratch, entry[1]);
+                    }
+                    break;
+                case ON_WRITE:
+                    putUuid(scratch, record.characteristic);
+                    putVarint(scratch, record.status);
+                    break;
+                case ON_READ:
+                    putUuid(scratch, record.characteristic);
+                    putVarint(scratch, record.status);
+                    putBytes(scratch, record.value);
+                    break;
+                default:
+                    break;
+            }
+            if (size + scratch.size() > maxBytes) {
+                scratch.reset();
+                truncated = true;
+                stopped = true;
+                return;
+            }
+            flushScratch();
+        }
+
+        public synchronized int getSize() {
+            return size;
+        }
+
+        public synchronized boolean isTruncated() {
+            return truncated;
+        }
+
+        public synchronized void close() {
+            stopped = true;
+            try {
+                out.close();
+            } catch (IOException e) {
+                // nothing left to save
+            }
+        }
+
+        private void flushScratch() {
+            try {
+                scratch.writeTo(out);
+                size += scratch.size();
+            } catch (IOException e) {
+                stopped = true;
+            }
+            scratch.reset();
+        }
+    }
+
+    public static GattTrace read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a GATT trace");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported trace version " + version);
+        }
+        long startWallMillis = in.readLong();
+        long startNanos = in.readLong();
+
+        List<Record> records = new ArrayList<>();
+        long nanos = startNanos;
+        while (true) {
+            int code = in.read();
+            if (code < 0) {
+                break;
+            }
+            try {
+                Kind kind = Kind.fromCode(code);
+                nanos += getVarint(in);
+                records.add(readRecord(in, kind, nanos));
+            } catch (EOFException e) {
+                break; // cut off mid-record
+            }
+        }
+        return new GattTrace(startWallMillis, startNanos, records);
+    }
+
+    private static Record readRecord(DataInputStream in, Kind kind, long nanos) throws IOException {
+        switch (kind) {
+            case CONNECT:
+                return Record.connect(nanos);
+            case DISCONNECT:
+                return Record.disconnect(nanos);
+            case SUBMIT: {
+                int type = in.readUnsignedByte();
+                UUID characteristic = getUuid(in);
+                byte[] key = getBytes(in);
+                byte[] value = getBytes(in);
+                return new Record(kind, nanos, characteristic, value, type, key == null ? null : new String(key, StandardCharsets.UTF_8), null);
+            }
+            case CALL_CONNECT:
+            case CALL_DISCOVER:
+            case CALL_DISCONNECT:
+            case CALL_CLOSE:
+                return Record.call(kind, nanos, null, null, in.readUnsignedByte() != 0);
+            case CALL_READ: {
+                boolean started = in.readUnsignedByte() != 0;
+                return Record.call(kind, nanos, getUuid(in), null, started);
+            }
+            case CALL_WRITE: {
+                boolean started = in.readUnsignedByte() != 0;
+                UUID characteristic = getUuid(in);
+                return Record.call(kind, nanos, characteristic, getBytes(in), started);
+            }
+            case ON_CONNECTION_STATE: {
+                int status = (int) getVarint(in);
+                return Record.connectionState(nanos, status, in.readUnsignedByte() != 0);
+            }
+            case ON_SERVICES_DISCOVERED: {
+                int status = (int) getVarint(in);
+                int count = (int) getVarint(in);
+                List<UUID[]> layout = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    layout.add(new UUID[]{getUuid(in), getUuid(in)});
+                }
+                return Record.servicesDiscovered(nanos, status, layout);
+            }
+            case ON_WRITE: {
+                UUID characteristic = getUuid(in);
+                return Record.characteristicWrite(nanos, characteristic, (int) getVarint(in));
+            }
+            case ON_READ: {
+                UUID characteristic = getUuid(in);
+                int status = (int) getVarint(in);
+                return Record.characteristicRead(nanos, characteristic, status, getBytes(in));
+            }
+            default:
+                throw new IOException("Unhandled record kind " + kind);
+        }
+    }
+
+    // Encoding
+
+    private static void putLong(ByteArrayOutputStream out, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift));
+        }
+    }
+
+    private static void putVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long getVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    private static void putUuid(ByteArrayOutputStream out, UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        if (uuid.getLeastSignificantBits() == BASE_LSB && (msb & BASE_MSB_MASK) == BASE_MSB) {
+            int uuid16 = (int) (msb >>> 32) & 0xFFFF;
+            out.write(0);
+            out.write(uuid16 & 0xFF);
+            out.write(uuid16 >> 8);
+            return;
+        }
+        out.write(1);
+        putLong(out, msb);
+        putLong(out, uuid.getLeastSignificantBits());
+    }
+
+    private static UUID getUuid(DataInputStream in) throws IOException {
+        if (in.readUnsignedByte() == 0) {
+            int low = in.readUnsignedByte();
+            return GattUuids.fromShort16(low | in.readUnsignedByte() << 8);
+        }
+        long msb = in.readLong();
+        return new UUID(msb, in.readLong());
+    }
+
+    private static void putBytes(ByteArrayOutputStream out, byte[] value) {
+        if (value == null) {
+            putVarint(out, 0);
+            return;
+        }
+        putVarint(out, value.length + 1L);
+        out.write(value, 0, value.length);
+    }
+
+    private static byte[] getBytes(DataInputStream in) throws IOException {
+        int length = (int) getVarint(in);
+        if (length == 0) {
+            return null;
+        }
+        byte[] value = new byte[length - 1];
+        in.readFully(value);
+        return value;
+    }
+}
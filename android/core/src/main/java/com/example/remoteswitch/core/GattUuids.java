@@ -0,0 +1,29 @@
+package com.example.remoteswitch.core;
+
+import java.util.UUID;
+
+// GATT UUIDs shared with the Arduino sketch.
+public final class GattUuids {
+    // Bluetooth_Base_UUID 00000000-0000-1000-8000-00805F9B34FB
+    private static final long BASE_MSB = 0x0000000000001000L;
+    private static final long BASE_LSB = 0x800000805F9B34FBL;
+
+    public static final UUID SERVICE_TIMESYNC = fromShort16(0x1805);
+    public static final UUID CHARACTERISTIC_PHONETIME = fromShort16(0x2A2B);
+    public static final UUID SERVICE_SERVOCONTROL = fromShort16(0x1815);
+    public static final UUID CHARACTERISTIC_SERVOSIGNAL = fromShort16(0x2A56);
+    public static final UUID SERVICE_CONFIG = fromShort16(0xFFE0);
+    public static final UUID CHARACTERISTIC_DIAGNOSTICS = fromShort16(0xFFE1);
+    public static final UUID CHARACTERISTIC_SERVOPROFILE = fromShort16(0xFFE2);
+    public static final UUID CHARACTERISTIC_CONNECTIONLESS = fromShort16(0xFFE3);
+    public static final UUID CHARACTERISTIC_COMMAND_TIMING = fromShort16(0xFFE4);
+    public static final UUID CHARACTERISTIC_PROVISIONING = fromShort16(0xFFE5);
+
+    private GattUuids() {
+    }
+
+    // 128_bit_UUID = 16_bit_UUID * 2^96 + Bluetooth_Base_UUID, built from the bits instead of formatting and parsing a string
+    public static UUID fromShort16(int uuid16) {
+        return new UUID(BASE_MSB | (long) (uuid16 & 0xFFFF) << 32, BASE_LSB);
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.remoteswitch.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// What the screen shows of one connection, immutable so it can cross threads (see SnapshotCoalescer).
+// One-off events are counters: the screen reacts when a counter grows, however many snapshots it skipped.
+public final class LinkSnapshot {
+    public static final LinkSnapshot IDLE = new LinkSnapshot(ConnectionStateMachine.State.DISCONNECTED, 0, null, 0,
+            Collections.emptyList(), 0, -1, Collections.emptyList(), 0, false, 0);
+
+    public final ConnectionStateMachine.State state;
+    public final int failures; // connects that failed
+    public final String failure; // the message of the last one
+    public final int timeSyncs;
+    public final List<ServoProfile> servoProfiles; // from the last read
+    public final int servoProfileReads;
+    public final int batteryTier; // DiagnosticsRecord.BATTERY_TIER_*, -1 before the first read or on older firmware
+    public final List<ServoWear> raisedWear; // by servo, only those whose level rose with the last read, null for the others
+    public final int diagnosticsReads;
+    public final boolean connectionlessEnabled; // from the last read
+    public final int connectionlessReads;
+
+    private LinkSnapshot(ConnectionStateMachine.State state, int failures, String failure, int timeSyncs,
+                         List<ServoProfile> servoProfiles, int servoProfileReads, int batteryTier,
+                         List<ServoWear> raisedWear, int diagnosticsReads, boolean connectionlessEnabled,
+                         int connectionlessReads) {
+        this.state = state;
+        this.failures = failures;
+        this.failure = failure;
+        this.timeSyncs = timeSyncs;
+        this.servoProfiles = servoProfiles;
+        this.servoProfileReads = servoProfileReads;
+        this.batteryTier = batteryTier;
+        this.raisedWear = raisedWear;
+        this.diagnosticsReads = diagnosticsReads;
+        this.connectionlessEnabled = connectionlessEnabled;
+        this.connectionlessReads = connectionlessReads;
+    }
+
+    public boolean isReady() {
+        return state == ConnectionStateMachine.State.READY;
+    }
+
+    public LinkSnapshot withState(ConnectionStateMachine.State state) {
+        return new LinkSnapshot(state, failures, failure, timeSyncs, servoProfiles, servoProfileReads, batteryTier,
+                raisedWear, diagnosticsReads, connectionlessEnabled, connectionlessReads);
+    }
+
+    public LinkSnapshot withFailure(String message) {
+        return new LinkSnapshot(ConnectionStateMachine.State.DISCONNECTED, failures + 1, message, timeSyncs,
+                servoProfiles, servoProfileReads, batteryTier, raisedWear, diagnosticsReads, connectionlessEnabled,
+                connectionlessReads);
+    }
+
+    public LinkSnapshot withTimeSynced() {
+        return new LinkSnapshot(state, failures, failure, timeSyncs + 1, servoProfiles, servoProfileReads, batteryTier,
+                raisedWear, diagnosticsReads, connectionlessEnabled, connectionlessReads);
+    }
+
+    public LinkSnapshot withServoProfiles(List<ServoProfile> profiles) {
+        return new LinkSnapshot(state, failures, failure, timeSyncs,
+                Collections.unmodifiableList(new ArrayList<>(profiles)), servoProfileReads + 1, batteryTier,
+                raisedWear, diagnosticsReads, connectionlessEnabled, connectionlessReads);
+    }
+
+    public LinkSnapshot withDiagnostics(int batteryTier, ServoWear[] raisedWear) {
+        return new LinkSnapshot(state, failures, failure, timeSyncs, servoProfiles, servoProfileReads, batteryTier,
+                Collections.unmodifiableList(Arrays.asList(raisedWear.clone())), diagnosticsReads + 1,
+                connectionlessEnabled, connectionlessReads);
+    }
+
+    public LinkSnapshot withConnectionless(boolean enabled) {
+        return new LinkSnapshot(state, failures, failure, timeSyncs, servoProfiles, servoProfileReads, batteryTier,
+                raisedWear, diagnosticsReads, enabled, connectionlessReads + 1);
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.remoteswitch.core;
+
+import java.util.ArrayDeque;
+
+/*
+Android only allows one outstanding GATT operation per connection; a second read or write issued
+before the callback of the first is silently dropped. Everything goes through this queue instead,
+which starts the next operation only after the previous one completed.
+Not thread-safe, use it from one thread.
+*/
+public class OperationQueue {
+    public interface NanoClock {
+        long nanoTime();
+    }
+
+    private final ArrayDeque<GattOperation> pending = new ArrayDeque<>();
+    private final NanoClock clock;
+    private GattOperation inFlight;
+
+    // Stats
+    private long submitted = 0;
+    private long coalesced = 0;
+    private long started = 0;
+    private long totalQueueNanos = 0;
+    private long maxQueueNanos = 0;
+
+    public OperationQueue() {
+        this(System::nanoTime);
+    }
+
+    public OperationQueue(NanoClock clock) {
+        this.clock = clock;
+    }
+
+    // Returns false if the operation was merged into a pending one with the same coalesce key.
+    public boolean submit(GattOperation operation) {
+        submitted++;
+        if (operation.coalesceKey != null) {
+            for (GattOperation waiting : pending) {
+                if (operation.coalesceKey.equals(waiting.coalesceKey) && operation.characteristic.equals(waiting.characteristic)) {
+                    waiting.value = operation.value;
+                    coalesced++;
+                    return false;
+                }
+            }
+        }
+        operation.enqueuedNanos = clock.nanoTime();
+        pending.addLast(operation);
+        return true;
+    }
+
+    // The operation to start now, or null if one is still in flight or nothing is pending.
+    public GattOperation next() {
+        if (inFlight != null || pending.isEmpty()) {
+            return null;
+        }
+        inFlight = pending.pollFirst();
+        inFlight.startedNanos = clock.nanoTime();
+        long queueNanos = inFlight.getQueueNanos();
+        started++;
+        totalQueueNanos += queueNanos;
+        if (queueNanos > maxQueueNanos) {
+            maxQueueNanos = queueNanos;
+        }
+        return inFlight;
+    }
+
+    // Call from the GATT callback of the in-flight operation. Returns it, or null if nothing was in flight.
+    public GattOperation complete() {
+        GattOperation done = inFlight;
+        inFlight = null;
+        return done;
+    }
+
+    public GattOperation getInFlight() {
+        return inFlight;
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    // Drop everything, e.g. when the link goes down.
+    public void clear() {
+        pending.clear();
+        inFlight = null;
+    }
+
+    public long getSubmitted() {
+        return submitted;
+    }
+
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    public long getAverageQueueNanos() {
+        return started == 0 ? 0 : totalQueueNanos / started;
+    }
+
+    public long getMaxQueueNanos() {
+        return maxQueueNanos;
+    }
+}
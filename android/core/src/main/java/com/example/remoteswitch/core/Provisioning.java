@@ -0,0 +1,77 @@
+package com.example.remoteswitch.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+What the provisioning mode writes to a new switch besides the time and the servo profiles (firmware 1.13.0).
+Same layout as the firmware's provisioning.h, little-endian:
+  provisioned u8   day window start u32, end u32   night window start u32, end u32 (s of day)   label (UTF-8)
+A write leaves out the first byte. Once written, the switch sets STATUS_PROVISIONED in its advertised status byte,
+so a scan tells new switches from installed ones without connecting.
+*/
+public final class Provisioning {
+    public static final int STATUS_PROVISIONED = 0x40;
+    public static final int LABEL_MAX = 20; // bytes
+    private static final int WINDOWS_LENGTH = 16;
+
+    // What the characteristic reads
+    public static class Settings {
+        public final boolean provisioned;
+        public final SleepSchedule schedule;
+        public final String label;
+
+        Settings(boolean provisioned, SleepSchedule schedule, String label) {
+            this.provisioned = provisioned;
+            this.schedule = schedule;
+            this.label = label;
+        }
+    }
+
+    private Provisioning() {
+    }
+
+    // The label is cut to LABEL_MAX bytes, between characters
+    public static byte[] encode(SleepSchedule schedule, String label) {
+        byte[] text = fitLabel(label).getBytes(StandardCharsets.UTF_8);
+        byte[] value = new byte[WINDOWS_LENGTH + text.length];
+        for (int i = 0; i < 4; i++) {
+            putU32(value, 4 * i, schedule.getWindow(i / 2)[i % 2]);
+        }
+        System.arraycopy(text, 0, value, WINDOWS_LENGTH, text.length);
+        return value;
+    }
+
+    // null if the value is too short, e.g. read without encryption
+    public static Settings decode(byte[] value) {
+        if (value == null || value.length < 1 + WINDOWS_LENGTH) {
+            return null;
+        }
+        int[][] windows = new int[2][2];
+        for (int i = 0; i < 4; i++) {
+            windows[i / 2][i % 2] = (int) DiagnosticsRecord.u32(value, 1 + 4 * i);
+        }
+        String label = new String(Arrays.copyOfRange(value, 1 + WINDOWS_LENGTH, value.length), StandardCharsets.UTF_8);
+        return new Settings(value[0] != 0, new SleepSchedule(windows), label);
+    }
+
+    // From the manufacturer data of an advertisement (after the company ID): a switch that has not been provisioned.
+    // Firmware before 1.12.0 advertises no status. 1.12.0 does, but has no characteristic for the batch to write.
+    public static boolean isNew(byte[] manufacturerData) {
+        return manufacturerData != null && manufacturerData.length == 1 && (manufacturerData[0] & STATUS_PROVISIONED) == 0;
+    }
+
+    public static String fitLabel(String label) {
+        String fitted = label;
+        while (fitted.getBytes(StandardCharsets.UTF_8).length > LABEL_MAX) {
+            fitted = fitted.substring(0, fitted.offsetByCodePoints(fitted.length(), -1));
+        }
+        return fitted;
+    }
+
+    private static void putU32(byte[] buf, int pos, long value) {
+        for (int i = 0; i < 4; i++) {
+            buf[pos + i] = (byte) (value >> (8 * i));
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.example.remoteswitch.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+Provisions many new switches at once (see Provisioning). Every switch goes QUEUED -> BONDING -> WRITING -> DONE,
+or ends FAILED with a reason.
+- At most maxActive switches are bonding or writing at a time, at most maxBonding of them bonding: Android pairs
+  one device after the other, but the write sessions of the switches already bonded run next to it.
+- WRITING is one connection that gets the whole batch queued at once (time, servo profiles, provisioning). It is
+  over with the acknowledgement of the provisioning write, which the platform queues last.
+- A write session that fails or takes longer than WRITE_TIMEOUT_NANOS is started again, up to MAX_WRITE_ATTEMPTS.
+  Bonding is not retried: a switch that refuses to pair needs a look.
+Switches can be added while the scan still finds them, onFinished() comes after endOfUnits() once all are settled.
+The platform side is a Port, like CommandMultiplexer. Not thread-safe, use it from one thread.
+*/
+public class ProvisioningPipeline {
+    public static final int DEFAULT_MAX_ACTIVE = 3;
+    public static final int DEFAULT_MAX_BONDING = 1;
+    public static final long BOND_TIMEOUT_NANOS = 30_000_000_000L; // Just Works, no user in the loop
+    public static final long WRITE_TIMEOUT_NANOS = 20_000_000_000L; // connect, discover and a handful of writes
+    public static final int MAX_WRITE_ATTEMPTS = 2;
+
+    public enum Stage {QUEUED, BONDING, WRITING, DONE, FAILED}
+
+    public interface Port {
+        // Start pairing. false if it could not be started. A switch that is already bonded goes to onBonded() at once.
+        boolean bond(String address);
+
+        // Connect and queue the batch. false if it could not be started.
+        boolean write(String address);
+
+        // Drop whatever the switch's session still has open
+        void abort(String address);
+    }
+
+    public interface Listener {
+        void onProgress(Unit unit);
+
+        void onFinished(List<Unit> units);
+    }
+
+    // A switch as the listener sees it
+    public static final class Unit {
+        public final String address;
+        public final String label;
+        public final Stage stage;
+        public final int attempts; // write sessions started
+        public final String failure; // null unless FAILED
+
+        Unit(String address, String label, Stage stage, int attempts, String failure) {
+            this.address = address;
+            this.label = label;
+            this.stage = stage;
+            this.attempts = attempts;
+            this.failure = failure;
+        }
+    }
+
+    private static final class Entry {
+        final String label;
+        Stage stage = Stage.QUEUED;
+        int attempts = 0;
+        String failure;
+        long deadlineNanos;
+
+        Entry(String label) {
+            this.label = label;
+        }
+    }
+
+    private final Port port;
+    private final Listener listener;
+    private final int maxActive;
+    private final int maxBonding;
+    private final OperationQueue.NanoClock clock;
+    private final Map<String, Entry> entries = new LinkedHashMap<>(); // in the order they were found
+    private boolean complete = false; // no more units will be added
+    private boolean finished = false;
+
+    public ProvisioningPipeline(Port port, Listener listener) {
+        this(port, listener, DEFAULT_MAX_ACTIVE, DEFAULT_MAX_BONDING, System::nanoTime);
+    }
+
+    public ProvisioningPipeline(Port port, Listener listener, int maxActive, int maxBonding, OperationQueue.NanoClock clock) {
+        this.port = port;
+        this.listener = listener;
+        this.maxActive = maxActive;
+        this.maxBonding = maxBonding;
+        this.clock = clock;
+    }
+
+    // Inputs from the scan
+
+    // Returns false if the switch is already in the pipeline or the pipeline has finished
+    public boolean add(String address, String label) {
+        if (finished || entries.containsKey(address)) {
+            return false;
+        }
+        entries.put(address, new Entry(label));
+        report(address);
+        pump();
+        return true;
+    }
+
+    // The scan is over
+    public void endOfUnits() {
+        complete = true;
+        pump();
+    }
+
+    // Fail everything that is not done yet
+    public void cancel() {
+        complete = true;
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            if (entry.stage == Stage.BONDING || entry.stage == Stage.WRITING) {
+                port.abort(e.getKey());
+            }
+            if (entry.stage != Stage.DONE && entry.stage != Stage.FAILED) {
+                entry.stage = Stage.FAILED;
+                entry.failure = "cancelled";
+                report(e.getKey());
+            }
+        }
+        pump();
+    }
+
+    // Inputs from the platform
+
+    public void onBonded(String address, boolean bonded) {
+        Entry entry = entries.get(address);
+        if (entry == null || entry.stage != Stage.BONDING) {
+            return;
+        }
+        if (!bonded) {
+            fail(address, entry, "not bonded");
+        } else {
+            startWrite(address, entry);
+        }
+        pump();
+    }
+
+    // The provisioning write, the last of the batch, was acknowledged
+    public void onWritten(String address) {
+        Entry entry = entries.get(address);
+        if (entry == null || entry.stage != Stage.WRITING) {
+            return;
+        }
+        entry.stage = Stage.DONE;
+        report(address);
+        pump();
+    }
+
+    // The write session failed: no connection, a write refused, the link went down before the batch was through
+    public void onWriteFailed(String address, String reason) {
+        Entry entry = entries.get(address);
+        if (entry == null || entry.stage != Stage.WRITING) {
+            return;
+        }
+        retryOrFail(address, entry, reason);
+        pump();
+    }
+
+    // Call about once a second until the pipeline has finished: times out bonds and write sessions
+    public void tick() {
+        long now = clock.nanoTime();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            if (entry.stage == Stage.BONDING && now - entry.deadlineNanos > 0) {
+                port.abort(e.getKey());
+                fail(e.getKey(), entry, "bonding timed out");
+            } else if (entry.stage == Stage.WRITING && now - entry.deadlineNanos > 0) {
+                retryOrFail(e.getKey(), entry, "timed out");
+            }
+        }
+        pump();
+    }
+
+    // State
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public List<Unit> getUnits() {
+        List<Unit> units = new ArrayList<>(entries.size());
+        for (String address : entries.keySet()) {
+            units.add(unit(address));
+        }
+        return Collections.unmodifiableList(units);
+    }
+
+    public int count(Stage stage) {
+        int count = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.stage == stage) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Start queued switches while there is room, then see whether everything is settled
+    private void pump() {
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            if (entry.stage != Stage.QUEUED) {
+                continue;
+            }
+            if (count(Stage.BONDING) + count(Stage.WRITING) >= maxActive || count(Stage.BONDING) >= maxBonding) {
+                break;
+            }
+            entry.stage = Stage.BONDING;
+            entry.deadlineNanos = clock.nanoTime() + BOND_TIMEOUT_NANOS;
+            report(e.getKey());
+            if (!port.bond(e.getKey())) {
+                fail(e.getKey(), entry, "bonding not started");
+            }
+        }
+        if (complete && !finished && count(Stage.DONE) + count(Stage.FAILED) == entries.size()) {
+            finished = true;
+            listener.onFinished(getUnits());
+        }
+    }
+
+    private void startWrite(String address, Entry entry) {
+        entry.stage = Stage.WRITING;
+        entry.attempts++;
+        entry.deadlineNanos = clock.nanoTime() + WRITE_TIMEOUT_NANOS;
+        report(address);
+        if (!port.write(address)) {
+            retryOrFail(address, entry, "session not started");
+        }
+    }
+
+    private void retryOrFail(String address, Entry entry, String reason) {
+        port.abort(address);
+        if (entry.attempts < MAX_WRITE_ATTEMPTS) {
+            startWrite(address, entry);
+        } else {
+            fail(address, entry, reason);
+        }
+    }
+
+    private void fail(String address, Entry entry, String reason) {
+        entry.stage = Stage.FAILED;
+        entry.failure = reason;
+        report(address);
+    }
+
+    private void report(String address) {
+        listener.onProgress(unit(address));
+    }
+
+    private Unit unit(String address) {
+        Entry entry = entries.get(address);
+        return new Unit(address, entry.label, entry.stage, entry.attempts, entry.failure);
+    }
+}
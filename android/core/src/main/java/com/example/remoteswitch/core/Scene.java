@@ -0,0 +1,37 @@
+package com.example.remoteswitch.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+// A named set of switches and the command each one gets. All of them fire at the same time of day,
+// see SceneTiming for how that time is chosen and how well it was met.
+public class Scene {
+    public static final class Target {
+        public final String address;
+        public final Command command;
+
+        public Target(String address, Command command) {
+            this.address = address;
+            this.command = command;
+        }
+    }
+
+    public final String name;
+    public final List<Target> targets;
+
+    public Scene(String name, List<Target> targets) {
+        this.name = name;
+        this.targets = Collections.unmodifiableList(new ArrayList<>(targets));
+    }
+
+    // The same command on every switch, like "all off"
+    public static Scene all(String name, Collection<String> addresses, Command command) {
+        List<Target> targets = new ArrayList<>(addresses.size());
+        for (String address : addresses) {
+            targets.add(new Target(address, command));
+        }
+        return new Scene(name, targets);
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.remoteswitch.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+When a scene fires and how close together the switches actually were.
+Each switch's clock is set from a time the phone sends right before the scene, so it lags the phone by the
+one-way delay of that write: somewhere between 0 and the write's round trip. Half the round trip is taken
+as the estimate and the other half is the uncertainty of the measured skew.
+*/
+public final class SceneTiming {
+    public static final int MIN_LEAD_MILLIS = 300;
+    public static final int LEAD_MARGIN_MILLIS = 100;
+    public static final int MAX_LEAD_MILLIS = 5000; // the firmware's SCENE_MAX_LEAD, later times are refused
+
+    private SceneTiming() {
+    }
+
+    // How far ahead to schedule: the command write takes about as long as the time write did. Never past
+    // MAX_LEAD_MILLIS less a margin for the switch's clock lagging the phone's.
+    public static int leadMillis(long maxSyncRoundTripMillis) {
+        long lead = Math.max(MIN_LEAD_MILLIS, 2 * maxSyncRoundTripMillis + LEAD_MARGIN_MILLIS);
+        return (int) Math.min(lead, MAX_LEAD_MILLIS - LEAD_MARGIN_MILLIS);
+    }
+
+    // A switch whose link is this slow cannot get its command in time for any lead the firmware accepts
+    public static boolean fitsLead(long syncRoundTripMillis) {
+        return 2 * syncRoundTripMillis + LEAD_MARGIN_MILLIS <= MAX_LEAD_MILLIS - LEAD_MARGIN_MILLIS;
+    }
+
+    public static final class Sample {
+        public final String address;
+        public final long syncRoundTripMillis;
+        public final long requestedMillis; // ms of day
+        public final long firedMillis; // ms of day on the switch's clock, as reported in its diagnostics
+        public final int result; // DiagnosticsRecord.SCENE_*
+
+        public Sample(String address, long syncRoundTripMillis, long requestedMillis, long firedMillis, int result) {
+            this.address = address;
+            this.syncRoundTripMillis = syncRoundTripMillis;
+            this.requestedMillis = requestedMillis;
+            this.firedMillis = firedMillis;
+            this.result = result;
+        }
+
+        public boolean fired() {
+            return result == DiagnosticsRecord.SCENE_ON_TIME || result == DiagnosticsRecord.SCENE_LATE;
+        }
+
+        // When it fired on the phone's clock, relative to the requested time
+        public long estimatedOffsetMillis() {
+            return signedDelta(firedMillis, requestedMillis) + syncRoundTripMillis / 2;
+        }
+    }
+
+    public static final class Result {
+        public final int targets;
+        public final int fired;
+        public final long skewMillis; // between the first and the last switch, -1 if fewer than two fired
+        public final long uncertaintyMillis; // +- on the skew
+        public final long maxLateMillis; // the latest switch, after the requested time
+        public final List<String> missed; // addresses that did not fire
+
+        private Result(int targets, int fired, long skewMillis, long uncertaintyMillis, long maxLateMillis, List<String> missed) {
+            this.targets = targets;
+            this.fired = fired;
+            this.skewMillis = skewMillis;
+            this.uncertaintyMillis = uncertaintyMillis;
+            this.maxLateMillis = maxLateMillis;
+            this.missed = Collections.unmodifiableList(missed);
+        }
+    }
+
+    // targets: switches in the scene, samples: the ones that answered
+    public static Result measure(List<String> targets, List<Sample> samples) {
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        long maxRoundTrip = 0;
+        int fired = 0;
+        List<String> missed = new ArrayList<>(targets);
+        for (Sample sample : samples) {
+            if (!sample.fired()) {
+                continue;
+            }
+            missed.remove(sample.address);
+            long offset = sample.estimatedOffsetMillis();
+            first = Math.min(first, offset);
+            last = Math.max(last, offset);
+            maxRoundTrip = Math.max(maxRoundTrip, sample.syncRoundTripMillis);
+            fired++;
+        }
+        return new Result(targets.size(), fired, fired >= 2 ? last - first : -1, maxRoundTrip / 2,
+                fired > 0 ? Math.max(0, last) : 0, missed);
+    }
+
+    // a - b in ms, across midnight
+    static long signedDelta(long a, long b) {
+        long delta = Math.floorMod(a - b, (long) TimeCodec.MILLIS_PER_DAY);
+        return delta > TimeCodec.MILLIS_PER_DAY / 2 ? delta - TimeCodec.MILLIS_PER_DAY : delta;
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.remoteswitch.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Motion profile of one servo, as stored in the firmware's NVS.
+public class ServoProfile {
+    public static final int SERVO_OFF = 0; // lower servo
+    public static final int SERVO_ON = 1;  // upper servo
+
+    public static final int SOURCE_DEFAULT = 0;
+    public static final int SOURCE_USER = 1;
+    public static final int SOURCE_CALIBRATED = 2;
+    public static final int SOURCE_CALIBRATION_FAILED = 3;
+    public static final int SOURCE_CALIBRATING = 4;
+
+    // Write opcodes of the servo profile characteristic
+    public static final byte OP_SET = 0x01;
+    public static final byte OP_CALIBRATE = 0x02;
+    public static final byte OP_RESET = 0x03;
+    public static final byte OP_RESET_WEAR = 0x04; // the servo was replaced, see ServoWear
+
+    private static final int ENTRY_LENGTH = 8;
+
+    public final int servo;
+    public int targetAngle;
+    public int returnAngle;
+    public int rampSpeed; // deg/s, 0 = jump straight to the angle
+    public int holdTimeMs;
+    public int source = SOURCE_USER;
+
+    public ServoProfile(int servo, int targetAngle, int returnAngle, int rampSpeed, int holdTimeMs) {
+        this.servo = servo;
+        this.targetAngle = targetAngle;
+        this.returnAngle = returnAngle;
+        this.rampSpeed = rampSpeed;
+        this.holdTimeMs = holdTimeMs;
+    }
+
+    public byte[] encodeSet() {
+        return new byte[]{
+                OP_SET, (byte) servo, (byte) targetAngle, (byte) returnAngle,
+                (byte) rampSpeed, (byte) (rampSpeed >> 8),
+                (byte) holdTimeMs, (byte) (holdTimeMs >> 8)
+        };
+    }
+
+    public static List<ServoProfile> decodeAll(byte[] value) {
+        List<ServoProfile> profiles = new ArrayList<>();
+        for (int pos = 0; value != null && pos + ENTRY_LENGTH <= value.length; pos += ENTRY_LENGTH) {
+            ServoProfile profile = new ServoProfile(value[pos] & 0xFF, value[pos + 1] & 0xFF, value[pos + 2] & 0xFF,
+                    DiagnosticsRecord.u16(value, pos + 3), DiagnosticsRecord.u16(value, pos + 5));
+            profile.source = value[pos + 7] & 0xFF;
+            profiles.add(profile);
+        }
+        return profiles;
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.remoteswitch.core;
+
+/*
+Wear counters of one servo (firmware 1.14.0), from the diagnostics entry TAG_WEAR. The switch keeps them in NVS
+until the servo is reported replaced (ServoProfile.OP_RESET_WEAR).
+level() compares them with what a small hobby servo lasts flipping a wall switch:
+- RATED_ACTUATIONS flips, or RATED_ACTIVE_SECONDS powered: long holds and slow ramps wear the gears as well.
+- failed (stalled at the target) and retried toggles: TROUBLE_MIN of them and more than TROUBLE_RATIO of the
+  actuations mean the horn slips or the servo loses torque, whatever the counts say.
+NEAR from NEAR_FRACTION of a rating on, so the servo is replaced before the switch stops answering.
+*/
+public final class ServoWear {
+    public static final int LENGTH = 12; // encoded size of one servo
+    public static final long RATED_ACTUATIONS = 50_000;
+    public static final long RATED_ACTIVE_SECONDS = 100_000; // the default profile takes 1.2s per actuation
+    public static final double NEAR_FRACTION = 0.8;
+    public static final int TROUBLE_MIN = 5;
+    public static final double TROUBLE_RATIO = 0.02;
+
+    public enum Level {OK, NEAR, WORN}
+
+    public final long actuations;
+    public final long activeMs;
+    public final int failed;
+    public final int retried;
+
+    public ServoWear(long actuations, long activeMs, int failed, int retried) {
+        this.actuations = actuations;
+        this.activeMs = activeMs;
+        this.failed = failed;
+        this.retried = retried;
+    }
+
+    // Both servos, ServoProfile.SERVO_OFF first. null if the entry is too short.
+    public static ServoWear[] parse(byte[] value, int start, int length) {
+        if (length < 2 * LENGTH) {
+            return null;
+        }
+        ServoWear[] wear = new ServoWear[2];
+        for (int servo = 0; servo < 2; servo++) {
+            int pos = start + servo * LENGTH;
+            wear[servo] = new ServoWear(DiagnosticsRecord.u32(value, pos), DiagnosticsRecord.u32(value, pos + 4),
+                    DiagnosticsRecord.u16(value, pos + 8), DiagnosticsRecord.u16(value, pos + 10));
+        }
+        return wear;
+    }
+
+    // Of the closer rating, 1.0 = reached
+    public double usedFraction() {
+        return Math.max((double) actuations / RATED_ACTUATIONS, activeMs / 1000.0 / RATED_ACTIVE_SECONDS);
+    }
+
+    public boolean isTroubled() {
+        int trouble = failed + retried;
+        return trouble >= TROUBLE_MIN && trouble > TROUBLE_RATIO * actuations;
+    }
+
+    public Level level() {
+        double used = usedFraction();
+        if (used >= 1.0) {
+            return Level.WORN;
+        }
+        return used >= NEAR_FRACTION || isTroubled() ? Level.NEAR : Level.OK;
+    }
+
+    // Of the servo in the worse state, OK for null
+    public static Level worst(ServoWear[] wear) {
+        Level worst = Level.OK;
+        if (wear != null) {
+            for (ServoWear servo : wear) {
+                if (servo.level().compareTo(worst) > 0) {
+                    worst = servo.level();
+                }
+            }
+        }
+        return worst;
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.remoteswitch.core;
+
+// The firmware's deep sleep windows, so the app can tell when the switch is unreachable.
+public class SleepSchedule {
+    // SLEEP_WINDOW_* in the sketch: 10am - 10pm and 2am - 7am, until provisioning writes others (firmware 1.13.0)
+    public static final SleepSchedule FIRMWARE_DEFAULT = new SleepSchedule(new int[][]{
+            {10 * 3600, 22 * 3600},
+            {2 * 3600, 7 * 3600}
+    });
+
+    private final int[][] windows; // {start, end} in seconds of day, both inclusive like the sketch. May reach over midnight.
+
+    public SleepSchedule(int[][] windows) {
+        this.windows = windows;
+    }
+
+    public boolean isAsleep(int secondOfDay) {
+        return secondsUntilAwake(secondOfDay) > 0;
+    }
+
+    // 0 if the device is awake at that time. The firmware may stay awake longer after a recent command.
+    public int secondsUntilAwake(int secondOfDay) {
+        int s = Math.floorMod(secondOfDay, TimeCodec.SECONDS_PER_DAY);
+        for (int[] window : windows) {
+            int length = Math.floorMod(window[1] - window[0], TimeCodec.SECONDS_PER_DAY);
+            int into = Math.floorMod(s - window[0], TimeCodec.SECONDS_PER_DAY);
+            if (into <= length) {
+                return length - into;
+            }
+        }
+        return 0;
+    }
+
+    // {start, end} of window 0 (day) and 1 (night)
+    public int[] getWindow(int index) {
+        return windows[index].clone();
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.remoteswitch.core;
+
+/*
+Hands the newest of a fast-changing state to a slower consumer, like the UI thread.
+publish() only keeps the latest snapshot and returns true when the consumer has to be scheduled,
+that is when no delivery is pending yet. The consumer take()s whatever is newest when it runs,
+so a burst of changes costs one delivery. Thread-safe, the snapshots should be immutable.
+*/
+public class SnapshotCoalescer<T> {
+    private T latest;
+    private boolean pending = false;
+    private long published = 0;
+    private long delivered = 0;
+
+    public synchronized boolean publish(T snapshot) {
+        latest = snapshot;
+        published++;
+        if (pending) {
+            return false;
+        }
+        pending = true;
+        return true;
+    }
+
+    // The newest snapshot, null before the first publish()
+    public synchronized T take() {
+        if (pending) {
+            pending = false;
+            delivered++;
+        }
+        return latest;
+    }
+
+    public synchronized long getPublished() {
+        return published;
+    }
+
+    public synchronized long getDelivered() {
+        return delivered;
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.remoteswitch.core;
+
+// The phone time characteristic takes the local time as ASCII "HH:MM:SS", or "HH:MM:SS.mmm" for scenes.
+// Firmware before 1.5.0 reads the first 8 characters and ignores the milliseconds.
+public final class TimeCodec {
+    public static final int LENGTH = 8;
+    public static final int MILLIS_LENGTH = 12;
+    public static final int SECONDS_PER_DAY = 86400;
+    public static final int MILLIS_PER_DAY = SECONDS_PER_DAY * 1000;
+
+    private TimeCodec() {
+    }
+
+    public static byte[] encode(int secondOfDay) {
+        byte[] out = new byte[LENGTH];
+        encode(secondOfDay, out, 0);
+        return out;
+    }
+
+    // Writes into an existing buffer, so a caller that reuses it does not allocate.
+    public static void encode(int secondOfDay, byte[] out, int offset) {
+        int s = Math.floorMod(secondOfDay, SECONDS_PER_DAY);
+        int hour = s / 3600;
+        int minute = s / 60 % 60;
+        int second = s % 60;
+        out[offset] = (byte) ('0' + hour / 10);
+        out[offset + 1] = (byte) ('0' + hour % 10);
+        out[offset + 2] = ':';
+        out[offset + 3] = (byte) ('0' + minute / 10);
+        out[offset + 4] = (byte) ('0' + minute % 10);
+        out[offset + 5] = ':';
+        out[offset + 6] = (byte) ('0' + second / 10);
+        out[offset + 7] = (byte) ('0' + second % 10);
+    }
+
+    public static byte[] encodeMillis(int millisOfDay) {
+        int ms = Math.floorMod(millisOfDay, MILLIS_PER_DAY);
+        byte[] out = new byte[MILLIS_LENGTH];
+        encode(ms / 1000, out, 0);
+        out[8] = '.';
+        out[9] = (byte) ('0' + ms % 1000 / 100);
+        out[10] = (byte) ('0' + ms % 100 / 10);
+        out[11] = (byte) ('0' + ms % 10);
+        return out;
+    }
+
+    // Mirrors parseTime() in the sketch. Returns -1 if the value is not "HH:MM:SS".
+    public static int decode(byte[] value) {
+        if (value == null || value.length < LENGTH || value[2] != ':' || value[5] != ':') {
+            return -1;
+        }
+        int hour = digits(value, 0);
+        int minute = digits(value, 3);
+        int second = digits(value, 6);
+        if (hour < 0 || minute < 0 || second < 0) {
+            return -1;
+        }
+        return hour * 3600 + minute * 60 + second;
+    }
+
+    private static int digits(byte[] value, int pos) {
+        int high = value[pos] - '0';
+        int low = value[pos + 1] - '0';
+        if (high < 0 || high > 9 || low < 0 || low > 9) {
+            return -1;
+        }
+        return high * 10 + low;
+    }
+}
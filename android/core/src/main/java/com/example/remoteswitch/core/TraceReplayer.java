@@ -0,0 +1,164 @@
+package com.example.remoteswitch.core;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/*
+Feeds a recorded GattTrace into a fresh GattSession. The app's calls and the GATT callbacks are
+delivered in the recorded order, and every outgoing call the session makes must be the next call in
+the trace; it gets the recorded result back. The session's clock follows the trace, so its latency
+and queue stats come out as they were on the phone, whatever the replay speed.
+*/
+public class TraceReplayer {
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    public static final class Result {
+        public final String divergence; // null if the session made exactly the recorded calls
+        public final int replayed; // records consumed
+        public final long tracedNanos;
+        public final long elapsedNanos; // how long the replay itself took
+        public final ConnectionStateMachine.State finalState;
+        public final long connectLatencyNanos;
+        public final long averageQueueNanos;
+        public final long maxQueueNanos;
+
+        private Result(String divergence, int replayed, long tracedNanos, long elapsedNanos, GattSession session) {
+            this.divergence = divergence;
+            this.replayed = replayed;
+            this.tracedNanos = tracedNanos;
+            this.elapsedNanos = elapsedNanos;
+            this.finalState = session.getState();
+            this.connectLatencyNanos = session.getConnectLatencyNanos();
+            this.averageQueueNanos = session.getAverageQueueNanos();
+            this.maxQueueNanos = session.getMaxQueueNanos();
+        }
+
+        public boolean matched() {
+            return divergence == null;
+        }
+    }
+
+    private static final class Divergence extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Divergence(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private final GattTrace trace;
+    private final List<GattTrace.Record> records;
+    private int cursor;
+    private long now;
+
+    public TraceReplayer(GattTrace trace) {
+        this.trace = trace;
+        this.records = trace.records;
+    }
+
+    // speed: 1 replays with the recorded timing, 10 ten times faster, AS_FAST_AS_POSSIBLE without waiting.
+    public synchronized Result replay(GattSession.Listener listener, double speed) throws InterruptedException {
+        cursor = 0;
+        now = trace.startNanos;
+        GattSession session = new GattSession(new ReplayPort(), listener, () -> now);
+        long start = System.nanoTime();
+        String divergence = null;
+        try {
+            while (cursor < records.size()) {
+                GattTrace.Record record = records.get(cursor);
+                if (record.kind.isCall()) {
+                    throw divergence("the session did not make the recorded call " + record);
+                }
+                if (speed > 0) {
+                    long due = start + (long) ((record.nanos - trace.startNanos) / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+                now = record.nanos;
+                cursor++;
+                deliver(session, record);
+            }
+        } catch (Divergence e) {
+            divergence = e.getMessage();
+        }
+        return new Result(divergence, cursor, trace.getDurationNanos(), System.nanoTime() - start, session);
+    }
+
+    private void deliver(GattSession session, GattTrace.Record record) {
+        switch (record.kind) {
+            case CONNECT:
+                session.connect();
+                break;
+            case DISCONNECT:
+                session.disconnect();
+                break;
+            case SUBMIT:
+                session.submit(record.toOperation());
+                break;
+            case ON_CONNECTION_STATE:
+                session.onConnectionStateChange(record.status, record.connected);
+                break;
+            case ON_SERVICES_DISCOVERED:
+                session.onServicesDiscovered(record.status, record.layout);
+                break;
+            case ON_WRITE:
+                session.onCharacteristicWrite(record.characteristic, record.status);
+                break;
+            case ON_READ:
+                session.onCharacteristicRead(record.characteristic, record.status, record.value);
+                break;
+            default:
+                throw divergence("cannot deliver " + record);
+        }
+    }
+
+    // Match an outgoing call against the trace and hand back the recorded result
+    private boolean expect(GattTrace.Record actual) {
+        GattTrace.Record recorded = cursor < records.size() ? records.get(cursor) : null;
+        if (recorded == null || !recorded.sameCall(actual)) {
+            throw divergence("the session called " + actual + " but the trace has " + (recorded == null ? "nothing" : recorded));
+        }
+        now = recorded.nanos;
+        cursor++;
+        return recorded.isStarted();
+    }
+
+    private Divergence divergence(String message) {
+        return new Divergence(String.format("Record %d at %.3fms: %s", cursor, (now - trace.startNanos) / 1e6, message));
+    }
+
+    private class ReplayPort implements GattSession.Port {
+        @Override
+        public boolean connect() {
+            return expect(GattTrace.Record.call(GattTrace.Kind.CALL_CONNECT, now, null, null, true));
+        }
+
+        @Override
+        public boolean discoverServices() {
+            return expect(GattTrace.Record.call(GattTrace.Kind.CALL_DISCOVER, now, null, null, true));
+        }
+
+        @Override
+        public boolean read(UUID characteristic) {
+            return expect(GattTrace.Record.call(GattTrace.Kind.CALL_READ, now, characteristic, null, true));
+        }
+
+        @Override
+        public boolean write(UUID characteristic, byte[] value) {
+            return expect(GattTrace.Record.call(GattTrace.Kind.CALL_WRITE, now, characteristic, value, true));
+        }
+
+        @Override
+        public void disconnect() {
+            expect(GattTrace.Record.call(GattTrace.Kind.CALL_DISCONNECT, now, null, null, true));
+        }
+
+        @Override
+        public void close() {
+            expect(GattTrace.Record.call(GattTrace.Kind.CALL_CLOSE, now, null, null, true));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.remoteswitch.core;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+// Every trace in src/test/resources/traces must replay exactly. To turn a field bug into a
+// regression test, pull the session's trace from the phone (see GattTraceStore) and add it there.
+public class FieldTraceTest {
+    private static final String TRACE_DIRECTORY = "/traces";
+
+    // Counts listener calls without reacting to them; the trace already holds what the app did.
+    private static class Counter implements GattSession.Listener {
+        int ready, disconnected, timeSynced, commandsSent;
+
+        @Override
+        public void onReady() {
+            ready++;
+        }
+
+        @Override
+        public void onDisconnected() {
+            disconnected++;
+        }
+
+        @Override
+        public void onTimeSynced() {
+            timeSynced++;
+        }
+
+        @Override
+        public void onServoCommandSent(String command) {
+            commandsSent++;
+        }
+
+        @Override
+        public void onDiagnosticsRead(byte[] value) {
+        }
+
+        @Override
+        public void onServoProfilesRead(List<ServoProfile> profiles) {
+        }
+    }
+
+    private static GattTrace load(File file) throws Exception {
+        try (InputStream in = new FileInputStream(file)) {
+            return GattTrace.read(in);
+        }
+    }
+
+    private static File[] traces() throws Exception {
+        File directory = new File(FieldTraceTest.class.getResource(TRACE_DIRECTORY).toURI());
+        File[] traces = directory.listFiles((dir, name) -> name.endsWith(".trace"));
+        assertNotNull(traces);
+        return traces;
+    }
+
+    @Test
+    public void fieldTraces_replayWithoutDivergence() throws Exception {
+        List<String> failures = new ArrayList<>();
+        for (File file : traces()) {
+            TraceReplayer.Result result = new TraceReplayer(load(file)).replay(new Counter(), TraceReplayer.AS_FAST_AS_POSSIBLE);
+            if (!result.matched()) {
+                failures.add(file.getName() + ": " + result.divergence);
+            }
+        }
+        assertTrue(String.join("\n", failures), failures.isEmpty());
+    }
+
+    // The link dropped with the time write in flight and a command waiting behind it.
+    @Test
+    public void linkLostDuringTimeSync_dropsPendingOperations() throws Exception {
+        File file = new File(FieldTraceTest.class.getResource(TRACE_DIRECTORY + "/link-lost-during-time-sync.trace").toURI());
+        Counter counter = new Counter();
+        TraceReplayer.Result result = new TraceReplayer(load(file)).replay(counter, TraceReplayer.AS_FAST_AS_POSSIBLE);
+
+        assertTrue(result.divergence, result.matched());
+        assertEquals(1, counter.ready);
+        assertEquals(0, counter.timeSynced);
+        assertEquals(0, counter.commandsSent);
+        assertEquals(1, counter.disconnected);
+        assertEquals(ConnectionStateMachine.State.DISCONNECTED, result.finalState);
+        assertEquals(1396650000L, result.connectLatencyNanos);
+    }
+}
@@ -0,0 +1,209 @@
+package com.example.remoteswitch.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class GattTraceTest {
+    private static final List<UUID[]> LAYOUT = Arrays.asList(
+            new UUID[]{GattUuids.SERVICE_TIMESYNC, GattUuids.CHARACTERISTIC_PHONETIME},
+            new UUID[]{GattUuids.SERVICE_SERVOCONTROL, GattUuids.CHARACTERISTIC_SERVOSIGNAL},
+            new UUID[]{GattUuids.SERVICE_CONFIG, GattUuids.CHARACTERISTIC_DIAGNOSTICS},
+            new UUID[]{UUID.fromString("12345678-1234-5678-1234-567812345678"), GattUuids.CHARACTERISTIC_SERVOPROFILE});
+    private static final byte[] DIAGNOSTICS = {1, 5, '1', '.', '3', '.', '0'};
+
+    // Collects listener calls, as MainActivity would react to them
+    private static class EventLog implements GattSession.Listener {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onReady() {
+            events.add("ready");
+        }
+
+        @Override
+        public void onDisconnected() {
+            events.add("disconnected");
+        }
+
+        @Override
+        public void onTimeSynced() {
+            events.add("time");
+        }
+
+        @Override
+        public void onServoCommandSent(String command) {
+            events.add("sent " + command);
+        }
+
+        @Override
+        public void onDiagnosticsRead(byte[] value) {
+            events.add("diagnostics " + value.length);
+        }
+
+        @Override
+        public void onServoProfilesRead(List<ServoProfile> profiles) {
+            events.add("profiles " + profiles.size());
+        }
+    }
+
+    // Starts every call it is asked for
+    private static class AcceptingPort implements GattSession.Port {
+        @Override
+        public boolean connect() {
+            return true;
+        }
+
+        @Override
+        public boolean discoverServices() {
+            return true;
+        }
+
+        @Override
+        public boolean read(UUID characteristic) {
+            return true;
+        }
+
+        @Override
+        public boolean write(UUID characteristic, byte[] value) {
+            return true;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private long clock = 1_000_000_000L;
+    private final EventLog recordedEvents = new EventLog();
+
+    // Connect, sync the time, read diagnostics, two commands of which the second waits, then the link drops.
+    private byte[] recordSession() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GattSession session = new GattSession(new AcceptingPort(), recordedEvents, () -> clock);
+        session.setRecorder(new GattTrace.Writer(bytes, 1700000000000L, clock, 64 * 1024));
+
+        session.connect();
+        clock += 180_000_000L;
+        session.onConnectionStateChange(GattSession.GATT_SUCCESS, true);
+        clock += 420_000_000L;
+        session.onServicesDiscovered(GattSession.GATT_SUCCESS, LAYOUT);
+        clock += 2_000_000L;
+        session.writeTime(22 * 3600);
+        session.readDiagnostics();
+        clock += 45_000_000L;
+        session.onCharacteristicWrite(GattUuids.CHARACTERISTIC_PHONETIME, GattSession.GATT_SUCCESS);
+        clock += 30_000_000L;
+        session.onCharacteristicRead(GattUuids.CHARACTERISTIC_DIAGNOSTICS, GattSession.GATT_SUCCESS, DIAGNOSTICS);
+        clock += 1_500_000_000L;
+        session.sendServoCommand(Command.ON);
+        clock += 10_000_000L;
+        session.sendServoCommand(Command.OFF);
+        clock += 1_250_000_000L;
+        session.onCharacteristicWrite(GattUuids.CHARACTERISTIC_SERVOSIGNAL, GattSession.GATT_SUCCESS);
+        clock += 1_240_000_000L;
+        session.onCharacteristicWrite(GattUuids.CHARACTERISTIC_SERVOSIGNAL, GattSession.GATT_SUCCESS);
+        clock += 60_000_000_000L;
+        session.onConnectionStateChange(19, false);
+        session.getRecorder().close();
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void trace_roundTrip() throws IOException {
+        byte[] bytes = recordSession();
+        GattTrace trace = GattTrace.read(new ByteArrayInputStream(bytes));
+
+        assertEquals(1700000000000L, trace.startWallMillis);
+        assertEquals(19, trace.records.size());
+        assertTrue("compact: " + bytes.length + " bytes", bytes.length < 256);
+
+        GattTrace.Record discovered = trace.records.get(4);
+        assertEquals(GattTrace.Kind.ON_SERVICES_DISCOVERED, discovered.kind);
+        assertEquals(LAYOUT.size(), discovered.layout.size());
+        assertArrayEquals(LAYOUT.get(3), discovered.layout.get(3));
+        GattTrace.Record read = trace.records.get(10);
+        assertEquals(GattTrace.Kind.ON_READ, read.kind);
+        assertArrayEquals(DIAGNOSTICS, read.value);
+        GattTrace.Record last = trace.records.get(trace.records.size() - 2);
+        assertFalse(last.connected);
+        assertEquals(19, last.status);
+        assertEquals(64_677_000_000L, trace.getDurationNanos());
+    }
+
+    @Test
+    public void trace_readsUpToACutOffRecord() throws IOException {
+        byte[] bytes = recordSession();
+        GattTrace trace = GattTrace.read(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 3)));
+        assertTrue(trace.records.size() < 19);
+        assertTrue(trace.records.size() > 10);
+    }
+
+    @Test
+    public void writer_stopsAtMaxBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GattTrace.Writer writer = new GattTrace.Writer(bytes, 0, 0, 40);
+        for (int i = 0; i < 10; i++) {
+            writer.append(GattTrace.Record.characteristicWrite(i, GattUuids.CHARACTERISTIC_SERVOSIGNAL, 0));
+        }
+        assertTrue(writer.isTruncated());
+        assertTrue(bytes.size() <= 40);
+        assertEquals(bytes.size(), writer.getSize());
+    }
+
+    @Test
+    public void replay_reproducesRecordedSession() throws Exception {
+        GattTrace trace = GattTrace.read(new ByteArrayInputStream(recordSession()));
+        EventLog replayedEvents = new EventLog();
+        TraceReplayer.Result result = new TraceReplayer(trace).replay(replayedEvents, TraceReplayer.AS_FAST_AS_POSSIBLE);
+
+        assertNull(result.divergence, result.divergence);
+        assertEquals(trace.records.size(), result.replayed);
+        assertEquals(recordedEvents.events, replayedEvents.events);
+        assertEquals(Arrays.asList("ready", "time", "diagnostics 7", "sent on", "sent off", "disconnected"), replayedEvents.events);
+        assertEquals(ConnectionStateMachine.State.DISCONNECTED, result.finalState);
+        // Recorded timing, not the replay's
+        assertEquals(600_000_000L, result.connectLatencyNanos);
+        assertEquals(1_250_000_000L, result.maxQueueNanos);
+        assertTrue(result.elapsedNanos < result.tracedNanos / 100);
+    }
+
+    @Test
+    public void replay_atAcceleratedSpeedKeepsProportions() throws Exception {
+        GattTrace trace = GattTrace.read(new ByteArrayInputStream(recordSession()));
+        TraceReplayer.Result result = new TraceReplayer(trace).replay(new EventLog(), 1000);
+
+        assertTrue(result.matched());
+        assertTrue(result.elapsedNanos >= trace.getDurationNanos() / 1000);
+    }
+
+    @Test
+    public void replay_reportsDivergence() throws Exception {
+        GattTrace recorded = GattTrace.read(new ByteArrayInputStream(recordSession()));
+        // Pretend the phone never started the diagnostics read
+        List<GattTrace.Record> records = new ArrayList<>(recorded.records);
+        for (int i = 0; i < records.size(); i++) {
+            if (records.get(i).kind == GattTrace.Kind.CALL_READ) {
+                records.remove(i);
+                break;
+            }
+        }
+        GattTrace trace = new GattTrace(recorded.startWallMillis, recorded.startNanos, records);
+        TraceReplayer.Result result = new TraceReplayer(trace).replay(new EventLog(), TraceReplayer.AS_FAST_AS_POSSIBLE);
+
+        assertFalse(result.matched());
+        assertTrue(result.divergence, result.divergence.contains("CALL_READ ffe1"));
+    }
+}
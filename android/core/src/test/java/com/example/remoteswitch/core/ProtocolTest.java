@@ -0,0 +1,492 @@
+package com.example.remoteswitch.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class ProtocolTest {
+    @Test
+    public void shortUuid_matchesBaseUuid() {
+        assertEquals(UUID.fromString("00002A56-0000-1000-8000-00805F9B34FB"), GattUuids.fromShort16(0x2A56));
+        assertEquals(UUID.fromString("0000FFE0-0000-1000-8000-00805F9B34FB"), GattUuids.fromShort16(0xFFE0));
+    }
+
+    @Test
+    public void command_roundTrip() {
+        assertArrayEquals(new byte[]{'1'}, Command.ON.encode());
+        assertEquals(Command.OFF, Command.decode(Command.OFF.encode()));
+        assertEquals(Command.ON, Command.fromName("on"));
+        assertNull(Command.decode(new byte[]{'2'}));
+    }
+
+    @Test
+    public void time_roundTrip() {
+        int secondOfDay = 7 * 3600 + 5 * 60 + 9;
+        assertEquals("07:05:09", new String(TimeCodec.encode(secondOfDay)));
+        assertEquals(secondOfDay, TimeCodec.decode(TimeCodec.encode(secondOfDay)));
+        assertEquals(-1, TimeCodec.decode("7:05:09".getBytes()));
+    }
+
+    @Test
+    public void queue_runsOneOperationAtATime() {
+        OperationQueue queue = new OperationQueue();
+        queue.submit(GattOperation.write(GattUuids.CHARACTERISTIC_PHONETIME, TimeCodec.encode(0)));
+        queue.submit(GattOperation.read(GattUuids.CHARACTERISTIC_DIAGNOSTICS));
+
+        GattOperation first = queue.next();
+        assertEquals(GattUuids.CHARACTERISTIC_PHONETIME, first.characteristic);
+        assertNull(queue.next());
+        assertSame(first, queue.complete());
+        assertEquals(GattUuids.CHARACTERISTIC_DIAGNOSTICS, queue.next().characteristic);
+    }
+
+    @Test
+    public void queue_coalescesPendingCommands() {
+        OperationQueue queue = new OperationQueue();
+        assertTrue(queue.submit(GattOperation.write(GattUuids.CHARACTERISTIC_SERVOSIGNAL, Command.ON.encode(), "servo")));
+        queue.next(); // ON in flight
+        assertTrue(queue.submit(GattOperation.write(GattUuids.CHARACTERISTIC_SERVOSIGNAL, Command.OFF.encode(), "servo")));
+        assertFalse(queue.submit(GattOperation.write(GattUuids.CHARACTERISTIC_SERVOSIGNAL, Command.ON.encode(), "servo")));
+        assertEquals(1, queue.size());
+
+        queue.complete();
+        assertEquals(Command.ON, Command.decode(queue.next().getValue()));
+    }
+
+    @Test
+    public void stateMachine_ignoresEventsOutOfOrder() {
+        ConnectionStateMachine machine = new ConnectionStateMachine(null);
+        assertFalse(machine.fire(ConnectionStateMachine.Event.DISCOVERY_OK));
+        assertTrue(machine.fire(ConnectionStateMachine.Event.CONNECT));
+        assertTrue(machine.fire(ConnectionStateMachine.Event.LINK_UP));
+        assertTrue(machine.fire(ConnectionStateMachine.Event.DISCOVERY_OK));
+        assertTrue(machine.isReady());
+        assertTrue(machine.fire(ConnectionStateMachine.Event.LINK_DOWN));
+        assertEquals(ConnectionStateMachine.State.DISCONNECTED, machine.getState());
+    }
+
+    @Test
+    public void sleepSchedule_matchesFirmwareWindows() {
+        SleepSchedule schedule = SleepSchedule.FIRMWARE_DEFAULT;
+        assertFalse(schedule.isAsleep(23 * 3600));
+        assertTrue(schedule.isAsleep(3 * 3600));
+        assertEquals(4 * 3600, schedule.secondsUntilAwake(3 * 3600));
+    }
+
+    @Test
+    public void diagnostics_parsesLinkStats() {
+        byte[] value = {
+                0x01, 3, '1', '.', '4',
+                0x7F, 1, 0, // unknown tag, skipped
+                0x04, 30,
+                (byte) 0x20, 0x03, 4, 0, (byte) 0xB0, 0x04, // 1000ms, latency 4, 12s
+                3, 0, 2, 0, 0, 0, 5, 0, 1, 0, 0, 0,
+                0x10, 0x0E, 0, 0, (byte) 0x80, 0x0C, 0, 0, 0x00, 0x00, 0x01, 0x00};
+        DiagnosticsRecord record = DiagnosticsRecord.parse(value);
+        assertEquals("1.4", record.firmwareVersion);
+        assertEquals(1_000_000, record.connectionIntervalMicros);
+        assertEquals(4, record.peripheralLatency);
+        assertEquals(12000, record.supervisionTimeoutMs);
+        assertEquals(3, record.connections);
+        assertEquals(5, record.commandsOnIdleLink);
+        assertEquals(1, record.idleHoldDisconnects);
+        assertEquals(3600, record.heldSeconds);
+        assertEquals(3200, record.idleSeconds);
+        assertEquals(65536, record.idleEvents);
+        assertEquals(-1, record.clients);
+
+        // 1.9.0 appends the evictions and the clients connected
+        byte[] link = Arrays.copyOfRange(value, 8, value.length + 3);
+        link[1] = 33;
+        link[32] = 7;
+        link[34] = 2;
+        record = DiagnosticsRecord.parse(link);
+        assertEquals(3600, record.heldSeconds);
+        assertEquals(7, record.evictions);
+        assertEquals(2, record.clients);
+    }
+
+    @Test
+    public void diagnostics_parsesBootTiming() {
+        byte[] value = {
+                0x06, 19, 1, 12, 0,
+                (byte) 0xE8, 0x03, 0, 0, // setup entered at 1000us
+                (byte) 0xC8, (byte) 0xAF, 0, 0, // advertising at 45000us
+                0x50, (byte) 0xC3, 0, 0, // average 50000us
+                (byte) 0xD8, (byte) 0xD6, 0, 0}; // max 55000us
+        DiagnosticsRecord record = DiagnosticsRecord.parse(value);
+        assertEquals(DiagnosticsRecord.WAKE_TIMER, record.wakeCause);
+        assertEquals(12, record.boots);
+        assertEquals(1000, record.setupMicros);
+        assertEquals(45000, record.advertisingMicros);
+        assertEquals(50000, record.averageAdvertisingMicros);
+        assertEquals(55000, record.maxAdvertisingMicros);
+        assertEquals(-1, DiagnosticsRecord.parse(new byte[0]).advertisingMicros);
+    }
+
+    @Test
+    public void connectionlessFrame_matchesFirmware() {
+        byte[] key = new byte[ConnectionlessFrame.KEY_LENGTH];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = (byte) i;
+        }
+        // The firmware test feeds the same bytes to connectionlessCommand(), after the company ID 0xFFFF
+        byte[] expected = {
+                0x02, (byte) 0xAE, 0x05, (byte) 0xA1, (byte) 0xD5, 0x02, 0x01, 0x05, 0x00, 0x00, 0x00, 0x31,
+                0x40, (byte) 0xF6, (byte) 0xD3, 0x04, (byte) 0xE1, (byte) 0x86, 0x5B, 0x19, 0x54, 0x04,
+                (byte) 0x95, 0x11};
+        assertArrayEquals(expected, ConnectionlessFrame.encode(key, "24:58:7C:12:34:56", 0x0102, 5, Command.ON, 81000000));
+        byte[] expectedV1 = {
+                0x01, (byte) 0xAE, 0x05, (byte) 0xA1, (byte) 0xD5, 0x05, 0x00, 0x00, 0x00, 0x31,
+                0x40, (byte) 0xF6, (byte) 0xD3, 0x04, (byte) 0xE9, 0x16, (byte) 0xE2, (byte) 0x80,
+                0x19, 0x5E, (byte) 0x8E, (byte) 0xAF};
+        assertArrayEquals(expectedV1, ConnectionlessFrame.encodeV1(key, "24:58:7C:12:34:56", 5, Command.ON, 81000000));
+
+        byte[] settings = Arrays.copyOf(key, ConnectionlessFrame.SETTINGS_LENGTH);
+        settings[16] = 1;
+        settings[17] = 5;
+        ConnectionlessFrame.Settings decoded = ConnectionlessFrame.decodeSettings(settings);
+        assertTrue(decoded.enabled);
+        assertEquals(5, decoded.lastSequence);
+        assertEquals(1, decoded.version); // a switch from before the phone field
+        assertArrayEquals(key, decoded.key);
+        settings = Arrays.copyOf(settings, ConnectionlessFrame.SETTINGS_LENGTH + 1);
+        settings[ConnectionlessFrame.SETTINGS_LENGTH] = ConnectionlessFrame.VERSION;
+        assertEquals(ConnectionlessFrame.VERSION, ConnectionlessFrame.decodeSettings(settings).version);
+        assertNull(ConnectionlessFrame.decodeSettings(new byte[3]));
+    }
+
+    @Test
+    public void diagnostics_parsesConnectionlessStats() {
+        byte[] value = {
+                0x07, 25, 1, 120, 0, (byte) 0xB0, 0x04, // window 120ms, interval 1200ms
+                60, 0, 0, 0, (byte) 0x88, 0x05, 0, 0, // 60s listening, 1416uAh
+                2, 0, 1, 0, 1, 0, // accepted, rejected, replayed
+                0x5E, 0x01, (byte) 0x90, 0x01, (byte) 0xF4, 0x01}; // latency 350, 400, 500ms
+        DiagnosticsRecord record = DiagnosticsRecord.parse(value);
+        assertEquals(1, record.connectionlessEnabled);
+        assertEquals(1200, record.scanIntervalMs);
+        assertEquals(1416, record.scanChargeMicroAh);
+        assertEquals(2, record.connectionlessAccepted);
+        assertEquals(350, record.connectionlessLastLatencyMs);
+        assertEquals(500, record.connectionlessMaxLatencyMs);
+        assertEquals(-1, DiagnosticsRecord.parse(new byte[0]).connectionlessEnabled);
+    }
+
+    @Test
+    public void diagnostics_parsesBatteryTier() {
+        byte[] value = {0x08, 7, 2, 0x5C, 0x0D, (byte) 0xE4, 0x0C, 3, 0}; // low, 3420mV, lowest 3300mV, 3 changes
+        DiagnosticsRecord record = DiagnosticsRecord.parse(value);
+        assertEquals(DiagnosticsRecord.BATTERY_TIER_LOW, record.batteryTier);
+        assertEquals(3420, record.batteryMillivolts);
+        assertEquals(3300, record.batteryLowestMillivolts);
+        assertEquals(3, record.batteryTierChanges);
+        assertEquals(-1, DiagnosticsRecord.parse(new byte[0]).batteryTier);
+
+        assertEquals(DiagnosticsRecord.BATTERY_TIER_RESERVE,
+                DiagnosticsRecord.advertisedBatteryTier(new byte[]{(byte) (DiagnosticsRecord.BATTERY_STATUS_LOW | 3)}));
+        assertEquals(DiagnosticsRecord.BATTERY_TIER_NORMAL, DiagnosticsRecord.advertisedBatteryTier(new byte[]{0}));
+        assertEquals(-1, DiagnosticsRecord.advertisedBatteryTier(new byte[ConnectionlessFrame.LENGTH]));
+        assertEquals(-1, DiagnosticsRecord.advertisedBatteryTier(null));
+    }
+
+    @Test
+    public void servoWear_parsesAndFlagsThresholds() {
+        byte[] value = {0x09, 24,
+                (byte) 0xA0, (byte) 0x8C, 0, 0, 0x00, (byte) 0x84, (byte) 0xD7, 0x00, 1, 0, 2, 0, // off: 36000, 14124.032s, 1 failed, 2 retried
+                10, 0, 0, 0, (byte) 0xE0, 0x2E, 0, 0, 3, 0, 4, 0}; // on: 10, 12s, 3 failed, 4 retried
+        DiagnosticsRecord record = DiagnosticsRecord.parse(value);
+        ServoWear off = record.servoWear[ServoProfile.SERVO_OFF];
+        ServoWear on = record.servoWear[ServoProfile.SERVO_ON];
+        assertEquals(36000, off.actuations);
+        assertEquals(14124032, off.activeMs);
+        assertEquals(2, off.retried);
+        assertEquals(ServoWear.Level.OK, off.level()); // 72% of the rated actuations
+        assertEquals(ServoWear.Level.NEAR, on.level()); // young, but 7 of 10 toggles went wrong
+        assertEquals(ServoWear.Level.NEAR, ServoWear.worst(record.servoWear));
+        assertNull(DiagnosticsRecord.parse(new byte[0]).servoWear);
+
+        assertEquals(ServoWear.Level.NEAR, new ServoWear(40_000, 0, 0, 0).level());
+        assertEquals(ServoWear.Level.WORN, new ServoWear(1000, ServoWear.RATED_ACTIVE_SECONDS * 1000, 0, 0).level());
+        assertEquals(ServoWear.Level.OK, new ServoWear(1000, 0, 4, 15).level()); // 19 in 1000 is under 2%
+        assertEquals(ServoWear.Level.OK, ServoWear.worst(null));
+    }
+
+    @Test
+    public void commandTiming_mergesPhoneAndSwitch() {
+        byte[] value = new byte[CommandTiming.RECORD_LENGTH];
+        value[0] = 7;
+        value[2] = 1;
+        value[3] = CommandTiming.FLAG_DONE;
+        long[] steps = {4000, 4000, 34000, 304000, 1304000, 1574000}; // as the firmware test measures them
+        for (int i = 0; i < steps.length; i++) {
+            for (int b = 0; b < 4; b++) {
+                value[4 + 4 * i + b] = (byte) (steps[i] >> (8 * b));
+            }
+        }
+        CommandTiming.Record record = CommandTiming.Record.parse(value);
+        assertEquals(7, record.sequence);
+        assertTrue(record.isDone());
+        assertNull(CommandTiming.Record.parse(new byte[4]));
+
+        // 2ms behind another operation, 30ms round trip
+        CommandTiming.Waterfall waterfall = CommandTiming.merge(new CommandTiming.Sent(0, 2000000, 32000000), record);
+        assertArrayEquals(new long[]{2000, 15000, 4000, 0, 30000, 270000, 1000000, 270000}, waterfall.phaseMicros);
+        assertEquals(1591000, waterfall.totalMicros());
+        assertEquals(21000, waterfall.startMicros(CommandTiming.PHASE_WAIT));
+
+        // Refused: nothing after leaving the queue
+        value[3] = CommandTiming.FLAG_DONE | CommandTiming.FLAG_REFUSED;
+        Arrays.fill(value, 8, CommandTiming.RECORD_LENGTH, (byte) 0);
+        CommandTiming.Waterfall refused = CommandTiming.merge(new CommandTiming.Sent(0, 0, 0), CommandTiming.Record.parse(value));
+        assertTrue(refused.refused);
+        assertEquals(4000, refused.totalMicros());
+
+        CommandTiming.Stats stats = new CommandTiming.Stats(3);
+        assertEquals(-1, stats.percentileMicros(CommandTiming.PHASE_TOTAL, 50));
+        stats.add(refused);
+        stats.add(waterfall);
+        stats.add(waterfall);
+        stats.add(waterfall); // the refused one drops out
+        assertEquals(3, stats.size());
+        assertEquals(1591000, stats.percentileMicros(CommandTiming.PHASE_TOTAL, 50));
+        assertEquals(15000, stats.percentileMicros(CommandTiming.PHASE_RADIO, 99));
+    }
+
+    @Test
+    public void sceneCommand_carriesTimeOfDay() {
+        int at = (23 * 3600 + 59 * 60 + 59) * 1000 + 750;
+        byte[] value = Command.OFF.encodeAt(at);
+        assertEquals(Command.AT_LENGTH, value.length);
+        assertEquals(Command.OFF, Command.decode(value));
+        assertEquals(at, Command.decodeAt(value));
+        assertEquals(-1, Command.decodeAt(Command.OFF.encode()));
+        assertEquals("23:59:59.750", new String(TimeCodec.encodeMillis(at)));
+        assertEquals(23 * 3600 + 59 * 60 + 59, TimeCodec.decode(TimeCodec.encodeMillis(at)));
+    }
+
+    @Test
+    public void sceneTiming_measuresSkewAcrossMidnight() {
+        int requested = 100; // 00:00:00.100
+        SceneTiming.Result result = SceneTiming.measure(Arrays.asList("A", "B", "C"), Arrays.asList(
+                new SceneTiming.Sample("A", 40, requested, requested, DiagnosticsRecord.SCENE_ON_TIME),
+                new SceneTiming.Sample("B", 100, requested, TimeCodec.MILLIS_PER_DAY - 10, DiagnosticsRecord.SCENE_ON_TIME),
+                new SceneTiming.Sample("C", 60, requested, 0, DiagnosticsRecord.SCENE_REFUSED)));
+
+        assertEquals(2, result.fired);
+        assertEquals(Arrays.asList("C"), result.missed);
+        // A at +20ms, B at -110 + 50 = -60ms
+        assertEquals(80, result.skewMillis);
+        assertEquals(50, result.uncertaintyMillis);
+        assertEquals(20, result.maxLateMillis);
+        assertEquals(SceneTiming.MIN_LEAD_MILLIS, SceneTiming.leadMillis(50));
+        assertEquals(900, SceneTiming.leadMillis(400));
+    }
+
+    @Test
+    public void sceneTiming_leadStaysWithinWhatTheFirmwareAccepts() {
+        int maxLead = SceneTiming.MAX_LEAD_MILLIS - SceneTiming.LEAD_MARGIN_MILLIS;
+        assertEquals(maxLead, SceneTiming.leadMillis(2400));
+        assertEquals(maxLead, SceneTiming.leadMillis(10_000)); // a 10s sync, as CONNECT_TIMEOUT_MS allows
+        assertTrue(SceneTiming.leadMillis(10_000) <= SceneTiming.MAX_LEAD_MILLIS);
+        assertTrue(SceneTiming.fitsLead(2400));
+        assertFalse(SceneTiming.fitsLead(2401)); // e.g. a link still at the idle parameters
+    }
+
+    @Test
+    public void multiplexer_connectsOnceAndDeduplicates() {
+        List<String> calls = new ArrayList<>();
+        List<String> results = new ArrayList<>();
+        CommandMultiplexer.Port port = new CommandMultiplexer.Port() {
+            @Override
+            public void connect(String address) {
+                calls.add("connect " + address);
+            }
+
+            @Override
+            public boolean send(String address, Command command) {
+                calls.add("send " + address + " " + command.name);
+                return true;
+            }
+
+            @Override
+            public void disconnect(String address) {
+                calls.add("disconnect " + address);
+            }
+        };
+        long[] now = {0};
+        CommandMultiplexer mux = new CommandMultiplexer(port, () -> now[0]);
+        CommandMultiplexer.Waiter waiter = (address, command, result) -> results.add(address + " " + command.name + " " + result);
+
+        // Three callers while connecting: one connect, the two "on" share one write, "off" was superseded
+        mux.submit("A", Command.OFF, waiter);
+        mux.submit("A", Command.ON, waiter);
+        mux.submit("A", Command.ON, waiter);
+        assertEquals(Arrays.asList("connect A"), calls);
+        assertEquals(Arrays.asList("A off " + CommandMultiplexer.RESULT_SUPERSEDED), results);
+
+        mux.onReady("A");
+        mux.submit("A", Command.ON, waiter); // joins the write in flight
+        mux.onCommandSent("A");
+        assertEquals(Arrays.asList("connect A", "send A on"), calls);
+        assertEquals(4, results.size());
+        assertEquals("A on " + CommandMultiplexer.RESULT_OK, results.get(3));
+        assertEquals(2, mux.getJoined());
+        assertEquals(1, mux.getSent());
+
+        // The link is reused, then dropped when idle
+        mux.submit("A", Command.OFF, waiter);
+        mux.onCommandSent("A");
+        assertEquals("send A off", calls.get(2));
+        now[0] += CommandMultiplexer.IDLE_HOLD_NANOS + 1;
+        mux.tick();
+        assertEquals("disconnect A", calls.get(3));
+        assertFalse(mux.hasLinks());
+
+        // A switch that does not show up
+        mux.submit("B", Command.ON, waiter);
+        now[0] += CommandMultiplexer.COMMAND_TIMEOUT_NANOS + 1;
+        mux.tick();
+        assertEquals("B on " + CommandMultiplexer.RESULT_TIMEOUT, results.get(results.size() - 1));
+        mux.onDisconnected("B");
+        assertFalse(mux.hasLinks());
+        assertEquals(2, mux.getConnects());
+    }
+
+    @Test
+    public void provisioning_matchesFirmware() {
+        // Same write as the firmware's testProvisioning: 12:00 - 18:00, 1:00 - 6:00, "Hall 2"
+        SleepSchedule schedule = new SleepSchedule(new int[][]{{12 * 3600, 18 * 3600}, {3600, 6 * 3600}});
+        byte[] write = Provisioning.encode(schedule, "Hall 2");
+        assertEquals(22, write.length);
+        assertArrayEquals(new byte[]{(byte) 0xC0, (byte) 0xA8, 0, 0}, Arrays.copyOf(write, 4));
+        assertEquals('H', write[16]);
+
+        byte[] read = new byte[1 + write.length];
+        read[0] = 1;
+        System.arraycopy(write, 0, read, 1, write.length);
+        Provisioning.Settings settings = Provisioning.decode(read);
+        assertTrue(settings.provisioned);
+        assertEquals("Hall 2", settings.label);
+        assertArrayEquals(new int[]{3600, 6 * 3600}, settings.schedule.getWindow(1));
+        assertNull(Provisioning.decode(new byte[5]));
+
+        // Cut between characters, a window may reach over midnight
+        assertEquals("Kitchen window left", Provisioning.fitLabel("Kitchen window left\u00fc")); // 21 bytes
+        assertEquals(3600, new SleepSchedule(new int[][]{{23 * 3600, 3600}}).secondsUntilAwake(0));
+
+        assertTrue(Provisioning.isNew(new byte[]{(byte) DiagnosticsRecord.BATTERY_STATUS_LOW | 2}));
+        assertFalse(Provisioning.isNew(new byte[]{Provisioning.STATUS_PROVISIONED}));
+        assertFalse(Provisioning.isNew(null)); // firmware before 1.12.0
+    }
+
+    @Test
+    public void provisioningPipeline_boundsParallelismAndRetries() {
+        List<String> calls = new ArrayList<>();
+        ProvisioningPipeline.Port port = new ProvisioningPipeline.Port() {
+            @Override
+            public boolean bond(String address) {
+                calls.add("bond " + address);
+                return true;
+            }
+
+            @Override
+            public boolean write(String address) {
+                calls.add("write " + address);
+                return true;
+            }
+
+            @Override
+            public void abort(String address) {
+                calls.add("abort " + address);
+            }
+        };
+        List<ProvisioningPipeline.Unit> finished = new ArrayList<>();
+        ProvisioningPipeline.Listener listener = new ProvisioningPipeline.Listener() {
+            @Override
+            public void onProgress(ProvisioningPipeline.Unit unit) {
+            }
+
+            @Override
+            public void onFinished(List<ProvisioningPipeline.Unit> units) {
+                finished.addAll(units);
+            }
+        };
+        long[] now = {0};
+        ProvisioningPipeline pipeline = new ProvisioningPipeline(port, listener, 2, 1, () -> now[0]);
+
+        // One bond at a time, two switches in flight
+        assertTrue(pipeline.add("A", "Hall 1"));
+        assertTrue(pipeline.add("B", "Hall 2"));
+        assertTrue(pipeline.add("C", "Hall 3"));
+        assertFalse(pipeline.add("A", "Hall 1"));
+        assertEquals(Arrays.asList("bond A"), calls);
+        pipeline.onBonded("A", true);
+        assertEquals(Arrays.asList("bond A", "write A", "bond B"), calls);
+        pipeline.onBonded("B", true);
+        assertEquals("write B", calls.get(3));
+        assertEquals(4, calls.size()); // C waits for a free place
+
+        // A's session drops once and is tried again, B goes through, then C refuses to pair
+        pipeline.onWriteFailed("A", "disconnected");
+        assertEquals(Arrays.asList("abort A", "write A"), calls.subList(4, 6));
+        pipeline.onWritten("B");
+        assertEquals("bond C", calls.get(6));
+        pipeline.onBonded("C", false);
+        pipeline.endOfUnits();
+        assertTrue(finished.isEmpty());
+
+        // A's second session hangs
+        now[0] += ProvisioningPipeline.WRITE_TIMEOUT_NANOS + 1;
+        pipeline.tick();
+        assertEquals("abort A", calls.get(calls.size() - 1));
+        assertTrue(pipeline.isFinished());
+        assertEquals(3, finished.size());
+        assertEquals(ProvisioningPipeline.Stage.FAILED, finished.get(0).stage);
+        assertEquals("timed out", finished.get(0).failure);
+        assertEquals(2, finished.get(0).attempts);
+        assertEquals(ProvisioningPipeline.Stage.DONE, finished.get(1).stage);
+        assertEquals("not bonded", finished.get(2).failure);
+    }
+
+    @Test
+    public void snapshots_coalesceBurstIntoOneDelivery() {
+        SnapshotCoalescer<LinkSnapshot> snapshots = new SnapshotCoalescer<>();
+        LinkSnapshot snapshot = LinkSnapshot.IDLE.withState(ConnectionStateMachine.State.READY);
+        assertTrue(snapshots.publish(snapshot)); // schedule the consumer
+        snapshot = snapshot.withTimeSynced();
+        assertFalse(snapshots.publish(snapshot)); // already scheduled
+        snapshot = snapshot.withServoProfiles(Arrays.asList(new ServoProfile(ServoProfile.SERVO_OFF, 30, 0, 0, 1000),
+                new ServoProfile(ServoProfile.SERVO_ON, 0, 30, 0, 1000)));
+        assertFalse(snapshots.publish(snapshot));
+
+        LinkSnapshot taken = snapshots.take();
+        assertSame(snapshot, taken);
+        assertTrue(taken.isReady());
+        assertEquals(1, taken.timeSyncs);
+        assertEquals(1, taken.servoProfileReads);
+        assertEquals(3, snapshots.getPublished());
+        assertEquals(1, snapshots.getDelivered());
+        assertTrue(snapshots.publish(taken.withFailure("gone")));
+        assertFalse(snapshots.take().isReady());
+        assertFalse(LinkSnapshot.IDLE.isReady()); // the copies never touch the original
+
+        // Diagnostics and connectionless reads reach the screen as state plus a counter, like the other events
+        ServoWear[] raised = {null, new ServoWear(ServoWear.RATED_ACTUATIONS, 0, 0, 0)};
+        LinkSnapshot read = LinkSnapshot.IDLE.withDiagnostics(DiagnosticsRecord.BATTERY_TIER_LOW, raised)
+                .withConnectionless(true);
+        raised[1] = null;
+        assertEquals(DiagnosticsRecord.BATTERY_TIER_LOW, read.batteryTier);
+        assertEquals(1, read.diagnosticsReads);
+        assertNull(read.raisedWear.get(0));
+        assertEquals(ServoWear.Level.WORN, read.raisedWear.get(1).level()); // copied, not the caller's array
+        assertTrue(read.connectionlessEnabled);
+        assertEquals(1, read.connectionlessReads);
+        assertEquals(-1, LinkSnapshot.IDLE.batteryTier);
+    }
+}
@@ -1,212 +1,362 @@
-#include <BLEDevice.h>
-#include <BLEServer.h>
-#include <ESP32Servo.h>
+#include <NimBLEDevice.h>
 #include <esp_sleep.h>
-#include <driver/rtc_io.h>
+#include "src/firmware.h"
 
 /*
-In our example, the switch is on when its top is pressed and servos are on the right of the switch.
+BLE layer on NimBLE-Arduino 2.x. Compared to Bluedroid it needs a fraction of the RAM and comes up much faster
+after every wake, which is most of the time between a timer wake and the first command.
+Same services, characteristics and bonding (Just Works, no MITM) as before, but NimBLE keeps its bonds in its
+own NVS namespace: phones bonded to the Bluedroid firmware have to bond again.
+Up to MAX_CLIENTS phones stay connected at once (see link_policy), the callbacks pass on which one wrote.
+With connectionless commands on, a passive scan runs next to the advertising and hands every manufacturer data
+field to the firmware, which checks it (see connectionless).
 */
+class BLEController : public Radio {
+private:
+  class PhoneTimeCallbacks : public NimBLECharacteristicCallbacks {
+  public:
+    PhoneTimeCallbacks(BLEController* parent) : parent(parent) {}
 
-#define SERVO_A_PIN 4 // lower servo, control off
-#define SERVO_B_PIN 2 // upper servo, control on
-
-// BLE UUID
-#define DEVICE_NAME       "Remote Switch"
-#define SERVICE_UUID_TIMESYNC       (uint16_t)0x1805
-#define CHARACTERISTIC_UUID_PHONETIME (uint16_t)0x2A2B
-#define SERVICE_UUID_SERVOCONTROL   (uint16_t)0x1815
-#define CHARACTERISTIC_UUID_SERVOSIGNAL (uint16_t)0x2A56
-
-Servo servoA, servoB; // Servo object
-bool isActivated = false; // A thread lock, avoid the two servos from working simultanously
-unsigned long lastOperationTime = 0; // ms
-unsigned long connectStartTime = 0; // ms
-
-// Time Manage
-RTC_DATA_ATTR bool timeSynced = false;
-RTC_DATA_ATTR long localTime = 0; // s, mod 86400
-unsigned long localTime_millis = 0; // ms
-unsigned long SLEEP_DURATION = 0; // s
-const long SLEEP_WINDOW_START = 10 * 3600; // 10am
-const long SLEEP_WINDOW_END = 22 * 3600; // 10pm
-const long SLEEP_WINDOW_START_MIDNIGHT = 2 * 3600; // 2am
-const long SLEEP_WINDOW_END_MIDNIGHT = 7 * 3600; // 7am
-const long DISCONNECT_TIME = 1 * 60 * 1000; // 1 mins
-
-class BLEController {
-public:
-  BLEServer *pServer = nullptr;
-  BLEService *pService_TimeSync = nullptr;
-  BLEService *pService_ServoControl = nullptr;
-  BLECharacteristic *pChar_PhoneTime = nullptr;
-  BLECharacteristic *pChar_ServoSignal = nullptr;
-  uint16_t connId = 0;
+    void onWrite(NimBLECharacteristic *pChar, NimBLEConnInfo &connInfo) override {
+      NimBLEAttValue value = pChar->getValue(); // The phone send an "HH:MM:SS" time
+      handlePhoneTime(connInfo.getConnHandle(), (const char *)value.data(), value.length());
+    }
+  private:
+    BLEController* parent;
+  };
 
-  void init() {
-    BLEDevice::init(DEVICE_NAME);
-    BLEDevice::setPower(ESP_PWR_LVL_N9); // Set Tx power to -9dBm (lower than default)
-    pServer = BLEDevice::createServer();
-    pServer->setCallbacks(new MyServerCallbacks(this));
-    
-    // Start Time Sync
-    pService_TimeSync = pServer->createService(SERVICE_UUID_TIMESYNC);
-    pChar_PhoneTime = pService_TimeSync->createCharacteristic(
-      CHARACTERISTIC_UUID_PHONETIME,
-      BLECharacteristic::PROPERTY_WRITE
-    );
-    pChar_PhoneTime->setCallbacks(new PhoneTimeCallbacks(this));
-    pService_TimeSync->start();
+  class ServoSignalCallbacks : public NimBLECharacteristicCallbacks {
+  public:
+    ServoSignalCallbacks(BLEController* parent) : parent(parent) {}
 
-    // Start Servo Control
-    pService_ServoControl = pServer->createService(SERVICE_UUID_SERVOCONTROL);
-    pChar_ServoSignal = pService_ServoControl->createCharacteristic(
-      CHARACTERISTIC_UUID_SERVOSIGNAL,
-      BLECharacteristic::PROPERTY_WRITE
-    );
-    pChar_ServoSignal->setCallbacks(new ServoSignalCallbacks(this));
-    pService_ServoControl->start();
-
-    BLESecurity *pSecurity = new BLESecurity();
-    pSecurity->setAuthenticationMode(ESP_LE_AUTH_BOND);     // Allow bonding
-    
-    BLEAdvertising *pAdvertising = BLEDevice::getAdvertising();
-    pAdvertising->setScanResponse(true);  // Allow to be discovered by scanning
-    pAdvertising->setMinInterval(0x0600);  // 1536*0.625ms=960ms
-    pAdvertising->setMaxInterval(0x0800); // 2048*0.625ms=1280ms
-    BLEDevice::startAdvertising();
-    /**/
-  }
-private:
-  class PhoneTimeCallbacks : public BLECharacteristicCallbacks {
+    void onWrite(NimBLECharacteristic *pChar, NimBLEConnInfo &connInfo) override {
+      NimBLEAttValue value = pChar->getValue();
+      handleServoSignal(connInfo.getConnHandle(), (const char *)value.data(), value.length());
+    }
+
+  private:
+    BLEController* parent;
+  };
+
+  class ServoProfileCallbacks : public NimBLECharacteristicCallbacks {
   public:
-    PhoneTimeCallbacks(BLEController* parent) : parent(parent) {}
+    ServoProfileCallbacks(BLEController* parent) : parent(parent) {}
 
-    void onWrite(BLECharacteristic *pChar) {
-      String value = pChar->getValue(); // The phone send an "HH:MM:SS" time 
-      localTime_millis = millis();
-      localTime = parseTime(value);
-      timeSynced = true;
-      Serial.println("Time synced: " + value);
+    void onWrite(NimBLECharacteristic *pChar, NimBLEConnInfo &connInfo) override {
+      NimBLEAttValue value = pChar->getValue();
+      applyServoProfileOp(value.data(), value.length());
     }
+
+    void onRead(NimBLECharacteristic *pChar, NimBLEConnInfo &connInfo) override {
+      uint8_t buf[SERVO_PROFILES_LENGTH];
+      encodeServoProfiles(buf);
+      pChar->setValue(buf, sizeof(buf));
+    }
+
   private:
     BLEController* parent;
+  };
 
-    long parseTime(String value) {
-      long hour = value.substring(0, 2).toInt();
-      long minute = value.substring(3, 5).toInt();
-      long second = value.substring(6, 8).toInt();
+  class DiagnosticsCallbacks : public NimBLECharacteristicCallbacks {
+  public:
+    DiagnosticsCallbacks(BLEController* parent) : parent(parent) {}
 
-      return hour * 3600 + minute * 60 + second;
+    // Only called at offset 0, the rest of a long read is served from this value
+    void onRead(NimBLECharacteristic *pChar, NimBLEConnInfo &connInfo) override {
+      uint8_t buf[DIAGNOSTICS_MAX_LENGTH];
+      size_t len = buildDiagnostics(buf);
+      pChar->setValue(buf, len);
     }
+
+  private:
+    BLEController* parent;
   };
 
-  class ServoSignalCallbacks: public BLECharacteristicCallbacks {
+  // Every phone reads the timing of its own last command
+  class CommandTimingCallbacks : public NimBLECharacteristicCallbacks {
   public:
-    ServoSignalCallbacks(BLEController* parent) : parent(parent) {}
+    CommandTimingCallbacks(BLEController* parent) : parent(parent) {}
 
-    void onWrite(BLECharacteristic *pChar) {
-      String value = pChar->getValue();
-      
-      if(value == "1") {
-        Serial.println("Received '1'");
-        activateServo(SERVO_B_PIN, servoB, 0, 30); // Turn on, the upper servo rotate 30°
-      } 
-      else if(value == "0") {
-        Serial.println("Received '0'");
-        activateServo(SERVO_A_PIN, servoA, 30, 0);  // Turn off, the lower servo rotate 30° 
-      }
+    void onRead(NimBLECharacteristic *pChar, NimBLEConnInfo &connInfo) override {
+      uint8_t buf[COMMAND_TIMING_LENGTH];
+      encodeCommandTiming(linkSlot(connInfo.getConnHandle()), buf);
+      pChar->setValue(buf, sizeof(buf));
     }
 
   private:
     BLEController* parent;
+  };
 
-    void activateServo(int servoPin, Servo &servo, int angle1, int angle2) {
-      if(!isActivated){
-        isActivated = true;
-        delay(30);  // Waiting for stablity
-        
-        servo.attach(servoPin);
-        servo.write(angle1);
-        delay(1000);
-        servo.write(angle2);  // restore
-        delay(1000);
-        servo.detach();
-        
-        isActivated = false;
-      } 
+  // Encrypted both ways: the key must only go to bonded phones
+  class ConnectionlessCallbacks : public NimBLECharacteristicCallbacks {
+  public:
+    ConnectionlessCallbacks(BLEController* parent) : parent(parent) {}
+
+    void onWrite(NimBLECharacteristic *pChar, NimBLEConnInfo &connInfo) override {
+      NimBLEAttValue value = pChar->getValue();
+      applyConnectionlessOp(value.data(), value.length());
+    }
+
+    void onRead(NimBLECharacteristic *pChar, NimBLEConnInfo &connInfo) override {
+      uint8_t buf[CONNECTIONLESS_SETTINGS_LENGTH];
+      encodeConnectionlessSettings(buf);
+      pChar->setValue(buf, sizeof(buf));
     }
+
+  private:
+    BLEController* parent;
   };
 
-  class MyServerCallbacks: public BLEServerCallbacks {
+  // Written once by the app's provisioning mode, encrypted like the connectionless key
+  class ProvisioningCallbacks : public NimBLECharacteristicCallbacks {
   public:
-    MyServerCallbacks(BLEController* parent) : parent(parent) {}
+    ProvisioningCallbacks(BLEController* parent) : parent(parent) {}
 
-    void onConnect(BLEServer* pServer) {
-      Serial.println("Device connected");
-      parent->connId = pServer->getConnId();
+    void onWrite(NimBLECharacteristic *pChar, NimBLEConnInfo &connInfo) override {
+      NimBLEAttValue value = pChar->getValue();
+      applyProvisioning(value.data(), value.length());
+    }
 
-      lastOperationTime = millis();
-      connectStartTime = millis();
+    void onRead(NimBLECharacteristic *pChar, NimBLEConnInfo &connInfo) override {
+      uint8_t buf[PROVISIONING_MAX_LENGTH];
+      size_t len = encodeProvisioning(buf);
+      pChar->setValue(buf, len);
     }
 
-    void onDisconnect(BLEServer* pServer) {
+  private:
+    BLEController* parent;
+  };
+
+  // Every advertisement is reported, the frames of one command are repeated and the sequence drops the copies
+  class ScanCallbacks : public NimBLEScanCallbacks {
+  public:
+    ScanCallbacks(BLEController* parent) : parent(parent) {}
+
+    void onResult(const NimBLEAdvertisedDevice *advertisedDevice) override {
+      if (advertisedDevice->haveManufacturerData()) {
+        std::string data = advertisedDevice->getManufacturerData();
+        handleAdvertisedCommand((const uint8_t *)data.data(), data.length());
+      }
+    }
+
+  private:
+    BLEController* parent;
+  };
+
+  class MyServerCallbacks : public NimBLEServerCallbacks {
+  public:
+    MyServerCallbacks(BLEController* parent) : parent(parent) {}
+
+    // Advertising stops with every connection. It goes on while there is a free slot, so the next phone can
+    // connect; with all LINK_SLOTS taken, firmwareLoop() drops a client and advertising restarts.
+    void onConnect(NimBLEServer *pServer, NimBLEConnInfo &connInfo) override {
+      Serial.printf("Device connected, %d connection(s)\n", pServer->getConnectedCount());
+      handleConnect(connInfo.getConnHandle());
+      if (pServer->getConnectedCount() < LINK_SLOTS) {
+        NimBLEDevice::startAdvertising();
+      }
+    }
+
+    // Advertising restarts by itself (advertiseOnDisconnect)
+    void onDisconnect(NimBLEServer *pServer, NimBLEConnInfo &connInfo, int reason) override {
       Serial.println("Device disconnected");
-      BLEDevice::startAdvertising();
+      handleDisconnect(connInfo.getConnHandle(), reason >= BLE_HS_ERR_HCI_BASE ? reason - BLE_HS_ERR_HCI_BASE : 0);
     }
 
   private:
     BLEController* parent;
   };
-} *MyBLEController;
 
-void setup() {
-  Serial.begin(115200);
-  lastOperationTime = millis();
+  // Members, not heap objects: nothing is allocated for them at boot
+  PhoneTimeCallbacks phoneTimeCallbacks{this};
+  ServoSignalCallbacks servoSignalCallbacks{this};
+  ServoProfileCallbacks servoProfileCallbacks{this};
+  DiagnosticsCallbacks diagnosticsCallbacks{this};
+  ConnectionlessCallbacks connectionlessCallbacks{this};
+  CommandTimingCallbacks commandTimingCallbacks{this};
+  ProvisioningCallbacks provisioningCallbacks{this};
+  ScanCallbacks scanCallbacks{this};
+  MyServerCallbacks serverCallbacks{this};
 
-  MyBLEController = new BLEController();
-  MyBLEController->init();
+public:
+  NimBLEServer *pServer = nullptr;
+  NimBLECharacteristic *pChar_PhoneTime = nullptr;
+  NimBLECharacteristic *pChar_ServoSignal = nullptr;
+  NimBLECharacteristic *pChar_Diagnostics = nullptr;
+  NimBLECharacteristic *pChar_ServoProfile = nullptr;
+  NimBLECharacteristic *pChar_Connectionless = nullptr;
+  NimBLECharacteristic *pChar_CommandTiming = nullptr;
+  NimBLECharacteristic *pChar_Provisioning = nullptr;
+
+  // Only what is needed to be connectable, in the order the stack needs it. Advertising starts last.
+  void init() {
+    NimBLEDevice::init(DEVICE_NAME);
+    NimBLEDevice::setPower(-9); // Set Tx power to -9dBm (lower than default)
+    NimBLEDevice::setSecurityAuth(true, false, false); // Allow bonding, like ESP_LE_AUTH_BOND before
+    NimBLEDevice::setCustomGapHandler(gapEventHandler);
+    pServer = NimBLEDevice::createServer();
+    pServer->setCallbacks(&serverCallbacks, false);
+    pServer->advertiseOnDisconnect(true);
+
+    // Time Sync
+    NimBLEService *pService_TimeSync = pServer->createService(NimBLEUUID(SERVICE_UUID_TIMESYNC));
+    pChar_PhoneTime = pService_TimeSync->createCharacteristic(
+      NimBLEUUID(CHARACTERISTIC_UUID_PHONETIME),
+      NIMBLE_PROPERTY::WRITE
+    );
+    pChar_PhoneTime->setCallbacks(&phoneTimeCallbacks);
 
-  Serial.println("BLE Ready. Send '0' or '1' to control.");
-}
+    // Servo Control
+    NimBLEService *pService_ServoControl = pServer->createService(NimBLEUUID(SERVICE_UUID_SERVOCONTROL));
+    pChar_ServoSignal = pService_ServoControl->createCharacteristic(
+      NimBLEUUID(CHARACTERISTIC_UUID_SERVOSIGNAL),
+      NIMBLE_PROPERTY::WRITE | NIMBLE_PROPERTY::NOTIFY
+    );
+    pChar_ServoSignal->setCallbacks(&servoSignalCallbacks);
 
-void loop() {
-  delay(5000);
-  //Serial.println(String(localTime / 3600) + String((localTime % 3600) / 60) + String((localTime % 60)));
-  // Auto dinconnect after about 1 mins of connecting
-  if(connectStartTime > 0 && millis() - connectStartTime >= DISCONNECT_TIME && MyBLEController->pServer) {
-    if (MyBLEController->pServer->getConnectedCount() > 0) {
-      MyBLEController->pServer->disconnect(MyBLEController->connId);
+    // Config
+    NimBLEService *pService_Config = pServer->createService(NimBLEUUID(SERVICE_UUID_CONFIG));
+    pChar_Diagnostics = pService_Config->createCharacteristic(
+      NimBLEUUID(CHARACTERISTIC_UUID_DIAGNOSTICS),
+      NIMBLE_PROPERTY::READ
+    );
+    pChar_Diagnostics->setCallbacks(&diagnosticsCallbacks);
+    pChar_ServoProfile = pService_Config->createCharacteristic(
+      NimBLEUUID(CHARACTERISTIC_UUID_SERVOPROFILE),
+      NIMBLE_PROPERTY::READ | NIMBLE_PROPERTY::WRITE
+    );
+    pChar_ServoProfile->setCallbacks(&servoProfileCallbacks);
+    pChar_Connectionless = pService_Config->createCharacteristic(
+      NimBLEUUID(CHARACTERISTIC_UUID_CONNECTIONLESS),
+      NIMBLE_PROPERTY::READ | NIMBLE_PROPERTY::READ_ENC | NIMBLE_PROPERTY::WRITE | NIMBLE_PROPERTY::WRITE_ENC
+    );
+    pChar_Connectionless->setCallbacks(&connectionlessCallbacks);
+    pChar_CommandTiming = pService_Config->createCharacteristic(
+      NimBLEUUID(CHARACTERISTIC_UUID_COMMAND_TIMING),
+      NIMBLE_PROPERTY::READ
+    );
+    pChar_CommandTiming->setCallbacks(&commandTimingCallbacks);
+    pChar_Provisioning = pService_Config->createCharacteristic(
+      NimBLEUUID(CHARACTERISTIC_UUID_PROVISIONING),
+      NIMBLE_PROPERTY::READ | NIMBLE_PROPERTY::READ_ENC | NIMBLE_PROPERTY::WRITE | NIMBLE_PROPERTY::WRITE_ENC
+    );
+    pChar_Provisioning->setCallbacks(&provisioningCallbacks);
+    pServer->start();
+
+    // The name fits into the advertisement itself, a scanner does not need a scan response to find the device
+    NimBLEAdvertising *pAdvertising = NimBLEDevice::getAdvertising();
+    pAdvertising->setName(DEVICE_NAME);
+    setStatusData(pAdvertising, advertisedStatus()); // 5 more bytes, the advertisement stays under 31
+    pAdvertising->enableScanResponse(false);
+    pAdvertising->setMinInterval(ADV_INTERVALS[advMode][0]);
+    pAdvertising->setMaxInterval(ADV_INTERVALS[advMode][1]);
+    if (pAdvertising->start()) {
+      handleAdvertising();
+    }
+  }
+
+  int connectedCount() override {
+    return pServer->getConnectedCount();
+  }
+
+  void disconnect(uint16_t conn) override {
+    pServer->disconnect(conn);
+  }
+
+  // Change the advertising interval. It takes effect now if a slot is free, otherwise on the next restart.
+  void setAdvertisingMode(uint8_t mode) override {
+    NimBLEAdvertising *pAdvertising = NimBLEDevice::getAdvertising();
+    pAdvertising->setMinInterval(ADV_INTERVALS[mode][0]);
+    pAdvertising->setMaxInterval(ADV_INTERVALS[mode][1]);
+    if (pServer->getConnectedCount() < LINK_SLOTS) {
+      pAdvertising->stop();
+      pAdvertising->start();
     }
   }
 
-  unsigned long localTime_millis_new = millis();
-  localTime += (localTime_millis_new - localTime_millis) / 1000;
-  localTime_millis = localTime_millis_new;
+  // New manufacturer data, restarted like setAdvertisingMode()
+  void setAdvertisedStatus(uint8_t status) override {
+    NimBLEAdvertising *pAdvertising = NimBLEDevice::getAdvertising();
+    setStatusData(pAdvertising, status);
+    if (pServer->getConnectedCount() < LINK_SLOTS) {
+      pAdvertising->stop();
+      pAdvertising->start();
+    }
+  }
 
-  if(timeSynced && 
-  localTime % 86400 >= SLEEP_WINDOW_START && localTime % 86400 <= SLEEP_WINDOW_END && 
-  millis() - lastOperationTime >= 5 * 60 * 1000) {
-    BLEDevice::deinit();
-    Serial.println("Ready to enter deep sleep.");
+  void requestLinkParams(uint16_t conn, uint8_t params) override {
+    Serial.printf("Requesting %s connection parameters on %u.\n", params == LINK_PARAMS_IDLE ? "idle" : "active", conn);
+    pServer->updateConnParams(conn, LINK_PARAMS[params][0], LINK_PARAMS[params][1],
+                              LINK_PARAMS[params][2], LINK_PARAMS[params][3]);
+  }
 
-    SLEEP_DURATION = SLEEP_WINDOW_END - localTime % 86400;
-    localTime += SLEEP_DURATION;
+  // Same encoding as the commands. Only clients that enabled notifications get it.
+  void notifyState(int servo) override {
+    uint8_t value = servo == SERVO_ON ? '1' : '0';
+    pChar_ServoSignal->setValue(&value, 1);
+    pChar_ServoSignal->notify();
+  }
 
-    esp_sleep_enable_timer_wakeup(SLEEP_DURATION * 1000000ULL); // microsecond
-    esp_deep_sleep_start();
+  // Passive, no scan requests: the switch only listens. Interval and window in ms.
+  void setScanning(bool on) override {
+    NimBLEScan *pScan = NimBLEDevice::getScan();
+    if (!on) {
+      pScan->stop();
+      return;
+    }
+    pScan->setScanCallbacks(&scanCallbacks, true);
+    pScan->setActiveScan(false);
+    pScan->setInterval(CONNECTIONLESS_SCAN_INTERVAL);
+    pScan->setWindow(CONNECTIONLESS_SCAN_WINDOW);
+    pScan->setDuplicateFilter(false);
+    pScan->start(0, false, true);
   }
 
-  if(timeSynced && 
-  localTime % 86400 >= SLEEP_WINDOW_START_MIDNIGHT && localTime % 86400 <= SLEEP_WINDOW_END_MIDNIGHT && 
-  millis() - lastOperationTime >= 5 * 60 * 1000) {
-    BLEDevice::deinit();
-    Serial.println("Ready to enter deep sleep.");
+  // NimBLE keeps the address least significant byte first
+  void getAddress(uint8_t *address) override {
+    const uint8_t *own = NimBLEDevice::getAddress().getVal();
+    for (int i = 0; i < 6; i++) {
+      address[i] = own[5 - i];
+    }
+  }
 
-    SLEEP_DURATION = SLEEP_WINDOW_END_MIDNIGHT - localTime % 86400;
-    localTime += SLEEP_DURATION;
+  void deinit() override {
+    NimBLEDevice::deinit(true);
+  }
 
-    esp_sleep_enable_timer_wakeup(SLEEP_DURATION * 1000000ULL); // microsecond
-    esp_deep_sleep_start();
+private:
+  static void setStatusData(NimBLEAdvertising *pAdvertising, uint8_t status) {
+    const uint8_t data[] = {BATTERY_COMPANY_ID & 0xFF, BATTERY_COMPANY_ID >> 8, status};
+    pAdvertising->setManufacturerData(data, sizeof(data));
   }
-}
\ No newline at end of file
+
+  // The central's answer to requestLinkParams(), or parameters it chose itself
+  static int gapEventHandler(ble_gap_event *event, void *arg) {
+    if (event->type == BLE_GAP_EVENT_CONN_UPDATE) {
+      ble_gap_conn_desc desc;
+      if (ble_gap_conn_find(event->conn_update.conn_handle, &desc) == 0) {
+        linkParamsUpdated(event->conn_update.conn_handle, event->conn_update.status == 0,
+                          desc.conn_itvl, desc.conn_latency, desc.supervision_timeout);
+      }
+    }
+    return 0;
+  }
+};
+
+static BLEController MyBLEController;
+
+// Connectable first, everything else after: Serial is only started once the device advertises.
+void setup() {
+  firmwareBoot();
+  MyBLEController.init();
+
+  Serial.begin(115200);
+  Serial.printf("Advertising %lu us after start (setup entered at %lu us), average %lu us over %u boots.\n",
+                (unsigned long)bootStats.advertisingUs, (unsigned long)bootStats.setupUs,
+                (unsigned long)averageAdvertisingUs(), bootStats.boots);
+  Serial.println("BLE Ready. Send '0' or '1' to control.");
+}
+
+void loop() {
+  firmwareLoop(MyBLEController);
+}
@@ -0,0 +1,142 @@
+#include <Arduino.h>
+#include <freertos/FreeRTOS.h>
+#include "config.h"
+#include "scene.h"
+#include "servo_control.h"
+#include "actuation.h"
+#include "battery.h"
+#include "wear.h"
+#include "events.h"
+
+struct Actuation {
+  int8_t servo; // -1 if nothing waits
+  bool timed;
+  bool onTime; // timed and it was seen before its time
+  uint32_t at;
+  uint32_t receivedUs;
+};
+
+// Written by the BLE host task, taken by the loop task. The timings the other way round.
+static portMUX_TYPE lock = portMUX_INITIALIZER_UNLOCKED;
+static Actuation waiting[ACTUATION_SLOTS];
+static CommandTiming timings[ACTUATION_SLOTS];
+static int nextSlot = 0; // where the next turn starts
+static uint16_t sequence = 0;
+
+void actuationReset() {
+  portENTER_CRITICAL(&lock);
+  for (Actuation &actuation : waiting) actuation.servo = -1;
+  for (CommandTiming &timing : timings) timing = {};
+  nextSlot = 0;
+  portEXIT_CRITICAL(&lock);
+}
+
+void clearCommandTiming(int slot) {
+  if (slot < 0 || slot >= ACTUATION_SLOTS) return;
+  portENTER_CRITICAL(&lock);
+  timings[slot] = {};
+  portEXIT_CRITICAL(&lock);
+}
+
+void queueActuation(int slot, int servo, bool timed, uint32_t atMillisOfDay) {
+  if (slot < 0 || slot >= ACTUATION_SLOTS) return;
+  uint32_t now = micros();
+  portENTER_CRITICAL(&lock);
+  waiting[slot] = {(int8_t)servo, timed, false, atMillisOfDay, now};
+  portEXIT_CRITICAL(&lock);
+}
+
+// ms until the command may run, 0 if it may now. A timed command stays in its slot until its time, the loop's wait
+// ends then (actuationWait()). With the lock held.
+static unsigned long dueIn(Actuation &actuation) {
+  if (actuation.servo < 0) return WAIT_FOREVER;
+  if (!actuation.timed) return 0;
+  long wait = sceneWait(actuation.at);
+  if (wait >= 0) actuation.onTime = true;
+  return wait > 0 ? wait : 0; // refused ones are taken at once too
+}
+
+bool actuationPending() {
+  bool pending = false;
+  portENTER_CRITICAL(&lock);
+  for (Actuation &actuation : waiting) pending |= dueIn(actuation) == 0;
+  portEXIT_CRITICAL(&lock);
+  return pending;
+}
+
+unsigned long actuationWait() {
+  unsigned long wait = WAIT_FOREVER;
+  portENTER_CRITICAL(&lock);
+  for (Actuation &actuation : waiting) wait = min(wait, dueIn(actuation));
+  portEXIT_CRITICAL(&lock);
+  return wait;
+}
+
+int runNextActuation() {
+  Actuation next = {-1, false, false, 0, 0};
+  int slot = -1;
+  uint32_t dequeued = micros();
+  portENTER_CRITICAL(&lock);
+  for (int i = 0; i < ACTUATION_SLOTS; i++) {
+    slot = (nextSlot + i) % ACTUATION_SLOTS;
+    if (dueIn(waiting[slot]) != 0) continue;
+    next = waiting[slot];
+    waiting[slot].servo = -1;
+    nextSlot = (slot + 1) % ACTUATION_SLOTS;
+    if (++sequence == 0) sequence = 1;
+    // Readable while it runs, without TIMING_DONE
+    timings[slot] = {sequence, next.servo, (uint8_t)(next.timed ? TIMING_TIMED : 0), next.receivedUs, dequeued, {}};
+    break;
+  }
+  portEXIT_CRITICAL(&lock);
+
+  if (next.servo < 0) return -1;
+  servoTiming = {};
+  bool ran = true;
+  if (!batteryAllowsActuation()) {
+    Serial.println("Battery in reserve, command refused.");
+    if (next.timed) lastScene = {next.at, 0, SCENE_REFUSED};
+    ran = false;
+  } else if (next.timed) {
+    wearCommand(next.servo);
+    ran = runTimedCommand(next.servo, next.at, next.onTime);
+  } else {
+    wearCommand(next.servo);
+    activateServo(next.servo);
+  }
+  portENTER_CRITICAL(&lock);
+  timings[slot].steps = servoTiming;
+  timings[slot].flags |= TIMING_DONE | (ran ? 0 : TIMING_REFUSED);
+  portEXIT_CRITICAL(&lock);
+  return ran ? next.servo : -1;
+}
+
+static size_t put32(uint8_t *buf, size_t pos, uint32_t value) {
+  for (int i = 0; i < 4; i++) buf[pos++] = value >> (8 * i);
+  return pos;
+}
+
+// Steps that did not happen stay 0 instead of wrapping around
+static uint32_t since(uint32_t start, uint32_t at) {
+  return at ? at - start : 0;
+}
+
+void encodeCommandTiming(int slot, uint8_t *buf) {
+  CommandTiming timing = {};
+  if (slot >= 0 && slot < ACTUATION_SLOTS) {
+    portENTER_CRITICAL(&lock);
+    timing = timings[slot];
+    portEXIT_CRITICAL(&lock);
+  }
+  size_t pos = 0;
+  buf[pos++] = timing.sequence & 0xFF;
+  buf[pos++] = timing.sequence >> 8;
+  buf[pos++] = timing.servo;
+  buf[pos++] = timing.flags;
+  pos = put32(buf, pos, since(timing.receivedUs, timing.dequeuedUs));
+  pos = put32(buf, pos, since(timing.receivedUs, timing.steps.startUs));
+  pos = put32(buf, pos, since(timing.receivedUs, timing.steps.movingUs));
+  pos = put32(buf, pos, since(timing.receivedUs, timing.steps.reachedUs));
+  pos = put32(buf, pos, since(timing.receivedUs, timing.steps.returningUs));
+  put32(buf, pos, since(timing.receivedUs, timing.steps.endUs));
+}
@@ -0,0 +1,39 @@
+#pragma once
+#include <stdint.h>
+#include "config.h"
+#include "servo_control.h"
+
+// Servo commands from all clients, run by the loop task. Each client (a slot of link_policy) has one place:
+// a later command from the same client replaces its waiting one, so it ends up where that client last asked.
+// The loop takes the clients in turn, one command each, so a busy phone cannot hold the others off.
+// Connectionless commands (see connectionless.h) have a place of their own after the link slots.
+#define ACTUATION_SLOTS (LINK_SLOTS + 1)
+#define CONNECTIONLESS_SLOT LINK_SLOTS
+
+// Where the time of a command went, on the microsecond timer. Each slot keeps the record of its last command,
+// a client reads its own after the write (CHARACTERISTIC_UUID_COMMAND_TIMING).
+#define COMMAND_TIMING_LENGTH 28 // encoded size of a CommandTiming
+#define TIMING_DONE    0x01 // the command ran to the end, or was refused
+#define TIMING_TIMED   0x02 // a scene command, its wait in the queue includes the time until it fired
+#define TIMING_REFUSED 0x04
+
+struct CommandTiming {
+  uint16_t sequence; // counts the commands run, 0 = none on this connection yet
+  int8_t servo;
+  uint8_t flags;     // TIMING_*
+  uint32_t receivedUs, dequeuedUs; // micros() of the write and of the loop taking it
+  ServoTiming steps; // of activateServo(), all 0 if refused
+};
+
+void actuationReset(); // after boot, nothing waits
+void clearCommandTiming(int slot); // a new client took the slot
+// From the BLE callbacks. timed: fire at atMillisOfDay, see runTimedCommand().
+void queueActuation(int slot, int servo, bool timed, uint32_t atMillisOfDay);
+bool actuationPending(); // a command may run now
+unsigned long actuationWait(); // ms until a waiting command may run, 0 if one may now, WAIT_FOREVER if none waits
+// From the loop: the next client's command that may run. Timed commands wait for their time in the queue, the others
+// go on meanwhile. Returns the servo that moved, -1 if a timed command was refused or nothing could run.
+int runNextActuation();
+// sequence u16, servo u8, flags u8, then as u32 us since the write arrived: taken from the queue, servo entered,
+// settled, at the target, hold over, done. Offsets of steps that did not happen are 0.
+void encodeCommandTiming(int slot, uint8_t *buf);
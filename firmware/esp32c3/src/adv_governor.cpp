@@ -0,0 +1,60 @@
+#include <Arduino.h>
+#include <esp_attr.h>
+#include "config.h"
+#include "timekeeping.h"
+#include "adv_governor.h"
+#include "events.h"
+#include "battery.h"
+
+RTC_DATA_ATTR uint8_t usageHistogram[24] = {0}; // kept through deep sleep
+uint8_t advMode = ADV_MODE_NORMAL;
+
+void recordUsage() {
+  if (!timeSynced) return;
+
+  uint8_t &bin = usageHistogram[secondOfDay() / 3600];
+  if (bin == 255) {
+    // Halve everything instead of saturating, so old habits fade out
+    for (int i = 0; i < 24; i++) usageHistogram[i] >>= 1;
+  }
+  bin++;
+}
+
+bool isHighUseHour(int hour) {
+  uint16_t total = 0;
+  uint8_t peak = 0;
+  for (int i = 0; i < 24; i++) {
+    total += usageHistogram[i];
+    if (usageHistogram[i] > peak) peak = usageHistogram[i];
+  }
+  if (total < USAGE_MIN_SAMPLES) return false;
+  return usageHistogram[hour] * USAGE_HIGH_SHARE >= peak;
+}
+
+// What the usage alone asks for
+static uint8_t usageAdvMode() {
+  uint16_t total = 0;
+  for (int i = 0; i < 24; i++) total += usageHistogram[i];
+  if (!timeSynced || total < USAGE_MIN_SAMPLES) return ADV_MODE_NORMAL;
+
+  // Also look one hour ahead, so advertising is already fast when the busy hour starts
+  int hour = secondOfDay() / 3600;
+  if (isHighUseHour(hour) || isHighUseHour((hour + 1) % 24)) return ADV_MODE_FAST;
+  return ADV_MODE_SLOW;
+}
+
+// The battery tier has the last word, down to the reserve interval
+uint8_t selectAdvMode() {
+  const BatteryTier &tier = batteryPolicy();
+  if (tier.wakeBurst && millis() < FAST_ADV_BURST_TIME) return ADV_MODE_FAST;
+  return tier.advModes[usageAdvMode()];
+}
+
+unsigned long advModeTimeLeft() {
+  if (batteryPolicy().wakeBurst && millis() < FAST_ADV_BURST_TIME) return FAST_ADV_BURST_TIME - millis();
+
+  uint16_t total = 0;
+  for (int i = 0; i < 24; i++) total += usageHistogram[i];
+  if (!timeSynced || total < USAGE_MIN_SAMPLES) return WAIT_FOREVER;
+  return 3600 * 1000L - millisOfDay() % (3600 * 1000L); // the next hour
+}
@@ -0,0 +1,10 @@
+#pragma once
+#include <stdint.h>
+
+extern uint8_t usageHistogram[24]; // commands per hour of day, RTC memory
+extern uint8_t advMode;
+
+void recordUsage();
+bool isHighUseHour(int hour);
+uint8_t selectAdvMode();
+unsigned long advModeTimeLeft(); // ms until selectAdvMode() may change without a command
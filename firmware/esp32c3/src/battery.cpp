@@ -0,0 +1,84 @@
+#include <Arduino.h>
+#include <esp_attr.h>
+#include "config.h"
+#include "boot_timing.h"
+#include "battery.h"
+
+RTC_DATA_ATTR BatteryStats batteryStats = {};
+RTC_DATA_ATTR uint8_t batteryTier = BATTERY_TIER_NORMAL;
+
+static unsigned long measuredAt = 0;
+
+static uint16_t measure() {
+#if BATTERY_ADC_PIN >= 0
+  uint32_t total = 0;
+  for (int i = 0; i < BATTERY_SAMPLES; i++) total += analogReadMilliVolts(BATTERY_ADC_PIN);
+  return total * BATTERY_DIVIDER / BATTERY_SAMPLES;
+#else
+  return 0;
+#endif
+}
+
+// Down at once, up only with the margin
+static uint8_t tierFor(uint16_t millivolts, uint8_t current) {
+  uint8_t tier = 0;
+  while (tier < BATTERY_TIERS - 1 && millivolts < BATTERY_TIER_POLICY[tier].minMillivolts) tier++;
+  while (tier < current && millivolts < BATTERY_TIER_POLICY[tier].minMillivolts + BATTERY_HYSTERESIS_MV) tier++;
+  return tier;
+}
+
+static void update() {
+  measuredAt = millis();
+  uint16_t millivolts = measure();
+  if (millivolts == 0) return;
+  batteryStats.millivolts = millivolts;
+  if (batteryStats.lowestMillivolts == 0 || millivolts < batteryStats.lowestMillivolts) {
+    batteryStats.lowestMillivolts = millivolts;
+  }
+  uint8_t tier = tierFor(millivolts, batteryTier);
+  if (tier == batteryTier) return;
+  Serial.printf("Battery %umV, tier %u -> %u.\n", millivolts, batteryTier, tier);
+  batteryTier = tier;
+  batteryStats.tierChanges++;
+}
+
+void batteryBoot() {
+  bool newBattery = wakeCause == BOOT_WAKE_POWER_ON;
+  if (newBattery) {
+    batteryStats = {};
+    batteryTier = BATTERY_TIER_NORMAL; // lower tiers are taken at once, the first reading decides
+  }
+  update();
+  if (newBattery) batteryStats.tierChanges = 0;
+}
+
+void batteryLoop() {
+  if (millis() - measuredAt < BATTERY_CHECK_INTERVAL) return;
+  update();
+}
+
+const BatteryTier &batteryPolicy() {
+  return BATTERY_TIER_POLICY[batteryTier];
+}
+
+uint8_t batteryStatus() {
+  return batteryTier | (batteryTier >= BATTERY_TIER_LOW ? BATTERY_STATUS_LOW : 0);
+}
+
+bool batteryAllowsActuation() {
+  return batteryTier < BATTERY_TIER_RESERVE;
+}
+
+static size_t put16(uint8_t *buf, size_t pos, uint16_t value) {
+  buf[pos++] = value & 0xFF;
+  buf[pos++] = value >> 8;
+  return pos;
+}
+
+void encodeBatteryStats(uint8_t *buf) {
+  size_t pos = 0;
+  buf[pos++] = batteryTier;
+  pos = put16(buf, pos, batteryStats.millivolts);
+  pos = put16(buf, pos, batteryStats.lowestMillivolts);
+  put16(buf, pos, batteryStats.tierChanges);
+}
@@ -0,0 +1,36 @@
+#pragma once
+#include <stdint.h>
+#include "config.h"
+
+/*
+Battery governor. The battery voltage, measured while the servo rests, selects one of BATTERY_TIER_POLICY:
+the lower the battery, the slower the device advertises, the sooner it drops idle links and goes to sleep,
+and the longer it sleeps. A lower tier is taken at the first reading below its threshold, a higher one only
+BATTERY_HYSTERESIS_MV above it, so a cell recovering at rest does not flip back and forth.
+The advertisement carries the tier as manufacturer data, so phones see a low battery without connecting:
+  company u16 (0xFFFF)   status u8 (tier, BATTERY_STATUS_LOW from BATTERY_TIER_LOW on, ADV_STATUS_PROVISIONED)
+Without BATTERY_ADC_PIN the device stays in the first tier.
+*/
+#define BATTERY_COMPANY_ID 0xFFFF // the same as connectionless frames, which are longer
+#define BATTERY_STATUS_LOW 0x80
+#define BATTERY_STATS_LENGTH 7 // encoded size of the tier and BatteryStats
+
+// Kept through deep sleep, cleared at power-on (a new battery)
+struct BatteryStats {
+  uint16_t millivolts;       // last measurement, 0 if not fitted
+  uint16_t lowestMillivolts;
+  uint16_t tierChanges;
+};
+
+extern BatteryStats batteryStats; // RTC memory
+extern uint8_t batteryTier; // BATTERY_TIER_*, RTC memory
+
+void batteryBoot(); // before the radio: the tier decides how it advertises
+// Measure if BATTERY_CHECK_INTERVAL is over. From firmwareLoop(), without a deadline of its own: the voltage
+// moves over days, and waking the loop for it would cost what it saves.
+void batteryLoop();
+const BatteryTier &batteryPolicy(); // of the current tier
+uint8_t batteryStatus(); // its part of the advertised byte
+bool batteryAllowsActuation(); // false in the reserve tier
+// tier u8, millivolts u16, lowest u16, tier changes u16
+void encodeBatteryStats(uint8_t *buf);
@@ -0,0 +1,53 @@
+#include <Arduino.h>
+#include <esp_attr.h>
+#include <esp_sleep.h>
+#include "boot_timing.h"
+
+RTC_DATA_ATTR BootStats bootStats = {};
+uint8_t wakeCause = BOOT_WAKE_POWER_ON;
+
+void bootStarted() {
+  bootStats.setupUs = micros();
+  bootStats.advertisingUs = 0;
+  switch (esp_sleep_get_wakeup_cause()) {
+    case ESP_SLEEP_WAKEUP_TIMER: wakeCause = BOOT_WAKE_TIMER; break;
+    case ESP_SLEEP_WAKEUP_GPIO: wakeCause = BOOT_WAKE_BUTTON; break;
+    default: wakeCause = BOOT_WAKE_POWER_ON; break;
+  }
+}
+
+void bootAdvertising() {
+  if (bootStats.advertisingUs != 0) return; // only the first start after boot counts
+  uint32_t now = micros();
+  bootStats.advertisingUs = now > 0 ? now : 1;
+  bootStats.boots++;
+  bootStats.totalAdvertisingMs += bootStats.advertisingUs / 1000;
+  if (bootStats.advertisingUs > bootStats.maxAdvertisingUs) {
+    bootStats.maxAdvertisingUs = bootStats.advertisingUs;
+  }
+}
+
+uint32_t averageAdvertisingUs() {
+  return bootStats.boots == 0 ? 0 : bootStats.totalAdvertisingMs / bootStats.boots * 1000;
+}
+
+static size_t put16(uint8_t *buf, size_t pos, uint16_t value) {
+  buf[pos++] = value & 0xFF;
+  buf[pos++] = value >> 8;
+  return pos;
+}
+
+static size_t put32(uint8_t *buf, size_t pos, uint32_t value) {
+  pos = put16(buf, pos, value & 0xFFFF);
+  return put16(buf, pos, value >> 16);
+}
+
+void encodeBootStats(uint8_t *buf) {
+  size_t pos = 0;
+  buf[pos++] = wakeCause;
+  pos = put16(buf, pos, bootStats.boots);
+  pos = put32(buf, pos, bootStats.setupUs);
+  pos = put32(buf, pos, bootStats.advertisingUs);
+  pos = put32(buf, pos, averageAdvertisingUs());
+  put32(buf, pos, bootStats.maxAdvertisingUs);
+}
@@ -0,0 +1,27 @@
+#pragma once
+#include <stddef.h>
+#include <stdint.h>
+
+#define BOOT_WAKE_POWER_ON 0 // power-on or RST
+#define BOOT_WAKE_TIMER    1 // end of a sleep window
+#define BOOT_WAKE_BUTTON   2 // WAKE_BUTTON_PIN pressed in a sleep window
+#define BOOT_STATS_LENGTH 19 // encoded size of the wake cause and BootStats
+
+// How long every boot takes until the device is connectable, kept through deep sleep.
+// Times are micros() since the app started; the ROM and the bootloader before it are not counted.
+struct BootStats {
+  uint16_t boots;
+  uint32_t setupUs;          // last boot: setup() entered
+  uint32_t advertisingUs;    // last boot: advertising started
+  uint32_t maxAdvertisingUs;
+  uint32_t totalAdvertisingMs; // over all boots, for the average
+};
+
+extern BootStats bootStats; // RTC memory
+extern uint8_t wakeCause; // BOOT_WAKE_*
+
+void bootStarted(); // first thing in setup()
+void bootAdvertising(); // the radio is connectable
+uint32_t averageAdvertisingUs();
+// wake cause u8, boots u16, setup u32, advertising u32, average u32, max u32 (us)
+void encodeBootStats(uint8_t *buf);
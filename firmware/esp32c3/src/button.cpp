@@ -0,0 +1,35 @@
+#include <Arduino.h>
+#include <driver/gpio.h>
+#include <esp_sleep.h>
+#include "config.h"
+#include "boot_timing.h"
+#include "button.h"
+
+static bool pressPending = false; // woke on a press, not yet known how long it is held
+
+void buttonBoot() {
+  if (WAKE_BUTTON_PIN < 0) return;
+  pinMode(WAKE_BUTTON_PIN, INPUT_PULLUP);
+  pressPending = wakeCause == BOOT_WAKE_BUTTON;
+}
+
+// Called from the loop, so advertising has already started. The press began about when the chip woke.
+bool buttonLongPress() {
+  if (!pressPending) return false;
+  pressPending = false;
+  if (BUTTON_LONG_PRESS == 0) return false;
+  while (digitalRead(WAKE_BUTTON_PIN) == LOW) {
+    if (millis() >= BUTTON_LONG_PRESS) return true;
+    delay(BUTTON_POLL_INTERVAL);
+  }
+  return false;
+}
+
+// Level wakeup, the internal pull-up keeps the pin high while the button is open.
+// An external pull-up (10k to 3.3V) is more robust on long wires.
+void buttonEnableWakeup() {
+  if (WAKE_BUTTON_PIN < 0) return;
+  gpio_pullup_en((gpio_num_t)WAKE_BUTTON_PIN);
+  gpio_pulldown_dis((gpio_num_t)WAKE_BUTTON_PIN);
+  esp_deep_sleep_enable_gpio_wakeup(1ULL << WAKE_BUTTON_PIN, ESP_GPIO_WAKEUP_GPIO_LOW);
+}
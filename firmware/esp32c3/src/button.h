@@ -0,0 +1,7 @@
+#pragma once
+
+// The wake button on WAKE_BUTTON_PIN, see config.h
+void buttonBoot(); // after the wake cause is known
+// After a button wake, wait while the button is held. True once it was held for BUTTON_LONG_PRESS.
+bool buttonLongPress();
+void buttonEnableWakeup(); // before deep sleep
@@ -0,0 +1,135 @@
+#pragma once
+#include <stdint.h>
+
+/*
+In our example, the switch is on when its top is pressed and servos are on the right of the switch.
+*/
+
+#define SERVO_A_PIN 4 // lower servo, control off
+#define SERVO_B_PIN 2 // upper servo, control on
+#ifndef SERVO_CURRENT_PIN
+#define SERVO_CURRENT_PIN -1 // ADC pin across a shunt in the servo supply, used by calibration and the wear counters. -1 if not fitted
+#endif
+#define SERVO_SHUNT_MILLIOHM 100
+#ifndef WAKE_BUTTON_PIN
+#define WAKE_BUTTON_PIN 3 // push button to GND, wakes the device in a sleep window. -1 if not fitted.
+#endif                    // The ESP32-C3 has no ext0/ext1, only GPIO0 - GPIO5 can wake it from deep sleep.
+#ifndef BATTERY_ADC_PIN
+#define BATTERY_ADC_PIN -1 // ADC pin on a divider from the battery, used by the battery governor. -1 if not fitted
+#endif
+#define BATTERY_DIVIDER 2 // battery voltage / pin voltage, two equal resistors keep a full cell under the ADC's 2.5V
+
+// BLE UUID
+#define DEVICE_NAME       "Remote Switch"
+#define SERVICE_UUID_TIMESYNC       (uint16_t)0x1805
+#define CHARACTERISTIC_UUID_PHONETIME (uint16_t)0x2A2B
+#define SERVICE_UUID_SERVOCONTROL   (uint16_t)0x1815
+#define CHARACTERISTIC_UUID_SERVOSIGNAL (uint16_t)0x2A56
+#define SERVICE_UUID_CONFIG         (uint16_t)0xFFE0
+#define CHARACTERISTIC_UUID_DIAGNOSTICS (uint16_t)0xFFE1
+#define CHARACTERISTIC_UUID_SERVOPROFILE (uint16_t)0xFFE2
+#define CHARACTERISTIC_UUID_CONNECTIONLESS (uint16_t)0xFFE3
+#define CHARACTERISTIC_UUID_COMMAND_TIMING (uint16_t)0xFFE4
+#define CHARACTERISTIC_UUID_PROVISIONING (uint16_t)0xFFE5
+
+#define FIRMWARE_VERSION  "1.14.0"
+
+// Diagnostics record: a list of [tag][length][value] entries, multi-byte values are little-endian
+#define DIAG_TAG_FIRMWARE_VERSION 0x01 // ASCII string
+#define DIAG_TAG_ADVERTISING      0x02 // mode u8, min interval u16, max interval u16 (0.625ms units), fast burst left u16 (s)
+#define DIAG_TAG_USAGE_HISTOGRAM  0x03 // 24 x u8, commands per hour of day
+#define DIAG_TAG_LINK             0x04 // interval u16 (1.25ms units), latency u16, timeout u16 (10ms units) of the latest client, LinkStats, clients u8
+#define DIAG_TAG_SCENE            0x05 // last timed command: requested u32, fired u32 (ms of day), result u8
+#define DIAG_TAG_BOOT             0x06 // wake cause u8, boots u16, then setup, advertising, average and max advertising u32 (us since app start)
+#define DIAG_TAG_CONNECTIONLESS   0x07 // enabled u8, scan window u16, interval u16 (ms), then ConnectionlessStats, see connectionless.h
+#define DIAG_TAG_BATTERY          0x08 // tier u8, then BatteryStats, see battery.h
+#define DIAG_TAG_WEAR             0x09 // WearStats of both servos, see wear.h
+
+// Time Manage. The sleep windows are defaults, provisioning replaces them (see provisioning.h).
+const long SLEEP_WINDOW_START = 10 * 3600; // 10am
+const long SLEEP_WINDOW_END = 22 * 3600; // 10pm
+const long SLEEP_WINDOW_START_MIDNIGHT = 2 * 3600; // 2am
+const long SLEEP_WINDOW_END_MIDNIGHT = 7 * 3600; // 7am
+const unsigned long IDLE_BEFORE_SLEEP = 5 * 60 * 1000; // ms without operation before deep sleep is allowed
+const unsigned long LOOP_MAX_WAIT = 3600UL * 1000; // ms, the loop waits for events and its next deadline, but wakes at least this often
+
+// Power management, if the build has it (see power.h)
+const int PM_MAX_FREQ_MHZ = 160;
+const int PM_MIN_FREQ_MHZ = 40; // XTAL, the lowest the BLE controller allows
+
+// Wake button: a press in a sleep window wakes the device with the clock and schedule kept
+const unsigned long BUTTON_AWAKE_TIME = 60 * 1000; // ms awake after a button wake if nothing connects, fast advertising for the first FAST_ADV_BURST_TIME
+const unsigned long BUTTON_LONG_PRESS = 1000; // ms held from the wake on, then the switch is flipped without a phone. 0 = never
+const unsigned long BUTTON_POLL_INTERVAL = 20; // ms
+
+// Advertising governor
+#define ADV_MODE_NORMAL 0
+#define ADV_MODE_FAST   1
+#define ADV_MODE_SLOW   2
+#define ADV_MODE_RESERVE 3
+const uint16_t ADV_INTERVALS[4][2] = { // {min, max}, 0.625ms units
+  {0x0600, 0x0800}, // normal: 960ms - 1280ms, used until the histogram has learned enough
+  {0x0030, 0x0050}, // fast: 30ms - 50ms, after wake and in high-use hours
+  {0x1900, 0x2000}, // slow: 4000ms - 5120ms, in the rest of the active window
+  {0x3000, 0x4000}, // reserve: 7680ms - 10240ms (the longest BLE allows), only to show the low battery flag
+};
+const unsigned long FAST_ADV_BURST_TIME = 30 * 1000; // ms of fast advertising after every wake
+const uint16_t USAGE_MIN_SAMPLES = 8; // commands recorded before the histogram is trusted
+const uint8_t USAGE_HIGH_SHARE = 4; // an hour is high-use if it has at least 1/4 of the busiest hour's commands
+
+// Connection parameters. Instead of dropping the phone after a minute, an idle link is kept at a low duty cycle.
+#define LINK_PARAMS_ACTIVE 0
+#define LINK_PARAMS_IDLE   1
+const uint16_t LINK_PARAMS[2][4] = { // {min interval, max interval (1.25ms units), peripheral latency, supervision timeout (10ms units)}
+  {24, 40, 0, 400},     // active: 30ms - 50ms, answers every event, 4s timeout
+  {640, 800, 4, 1200},  // idle: 800ms - 1000ms and may skip 4 events, about one radio event every 5s like slow advertising, 12s timeout
+};
+const unsigned long LINK_IDLE_AFTER = 15 * 1000; // ms without operation before the idle parameters are requested
+const unsigned long MAX_IDLE_HOLD = 2 * 3600 * 1000UL; // ms an idle link is kept before disconnecting, 0 = until the next deep sleep
+
+// Phones connected at the same time. The stack takes one more, so a newcomer can always connect and the least recently
+// active client is dropped for it. NimBLE's CONFIG_BT_NIMBLE_MAX_CONNECTIONS must be at least LINK_SLOTS.
+#define MAX_CLIENTS 2
+#define LINK_SLOTS (MAX_CLIENTS + 1)
+
+// Scenes: a servo command can carry the time of day at which to fire, so several switches flip together
+const unsigned long SCENE_MAX_LEAD = 5000; // ms, later times are refused
+const unsigned long SCENE_MAX_LATE = 1000; // ms, a command that arrives this late still fires at once
+
+// Connectionless commands: the phone advertises a signed command, the device listens for it in short scan windows
+// next to its own advertising. Off until the app turns it on: listening 10% of the time adds about 8.5mA while awake.
+const uint16_t CONNECTIONLESS_SCAN_INTERVAL = 1200; // ms
+const uint16_t CONNECTIONLESS_SCAN_WINDOW = 120; // ms of each interval, longer than the phone's 100ms advertising interval
+const uint16_t SCAN_RX_CURRENT_MA = 85; // radio receiving at 160MHz, for the energy estimate
+const unsigned long CONNECTIONLESS_MAX_LATENCY = 60 * 1000; // ms, frames that took longer are still run but not timed
+
+// Battery governor: the battery voltage selects a tier, every tier trades speed for days of battery.
+// Thresholds are for one Li-ion cell at rest. The servo draws its peak from the same cell, so below the last
+// threshold it is no longer moved: the rest of the charge keeps the low battery flag on air for weeks.
+#define BATTERY_TIER_NORMAL  0
+#define BATTERY_TIER_SAVING  1
+#define BATTERY_TIER_LOW     2 // the last weeks: a usable but slower switch
+#define BATTERY_TIER_RESERVE 3 // advertises the low battery flag and refuses servo commands
+#define BATTERY_TIERS 4
+struct BatteryTier {
+  uint16_t minMillivolts;      // the tier holds down to this voltage
+  bool wakeBurst;              // fast advertising for FAST_ADV_BURST_TIME after every wake
+  uint8_t advModes[3];         // the advertising mode used instead of normal, fast and slow
+  bool connectionless;         // connectionless commands are listened for if the app turned them on
+  unsigned long maxIdleHold;   // ms, in place of MAX_IDLE_HOLD
+  unsigned long idleBeforeSleep; // ms, in place of IDLE_BEFORE_SLEEP
+  long sleepEarlier;           // s both sleep windows start earlier
+  long sleepLater;             // s both sleep windows end later
+};
+const BatteryTier BATTERY_TIER_POLICY[BATTERY_TIERS] = {
+  {3750, true, {ADV_MODE_NORMAL, ADV_MODE_FAST, ADV_MODE_SLOW}, true, MAX_IDLE_HOLD, IDLE_BEFORE_SLEEP, 0, 0},
+  {3550, true, {ADV_MODE_NORMAL, ADV_MODE_NORMAL, ADV_MODE_SLOW}, true, 30 * 60 * 1000UL, IDLE_BEFORE_SLEEP, 0, 1800},
+  {3350, true, {ADV_MODE_SLOW, ADV_MODE_SLOW, ADV_MODE_SLOW}, false, 5 * 60 * 1000UL, 2 * 60 * 1000UL, 1800, 3600},
+  {0, false, {ADV_MODE_RESERVE, ADV_MODE_RESERVE, ADV_MODE_RESERVE}, false, 60 * 1000UL, 60 * 1000UL, 3600, 5400},
+};
+const uint16_t BATTERY_HYSTERESIS_MV = 50; // a tier is left upwards only this far above its threshold
+const unsigned long BATTERY_CHECK_INTERVAL = 10 * 60 * 1000; // ms, at most one measurement per interval while awake, and one per boot
+const int BATTERY_SAMPLES = 8; // ADC readings averaged per measurement
+
+// Servo wear counters, see wear.h
+const unsigned long WEAR_RETRY_WINDOW = 10 * 1000; // ms, a command for the servo that moved last this recently counts as a retry
@@ -0,0 +1,276 @@
+#include <Arduino.h>
+#include <esp_attr.h>
+#include <esp_random.h>
+#include <freertos/FreeRTOS.h>
+#include <Preferences.h>
+#include <mbedtls/md.h>
+#include <mbedtls/sha256.h>
+#include "config.h"
+#include "timekeeping.h"
+#include "servo_control.h"
+#include "events.h"
+#include "connectionless.h"
+#include "battery.h"
+#include "adv_governor.h"
+
+// What is kept in NVS
+struct ConnectionlessState {
+  uint8_t key[CONNECTIONLESS_KEY_LENGTH];
+  uint8_t enabled;
+  uint32_t lastSequence; // the highest accepted from any phone
+};
+
+struct ConnectionlessPhone {
+  uint16_t id;
+  uint8_t used;
+  uint32_t lastSequence;
+};
+
+// Under a key of its own, so the state of older firmware still loads
+struct ConnectionlessPhones {
+  uint32_t floor; // the highest sequence of the phones that were dropped from the list
+  ConnectionlessPhone phones[CONNECTIONLESS_PHONES]; // most recently heard first
+};
+
+// What the host task's callbacks accepted and counted since the loop last took it
+struct ConnectionlessPending {
+  bool save; // the state changed
+  uint16_t accepted, rejected, replayed;
+  uint16_t latencySamples, lastLatencyMs, maxLatencyMs;
+  uint32_t latencyTotalMs;
+};
+
+RTC_DATA_ATTR ConnectionlessStats connectionlessStats = {};
+bool connectionlessEnabled = false;
+
+// The state only changes on the host task (the scan and the characteristic's writes), the loop saves a copy.
+// The stats the other way round: the loop adds what the callbacks counted.
+static portMUX_TYPE lock = portMUX_INITIALIZER_UNLOCKED;
+static Preferences prefs;
+static ConnectionlessState state;
+static ConnectionlessPhones known;
+static ConnectionlessPending pending = {};
+static bool scanning = false;
+static uint8_t addressHash[4];
+static unsigned long accountedAt = 0;
+static unsigned long scanRemainder = 0; // awake ms not yet counted as listening time
+
+static void saveState(const ConnectionlessState &saved, const ConnectionlessPhones &savedPhones) {
+  prefs.begin("connless", false);
+  prefs.putBytes("state", &saved, sizeof(saved));
+  prefs.putBytes("phones", &savedPhones, sizeof(savedPhones));
+  prefs.end();
+}
+
+static void newKey() {
+  esp_fill_random(state.key, sizeof(state.key));
+  state.lastSequence = 0;
+  known = {};
+}
+
+void connectionlessBoot() {
+  prefs.begin("connless", true);
+  bool found = prefs.getBytes("state", &state, sizeof(state)) == sizeof(state);
+  bool foundPhones = prefs.getBytes("phones", &known, sizeof(known)) == sizeof(known);
+  prefs.end();
+  if (!found) {
+    newKey();
+    state.enabled = 0;
+    saveState(state, known);
+  } else if (!foundPhones) {
+    known = {};
+    known.floor = state.lastSequence; // what firmware without the list ran stays refused
+  }
+  connectionlessEnabled = state.enabled;
+  scanning = false;
+  pending = {};
+  accountedAt = millis();
+}
+
+// Saved by the loop, see connectionlessRecord()
+void applyConnectionlessOp(const uint8_t *data, size_t len) {
+  if (len != 1) return;
+  portENTER_CRITICAL(&lock);
+  switch (data[0]) {
+    case CONNECTIONLESS_OP_DISABLE:
+    case CONNECTIONLESS_OP_ENABLE:
+      state.enabled = data[0] == CONNECTIONLESS_OP_ENABLE;
+      break;
+    case CONNECTIONLESS_OP_NEW_KEY:
+      newKey();
+      break;
+    default:
+      portEXIT_CRITICAL(&lock);
+      return;
+  }
+  connectionlessEnabled = state.enabled;
+  pending.save = true;
+  portEXIT_CRITICAL(&lock);
+  postEvent(EVENT_SETTING);
+}
+
+void connectionlessAccount() {
+  portENTER_CRITICAL(&lock);
+  unsigned long now = millis();
+  unsigned long elapsed = now - accountedAt;
+  accountedAt = now;
+  if (scanning) {
+    scanRemainder += elapsed;
+    connectionlessStats.scanMillis += scanRemainder / CONNECTIONLESS_SCAN_INTERVAL * CONNECTIONLESS_SCAN_WINDOW;
+    scanRemainder %= CONNECTIONLESS_SCAN_INTERVAL;
+  }
+  portEXIT_CRITICAL(&lock);
+}
+
+void connectionlessRecord() {
+  portENTER_CRITICAL(&lock);
+  ConnectionlessPending taken = pending;
+  pending = {};
+  ConnectionlessState saved = state;
+  ConnectionlessPhones savedPhones = known;
+  ConnectionlessStats &stats = connectionlessStats;
+  stats.accepted += taken.accepted;
+  stats.rejected += taken.rejected;
+  stats.replayed += taken.replayed;
+  if (taken.latencySamples > 0) {
+    stats.lastLatencyMs = taken.lastLatencyMs;
+    stats.maxLatencyMs = max(stats.maxLatencyMs, taken.maxLatencyMs);
+    stats.latencyTotalMs += taken.latencyTotalMs;
+    stats.latencySamples += taken.latencySamples;
+  }
+  portEXIT_CRITICAL(&lock);
+
+  if (taken.save) saveState(saved, savedPhones); // the sequence with every accepted frame, a few times a day
+  for (int i = 0; i < taken.accepted; i++) recordUsage();
+}
+
+void connectionlessLoop(Radio &radio) {
+  connectionlessRecord();
+  connectionlessAccount();
+  bool listen = connectionlessEnabled && batteryPolicy().connectionless; // the scan costs more than it saves on a low battery
+  if (listen == scanning) return;
+  if (listen) {
+    uint8_t address[6];
+    uint8_t digest[32];
+    radio.getAddress(address);
+    mbedtls_sha256(address, sizeof(address), digest, 0);
+    memcpy(addressHash, digest, sizeof(addressHash));
+  }
+  Serial.printf("Connectionless commands %s.\n", listen ? "on" : "off");
+  scanning = listen;
+  radio.setScanning(scanning);
+}
+
+static uint32_t get32(const uint8_t *p) {
+  return p[0] | p[1] << 8 | p[2] << 16 | (uint32_t)p[3] << 24;
+}
+
+static int findPhone(uint16_t id) {
+  for (int i = 0; i < CONNECTIONLESS_PHONES; i++) {
+    if (known.phones[i].used && known.phones[i].id == id) return i;
+  }
+  return -1;
+}
+
+// The last sequence a phone ran, or the floor for one the switch does not know
+static uint32_t lastSequenceOf(uint16_t id) {
+  int i = findPhone(id);
+  return i >= 0 ? known.phones[i].lastSequence : known.floor;
+}
+
+// To the front of the list. A new phone takes the place of the least recently heard one, whose sequence raises the floor.
+static void acceptSequence(uint16_t id, uint32_t sequence) {
+  int i = findPhone(id);
+  if (i < 0) {
+    i = CONNECTIONLESS_PHONES - 1;
+    const ConnectionlessPhone &dropped = known.phones[i];
+    if (dropped.used) known.floor = max(known.floor, dropped.lastSequence);
+  }
+  memmove(&known.phones[1], &known.phones[0], i * sizeof(ConnectionlessPhone));
+  known.phones[0] = {id, 1, sequence};
+  state.lastSequence = max(state.lastSequence, sequence);
+}
+
+// Only checks and takes the frame: the loop saves the sequence and adds the counts (connectionlessRecord())
+int connectionlessCommand(const uint8_t *data, size_t len) {
+  if (!scanning || len < 3) return -1;
+  if ((data[0] | data[1] << 8) != CONNECTIONLESS_COMPANY_ID) return -1;
+  bool withPhone = data[2] == CONNECTIONLESS_VERSION;
+  if (!(withPhone && len == CONNECTIONLESS_FRAME_LENGTH) && !(data[2] == 1 && len == CONNECTIONLESS_FRAME_LENGTH_V1)) return -1;
+  if (memcmp(data + 3, addressHash, sizeof(addressHash)) != 0) return -1; // another switch
+  uint16_t phone = withPhone ? data[7] | data[8] << 8 : 0;
+  const uint8_t *body = data + (withPhone ? 9 : 7); // sequence, command, sent at
+  uint32_t sequence = get32(body);
+  uint32_t last = lastSequenceOf(phone); // only the host task changes the list
+  if (sequence == last) return -1; // the phone advertises every frame for a while, seen already
+  char command = body[4];
+  if (command != '0' && command != '1') return -1;
+
+  uint8_t mac[32];
+  const size_t signedLength = len - 2 - CONNECTIONLESS_MAC_LENGTH;
+  mbedtls_md_hmac(mbedtls_md_info_from_type(MBEDTLS_MD_SHA256), state.key, sizeof(state.key), data + 2, signedLength, mac);
+  uint8_t diff = 0;
+  for (int i = 0; i < CONNECTIONLESS_MAC_LENGTH; i++) diff |= mac[i] ^ data[2 + signedLength + i]; // in constant time
+  // millisOfDay() only reads the clock, the loop task is the one that advances it
+  unsigned long latency = timeSynced ? (millisOfDay() - (long)get32(body + 5) + MILLIS_PER_DAY) % MILLIS_PER_DAY
+                                     : CONNECTIONLESS_MAX_LATENCY;
+  portENTER_CRITICAL(&lock);
+  bool replayed = diff == 0 && sequence < last;
+  if (diff != 0) {
+    pending.rejected++;
+  } else if (replayed) {
+    pending.replayed++;
+  } else {
+    acceptSequence(phone, sequence);
+    pending.save = true;
+    pending.accepted++;
+    if (latency < CONNECTIONLESS_MAX_LATENCY) {
+      pending.lastLatencyMs = latency;
+      pending.maxLatencyMs = max(pending.maxLatencyMs, (uint16_t)latency);
+      pending.latencyTotalMs += latency;
+      pending.latencySamples++;
+    }
+  }
+  portEXIT_CRITICAL(&lock);
+  if (diff != 0 || replayed) return -1;
+  Serial.printf("Connectionless '%c', phone %u, sequence %lu.\n", command, phone, (unsigned long)sequence);
+  return command == '1' ? SERVO_ON : SERVO_OFF;
+}
+
+static size_t put16(uint8_t *buf, size_t pos, uint16_t value) {
+  buf[pos++] = value & 0xFF;
+  buf[pos++] = value >> 8;
+  return pos;
+}
+
+static size_t put32(uint8_t *buf, size_t pos, uint32_t value) {
+  pos = put16(buf, pos, value & 0xFFFF);
+  return put16(buf, pos, value >> 16);
+}
+
+void encodeConnectionlessSettings(uint8_t *buf) {
+  memcpy(buf, state.key, sizeof(state.key));
+  buf[CONNECTIONLESS_KEY_LENGTH] = state.enabled;
+  size_t pos = put32(buf, CONNECTIONLESS_KEY_LENGTH + 1, state.lastSequence);
+  buf[pos] = CONNECTIONLESS_VERSION;
+}
+
+// As of the loop's last connectionlessRecord()
+void encodeConnectionlessStats(uint8_t *buf) {
+  connectionlessAccount();
+  portENTER_CRITICAL(&lock);
+  const ConnectionlessStats stats = connectionlessStats;
+  portEXIT_CRITICAL(&lock);
+  size_t pos = 0;
+  buf[pos++] = connectionlessEnabled;
+  pos = put16(buf, pos, CONNECTIONLESS_SCAN_WINDOW);
+  pos = put16(buf, pos, CONNECTIONLESS_SCAN_INTERVAL);
+  pos = put32(buf, pos, stats.scanMillis / 1000);
+  pos = put32(buf, pos, (uint64_t)stats.scanMillis * SCAN_RX_CURRENT_MA / 3600); // mA x ms to uAh
+  pos = put16(buf, pos, stats.accepted);
+  pos = put16(buf, pos, stats.rejected);
+  pos = put16(buf, pos, stats.replayed);
+  pos = put16(buf, pos, stats.lastLatencyMs);
+  pos = put16(buf, pos, stats.latencySamples ? stats.latencyTotalMs / stats.latencySamples : 0);
+  put16(buf, pos, stats.maxLatencyMs);
+}
@@ -0,0 +1,60 @@
+#pragma once
+#include <stddef.h>
+#include <stdint.h>
+#include "radio.h"
+
+/*
+Commands without a connection. The phone advertises manufacturer data with this frame, little-endian:
+  company u16 (0xFFFF)   version u8 (2)   address hash 4 bytes   phone u16   sequence u32   command u8 ('0'/'1')
+  sent at u32 (ms of day on the phone's clock)   MAC 8 bytes
+The address hash is the start of SHA-256 over this device's address (6 bytes, most significant first), so frames
+for other switches are dropped without computing a MAC. The MAC is HMAC-SHA256 over version to sent at, with
+a key the device generates once and keeps in NVS. Phones read it on the encrypted link after bonding.
+A frame is run once: each phone's sequence must grow. Every phone that reads the key counts on its own, so the switch
+keeps the last sequence of the CONNECTIONLESS_PHONES phones it heard from most recently, in NVS. A phone it does not
+know (any more) must be above the highest sequence of those it forgot. Version 1 frames, from apps before the phone
+field, have no phone and count as phone 0.
+*/
+#define CONNECTIONLESS_COMPANY_ID 0xFFFF // reserved by the Bluetooth SIG for tests, never shipped in products
+#define CONNECTIONLESS_VERSION 2
+#define CONNECTIONLESS_FRAME_LENGTH 26
+#define CONNECTIONLESS_FRAME_LENGTH_V1 24
+#define CONNECTIONLESS_PHONES 8
+#define CONNECTIONLESS_KEY_LENGTH 16
+#define CONNECTIONLESS_MAC_LENGTH 8
+#define CONNECTIONLESS_SETTINGS_LENGTH 22 // encoded size of the key, enabled, the last sequence and the version
+#define CONNECTIONLESS_STATS_LENGTH 25   // encoded size of the scan settings and ConnectionlessStats
+#define CONNECTIONLESS_OP_DISABLE 0x00
+#define CONNECTIONLESS_OP_ENABLE  0x01
+#define CONNECTIONLESS_OP_NEW_KEY 0x02 // phones that read the old key can no longer send
+
+// Kept through deep sleep, to weigh the listening against the connections it saves
+struct ConnectionlessStats {
+  uint32_t scanMillis;     // time spent listening, the windows only
+  uint16_t accepted;
+  uint16_t rejected;       // wrong MAC
+  uint16_t replayed;       // right MAC, old sequence
+  uint16_t lastLatencyMs;  // from the phone starting to advertise to the frame arriving
+  uint16_t maxLatencyMs;
+  uint16_t latencySamples;
+  uint32_t latencyTotalMs;
+};
+
+extern ConnectionlessStats connectionlessStats; // RTC memory
+extern bool connectionlessEnabled;
+
+void connectionlessBoot(); // load or create the key
+void applyConnectionlessOp(const uint8_t *data, size_t len); // a write to the characteristic
+// Start or stop the scan to match connectionlessEnabled and the battery tier. From firmwareLoop().
+void connectionlessLoop(Radio &radio);
+void connectionlessAccount(); // add the listening time since the last call, also before deep sleep
+// From the loop: save the state and add the stats and usage of what the callbacks accepted, also before deep sleep
+void connectionlessRecord();
+// Manufacturer data from the scan, on the host task. Returns the servo to move, -1 if it is not a new valid frame
+// for this device.
+int connectionlessCommand(const uint8_t *data, size_t len);
+// key, enabled u8, last sequence u32 (the highest of any phone), frame version u8
+void encodeConnectionlessSettings(uint8_t *buf);
+// enabled u8, window u16, interval u16, scan seconds u32, scan charge u32 (uAh), accepted u16, rejected u16,
+// replayed u16, last, average and max latency u16 (ms)
+void encodeConnectionlessStats(uint8_t *buf);
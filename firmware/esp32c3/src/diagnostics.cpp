@@ -0,0 +1,60 @@
+#include <Arduino.h>
+#include "config.h"
+#include "adv_governor.h"
+#include "link_policy.h"
+#include "scene.h"
+#include "boot_timing.h"
+#include "connectionless.h"
+#include "battery.h"
+#include "wear.h"
+#include "diagnostics.h"
+
+size_t putTlv(uint8_t *buf, size_t pos, uint8_t tag, const uint8_t *value, uint8_t len) {
+  buf[pos++] = tag;
+  buf[pos++] = len;
+  memcpy(buf + pos, value, len);
+  return pos + len;
+}
+
+size_t buildDiagnostics(uint8_t *buf) {
+  size_t len = 0;
+
+  len = putTlv(buf, len, DIAG_TAG_FIRMWARE_VERSION, (const uint8_t *)FIRMWARE_VERSION, strlen(FIRMWARE_VERSION));
+
+  unsigned long now = millis();
+  uint16_t burstLeft = now < FAST_ADV_BURST_TIME ? (FAST_ADV_BURST_TIME - now) / 1000 : 0;
+  uint8_t adv[7] = {
+    advMode,
+    (uint8_t)(ADV_INTERVALS[advMode][0] & 0xFF), (uint8_t)(ADV_INTERVALS[advMode][0] >> 8),
+    (uint8_t)(ADV_INTERVALS[advMode][1] & 0xFF), (uint8_t)(ADV_INTERVALS[advMode][1] >> 8),
+    (uint8_t)(burstLeft & 0xFF), (uint8_t)(burstLeft >> 8)
+  };
+  len = putTlv(buf, len, DIAG_TAG_ADVERTISING, adv, sizeof(adv));
+  len = putTlv(buf, len, DIAG_TAG_USAGE_HISTOGRAM, usageHistogram, sizeof(usageHistogram));
+
+  uint8_t link[LINK_STATS_LENGTH];
+  encodeLinkStats(link);
+  len = putTlv(buf, len, DIAG_TAG_LINK, link, sizeof(link));
+
+  uint8_t scene[SCENE_RECORD_LENGTH];
+  encodeSceneRecord(scene);
+  len = putTlv(buf, len, DIAG_TAG_SCENE, scene, sizeof(scene));
+
+  uint8_t boot[BOOT_STATS_LENGTH];
+  encodeBootStats(boot);
+  len = putTlv(buf, len, DIAG_TAG_BOOT, boot, sizeof(boot));
+
+  uint8_t connectionless[CONNECTIONLESS_STATS_LENGTH];
+  encodeConnectionlessStats(connectionless);
+  len = putTlv(buf, len, DIAG_TAG_CONNECTIONLESS, connectionless, sizeof(connectionless));
+
+  uint8_t battery[BATTERY_STATS_LENGTH];
+  encodeBatteryStats(battery);
+  len = putTlv(buf, len, DIAG_TAG_BATTERY, battery, sizeof(battery));
+
+  uint8_t wear[WEAR_STATS_LENGTH];
+  encodeWearStats(wear);
+  len = putTlv(buf, len, DIAG_TAG_WEAR, wear, sizeof(wear));
+
+  return len;
+}
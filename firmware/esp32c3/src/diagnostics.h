@@ -0,0 +1,8 @@
+#pragma once
+#include <stddef.h>
+#include <stdint.h>
+
+#define DIAGNOSTICS_MAX_LENGTH 192
+
+size_t putTlv(uint8_t *buf, size_t pos, uint8_t tag, const uint8_t *value, uint8_t len);
+size_t buildDiagnostics(uint8_t *buf); // buf holds DIAGNOSTICS_MAX_LENGTH bytes
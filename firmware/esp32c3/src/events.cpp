@@ -0,0 +1,23 @@
+#include <Arduino.h>
+#include <freertos/FreeRTOS.h>
+#include <freertos/task.h>
+#include "events.h"
+
+// Notification bits of the loop task: no queue to allocate, and events posted while the loop
+// is busy are kept until its next wait.
+static TaskHandle_t loopTask = nullptr;
+
+void eventsBoot() {
+  loopTask = xTaskGetCurrentTaskHandle();
+}
+
+void postEvent(uint32_t events) {
+  if (loopTask) xTaskNotify(loopTask, events, eSetBits);
+}
+
+uint32_t waitForEvents(unsigned long timeoutMs) {
+  uint32_t events = 0;
+  TickType_t ticks = timeoutMs == WAIT_FOREVER ? portMAX_DELAY : pdMS_TO_TICKS(timeoutMs);
+  xTaskNotifyWait(0, 0xFFFFFFFFUL, &events, ticks);
+  return events;
+}
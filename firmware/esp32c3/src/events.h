@@ -0,0 +1,15 @@
+#pragma once
+#include <stdint.h>
+
+// What wakes the firmware loop besides its own deadlines. Posted from the BLE callbacks.
+#define EVENT_LINK      0x01 // connected or disconnected
+#define EVENT_COMMAND   0x02 // servo command or time write
+#define EVENT_CALIBRATE 0x04 // pendingCalibration was set
+#define EVENT_SETTING   0x08 // connectionless commands turned on or off, or a provisioning write
+
+const unsigned long WAIT_FOREVER = 0xFFFFFFFFUL;
+
+void eventsBoot(); // from the loop task, before the first post
+void postEvent(uint32_t events); // from any task
+// Block the loop task until an event or the timeout (ms). Returns the events, 0 on timeout.
+uint32_t waitForEvents(unsigned long timeoutMs);
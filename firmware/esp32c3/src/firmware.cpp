@@ -0,0 +1,195 @@
+#include <Arduino.h>
+#include <esp_sleep.h>
+#include "firmware.h"
+
+unsigned long lastOperationTime = 0;
+static unsigned long idleBeforeSleep = IDLE_BEFORE_SLEEP; // shorter after a button wake until a phone connects
+static unsigned long loopWait = 0; // ms to the next deadline, as of the last pass
+static uint8_t advStatus = 0; // as the radio last advertised it
+
+void firmwareBoot() {
+  bootStarted();
+  eventsBoot();
+  powerBoot();
+  loopWait = 0;
+  lastOperationTime = millis();
+  localTime_millis = millis();
+  if (wakeCause != BOOT_WAKE_POWER_ON) {
+    clockAfterWake(); // however long the sleep really was
+  }
+  buttonBoot();
+  batteryBoot();
+  provisioningBoot();
+  advStatus = advertisedStatus();
+  idleBeforeSleep = wakeCause == BOOT_WAKE_BUTTON ? BUTTON_AWAKE_TIME : IDLE_BEFORE_SLEEP;
+  initServos();
+  wearBoot();
+  linkReset();
+  actuationReset();
+  connectionlessBoot();
+  advMode = selectAdvMode();
+}
+
+void handleAdvertising() {
+  bootAdvertising();
+}
+
+void handleConnect(uint16_t conn) {
+  lastOperationTime = millis();
+  idleBeforeSleep = IDLE_BEFORE_SLEEP;
+  linkConnected(conn);
+  clearCommandTiming(linkSlot(conn));
+  postEvent(EVENT_LINK);
+}
+
+void handleDisconnect(uint16_t conn, uint8_t reason) {
+  Serial.printf("Connection %u closed, reason 0x%02x\n", conn, reason);
+  linkDisconnected(conn, reason);
+  postEvent(EVENT_LINK);
+}
+
+void handlePhoneTime(uint16_t conn, const char *value, size_t len) {
+  long time;
+  if (!parseTimeMillis(value, len, &time)) {
+    Serial.println("Bad time ignored.");
+    return;
+  }
+  linkOperation(conn);
+  lastOperationTime = millis();
+  syncTimeMillis(time);
+  Serial.printf("Time synced: %.*s\n", (int)min(len, (size_t)12), value);
+  postEvent(EVENT_COMMAND);
+}
+
+// '0' or '1' to actuate now, or a scene command that also carries the time to fire at.
+// The write is answered at once, the loop runs the command in its client's turn.
+void handleServoSignal(uint16_t conn, const char *value, size_t len) {
+  if (len != 1 && len != SCENE_COMMAND_LENGTH) return;
+  if (value[0] != '0' && value[0] != '1') return;
+  int slot = linkSlot(conn);
+  if (slot < 0) return; // a connection linkConnected() had no slot for
+
+  linkOperation(conn);
+  lastOperationTime = millis();
+  recordUsage();
+  int servo = value[0] == '1' ? SERVO_ON : SERVO_OFF;
+  Serial.printf("Received '%c' on connection %u\n", value[0], conn);
+  if (len == SCENE_COMMAND_LENGTH) {
+    const uint8_t *at = (const uint8_t *)value + 1;
+    queueActuation(slot, servo, true, at[0] | at[1] << 8 | at[2] << 16 | (uint32_t)at[3] << 24);
+  } else {
+    queueActuation(slot, servo, false, 0);
+  }
+  postEvent(EVENT_COMMAND);
+}
+
+// From the BLE host task, for every advertisement the scan sees. The loop saves the sequence and counts the usage.
+void handleAdvertisedCommand(const uint8_t *data, size_t len) {
+  int servo = connectionlessCommand(data, len);
+  if (servo < 0) return;
+  lastOperationTime = millis();
+  queueActuation(CONNECTIONLESS_SLOT, servo, false, 0);
+  postEvent(EVENT_COMMAND);
+}
+
+uint8_t advertisedStatus() {
+  return batteryStatus() | (provisioned() ? ADV_STATUS_PROVISIONED : 0);
+}
+
+// Seconds left in [start, end), 0 outside. Stretched windows may reach over midnight.
+static long secondsLeftIn(long secondOfDay, long start, long end) {
+  const long day = MILLIS_PER_DAY / 1000;
+  long length = (end - start + day) % day;
+  long into = (secondOfDay - start + day) % day;
+  return into < length ? length - into : 0;
+}
+
+long sleepSecondsAt(long secondOfDay) {
+  const BatteryTier &tier = batteryPolicy();
+  long left = secondsLeftIn(secondOfDay, sleepWindows[0][0] - tier.sleepEarlier, sleepWindows[0][1] + tier.sleepLater);
+  if (left > 0) return left;
+  return secondsLeftIn(secondOfDay, sleepWindows[1][0] - tier.sleepEarlier, sleepWindows[1][1] + tier.sleepLater);
+}
+
+long millisToSleepWindow(long millisOfDay) {
+  long earlier = batteryPolicy().sleepEarlier * 1000;
+  long untilDay = ((sleepWindows[0][0] * 1000 - earlier - millisOfDay) % MILLIS_PER_DAY + MILLIS_PER_DAY) % MILLIS_PER_DAY;
+  long untilMidnight = ((sleepWindows[1][0] * 1000 - earlier - millisOfDay) % MILLIS_PER_DAY + MILLIS_PER_DAY) % MILLIS_PER_DAY;
+  return min(untilDay, untilMidnight);
+}
+
+static void enterDeepSleep(Radio &radio, long seconds) {
+  linkAccount(); // count the held and listening time up to here
+  connectionlessAccount();
+  connectionlessRecord();
+  radio.deinit();
+  Serial.println("Ready to enter deep sleep.");
+
+  clockBeforeSleep();
+  esp_sleep_enable_timer_wakeup(seconds * 1000000ULL); // microsecond
+  buttonEnableWakeup(); // whichever comes first
+  esp_deep_sleep_disable_rom_logging(); // the ROM prints its boot messages at 115200 baud before our code runs
+  esp_deep_sleep_start();
+}
+
+void firmwareLoop(Radio &radio) {
+  // A long press on the wake button flips the switch without a phone
+  if (buttonLongPress() && batteryAllowsActuation()) {
+    Serial.println("Button held, flipping the switch.");
+    recordUsage();
+    activateServo(lastServo == SERVO_OFF ? SERVO_ON : SERVO_OFF);
+    radio.notifyState(lastServo);
+    lastOperationTime = millis();
+  }
+  waitForEvents(loopWait);
+  // One command per client in turn, until none waits. Every client learns the new state.
+  while (actuationPending()) {
+    int servo = runNextActuation();
+    if (servo >= 0) radio.notifyState(servo);
+    lastOperationTime = millis();
+  }
+  if (pendingCalibration >= 0) {
+    calibrateServo(pendingCalibration);
+    pendingCalibration = -1;
+    lastOperationTime = millis();
+  }
+  // Measured with the servo at rest. A lower tier shortens the idle hold, advertises slower and sleeps longer.
+  batteryLoop();
+  provisioningLoop();
+  // A new tier or a provisioning write changes the advertised status
+  uint8_t status = advertisedStatus();
+  if (status != advStatus) {
+    advStatus = status;
+    radio.setAdvertisedStatus(status);
+  }
+  // Idle links go to a low duty cycle instead of being dropped, up to MAX_IDLE_HOLD. A client over MAX_CLIENTS makes room.
+  unsigned long wait = min(LOOP_MAX_WAIT, linkLoop(radio));
+  wait = min(wait, actuationWait()); // a scene command waits in the queue for its time
+  connectionlessLoop(radio);
+
+  updateLocalTime();
+
+  uint8_t mode = selectAdvMode();
+  if (mode != advMode) {
+    advMode = mode;
+    Serial.printf("Advertising mode: %d\n", mode);
+    radio.setAdvertisingMode(mode);
+  }
+  wait = min(wait, advModeTimeLeft());
+
+  // Never before the phone has set the clock. Otherwise at the end of the idle time, or when a sleep window starts.
+  if (timeSynced) {
+    unsigned long idleFor = millis() - lastOperationTime;
+    unsigned long idleLimit = min(idleBeforeSleep, batteryPolicy().idleBeforeSleep);
+    if (idleFor < idleLimit) {
+      wait = min(wait, idleLimit - idleFor);
+    } else {
+      long sleepSeconds = sleepSecondsAt(secondOfDay());
+      if (sleepSeconds > 0) {
+        enterDeepSleep(radio, sleepSeconds);
+      }
+      wait = min(wait, (unsigned long)millisToSleepWindow(millisOfDay()));
+    }
+  }
+  loopWait = wait;
+}
@@ -0,0 +1,38 @@
+#pragma once
+// Hardware-independent firmware logic. The sketch supplies the BLE stack through Radio,
+// test/ builds the same files on the host against mocks.
+#include "config.h"
+#include "radio.h"
+#include "timekeeping.h"
+#include "adv_governor.h"
+#include "servo_control.h"
+#include "link_policy.h"
+#include "actuation.h"
+#include "connectionless.h"
+#include "scene.h"
+#include "boot_timing.h"
+#include "button.h"
+#include "events.h"
+#include "power.h"
+#include "battery.h"
+#include "provisioning.h"
+#include "wear.h"
+#include "diagnostics.h"
+
+extern unsigned long lastOperationTime;
+
+void firmwareBoot(); // first thing after power-on and every wake from deep sleep, before the radio
+void handleAdvertising(); // the radio started advertising, the device is connectable
+// conn is the stack's connection handle, every phone connected at the same time has its own
+void handleConnect(uint16_t conn);
+void handleDisconnect(uint16_t conn, uint8_t reason); // HCI reason code
+void handlePhoneTime(uint16_t conn, const char *value, size_t len);
+void handleServoSignal(uint16_t conn, const char *value, size_t len); // queued, the loop actuates
+void handleAdvertisedCommand(const uint8_t *data, size_t len); // manufacturer data the scan picked up
+uint8_t advertisedStatus(); // the manufacturer data byte: batteryStatus() and ADV_STATUS_PROVISIONED
+// The provisioned sleep windows as the battery tier stretches them
+long sleepSecondsAt(long secondOfDay); // seconds left in the sleep window, 0 outside of it
+long millisToSleepWindow(long millisOfDay); // until the next sleep window starts
+// Waits for an event or the next deadline, then acts on it. Between the two the loop task is blocked
+// and the chip can light-sleep.
+void firmwareLoop(Radio &radio);
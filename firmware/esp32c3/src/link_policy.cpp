@@ -0,0 +1,263 @@
+#include <Arduino.h>
+#include <esp_attr.h>
+#include <freertos/FreeRTOS.h>
+#include "config.h"
+#include "link_policy.h"
+#include "battery.h"
+
+RTC_DATA_ATTR LinkStats linkStats = {};
+LinkSlot linkSlots[LINK_SLOTS];
+
+// The GAP and write callbacks run on the NimBLE host task, linkLoop() and linkAccount() on the loop task. The slots,
+// the stats and accountedAt are only touched under the lock; the radio and Serial are called after it is released.
+static portMUX_TYPE lock = portMUX_INITIALIZER_UNLOCKED;
+static unsigned long accountedAt = 0;
+
+void linkReset() {
+  portENTER_CRITICAL(&lock);
+  memset(linkSlots, 0, sizeof(linkSlots));
+  accountedAt = millis();
+  portEXIT_CRITICAL(&lock);
+}
+
+// The helpers below expect the lock to be held
+
+static int findSlot(uint16_t conn) {
+  for (int i = 0; i < LINK_SLOTS; i++) {
+    if (linkSlots[i].used && linkSlots[i].conn == conn) return i;
+  }
+  return -1;
+}
+
+static int latestSlot() {
+  int latest = -1;
+  for (int i = 0; i < LINK_SLOTS; i++) {
+    if (!linkSlots[i].used) continue;
+    if (latest < 0 || (long)(linkSlots[i].lastActivity - linkSlots[latest].lastActivity) >= 0) latest = i;
+  }
+  return latest;
+}
+
+static int countClients() {
+  int clients = 0;
+  for (const LinkSlot &slot : linkSlots) {
+    if (slot.used && !slot.closing) clients++;
+  }
+  return clients;
+}
+
+static void account() {
+  unsigned long now = millis();
+  unsigned long elapsed = now - accountedAt;
+  accountedAt = now;
+
+  for (LinkSlot &slot : linkSlots) {
+    if (!slot.used) continue;
+    slot.heldRemainder += elapsed;
+    linkStats.heldSeconds += slot.heldRemainder / 1000;
+    slot.heldRemainder %= 1000;
+    if (slot.idle && slot.interval > 0) {
+      slot.idleRemainder += elapsed;
+      linkStats.idleSeconds += slot.idleRemainder / 1000;
+      slot.idleRemainder %= 1000;
+      // Every (latency + 1)th event when there is nothing to send
+      slot.eventRemainder += elapsed * 4 / 5; // ms to 1.25ms units
+      uint32_t period = (uint32_t)slot.interval * (slot.latency + 1);
+      linkStats.idleEvents += slot.eventRemainder / period;
+      slot.eventRemainder %= period;
+    }
+  }
+}
+
+int linkSlot(uint16_t conn) {
+  portENTER_CRITICAL(&lock);
+  int i = findSlot(conn);
+  portEXIT_CRITICAL(&lock);
+  return i;
+}
+
+void linkConnected(uint16_t conn) {
+  bool placed = false;
+  portENTER_CRITICAL(&lock);
+  account();
+  for (int i = 0; i < LINK_SLOTS && !placed; i++) {
+    LinkSlot &slot = linkSlots[i];
+    if (slot.used) continue;
+    slot = {};
+    slot.used = true;
+    slot.conn = conn;
+    slot.params = LINK_PARAMS_ACTIVE; // the phone connects with short intervals
+    slot.lastActivity = millis();
+    linkStats.connections++;
+    placed = true;
+  }
+  portEXIT_CRITICAL(&lock);
+  if (!placed) Serial.printf("No slot for connection %u.\n", conn); // the stack allows more than LINK_SLOTS
+}
+
+void linkDisconnected(uint16_t conn, uint8_t reason) {
+  portENTER_CRITICAL(&lock);
+  account();
+  int i = findSlot(conn);
+  if (i >= 0) linkSlots[i] = {};
+  if (reason == DISCONNECT_REASON_TIMEOUT) linkStats.timeoutDisconnects++;
+  portEXIT_CRITICAL(&lock);
+}
+
+void linkParamsUpdated(uint16_t conn, bool accepted, uint16_t interval, uint16_t latency, uint16_t timeout) {
+  portENTER_CRITICAL(&lock);
+  account();
+  int i = findSlot(conn);
+  if (i >= 0 && !accepted) {
+    linkStats.rejectedUpdates++;
+  } else if (i >= 0) {
+    LinkSlot &slot = linkSlots[i];
+    slot.interval = interval;
+    slot.latency = latency;
+    slot.timeout = timeout;
+    bool nowIdle = latency > 0 || interval >= LINK_PARAMS[LINK_PARAMS_IDLE][0];
+    if (nowIdle && !slot.idle) linkStats.idleEntries++;
+    slot.idle = nowIdle;
+  }
+  portEXIT_CRITICAL(&lock);
+  if (i >= 0 && accepted) {
+    Serial.printf("Connection %u parameters: interval %.2fms, latency %d, timeout %dms\n", conn, interval * 1.25, latency, timeout * 10);
+  }
+}
+
+void linkOperation(uint16_t conn) {
+  portENTER_CRITICAL(&lock);
+  int i = findSlot(conn);
+  if (i >= 0) {
+    if (linkSlots[i].params == LINK_PARAMS_IDLE) linkStats.commandsOnIdleLink++;
+    linkSlots[i].lastActivity = millis();
+  }
+  portEXIT_CRITICAL(&lock);
+}
+
+int linkLatest() {
+  portENTER_CRITICAL(&lock);
+  int latest = latestSlot();
+  portEXIT_CRITICAL(&lock);
+  return latest;
+}
+
+int linkClients() {
+  portENTER_CRITICAL(&lock);
+  int clients = countClients();
+  portEXIT_CRITICAL(&lock);
+  return clients;
+}
+
+void linkAccount() {
+  portENTER_CRITICAL(&lock);
+  account();
+  portEXIT_CRITICAL(&lock);
+}
+
+// What linkLoop() decided under the lock, for the radio afterwards. The slot stays until the stack reports the disconnect.
+struct LinkAction {
+  uint16_t conn;
+  uint8_t params; // LINK_PARAMS_* to request, LINK_NO_PARAMS to disconnect
+  bool evicted;
+  int clients; // connected before an eviction
+};
+
+unsigned long linkLoop(Radio &radio) {
+  linkAccount();
+  if (radio.connectedCount() == 0) return WAIT_FOREVER;
+
+  LinkAction actions[2 * LINK_SLOTS];
+  int count = 0;
+  unsigned long wait = WAIT_FOREVER;
+  unsigned long maxIdleHold = batteryPolicy().maxIdleHold; // MAX_IDLE_HOLD on a good battery
+  portENTER_CRITICAL(&lock);
+  unsigned long now = millis();
+  while (countClients() > MAX_CLIENTS) {
+    int oldest = -1;
+    for (int i = 0; i < LINK_SLOTS; i++) {
+      const LinkSlot &slot = linkSlots[i];
+      if (!slot.used || slot.closing) continue;
+      if (oldest < 0 || (long)(slot.lastActivity - linkSlots[oldest].lastActivity) < 0) oldest = i;
+    }
+    if (oldest < 0) break;
+    actions[count++] = {linkSlots[oldest].conn, LINK_NO_PARAMS, true, countClients()};
+    linkStats.evictions++;
+    linkSlots[oldest].closing = true;
+  }
+
+  for (LinkSlot &slot : linkSlots) {
+    if (!slot.used || slot.closing) continue;
+    // Signed: a write on the host task may have stamped the slot after now was taken
+    long since = (long)(now - slot.lastActivity);
+    unsigned long idleFor = since > 0 ? since : 0;
+    if (maxIdleHold > 0 && idleFor >= maxIdleHold) {
+      actions[count++] = {slot.conn, LINK_NO_PARAMS, false, 0};
+      linkStats.idleHoldDisconnects++;
+      slot.closing = true;
+      continue;
+    }
+    uint8_t wanted = idleFor >= LINK_IDLE_AFTER ? LINK_PARAMS_IDLE : LINK_PARAMS_ACTIVE;
+    if (wanted != slot.params) {
+      slot.params = wanted;
+      actions[count++] = {slot.conn, wanted, false, 0};
+    }
+    if (idleFor < LINK_IDLE_AFTER) {
+      wait = min(wait, LINK_IDLE_AFTER - idleFor);
+    } else if (maxIdleHold > 0) {
+      wait = min(wait, maxIdleHold - idleFor);
+    }
+  }
+  portEXIT_CRITICAL(&lock);
+
+  for (int i = 0; i < count; i++) {
+    const LinkAction &action = actions[i];
+    if (action.params != LINK_NO_PARAMS) {
+      radio.requestLinkParams(action.conn, action.params);
+      continue;
+    }
+    if (action.evicted) {
+      Serial.printf("%d clients, dropping connection %u.\n", action.clients, action.conn);
+    } else {
+      Serial.printf("Idle hold over, disconnecting %u.\n", action.conn);
+    }
+    radio.disconnect(action.conn);
+  }
+  return wait;
+}
+
+static size_t put16(uint8_t *buf, size_t pos, uint16_t value) {
+  buf[pos++] = value & 0xFF;
+  buf[pos++] = value >> 8;
+  return pos;
+}
+
+static size_t put32(uint8_t *buf, size_t pos, uint32_t value) {
+  pos = put16(buf, pos, value & 0xFFFF);
+  return put16(buf, pos, value >> 16);
+}
+
+void encodeLinkStats(uint8_t *buf) {
+  portENTER_CRITICAL(&lock);
+  account();
+  int latest = latestSlot();
+  LinkSlot slot = latest >= 0 ? linkSlots[latest] : LinkSlot{};
+  LinkStats stats = linkStats;
+  int clients = countClients();
+  portEXIT_CRITICAL(&lock);
+  size_t pos = 0;
+  pos = put16(buf, pos, slot.interval);
+  pos = put16(buf, pos, slot.latency);
+  pos = put16(buf, pos, slot.timeout);
+  pos = put16(buf, pos, stats.connections);
+  pos = put16(buf, pos, stats.idleEntries);
+  pos = put16(buf, pos, stats.rejectedUpdates);
+  pos = put16(buf, pos, stats.commandsOnIdleLink);
+  pos = put16(buf, pos, stats.idleHoldDisconnects);
+  pos = put16(buf, pos, stats.timeoutDisconnects);
+  pos = put32(buf, pos, stats.heldSeconds);
+  pos = put32(buf, pos, stats.idleSeconds);
+  pos = put32(buf, pos, stats.idleEvents);
+  pos = put16(buf, pos, stats.evictions);
+  buf[pos] = clients;
+}
@@ -0,0 +1,57 @@
+#pragma once
+#include <stddef.h>
+#include <stdint.h>
+#include "config.h"
+#include "radio.h"
+#include "events.h"
+
+#define LINK_NO_PARAMS 0xFF
+#define LINK_STATS_LENGTH 33 // encoded size of the latest client's parameters, LinkStats and the client count
+#define DISCONNECT_REASON_TIMEOUT 0x08 // HCI connection timeout, the supervision timeout ran out
+
+// Keep-alive accounting, kept through deep sleep so a day of use can be compared with reconnecting every time.
+// Times and events are summed over the clients.
+struct LinkStats {
+  uint16_t connections;
+  uint16_t idleEntries;         // times the idle parameters were accepted
+  uint16_t rejectedUpdates;     // parameter requests the phone refused
+  uint16_t commandsOnIdleLink;  // commands that arrived on a link that had gone idle, each one a saved reconnect
+  uint16_t idleHoldDisconnects; // links dropped after MAX_IDLE_HOLD, or the battery tier's shorter hold
+  uint16_t timeoutDisconnects;  // links lost to the supervision timeout
+  uint32_t heldSeconds;         // connected, in total
+  uint32_t idleSeconds;         // of which with the idle parameters
+  uint32_t idleEvents;          // connection events attended while idle, to compare with advertising events
+  uint16_t evictions;           // clients dropped for a newcomer while MAX_CLIENTS were connected
+};
+
+// One connected phone. Each has its own idle timer and parameters.
+struct LinkSlot {
+  bool used;
+  bool closing;               // disconnect requested, waiting for the stack
+  uint16_t conn;              // the stack's connection handle
+  uint8_t params;             // LINK_PARAMS_* last requested
+  bool idle;                  // the idle parameters are in effect
+  uint16_t interval, latency, timeout; // as last reported by the stack
+  unsigned long lastActivity; // millis() of the connect or the last command or time write
+  unsigned long heldRemainder, idleRemainder; // ms not yet counted as a whole second
+  unsigned long eventRemainder; // in 1.25ms units
+};
+
+extern LinkStats linkStats; // RTC memory
+extern LinkSlot linkSlots[LINK_SLOTS];
+
+void linkReset(); // after boot, nothing is connected
+void linkConnected(uint16_t conn);
+void linkDisconnected(uint16_t conn, uint8_t reason);
+void linkParamsUpdated(uint16_t conn, bool accepted, uint16_t interval, uint16_t latency, uint16_t timeout);
+void linkOperation(uint16_t conn); // a command or time write arrived on this connection
+int linkSlot(uint16_t conn); // index into linkSlots, -1 if not connected
+int linkLatest(); // the most recently active client, -1 if none
+int linkClients(); // connected and not on the way out
+// Drop the least recently active client if more than MAX_CLIENTS are connected, request the idle or active
+// parameters and enforce the battery tier's idle hold per client. From firmwareLoop().
+// Returns the ms until it has something to do again, WAIT_FOREVER while disconnected.
+unsigned long linkLoop(Radio &radio);
+void linkAccount(); // add the time since the last call to the stats, also before deep sleep
+// interval u16, latency u16, timeout u16 of linkLatest(), the LinkStats fields in order, then linkClients() u8
+void encodeLinkStats(uint8_t *buf);
@@ -0,0 +1,39 @@
+#include <Arduino.h>
+#include "config.h"
+#include "power.h"
+
+#if CONFIG_PM_ENABLE
+#include <esp_pm.h>
+
+// The servo PWM (LEDC) runs from the APB clock and stops in light sleep
+static esp_pm_lock_handle_t apbLock = nullptr;
+static esp_pm_lock_handle_t noSleepLock = nullptr;
+#endif
+
+void powerBoot() {
+#if CONFIG_PM_ENABLE
+  esp_pm_config_t config = {};
+  config.max_freq_mhz = PM_MAX_FREQ_MHZ;
+  config.min_freq_mhz = PM_MIN_FREQ_MHZ;
+#if CONFIG_FREERTOS_USE_TICKLESS_IDLE
+  config.light_sleep_enable = true;
+#endif
+  if (esp_pm_configure(&config) != ESP_OK) return;
+  if (!apbLock) esp_pm_lock_create(ESP_PM_APB_FREQ_MAX, 0, "servo", &apbLock);
+  if (!noSleepLock) esp_pm_lock_create(ESP_PM_NO_LIGHT_SLEEP, 0, "servo", &noSleepLock);
+#endif
+}
+
+void powerHold() {
+#if CONFIG_PM_ENABLE
+  if (apbLock) esp_pm_lock_acquire(apbLock);
+  if (noSleepLock) esp_pm_lock_acquire(noSleepLock);
+#endif
+}
+
+void powerRelease() {
+#if CONFIG_PM_ENABLE
+  if (noSleepLock) esp_pm_lock_release(noSleepLock);
+  if (apbLock) esp_pm_lock_release(apbLock);
+#endif
+}
@@ -0,0 +1,9 @@
+#pragma once
+
+// ESP-IDF power management: the CPU clock scales down and the chip light-sleeps between BLE events
+// while the loop waits. Only where the build has it (CONFIG_PM_ENABLE, CONFIG_FREERTOS_USE_TICKLESS_IDLE),
+// otherwise these do nothing.
+void powerBoot();
+// Full clock and no light sleep, e.g. while a servo gets its PWM. Nests.
+void powerHold();
+void powerRelease();
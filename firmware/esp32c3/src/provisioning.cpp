@@ -0,0 +1,104 @@
+#include <Arduino.h>
+#include <freertos/FreeRTOS.h>
+#include <Preferences.h>
+#include "config.h"
+#include "timekeeping.h"
+#include "events.h"
+#include "provisioning.h"
+
+// What is kept in NVS, written once per provisioning
+struct ProvisioningState {
+  uint8_t provisioned;
+  uint32_t windows[2][2];
+  uint8_t labelLength;
+  char label[PROVISIONING_LABEL_MAX];
+};
+
+long sleepWindows[2][2];
+
+static Preferences prefs;
+static ProvisioningState state;
+static ProvisioningState written; // accepted on the host task, applied by provisioningLoop()
+static bool writePending;
+static portMUX_TYPE lock = portMUX_INITIALIZER_UNLOCKED;
+
+static uint32_t get32(const uint8_t *buf) {
+  return buf[0] | buf[1] << 8 | buf[2] << 16 | (uint32_t)buf[3] << 24;
+}
+
+static size_t put32(uint8_t *buf, size_t pos, uint32_t value) {
+  for (int i = 0; i < 4; i++) buf[pos++] = (value >> (8 * i)) & 0xFF;
+  return pos;
+}
+
+static void useState() {
+  for (int w = 0; w < 2; w++) {
+    sleepWindows[w][0] = state.windows[w][0];
+    sleepWindows[w][1] = state.windows[w][1];
+  }
+}
+
+void provisioningBoot() {
+  prefs.begin("provision", true);
+  bool found = prefs.getBytes("state", &state, sizeof(state)) == sizeof(state);
+  prefs.end();
+  if (!found) {
+    state = {};
+    state.windows[0][0] = SLEEP_WINDOW_START;
+    state.windows[0][1] = SLEEP_WINDOW_END;
+    state.windows[1][0] = SLEEP_WINDOW_START_MIDNIGHT;
+    state.windows[1][1] = SLEEP_WINDOW_END_MIDNIGHT;
+  }
+  useState();
+}
+
+bool provisioned() {
+  return state.provisioned;
+}
+
+void applyProvisioning(const uint8_t *data, size_t len) {
+  if (len < PROVISIONING_WINDOWS_LENGTH || len > PROVISIONING_WINDOWS_LENGTH + PROVISIONING_LABEL_MAX) return;
+  uint32_t windows[2][2];
+  for (int i = 0; i < 4; i++) {
+    windows[i / 2][i % 2] = get32(data + 4 * i);
+    if (windows[i / 2][i % 2] >= MILLIS_PER_DAY / 1000) return;
+  }
+  ProvisioningState write = {};
+  write.provisioned = 1;
+  memcpy(write.windows, windows, sizeof(windows));
+  write.labelLength = len - PROVISIONING_WINDOWS_LENGTH;
+  memcpy(write.label, data + PROVISIONING_WINDOWS_LENGTH, write.labelLength);
+  portENTER_CRITICAL(&lock);
+  written = write;
+  writePending = true;
+  portEXIT_CRITICAL(&lock);
+  postEvent(EVENT_SETTING);
+}
+
+void provisioningLoop() {
+  portENTER_CRITICAL(&lock);
+  bool apply = writePending;
+  if (apply) state = written;
+  writePending = false;
+  portEXIT_CRITICAL(&lock);
+  if (!apply) return;
+  useState();
+  prefs.begin("provision", false);
+  prefs.putBytes("state", &state, sizeof(state));
+  prefs.end();
+  Serial.printf("Provisioned as \"%.*s\".\n", state.labelLength, state.label);
+}
+
+size_t encodeProvisioning(uint8_t *buf) {
+  portENTER_CRITICAL(&lock);
+  const ProvisioningState current = state;
+  portEXIT_CRITICAL(&lock);
+  size_t pos = 0;
+  buf[pos++] = current.provisioned;
+  for (int w = 0; w < 2; w++) {
+    pos = put32(buf, pos, current.windows[w][0]);
+    pos = put32(buf, pos, current.windows[w][1]);
+  }
+  memcpy(buf + pos, current.label, current.labelLength);
+  return pos + current.labelLength;
+}
@@ -0,0 +1,25 @@
+#pragma once
+#include <stddef.h>
+#include <stdint.h>
+
+/*
+What the app's provisioning mode writes once, in the same session as the time and the servo profiles: the sleep
+windows and a label. Both are kept in NVS. Until the first write the device sleeps in SLEEP_WINDOW_* and advertises
+without ADV_STATUS_PROVISIONED, so a bulk scan tells new switches from installed ones without connecting.
+Characteristic value, little-endian:
+  provisioned u8   day window start u32, end u32   night window start u32, end u32 (s of day)   label (UTF-8)
+A write carries the same without the first byte. Encrypted both ways like the connectionless key: only bonded phones.
+*/
+#define PROVISIONING_WINDOWS_LENGTH 16
+#define PROVISIONING_LABEL_MAX 20 // bytes
+#define PROVISIONING_MAX_LENGTH (1 + PROVISIONING_WINDOWS_LENGTH + PROVISIONING_LABEL_MAX)
+#define ADV_STATUS_PROVISIONED 0x40 // in the advertised status byte, next to the battery tier (see battery.h)
+
+extern long sleepWindows[2][2]; // {start, end} in s of day, day window first
+
+void provisioningBoot(); // load the windows and label, before anything reads sleepWindows
+bool provisioned();
+// A write to the characteristic, on the host task. Malformed ones are ignored, the rest waits for provisioningLoop().
+void applyProvisioning(const uint8_t *data, size_t len);
+void provisioningLoop(); // from the loop: applies an accepted write to sleepWindows and NVS
+size_t encodeProvisioning(uint8_t *buf); // returns the length, at most PROVISIONING_MAX_LENGTH
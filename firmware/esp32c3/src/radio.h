@@ -0,0 +1,21 @@
+#pragma once
+#include <stdint.h>
+
+// What the firmware logic needs from the BLE stack. The sketch implements it on top of the real stack,
+// the host tests with a mock.
+class Radio {
+public:
+  virtual ~Radio() {}
+  virtual int connectedCount() = 0;
+  virtual void disconnect(uint16_t conn) = 0; // the stack reports it through handleDisconnect()
+  virtual void setAdvertisingMode(uint8_t mode) = 0; // ADV_MODE_*
+  virtual void setAdvertisedStatus(uint8_t status) = 0; // the manufacturer data byte, see advertisedStatus()
+  // Ask the central on conn for LINK_PARAMS[params]. The result comes back through linkParamsUpdated().
+  virtual void requestLinkParams(uint16_t conn, uint8_t params) = 0;
+  virtual void notifyState(int servo) = 0; // the servo that last moved, to every client that subscribed
+  // Listen for advertisements in CONNECTIONLESS_SCAN_WINDOW of every CONNECTIONLESS_SCAN_INTERVAL, next to
+  // advertising and the connections. Manufacturer data goes to handleAdvertisedCommand().
+  virtual void setScanning(bool on) = 0;
+  virtual void getAddress(uint8_t *address) = 0; // this device's, 6 bytes, most significant first
+  virtual void deinit() = 0; // before deep sleep
+};
@@ -0,0 +1,39 @@
+#include <Arduino.h>
+#include "config.h"
+#include "timekeeping.h"
+#include "servo_control.h"
+#include "scene.h"
+
+SceneRecord lastScene = {0, 0, SCENE_NONE};
+
+long sceneWait(uint32_t atMillisOfDay) {
+  if (!timeSynced || atMillisOfDay >= (uint32_t)MILLIS_PER_DAY) return SCENE_WAIT_REFUSE;
+  // Ahead or behind, across midnight
+  long ahead = ((long)atMillisOfDay - millisOfDay() + MILLIS_PER_DAY) % MILLIS_PER_DAY;
+  long behind = ahead == 0 ? 0 : MILLIS_PER_DAY - ahead;
+  if (ahead <= (long)SCENE_MAX_LEAD) return ahead;
+  if (behind <= (long)SCENE_MAX_LATE) return SCENE_WAIT_LATE;
+  return SCENE_WAIT_REFUSE;
+}
+
+bool runTimedCommand(int servo, uint32_t atMillisOfDay, bool onTime) {
+  long wait = sceneWait(atMillisOfDay);
+  if (wait == SCENE_WAIT_REFUSE) {
+    Serial.println("Timed command refused, not synced or too far from its time.");
+    lastScene = {atMillisOfDay, 0, SCENE_REFUSED};
+    return false;
+  }
+  uint8_t result = wait >= 0 || onTime ? SCENE_ON_TIME : SCENE_LATE;
+  lastScene = {atMillisOfDay, (uint32_t)millisOfDay(), result};
+  Serial.printf("Timed command fired at %lu, requested %lu.\n", (unsigned long)lastScene.fired, (unsigned long)lastScene.requested);
+  activateServo(servo);
+  return true;
+}
+
+void encodeSceneRecord(uint8_t *buf) {
+  for (int i = 0; i < 4; i++) {
+    buf[i] = lastScene.requested >> (8 * i);
+    buf[4 + i] = lastScene.fired >> (8 * i);
+  }
+  buf[8] = lastScene.result;
+}
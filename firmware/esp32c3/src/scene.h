@@ -0,0 +1,30 @@
+#pragma once
+#include <stddef.h>
+#include <stdint.h>
+
+#define SCENE_COMMAND_LENGTH 5 // '0' or '1', then the time to fire at, u32 ms of day
+#define SCENE_NONE    0
+#define SCENE_ON_TIME 1
+#define SCENE_LATE    2 // arrived after its time, fired at once
+#define SCENE_REFUSED 3 // not synced, or too far in the past or future
+#define SCENE_RECORD_LENGTH 9
+
+struct SceneRecord {
+  uint32_t requested; // ms of day
+  uint32_t fired;     // ms of day on this switch's clock, when the actuation started
+  uint8_t result;     // SCENE_*
+};
+
+extern SceneRecord lastScene;
+
+#define SCENE_WAIT_LATE   -1L // past its time but within SCENE_MAX_LATE, fire at once
+#define SCENE_WAIT_REFUSE -2L
+
+// ms until the given time of day on the synced clock (0: fire now), or SCENE_WAIT_*. Only reads the clock.
+long sceneWait(uint32_t atMillisOfDay);
+// Actuate now, or refuse, as sceneWait() says. The loop keeps the command until then instead of blocking for it
+// (see runNextActuation()). onTime: it was waited for, so a late wake of the loop still counts as on time.
+// Blocks like activateServo(). lastScene changes only once the command fired or was refused. Returns false if refused.
+bool runTimedCommand(int servo, uint32_t atMillisOfDay, bool onTime);
+// requested u32, fired u32, result u8
+void encodeSceneRecord(uint8_t *buf);
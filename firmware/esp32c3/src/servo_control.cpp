@@ -0,0 +1,290 @@
+#include <Arduino.h>
+#include <ESP32Servo.h>
+#include <Preferences.h>
+#include <esp_attr.h>
+#include "events.h"
+#include "power.h"
+#include "config.h"
+#include "servo_control.h"
+#include "wear.h"
+
+// The old fixed behaviour: jump 30°, wait 1s, jump back, wait 1s
+const ServoProfile DEFAULT_PROFILES[2] = {
+  {30, 0, 0, 1000, PROFILE_DEFAULT}, // Turn off, the lower servo rotate 30°
+  {0, 30, 0, 1000, PROFILE_DEFAULT}, // Turn on, the upper servo rotate 30°
+};
+const uint8_t SERVO_PINS[2] = {SERVO_A_PIN, SERVO_B_PIN};
+const uint8_t SERVO_MS_PER_DEGREE = 3; // travel time of an unloaded SG90 with some margin
+const unsigned long SERVO_SETTLE_TIME = 30; // ms for the supply to settle before attaching
+
+// Calibration thresholds for the servo supply current
+const int CAL_CONTACT_MA = 150;   // the horn is pressing the switch
+const int CAL_TOGGLE_DROP_MA = 80; // current falls this much below the peak when the switch snaps over
+const int CAL_STALL_MA = 600;     // pushing against something that does not give
+const int CAL_SETTLE_MA = 40;     // the servo has reached its position
+const uint8_t CAL_MAX_TRAVEL = 60; // degrees searched from the return angle
+const uint8_t CAL_STEP_TIME = 15;  // ms per degree while searching
+const uint8_t CAL_MARGIN_DEGREES = 3;
+const uint16_t CAL_HOLD_MARGIN = 80; // ms
+const uint8_t CAL_TRIALS = 3;
+
+Servo servoA;
+Servo servoB;
+ServoProfile servoProfiles[2];
+ServoTiming servoTiming;
+Preferences servoPrefs;
+bool isActivated = false;
+int pendingCalibration = -1;
+RTC_DATA_ATTR int8_t lastServo = -1;
+
+static Servo &servoFor(int idx) {
+  return idx == SERVO_OFF ? servoA : servoB;
+}
+
+static void profileKey(char *key, int idx) {
+  strcpy(key, "profile0");
+  key[7] = '0' + idx;
+}
+
+void initServos() {
+  isActivated = false;
+  pendingCalibration = -1;
+  loadServoProfiles();
+}
+
+void loadServoProfiles() {
+  char key[9];
+  servoPrefs.begin("servo", true);
+  for (int i = 0; i < 2; i++) {
+    profileKey(key, i);
+    if (servoPrefs.getBytes(key, &servoProfiles[i], sizeof(ServoProfile)) != sizeof(ServoProfile)) {
+      servoProfiles[i] = DEFAULT_PROFILES[i];
+    }
+  }
+  servoPrefs.end();
+}
+
+void saveServoProfile(int idx) {
+  char key[9];
+  profileKey(key, idx);
+  servoPrefs.begin("servo", false);
+  if (servoProfiles[idx].source == PROFILE_DEFAULT) {
+    servoPrefs.remove(key);
+  } else {
+    servoPrefs.putBytes(key, &servoProfiles[idx], sizeof(ServoProfile));
+  }
+  servoPrefs.end();
+}
+
+static int readServoCurrent() {
+#if SERVO_CURRENT_PIN >= 0
+  return analogReadMilliVolts(SERVO_CURRENT_PIN) * 1000 / SERVO_SHUNT_MILLIOHM; // mA
+#else
+  return 0;
+#endif
+}
+
+// Move to an angle at the profile's ramp speed, or jump and wait for the travel time
+static void moveServo(Servo &servo, int from, int to, uint16_t rampSpeed) {
+  if (rampSpeed == 0) {
+    servo.write(to);
+    delay(abs(to - from) * SERVO_MS_PER_DEGREE);
+    return;
+  }
+  int step = to > from ? 1 : -1;
+  unsigned long stepTime = max(1000UL / rampSpeed, (unsigned long)SERVO_MS_PER_DEGREE);
+  for (int angle = from; angle != to; ) {
+    angle += step;
+    servo.write(angle);
+    delay(stepTime);
+  }
+}
+
+// Move to the target, hold and return, with the steps in timing. Returns true if the switch did not give.
+static bool actuate(int idx, ServoTiming &timing) {
+  timing.startUs = micros();
+  powerHold();
+  const ServoProfile &p = servoProfiles[idx];
+  Servo &servo = servoFor(idx);
+  delay(SERVO_SETTLE_TIME);  // Waiting for stablity
+
+  timing.movingUs = micros();
+  servo.attach(SERVO_PINS[idx]);
+  servo.write(p.returnAngle);
+  moveServo(servo, p.returnAngle, p.targetAngle, p.rampSpeed);
+  timing.reachedUs = micros();
+  delay(p.holdTime);
+  bool stalled = readServoCurrent() >= CAL_STALL_MA; // the switch did not give
+  timing.returningUs = micros();
+  moveServo(servo, p.targetAngle, p.returnAngle, p.rampSpeed); // restore
+  servo.detach();
+  timing.endUs = micros();
+  powerRelease();
+  return stalled;
+}
+
+void activateServo(int idx) {
+  if(!isActivated){
+    isActivated = true;
+    bool stalled = actuate(idx, servoTiming);
+    lastServo = idx;
+    wearActuated(idx, (servoTiming.endUs - servoTiming.startUs) / 1000, stalled);
+    isActivated = false;
+  }
+}
+
+#if SERVO_CURRENT_PIN >= 0
+// Step towards the switch until it snaps over. Returns the angle where it toggled, or -1.
+static int findToggleAngle(int idx) {
+  const ServoProfile &p = servoProfiles[idx];
+  Servo &servo = servoFor(idx);
+  int dir = p.targetAngle >= p.returnAngle ? 1 : -1;
+  int angle = p.returnAngle;
+  int peak = 0;
+  int toggleAngle = -1;
+
+  servo.attach(SERVO_PINS[idx]);
+  servo.write(angle);
+  delay(CAL_MAX_TRAVEL * SERVO_MS_PER_DEGREE);
+  for (int i = 0; i < CAL_MAX_TRAVEL && angle + dir >= 0 && angle + dir <= 180; i++) {
+    angle += dir;
+    servo.write(angle);
+    delay(CAL_STEP_TIME);
+    int current = readServoCurrent();
+    if (current > peak) peak = current;
+    if (peak >= CAL_CONTACT_MA && current <= peak - CAL_TOGGLE_DROP_MA) {
+      toggleAngle = angle;
+      break;
+    }
+    if (current >= CAL_STALL_MA) break;
+  }
+  moveServo(servo, angle, p.returnAngle, 0);
+  servo.detach();
+  return toggleAngle;
+}
+
+// Jump to the angle and return the ms until the servo current settles, or 0 if the switch did not toggle.
+static unsigned long measureActuation(int idx, uint8_t angle) {
+  const ServoProfile &p = servoProfiles[idx];
+  Servo &servo = servoFor(idx);
+  int peak = 0;
+  bool toggled = false;
+  unsigned long settledAfter = 0;
+
+  servo.attach(SERVO_PINS[idx]);
+  unsigned long start = millis();
+  servo.write(angle);
+  while (millis() - start < CAL_MAX_TRAVEL * SERVO_MS_PER_DEGREE * 4) {
+    int current = readServoCurrent();
+    if (current > peak) peak = current;
+    if (peak >= CAL_CONTACT_MA && current <= peak - CAL_TOGGLE_DROP_MA) toggled = true;
+    if (toggled && current <= CAL_SETTLE_MA) {
+      settledAfter = millis() - start;
+      break;
+    }
+    delay(2);
+  }
+  moveServo(servo, angle, p.returnAngle, 0);
+  servo.detach();
+  return toggled ? max(settledAfter, 1UL) : 0;
+}
+#endif
+
+// Find the smallest angle and shortest hold that flip the switch every time. The other servo first puts the
+// switch in the opposite state, whatever the last command left, and flips it back after each trial. These flips
+// are not commands: they leave lastServo, servoTiming and the wear counters alone.
+void calibrateServo(int idx) {
+  ServoProfile &p = servoProfiles[idx];
+  Serial.printf("Calibrating servo %d\n", idx);
+#if SERVO_CURRENT_PIN < 0
+  p.source = PROFILE_CAL_FAILED;
+  saveServoProfile(idx);
+  Serial.println("Calibration needs SERVO_CURRENT_PIN.");
+#else
+  ServoTiming flip;
+  powerHold();
+  actuate(1 - idx, flip); // otherwise the search pushes against the stop half the time
+  isActivated = true;
+  int toggleAngle = findToggleAngle(idx);
+  isActivated = false;
+  if (toggleAngle < 0) {
+    p.source = PROFILE_CAL_FAILED;
+    saveServoProfile(idx);
+    Serial.println("Calibration failed: switch did not toggle.");
+    powerRelease();
+    return;
+  }
+  actuate(1 - idx, flip);
+
+  int dir = p.targetAngle >= p.returnAngle ? 1 : -1;
+  uint8_t target = constrain(toggleAngle + dir * CAL_MARGIN_DEGREES, 0, 180);
+  unsigned long worst = 0;
+  for (int i = 0; i < CAL_TRIALS; i++) {
+    isActivated = true;
+    unsigned long t = measureActuation(idx, target);
+    isActivated = false;
+    if (t == 0) {
+      p.source = PROFILE_CAL_FAILED;
+      saveServoProfile(idx);
+      Serial.printf("Calibration failed: trial %d did not toggle.\n", i);
+      powerRelease();
+      return;
+    }
+    worst = max(worst, t);
+    actuate(1 - idx, flip);
+  }
+
+  p.targetAngle = target;
+  p.rampSpeed = 0;
+  // moveServo() already waits the nominal travel time, the hold only covers what the load adds
+  unsigned long nominal = abs(target - p.returnAngle) * SERVO_MS_PER_DEGREE;
+  p.holdTime = (worst > nominal ? worst - nominal : 0) + CAL_HOLD_MARGIN;
+  p.source = PROFILE_CALIBRATED;
+  saveServoProfile(idx);
+  powerRelease();
+  Serial.printf("Calibrated servo %d: %d°, hold %dms\n", idx, target, p.holdTime);
+#endif
+}
+
+void applyServoProfileOp(const uint8_t *data, size_t len) {
+  if (len < 2 || data[1] > SERVO_ON) return;
+  int idx = data[1];
+
+  switch (data[0]) {
+    case PROFILE_OP_SET:
+      if (len < 8) return;
+      servoProfiles[idx].targetAngle = min(data[2], (uint8_t)180);
+      servoProfiles[idx].returnAngle = min(data[3], (uint8_t)180);
+      servoProfiles[idx].rampSpeed = data[4] | data[5] << 8;
+      servoProfiles[idx].holdTime = data[6] | data[7] << 8;
+      servoProfiles[idx].source = PROFILE_USER;
+      saveServoProfile(idx);
+      break;
+    case PROFILE_OP_CALIBRATE:
+      pendingCalibration = idx; // takes seconds, so it runs from loop()
+      postEvent(EVENT_CALIBRATE);
+      break;
+    case PROFILE_OP_RESET:
+      servoProfiles[idx] = DEFAULT_PROFILES[idx];
+      saveServoProfile(idx);
+      break;
+    case PROFILE_OP_RESET_WEAR:
+      wearReset(idx);
+      break;
+  }
+}
+
+void encodeServoProfiles(uint8_t *buf) {
+  for (int i = 0; i < 2; i++) {
+    const ServoProfile &p = servoProfiles[i];
+    uint8_t *entry = buf + i * 8;
+    entry[0] = i;
+    entry[1] = p.targetAngle;
+    entry[2] = p.returnAngle;
+    entry[3] = p.rampSpeed & 0xFF;
+    entry[4] = p.rampSpeed >> 8;
+    entry[5] = p.holdTime & 0xFF;
+    entry[6] = p.holdTime >> 8;
+    entry[7] = pendingCalibration == i ? PROFILE_CALIBRATING : p.source;
+  }
+}
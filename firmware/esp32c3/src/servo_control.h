@@ -0,0 +1,50 @@
+#pragma once
+#include <stddef.h>
+#include <stdint.h>
+
+// Servo motion profiles, stored in NVS
+#define SERVO_OFF 0 // servo A
+#define SERVO_ON  1 // servo B
+#define PROFILE_DEFAULT     0
+#define PROFILE_USER        1
+#define PROFILE_CALIBRATED  2
+#define PROFILE_CAL_FAILED  3
+#define PROFILE_CALIBRATING 4 // only reported, while a calibration is waiting to run
+#define PROFILE_OP_SET       0x01 // servo u8, target u8, return u8, ramp u16 (deg/s, 0 = jump), hold u16 (ms)
+#define PROFILE_OP_CALIBRATE 0x02 // servo u8
+#define PROFILE_OP_RESET     0x03 // servo u8
+#define PROFILE_OP_RESET_WEAR 0x04 // servo u8, the servo was replaced, see wear.h
+#define SERVO_PROFILES_LENGTH 16 // encoded size of both profiles
+
+struct ServoProfile {
+  uint8_t targetAngle;
+  uint8_t returnAngle;
+  uint16_t rampSpeed; // deg/s, 0 = jump straight to the angle
+  uint16_t holdTime;  // ms at the target angle after it is reached
+  uint8_t source;     // PROFILE_*
+};
+
+// micros() at the steps of the last activateServo(), see CommandTiming
+struct ServoTiming {
+  uint32_t startUs;     // entered, before the settle delay
+  uint32_t movingUs;    // settled, the servo starts towards the target
+  uint32_t reachedUs;   // at the target, the hold starts
+  uint32_t returningUs; // hold over, on the way back
+  uint32_t endUs;       // back and detached
+};
+
+extern ServoProfile servoProfiles[2];
+extern ServoTiming servoTiming;
+extern bool isActivated;
+extern int pendingCalibration; // servo to calibrate from loop()
+extern int8_t lastServo; // the last servo that moved, -1 if none since power-on, RTC memory
+
+void initServos();
+void loadServoProfiles();
+void saveServoProfile(int idx);
+void activateServo(int idx);
+void calibrateServo(int idx);
+// Apply a write to the servo profile characteristic
+void applyServoProfileOp(const uint8_t *data, size_t len);
+// Per servo: servo u8, target u8, return u8, ramp u16, hold u16, source u8
+void encodeServoProfiles(uint8_t *buf);
@@ -0,0 +1,80 @@
+#include <Arduino.h>
+#include <esp_attr.h>
+#include <esp_rtc_time.h>
+#include "timekeeping.h"
+
+RTC_DATA_ATTR bool timeSynced = false;
+RTC_DATA_ATTR long localTime = 0;
+unsigned long localTime_millis = 0;
+RTC_DATA_ATTR static long sleepMillisOfDay = 0;
+RTC_DATA_ATTR static uint64_t sleepRtcUs = 0;
+
+void syncTime(long secondOfDay) {
+  localTime_millis = millis();
+  localTime = secondOfDay;
+  timeSynced = true;
+}
+
+// The sub-second part goes into the reference, localTime stays in whole seconds
+void syncTimeMillis(long millisOfDay) {
+  localTime_millis = millis() - millisOfDay % 1000;
+  localTime = millisOfDay / 1000;
+  timeSynced = true;
+}
+
+static int twoDigits(const char *p) {
+  if (p[0] < '0' || p[0] > '9' || p[1] < '0' || p[1] > '9') return -1;
+  return (p[0] - '0') * 10 + (p[1] - '0');
+}
+
+bool parseTime(const char *value, size_t len, long *secondOfDay) {
+  if (len < 8 || value[2] != ':' || value[5] != ':') return false;
+  int hour = twoDigits(value);
+  int minute = twoDigits(value + 3);
+  int second = twoDigits(value + 6);
+  if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) return false;
+
+  *secondOfDay = hour * 3600L + minute * 60L + second;
+  return true;
+}
+
+// Phones with the scene feature also send milliseconds, older ones the plain form
+bool parseTimeMillis(const char *value, size_t len, long *millisOfDay) {
+  long second;
+  if (!parseTime(value, len, &second)) return false;
+  long ms = 0;
+  if (len >= 12 && value[8] == '.') {
+    for (int i = 9; i < 12; i++) {
+      if (value[i] < '0' || value[i] > '9') return false;
+      ms = ms * 10 + (value[i] - '0');
+    }
+  }
+  *millisOfDay = second * 1000 + ms;
+  return true;
+}
+
+void updateLocalTime() {
+  unsigned long elapsed = (millis() - localTime_millis) / 1000;
+  localTime += elapsed;
+  // Only advance the reference by whole seconds, so the sub-second remainder is not lost on every tick
+  localTime_millis += elapsed * 1000;
+}
+
+long secondOfDay() {
+  return localTime % 86400;
+}
+
+long millisOfDay() {
+  return ((localTime % 86400) * 1000 + (long)(millis() - localTime_millis)) % MILLIS_PER_DAY;
+}
+
+void clockBeforeSleep() {
+  sleepMillisOfDay = millisOfDay();
+  sleepRtcUs = esp_rtc_get_time_us();
+}
+
+void clockAfterWake() {
+  if (!timeSynced) return;
+  uint64_t sleptMs = (esp_rtc_get_time_us() - sleepRtcUs) / 1000;
+  syncTimeMillis((sleepMillisOfDay + (long)(sleptMs % MILLIS_PER_DAY)) % MILLIS_PER_DAY);
+}
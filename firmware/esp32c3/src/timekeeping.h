@@ -0,0 +1,20 @@
+#pragma once
+#include <stddef.h>
+
+extern bool timeSynced;  // RTC memory
+extern long localTime;   // s, mod 86400, RTC memory
+extern unsigned long localTime_millis; // millis() that localTime corresponds to
+
+#define MILLIS_PER_DAY 86400000L
+
+void syncTime(long secondOfDay);
+void syncTimeMillis(long millisOfDay);
+bool parseTime(const char *value, size_t len, long *secondOfDay); // "HH:MM:SS"
+bool parseTimeMillis(const char *value, size_t len, long *millisOfDay); // "HH:MM:SS" or "HH:MM:SS.mmm"
+void updateLocalTime();
+long secondOfDay();
+long millisOfDay();
+// The RTC timer keeps running in deep sleep. The clock is carried over by it instead of assuming
+// the device slept as long as planned, which a button wake cuts short.
+void clockBeforeSleep();
+void clockAfterWake();
@@ -0,0 +1,70 @@
+#include <Arduino.h>
+#include <Preferences.h>
+#include "config.h"
+#include "wear.h"
+
+WearStats wearStats[2];
+
+static Preferences prefs;
+static int8_t lastMoved = -1; // since this boot: a wake is longer ago than any retry
+static unsigned long lastMovedAt = 0;
+
+static void save() {
+  prefs.begin("wear", false);
+  prefs.putBytes("stats", wearStats, sizeof(wearStats));
+  prefs.end();
+}
+
+void wearBoot() {
+  prefs.begin("wear", true);
+  if (prefs.getBytes("stats", wearStats, sizeof(wearStats)) != sizeof(wearStats)) {
+    wearStats[0] = {};
+    wearStats[1] = {};
+  }
+  prefs.end();
+  lastMoved = -1;
+}
+
+void wearActuated(int servo, uint32_t activeMs, bool failed) {
+  WearStats &stats = wearStats[servo];
+  stats.actuations++;
+  stats.activeMs += activeMs;
+  if (failed && stats.failed < UINT16_MAX) stats.failed++;
+  lastMoved = servo;
+  lastMovedAt = millis();
+  save(); // a few commands a day, and a brownout must not lose them
+}
+
+void wearCommand(int servo) {
+  if (servo != lastMoved || millis() - lastMovedAt >= WEAR_RETRY_WINDOW) return;
+  WearStats &stats = wearStats[servo];
+  if (stats.retried < UINT16_MAX) stats.retried++; // saved with the actuation that follows
+  Serial.printf("Servo %d commanded again, retry %u.\n", servo, stats.retried);
+}
+
+void wearReset(int servo) {
+  wearStats[servo] = {};
+  if (lastMoved == servo) lastMoved = -1;
+  save();
+}
+
+static size_t put16(uint8_t *buf, size_t pos, uint16_t value) {
+  buf[pos++] = value & 0xFF;
+  buf[pos++] = value >> 8;
+  return pos;
+}
+
+static size_t put32(uint8_t *buf, size_t pos, uint32_t value) {
+  pos = put16(buf, pos, value & 0xFFFF);
+  return put16(buf, pos, value >> 16);
+}
+
+void encodeWearStats(uint8_t *buf) {
+  size_t pos = 0;
+  for (const WearStats &stats : wearStats) {
+    pos = put32(buf, pos, stats.actuations);
+    pos = put32(buf, pos, stats.activeMs);
+    pos = put16(buf, pos, stats.failed);
+    pos = put16(buf, pos, stats.retried);
+  }
+}
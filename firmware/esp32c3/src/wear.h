@@ -0,0 +1,31 @@
+#pragma once
+#include <stdint.h>
+
+/*
+Servo wear counters. Kept in NVS, so they outlast deep sleep, RST and a new battery; they only start over when
+a phone reports the servo as replaced (PROFILE_OP_RESET_WEAR). Per servo:
+- actuations by activateServo() and the ms they took, settle delay to detached. Calibration's search moves are not counted.
+- failed: the servo still drew stall current at the end of the hold, the horn pushed against a switch that did not
+  give. Needs SERVO_CURRENT_PIN, always 0 without.
+- retried: a command for the servo that moved last, within WEAR_RETRY_WINDOW after it: someone tried again,
+  most likely because the switch did not flip.
+*/
+#define WEAR_STATS_LENGTH 24 // encoded size of both servos' WearStats
+
+struct WearStats {
+  uint32_t actuations;
+  uint32_t activeMs;
+  uint16_t failed;
+  uint16_t retried;
+};
+
+extern WearStats wearStats[2];
+
+void wearBoot(); // load from NVS
+// From activateServo(), when the servo is back. Saves to NVS.
+void wearActuated(int servo, uint32_t activeMs, bool failed);
+// A command for the servo is about to run (not for the button or calibration, which flip on purpose)
+void wearCommand(int servo);
+void wearReset(int servo); // the servo was replaced
+// Per servo: actuations u32, active ms u32, failed u16, retried u16
+void encodeWearStats(uint8_t *buf);
@@ -0,0 +1,19 @@
+#pragma once
+#include <stdint.h>
+
+// Records what the firmware does with the servo, see sim::ServoLog
+class Servo {
+public:
+  int attach(int pin);
+  void detach();
+  void write(int angle);
+  int read() { return angle; }
+  bool attached() { return pin >= 0; }
+
+  int pin = -1;
+  int angle = 0;
+  int maxAngle = 0;
+  unsigned long attachedAt = 0;
+  unsigned long attachedMillis = 0; // total time attached
+  int actuations = 0;
+};
@@ -0,0 +1,22 @@
+#pragma once
+#include <stddef.h>
+#include <stdint.h>
+#include <map>
+#include <string>
+#include <vector>
+
+// NVS kept in a map that survives simulated deep sleep, like the flash it stands in for
+class Preferences {
+public:
+  bool begin(const char *name, bool readOnly = false);
+  void end();
+  size_t getBytes(const char *key, void *buf, size_t maxLen);
+  size_t putBytes(const char *key, const void *value, size_t len);
+  bool remove(const char *key);
+
+  static std::map<std::string, std::vector<uint8_t>> &storage();
+
+private:
+  std::string ns;
+  bool readOnly = true;
+};
@@ -0,0 +1,7 @@
+#pragma once
+#include "esp_sleep.h"
+
+typedef int gpio_num_t;
+
+inline esp_err_t gpio_pullup_en(gpio_num_t gpio_num) { return ESP_OK; }
+inline esp_err_t gpio_pulldown_dis(gpio_num_t gpio_num) { return ESP_OK; }
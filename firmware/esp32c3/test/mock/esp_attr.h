@@ -0,0 +1,3 @@
+#pragma once
+// RTC memory is ordinary memory on the host; sim::wake() only resets what lives outside of it.
+#define RTC_DATA_ATTR
@@ -0,0 +1,5 @@
+#pragma once
+#include <stdint.h>
+
+// The RTC timer runs through deep sleep: the virtual clock since the simulation started
+uint64_t esp_rtc_get_time_us();
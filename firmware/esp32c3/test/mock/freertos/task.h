@@ -0,0 +1,13 @@
+#pragma once
+#include "FreeRTOS.h"
+
+// One task, the loop. Notification bits live in sim::pendingEvents.
+typedef void *TaskHandle_t;
+typedef enum {
+  eSetBits = 1,
+} eNotifyAction;
+
+TaskHandle_t xTaskGetCurrentTaskHandle();
+BaseType_t xTaskNotify(TaskHandle_t task, uint32_t value, eNotifyAction action);
+// Returns the pending bits at once, otherwise moves the virtual clock on by the timeout
+BaseType_t xTaskNotifyWait(uint32_t clearOnEntry, uint32_t clearOnExit, uint32_t *value, TickType_t ticks);
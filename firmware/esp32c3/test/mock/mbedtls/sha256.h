@@ -0,0 +1,5 @@
+#pragma once
+#include <stddef.h>
+
+// Plain SHA-256 in sim.cpp, the host build has no mbedtls
+int mbedtls_sha256(const unsigned char *input, size_t ilen, unsigned char *output, int is224);
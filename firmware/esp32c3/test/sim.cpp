@@ -0,0 +1,298 @@
+#include <stdarg.h>
+#include "sim.h"
+#include "Arduino.h"
+#include "esp_sleep.h"
+#include "esp_rtc_time.h"
+#include "esp_random.h"
+#include "mbedtls/md.h"
+#include "mbedtls/sha256.h"
+#include "freertos/task.h"
+#include "ESP32Servo.h"
+#include "Preferences.h"
+#include "../src/firmware.h"
+
+namespace sim {
+  uint64_t nowUs = 0;
+  uint64_t bootUs = 0;
+  uint64_t wakeupUs = 0;
+  uint64_t gpioWakeMask = 0;
+  int wakeupCause = ESP_SLEEP_WAKEUP_UNDEFINED;
+  uint64_t buttonPressUs = 0;
+  uint64_t buttonReleaseUs = 0;
+  int servoCurrentMa = 0;
+  int batteryMv = 4100;
+  uint32_t pendingEvents = 0;
+  uint32_t loopWakeups = 0;
+  uint64_t waitLimitUs = 0;
+
+  void powerOn() {
+    nowUs = 0;
+    bootUs = 0;
+    wakeupUs = 0;
+    gpioWakeMask = 0;
+    wakeupCause = ESP_SLEEP_WAKEUP_UNDEFINED;
+    buttonPressUs = buttonReleaseUs = 0;
+    servoCurrentMa = 0;
+    batteryMv = 4100; // a full cell
+    pendingEvents = 0;
+    loopWakeups = 0;
+    Preferences::storage().clear();
+    timeSynced = false;
+    localTime = 0;
+    memset(usageHistogram, 0, sizeof(usageHistogram));
+    bootStats = {};
+    lastServo = -1;
+  }
+
+  void wake(uint64_t sleptUs, bool byButton) {
+    nowUs += sleptUs;
+    bootUs = nowUs;
+    wakeupUs = 0;
+    gpioWakeMask = 0;
+    pendingEvents = 0;
+    wakeupCause = byButton ? ESP_SLEEP_WAKEUP_GPIO : ESP_SLEEP_WAKEUP_TIMER;
+  }
+
+  void pressButton(uint64_t atUs, uint64_t heldUs) {
+    buttonPressUs = atUs;
+    buttonReleaseUs = atUs + heldUs;
+  }
+
+  void advance(uint64_t us) {
+    nowUs += us;
+  }
+}
+
+// Arduino core
+
+HardwareSerial Serial;
+static bool verbose = getenv("SIM_VERBOSE") != nullptr;
+
+unsigned long millis() {
+  return (sim::nowUs - sim::bootUs) / 1000;
+}
+
+unsigned long micros() {
+  return sim::nowUs - sim::bootUs;
+}
+
+void delay(unsigned long ms) {
+  sim::advance(ms * 1000ULL);
+}
+
+void delayMicroseconds(unsigned int us) {
+  sim::advance(us);
+}
+
+uint32_t analogReadMilliVolts(uint8_t pin) {
+  if (pin == BATTERY_ADC_PIN) return sim::batteryMv / BATTERY_DIVIDER;
+  return sim::servoCurrentMa * SERVO_SHUNT_MILLIOHM / 1000;
+}
+
+void pinMode(uint8_t pin, uint8_t mode) {
+}
+
+int digitalRead(uint8_t pin) {
+  if (pin != WAKE_BUTTON_PIN) return HIGH;
+  return sim::nowUs >= sim::buttonPressUs && sim::nowUs < sim::buttonReleaseUs ? LOW : HIGH;
+}
+
+void HardwareSerial::println(const char *s) {
+  if (verbose) ::printf("[%10.3f] %s\n", sim::nowUs / 1e6, s);
+}
+
+int HardwareSerial::printf(const char *format, ...) {
+  if (!verbose) return 0;
+  va_list args;
+  va_start(args, format);
+  ::printf("[%10.3f] ", sim::nowUs / 1e6);
+  int n = vprintf(format, args);
+  va_end(args);
+  return n;
+}
+
+// ESP-IDF
+
+esp_err_t esp_sleep_enable_timer_wakeup(uint64_t time_in_us) {
+  sim::wakeupUs = time_in_us;
+  return ESP_OK;
+}
+
+void esp_deep_sleep_start() {
+  throw sim::DeepSleep{sim::wakeupUs};
+}
+
+esp_err_t esp_deep_sleep_enable_gpio_wakeup(uint64_t gpio_pin_mask, esp_deepsleep_gpio_wake_up_mode_t mode) {
+  sim::gpioWakeMask = gpio_pin_mask;
+  return ESP_OK;
+}
+
+esp_sleep_wakeup_cause_t esp_sleep_get_wakeup_cause() {
+  return (esp_sleep_wakeup_cause_t)sim::wakeupCause;
+}
+
+uint64_t esp_rtc_get_time_us() {
+  return sim::nowUs;
+}
+
+void esp_deep_sleep_disable_rom_logging() {
+}
+
+void esp_fill_random(void *buf, size_t len) {
+  static uint32_t state = 0x12345678;
+  for (size_t i = 0; i < len; i++) {
+    state ^= state << 13;
+    state ^= state >> 17;
+    state ^= state << 5;
+    ((uint8_t *)buf)[i] = state;
+  }
+}
+
+// FreeRTOS
+
+TaskHandle_t xTaskGetCurrentTaskHandle() {
+  static int loopTask;
+  return &loopTask;
+}
+
+BaseType_t xTaskNotify(TaskHandle_t task, uint32_t value, eNotifyAction action) {
+  sim::pendingEvents |= value;
+  return pdTRUE;
+}
+
+BaseType_t xTaskNotifyWait(uint32_t clearOnEntry, uint32_t clearOnExit, uint32_t *value, TickType_t ticks) {
+  sim::loopWakeups++;
+  if (!sim::pendingEvents) {
+    uint64_t waitUs = ticks * 1000ULL; // portMAX_DELAY would be 49 days, the firmware never waits that long
+    if (sim::waitLimitUs > sim::nowUs) waitUs = std::min(waitUs, sim::waitLimitUs - sim::nowUs);
+    sim::advance(waitUs);
+    *value = 0;
+    return pdFALSE;
+  }
+  *value = sim::pendingEvents;
+  sim::pendingEvents &= ~clearOnExit;
+  return pdTRUE;
+}
+
+// Libraries
+
+int Servo::attach(int pin) {
+  this->pin = pin;
+  attachedAt = millis();
+  actuations++;
+  return 0;
+}
+
+void Servo::detach() {
+  if (pin < 0) return;
+  attachedMillis += millis() - attachedAt;
+  pin = -1;
+}
+
+void Servo::write(int angle) {
+  this->angle = angle;
+  if (angle > maxAngle) maxAngle = angle;
+}
+
+// FIPS 180-4, one block at a time
+static void sha256Block(uint32_t h[8], const uint8_t block[64]) {
+  static const uint32_t k[64] = {
+    0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+    0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+    0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+    0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+    0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+    0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+    0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+    0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2,
+  };
+  auto rotr = [](uint32_t x, int n) { return (x >> n) | (x << (32 - n)); };
+  uint32_t w[64];
+  for (int i = 0; i < 16; i++) {
+    w[i] = (uint32_t)block[4 * i] << 24 | block[4 * i + 1] << 16 | block[4 * i + 2] << 8 | block[4 * i + 3];
+  }
+  for (int i = 16; i < 64; i++) {
+    uint32_t s0 = rotr(w[i - 15], 7) ^ rotr(w[i - 15], 18) ^ (w[i - 15] >> 3);
+    uint32_t s1 = rotr(w[i - 2], 17) ^ rotr(w[i - 2], 19) ^ (w[i - 2] >> 10);
+    w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+  }
+  uint32_t v[8];
+  memcpy(v, h, sizeof(v));
+  for (int i = 0; i < 64; i++) {
+    uint32_t t1 = v[7] + (rotr(v[4], 6) ^ rotr(v[4], 11) ^ rotr(v[4], 25)) + ((v[4] & v[5]) ^ (~v[4] & v[6])) + k[i] + w[i];
+    uint32_t t2 = (rotr(v[0], 2) ^ rotr(v[0], 13) ^ rotr(v[0], 22)) + ((v[0] & v[1]) ^ (v[0] & v[2]) ^ (v[1] & v[2]));
+    memmove(v + 1, v, 7 * sizeof(uint32_t));
+    v[4] += t1;
+    v[0] = t1 + t2;
+  }
+  for (int i = 0; i < 8; i++) h[i] += v[i];
+}
+
+int mbedtls_sha256(const unsigned char *input, size_t ilen, unsigned char *output, int is224) {
+  uint32_t h[8] = {0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19};
+  std::vector<uint8_t> message(input, input + ilen);
+  message.push_back(0x80);
+  while (message.size() % 64 != 56) message.push_back(0);
+  for (int i = 7; i >= 0; i--) message.push_back((uint64_t)ilen * 8 >> (8 * i));
+  for (size_t i = 0; i < message.size(); i += 64) sha256Block(h, message.data() + i);
+  for (int i = 0; i < 32; i++) output[i] = h[i / 4] >> (24 - 8 * (i % 4));
+  return 0;
+}
+
+const mbedtls_md_info_t *mbedtls_md_info_from_type(mbedtls_md_type_t md_type) {
+  static int sha256;
+  return md_type == MBEDTLS_MD_SHA256 ? (const mbedtls_md_info_t *)&sha256 : nullptr;
+}
+
+int mbedtls_md_hmac(const mbedtls_md_info_t *md_info, const unsigned char *key, size_t keylen,
+                    const unsigned char *input, size_t ilen, unsigned char *output) {
+  uint8_t block[64] = {};
+  if (keylen > sizeof(block)) {
+    mbedtls_sha256(key, keylen, block, 0);
+  } else {
+    memcpy(block, key, keylen);
+  }
+  std::vector<uint8_t> inner(64), outer(64 + 32);
+  for (int i = 0; i < 64; i++) {
+    inner[i] = block[i] ^ 0x36;
+    outer[i] = block[i] ^ 0x5c;
+  }
+  inner.insert(inner.end(), input, input + ilen);
+  mbedtls_sha256(inner.data(), inner.size(), outer.data() + 64, 0);
+  mbedtls_sha256(outer.data(), outer.size(), output, 0);
+  return 0;
+}
+
+std::map<std::string, std::vector<uint8_t>> &Preferences::storage() {
+  static std::map<std::string, std::vector<uint8_t>> nvs;
+  return nvs;
+}
+
+bool Preferences::begin(const char *name, bool readOnly) {
+  ns = std::string(name) + "/";
+  this->readOnly = readOnly;
+  return true;
+}
+
+void Preferences::end() {
+  ns.clear();
+}
+
+size_t Preferences::getBytes(const char *key, void *buf, size_t maxLen) {
+  auto it = storage().find(ns + key);
+  if (it == storage().end() || it->second.size() > maxLen) return 0;
+  memcpy(buf, it->second.data(), it->second.size());
+  return it->second.size();
+}
+
+size_t Preferences::putBytes(const char *key, const void *value, size_t len) {
+  if (readOnly) return 0;
+  const uint8_t *bytes = (const uint8_t *)value;
+  storage()[ns + key] = std::vector<uint8_t>(bytes, bytes + len);
+  return len;
+}
+
+bool Preferences::remove(const char *key) {
+  if (readOnly) return false;
+  return storage().erase(ns + key) > 0;
+}
@@ -0,0 +1,27 @@
+#pragma once
+#include <stdint.h>
+
+// Virtual clock and hardware state behind the mocks. Nothing here runs in real time:
+// delay() and deep sleep only move nowUs forward.
+namespace sim {
+  struct DeepSleep {
+    uint64_t durationUs;
+  };
+
+  extern uint64_t nowUs;   // since the simulation started
+  extern uint64_t bootUs;  // nowUs at the last boot, millis() counts from here
+  extern uint64_t wakeupUs; // armed by esp_sleep_enable_timer_wakeup()
+  extern uint64_t gpioWakeMask; // armed by esp_deep_sleep_enable_gpio_wakeup()
+  extern int wakeupCause; // what esp_sleep_get_wakeup_cause() reports, 0 after power-on
+  extern uint64_t buttonPressUs, buttonReleaseUs; // WAKE_BUTTON_PIN reads LOW in between
+  extern int servoCurrentMa; // what the current sense shunt reads
+  extern int batteryMv; // across the cell, BATTERY_ADC_PIN reads it through the divider
+  extern uint32_t pendingEvents; // posted to the loop task, not yet taken
+  extern uint32_t loopWakeups; // waits of the loop task that ended, by an event or a timeout
+  extern uint64_t waitLimitUs; // a wait of the loop task ends here at the latest (early, as if spurious), 0 = none
+
+  void powerOn(); // cold boot: clears the clock, RTC memory and NVS
+  void wake(uint64_t sleptUs, bool byButton = false); // after sim::DeepSleep
+  void pressButton(uint64_t atUs, uint64_t heldUs);
+  void advance(uint64_t us);
+}
@@ -0,0 +1,989 @@
+// Runs the firmware logic in src/ against the mocks and a virtual clock, so days of
+// operation take milliseconds. Build and run with `make` in this directory.
+#include <chrono>
+#include <functional>
+#include <vector>
+#include "sim.h"
+#include "Arduino.h"
+#include "ESP32Servo.h"
+#include "Preferences.h"
+#include "mbedtls/md.h"
+#include "mbedtls/sha256.h"
+#include "../src/firmware.h"
+
+extern Servo servoA;
+extern Servo servoB;
+
+static int failures = 0;
+
+#define CHECK(cond) do { \
+  if (!(cond)) { ::printf("  %s:%d: CHECK(%s) failed\n", __FILE__, __LINE__, #cond); failures++; } \
+} while (0)
+
+#define CHECK_NEAR(actual, expected, tolerance) do { \
+  long long a_ = (long long)(actual), e_ = (long long)(expected); \
+  if (llabs(a_ - e_) > (long long)(tolerance)) { \
+    ::printf("  %s:%d: %s = %lld, expected %lld +- %lld\n", __FILE__, __LINE__, #actual, a_, e_, (long long)(tolerance)); \
+    failures++; \
+  } \
+} while (0)
+
+const uint64_t SECOND = 1000000ULL;
+const uint64_t MINUTE = 60 * SECOND;
+const uint64_t HOUR = 60 * MINUTE;
+const uint64_t DAY = 24 * HOUR;
+const uint8_t SWITCH_ADDRESS[6] = {0x24, 0x58, 0x7C, 0x12, 0x34, 0x56};
+
+class MockRadio : public Radio {
+public:
+  int connected = 0;
+  int disconnects = 0;
+  uint64_t lastDisconnectUs = 0;
+  uint8_t mode = ADV_MODE_NORMAL;
+  bool acceptLinkParams = true;
+  std::vector<uint8_t> linkRequests;
+  std::vector<uint16_t> dropped; // connections the firmware disconnected, in order
+  std::vector<int> notifications; // servo state sent to the subscribed clients
+  bool up = false;
+  uint64_t upSinceUs = 0;
+  uint64_t onUs = 0; // total time the stack was up
+  uint64_t initUs = 0; // how long the stack takes to come up
+
+  void init() {
+    up = true;
+    upSinceUs = sim::nowUs;
+    sim::advance(initUs);
+    mode = advMode;
+    advertisedStatus = ::advertisedStatus();
+    handleAdvertising();
+  }
+
+  int connectedCount() override { return connected; }
+
+  void disconnect(uint16_t conn) override {
+    connected--;
+    disconnects++;
+    lastDisconnectUs = sim::nowUs;
+    dropped.push_back(conn);
+    handleDisconnect(conn, 0x16); // local host terminated
+  }
+
+  void setAdvertisingMode(uint8_t mode) override { this->mode = mode; }
+
+  uint8_t advertisedStatus = 0; // the manufacturer data byte
+  void setAdvertisedStatus(uint8_t status) override { advertisedStatus = status; }
+
+  // A phone that answers right away, with the slowest interval it was offered
+  void requestLinkParams(uint16_t conn, uint8_t params) override {
+    linkRequests.push_back(params);
+    linkParamsUpdated(conn, acceptLinkParams, LINK_PARAMS[params][1], LINK_PARAMS[params][2], LINK_PARAMS[params][3]);
+  }
+
+  void notifyState(int servo) override { notifications.push_back(servo); }
+
+  bool scanning = false;
+  void setScanning(bool on) override { scanning = on; }
+  void getAddress(uint8_t *address) override { memcpy(address, SWITCH_ADDRESS, 6); }
+
+  void deinit() override {
+    up = false;
+    connected = 0;
+    onUs += sim::nowUs - upSinceUs;
+  }
+
+  uint64_t radioOnUs() {
+    return onUs + (up ? sim::nowUs - upSinceUs : 0);
+  }
+};
+
+struct SleepEvent {
+  uint64_t atUs;
+  long secondOfDay; // firmware clock when it went to sleep
+  uint64_t durationUs; // planned, a button press can end it early
+};
+
+// One switch on the virtual clock, with a phone that can connect to it
+struct Device {
+  MockRadio radio;
+  std::vector<SleepEvent> sleeps;
+  uint64_t syncedAtUs = 0;
+  long syncedSecondOfDay = -1;
+
+  void powerOn() {
+    sim::powerOn();
+    boot();
+  }
+
+  void boot() {
+    firmwareBoot();
+    radio.init();
+  }
+
+  void connect(uint16_t conn) {
+    radio.connected++;
+    handleConnect(conn);
+  }
+
+  // Connect and write the time, like MainActivity does
+  void phoneConnect(long wallSecondOfDay, uint16_t conn = 1) {
+    connect(conn);
+    char value[9];
+    snprintf(value, sizeof(value), "%02ld:%02ld:%02ld", wallSecondOfDay / 3600, wallSecondOfDay / 60 % 60, wallSecondOfDay % 60);
+    handlePhoneTime(conn, value, 8);
+    syncedAtUs = sim::nowUs;
+    syncedSecondOfDay = wallSecondOfDay;
+  }
+
+  // The real time of day, from the moment the phone last synced
+  long wallSecondOfDay() {
+    return (syncedSecondOfDay + (sim::nowUs - syncedAtUs) / SECOND) % 86400;
+  }
+
+  // Write a servo command and let the loop run it
+  void command(const char *value, size_t len, uint16_t conn = 1) {
+    handleServoSignal(conn, value, len);
+    step();
+  }
+
+  void step() {
+    try {
+      firmwareLoop(radio);
+    } catch (const sim::DeepSleep &sleep) {
+      sleeps.push_back({sim::nowUs, secondOfDay(), sleep.durationUs});
+      uint64_t pressIn = sim::buttonPressUs - sim::nowUs;
+      bool byButton = (sim::gpioWakeMask & (1ULL << WAKE_BUTTON_PIN)) && sim::buttonPressUs > sim::nowUs
+                      && pressIn < sleep.durationUs;
+      sim::wake(byButton ? pressIn : sleep.durationUs, byButton);
+      boot();
+    }
+  }
+
+  void runFor(uint64_t us, const std::function<void()> &eachStep = nullptr) {
+    uint64_t end = sim::nowUs + us;
+    sim::waitLimitUs = end; // the loop may wait for an hour, stop on time
+    while (sim::nowUs < end) {
+      step();
+      if (eachStep) eachStep();
+    }
+    sim::waitLimitUs = 0;
+  }
+};
+
+static void testParseTime() {
+  long time = -1;
+  CHECK(parseTime("22:30:15", 8, &time));
+  CHECK(time == 22 * 3600 + 30 * 60 + 15);
+  CHECK(parseTime("00:00:00", 8, &time));
+  CHECK(time == 0);
+  CHECK(!parseTime("24:00:00", 8, &time));
+  CHECK(!parseTime("2:30:15", 7, &time));
+  CHECK(!parseTime("ab:cd:ef", 8, &time));
+  CHECK(parseTimeMillis("22:30:15.042", 12, &time));
+  CHECK(time == (22 * 3600 + 30 * 60 + 15) * 1000L + 42);
+  CHECK(parseTimeMillis("22:30:15", 8, &time));
+  CHECK(time == (22 * 3600 + 30 * 60 + 15) * 1000L);
+  CHECK(!parseTimeMillis("22:30:15.x42", 12, &time));
+}
+
+static void testServoActuationTiming() {
+  Device device;
+  device.powerOn();
+  device.connect(1);
+  servoA = Servo();
+
+  uint64_t start = sim::nowUs;
+  device.command("0", 1);
+  CHECK(servoA.actuations == 1);
+  CHECK(servoA.maxAngle == 30);
+  CHECK(servoA.angle == 0);
+  CHECK(!servoA.attached());
+  // Default profile: jump 30° (90ms), hold 1s, jump back (90ms), after 30ms of settling
+  CHECK(servoA.attachedMillis == 90 + 1000 + 90);
+  CHECK((sim::nowUs - start) / 1000 == 30 + 90 + 1000 + 90);
+
+  CHECK(device.radio.notifications.size() == 1 && device.radio.notifications[0] == SERVO_OFF);
+
+  handleServoSignal(1, "2", 1);
+  handleServoSignal(1, "00", 2);
+  CHECK(!actuationPending());
+}
+
+static void testIdleLinkIsKept() {
+  Device device;
+  device.powerOn();
+  linkStats = {};
+  device.runFor(1 * MINUTE);
+  device.phoneConnect(22 * 3600 + 30 * 60); // long enough out of the sleep windows
+  uint64_t connectedAt = sim::nowUs;
+
+  // Idle parameters once nothing happened for LINK_IDLE_AFTER, but still connected
+  device.runFor(3 * MINUTE);
+  CHECK(device.radio.disconnects == 0);
+  CHECK(device.radio.linkRequests.size() == 1 && device.radio.linkRequests[0] == LINK_PARAMS_IDLE);
+  const LinkSlot &slot = linkSlots[linkSlot(1)];
+  CHECK(slot.interval == LINK_PARAMS[LINK_PARAMS_IDLE][1] && slot.latency == LINK_PARAMS[LINK_PARAMS_IDLE][2]);
+  CHECK(linkStats.idleEntries == 1);
+
+  // A command on the idle link switches back to the active parameters, and to idle again later
+  uint64_t commandAt = sim::nowUs;
+  device.command("1", 1);
+  CHECK(linkStats.commandsOnIdleLink == 1);
+  CHECK(device.radio.linkRequests.size() == 2 && device.radio.linkRequests[1] == LINK_PARAMS_ACTIVE);
+  CHECK(slot.latency == 0);
+  device.runFor(1 * MINUTE);
+  CHECK(device.radio.linkRequests.size() == 3 && linkStats.idleEntries == 2);
+
+  // Dropped after MAX_IDLE_HOLD without operation
+  device.runFor(MAX_IDLE_HOLD * 1000ULL);
+  CHECK(device.radio.disconnects == 1);
+  CHECK(linkStats.idleHoldDisconnects == 1);
+  CHECK(device.radio.lastDisconnectUs - commandAt == MAX_IDLE_HOLD * 1000ULL); // on the dot, not at the next poll
+
+  // Keep-alive accounting: held the whole time, idle for nearly all of it
+  uint64_t heldSeconds = (device.radio.lastDisconnectUs - connectedAt) / SECOND;
+  CHECK_NEAR(linkStats.heldSeconds, heldSeconds, 1);
+  CHECK(linkStats.idleSeconds < linkStats.heldSeconds);
+  CHECK(linkStats.idleSeconds > linkStats.heldSeconds - 60);
+  // One event every interval * (latency + 1) = 5s while idle
+  CHECK_NEAR(linkStats.idleEvents, linkStats.idleSeconds / 5, 2);
+}
+
+static void testIdleLinkEndsWithSleep() {
+  Device device;
+  device.powerOn();
+  linkStats = {};
+  device.radio.acceptLinkParams = false;
+  device.phoneConnect(SLEEP_WINDOW_START - 60);
+  device.runFor(10 * MINUTE);
+
+  CHECK(device.sleeps.size() == 1);
+  CHECK(device.radio.disconnects == 0); // the link went down with the stack
+  CHECK(linkStats.rejectedUpdates == 1);
+  CHECK(linkStats.idleEntries == 0);
+  CHECK_NEAR(linkStats.heldSeconds, IDLE_BEFORE_SLEEP / 1000, 1);
+}
+
+static void sceneCommand(char code, uint32_t atMillisOfDay, char *out) {
+  out[0] = code;
+  for (int i = 0; i < 4; i++) out[1 + i] = (char)(atMillisOfDay >> (8 * i));
+}
+
+static void testTimedCommand() {
+  Device device;
+  device.powerOn();
+  device.connect(1);
+  servoA = Servo();
+  handlePhoneTime(1, "22:30:00.250", 12);
+  uint64_t syncedAt = sim::nowUs;
+  CHECK(millisOfDay() == (22 * 3600 + 30 * 60) * 1000L + 250);
+
+  // Fires at 22:30:02.000 on the synced clock, 1750ms after the sync, whenever the command arrives
+  sim::advance(500 * 1000);
+  char command[SCENE_COMMAND_LENGTH];
+  sceneCommand('0', (22 * 3600 + 30 * 60 + 2) * 1000L, command);
+  servoB = Servo();
+  device.connect(2);
+  handleServoSignal(2, "1", 1);
+  device.command(command, sizeof(command));
+  // Waits in the queue for its time, another phone's command runs meanwhile
+  CHECK(servoA.actuations == 0 && servoB.actuations == 1);
+  CHECK((sim::nowUs - syncedAt) / 1000 == 500 + 30 + 90 + 1000 + 90);
+  device.step();
+  CHECK(servoA.actuations == 1);
+  CHECK(lastScene.result == SCENE_ON_TIME);
+  CHECK(lastScene.fired == lastScene.requested);
+  CHECK((sim::nowUs - syncedAt) / 1000 == 1750 + 30 + 90 + 1000 + 90);
+
+  // Late commands fire at once, far ones are refused
+  sceneCommand('0', (uint32_t)millisOfDay() - 300, command);
+  device.command(command, sizeof(command));
+  CHECK(lastScene.result == SCENE_LATE && servoA.actuations == 2);
+  sceneCommand('0', (uint32_t)millisOfDay() + SCENE_MAX_LEAD + 1000, command);
+  device.command(command, sizeof(command));
+  CHECK(lastScene.result == SCENE_REFUSED && servoA.actuations == 2);
+
+  // Across midnight
+  handlePhoneTime(1, "23:59:59.900", 12);
+  sceneCommand('0', 200, command);
+  uint64_t start = sim::nowUs;
+  device.command(command, sizeof(command));
+  device.step();
+  CHECK(lastScene.result == SCENE_ON_TIME && lastScene.fired == 200);
+  CHECK((sim::nowUs - start) / 1000 == 300 + 30 + 90 + 1000 + 90);
+}
+
+static void testNeverSleepsUnsynced() {
+  Device device;
+  device.powerOn();
+  device.runFor(2 * DAY);
+
+  CHECK(device.sleeps.empty());
+  CHECK(device.radio.radioOnUs() == sim::nowUs);
+}
+
+static void testDailySchedule() {
+  Device device;
+  device.powerOn();
+  device.phoneConnect(22 * 3600 + 30 * 60);
+  device.runFor(3 * DAY);
+
+  // Every day: 2:00 - 7:00 and 10:00 - 22:00
+  CHECK(device.sleeps.size() == 6);
+  for (size_t i = 0; i < device.sleeps.size(); i++) {
+    const SleepEvent &sleep = device.sleeps[i];
+    bool midnight = i % 2 == 0;
+    long start = midnight ? SLEEP_WINDOW_START_MIDNIGHT : SLEEP_WINDOW_START;
+    long end = midnight ? SLEEP_WINDOW_END_MIDNIGHT : SLEEP_WINDOW_END;
+    CHECK_NEAR(sleep.secondOfDay, start, 0);
+    CHECK_NEAR(sleep.secondOfDay + sleep.durationUs / SECOND, end, 0);
+  }
+
+  // The clock kept through deep sleep must still match the wall
+  device.runFor(0);
+  updateLocalTime();
+  CHECK_NEAR(secondOfDay(), device.wallSecondOfDay(), 1);
+
+  // 17h asleep each day, up to a second per sleep for the sub-second part of the clock
+  uint64_t asleep = 0;
+  for (const SleepEvent &sleep : device.sleeps) asleep += sleep.durationUs;
+  CHECK(device.radio.radioOnUs() == sim::nowUs - asleep);
+  CHECK_NEAR(asleep / SECOND, 3 * 17 * 3600, 6);
+}
+
+static void testOperationDelaysSleep() {
+  Device device;
+  device.powerOn();
+  device.phoneConnect(9 * 3600 + 58 * 60);
+  device.runFor(30 * MINUTE);
+
+  CHECK(device.sleeps.size() == 1);
+  // Five idle minutes after the connection, not at 10:00
+  CHECK_NEAR(device.sleeps[0].secondOfDay, 10 * 3600 + 3 * 60, 0);
+  CHECK_NEAR(device.sleeps[0].secondOfDay + device.sleeps[0].durationUs / SECOND, SLEEP_WINDOW_END, 0);
+}
+
+static void testClockDoesNotDrift() {
+  Device device;
+  device.powerOn();
+  device.phoneConnect(22 * 3600);
+
+  // Commands make the loop ticks uneven; the sub-second part of each tick must not get lost
+  int tick = 0;
+  device.runFor(3 * HOUR, [&]() {
+    if (++tick % 3 == 0) handleServoSignal(1, tick % 2 ? "1" : "0", 1);
+  });
+  updateLocalTime();
+  CHECK(device.sleeps.empty());
+  CHECK_NEAR(secondOfDay(), device.wallSecondOfDay(), 1);
+}
+
+static void testAdvertisingGovernor() {
+  Device device;
+  device.powerOn();
+  CHECK(device.radio.mode == ADV_MODE_FAST);
+  device.runFor(FAST_ADV_BURST_TIME * 1000);
+  CHECK(device.radio.mode == ADV_MODE_NORMAL);
+
+  // Ten commands around 23:00 make that the busy hour
+  device.phoneConnect(23 * 3600);
+  for (int i = 0; i < 10; i++) {
+    handleServoSignal(1, "1", 1);
+    device.runFor(2 * MINUTE);
+  }
+  CHECK(usageHistogram[23] == 10);
+
+  device.runFor(2 * HOUR);            // ~01:20, well away from 23:00
+  CHECK(device.radio.mode == ADV_MODE_SLOW);
+  while (device.wallSecondOfDay() < 22 * 3600 + 10 * 60) {
+    device.step();                    // through both sleep windows
+  }
+  CHECK(device.sleeps.size() == 2);
+  CHECK(device.radio.mode == ADV_MODE_FAST); // looking ahead to 23:00
+}
+
+static void testProfileSurvivesDeepSleep() {
+  Device device;
+  device.powerOn();
+  const uint8_t set[] = {PROFILE_OP_SET, SERVO_ON, 45, 5, 0, 0, 0xF4, 0x01};
+  applyServoProfileOp(set, sizeof(set));
+  device.phoneConnect(SLEEP_WINDOW_START - 60);
+  device.runFor(10 * MINUTE);
+  CHECK(device.sleeps.size() == 1);
+
+  CHECK(servoProfiles[SERVO_ON].targetAngle == 45);
+  CHECK(servoProfiles[SERVO_ON].holdTime == 500);
+  CHECK(servoProfiles[SERVO_ON].source == PROFILE_USER);
+  uint8_t encoded[SERVO_PROFILES_LENGTH];
+  encodeServoProfiles(encoded);
+  CHECK(encoded[8] == SERVO_ON && encoded[9] == 45 && encoded[10] == 5 && encoded[15] == PROFILE_USER);
+}
+
+static void testCalibrationStartsFromOppositeState() {
+  Device device;
+  device.powerOn();
+  device.connect(1);
+  device.command("0", 1); // the switch is off, where calibrating the off servo would push against the stop
+  servoA = Servo();
+  servoB = Servo();
+  calibrateServo(SERVO_OFF); // the sim's current never drops, so the search fails after the first flip
+  CHECK(servoB.actuations == 1);
+  CHECK(servoA.actuations == 1);
+  // The flip is not a command: the button still toggles from the command's servo, and the wear is untouched
+  CHECK(lastServo == SERVO_OFF);
+  CHECK(wearStats[SERVO_ON].actuations == 0 && wearStats[SERVO_OFF].actuations == 1);
+  CHECK(servoProfiles[SERVO_OFF].source == PROFILE_CAL_FAILED);
+  loadServoProfiles(); // the failure is in NVS, the app still sees it after a reset
+  CHECK(servoProfiles[SERVO_OFF].source == PROFILE_CAL_FAILED);
+}
+
+static void testDiagnosticsRecord() {
+  Device device;
+  device.powerOn();
+  uint8_t buf[DIAGNOSTICS_MAX_LENGTH];
+  size_t len = buildDiagnostics(buf);
+
+  size_t versionLength = strlen(FIRMWARE_VERSION);
+  CHECK(len == 2 + versionLength + 2 + 7 + 2 + 24 + 2 + LINK_STATS_LENGTH + 2 + SCENE_RECORD_LENGTH + 2 + BOOT_STATS_LENGTH
+               + 2 + CONNECTIONLESS_STATS_LENGTH + 2 + BATTERY_STATS_LENGTH + 2 + WEAR_STATS_LENGTH);
+  CHECK(len <= DIAGNOSTICS_MAX_LENGTH);
+  CHECK(buf[0] == DIAG_TAG_FIRMWARE_VERSION && buf[1] == versionLength);
+  CHECK(memcmp(buf + 2, FIRMWARE_VERSION, versionLength) == 0);
+  CHECK(buf[2 + versionLength] == DIAG_TAG_ADVERTISING);
+  CHECK(buf[4 + versionLength] == ADV_MODE_FAST);
+}
+
+static void testBootTiming() {
+  Device device;
+  device.radio.initUs = 45 * 1000;
+  device.powerOn();
+  CHECK(wakeCause == BOOT_WAKE_POWER_ON);
+  CHECK(bootStats.boots == 1);
+  CHECK(bootStats.advertisingUs == 45 * 1000);
+
+  // Wakes at the end of the sleep window measure again, a slower boot raises the max
+  device.runFor(1 * MINUTE);
+  device.phoneConnect(9 * 3600 + 59 * 60);
+  device.radio.connected = 0;
+  device.radio.initUs = 55 * 1000;
+  device.runFor(13 * HOUR);
+  CHECK(device.sleeps.size() == 1);
+  CHECK(wakeCause == BOOT_WAKE_TIMER);
+  CHECK(bootStats.boots == 2);
+  CHECK(bootStats.advertisingUs == 55 * 1000);
+  CHECK(bootStats.maxAdvertisingUs == 55 * 1000);
+  CHECK(averageAdvertisingUs() == 50 * 1000);
+
+  uint8_t buf[BOOT_STATS_LENGTH];
+  encodeBootStats(buf);
+  CHECK(buf[0] == BOOT_WAKE_TIMER && buf[1] == 2 && buf[2] == 0);
+  CHECK((buf[7] | buf[8] << 8 | buf[9] << 16) == 55 * 1000);
+}
+
+static void testButtonWake() {
+  Device device;
+  device.powerOn();
+  servoA = Servo();
+  servoB = Servo();
+  device.runFor(1 * MINUTE);
+  device.phoneConnect(SLEEP_WINDOW_START - 60);
+  device.radio.connected = 0;
+
+  // A short press two hours into the window wakes the device early, with the clock kept
+  sim::pressButton(sim::nowUs + 2 * HOUR, 200 * 1000);
+  device.runFor(10 * MINUTE);
+  CHECK(device.sleeps.size() == 1);
+  CHECK(wakeCause == BOOT_WAKE_BUTTON);
+  CHECK(sim::nowUs - device.syncedAtUs == 2 * HOUR);
+  CHECK(device.radio.up && device.radio.mode == ADV_MODE_FAST);
+  CHECK_NEAR(secondOfDay(), device.wallSecondOfDay(), 1);
+  CHECK(servoA.actuations == 0 && servoB.actuations == 0);
+
+  // Back to sleep after BUTTON_AWAKE_TIME without a phone, for the rest of the window.
+  // Woken again by a long press, which flips the switch: off first, as nothing moved since power-on.
+  uint64_t wokeAt = sim::nowUs;
+  sim::pressButton(wokeAt + 2 * HOUR, 2 * SECOND);
+  while (device.sleeps.size() == 1) device.step();
+  CHECK_NEAR((device.sleeps[1].atUs - wokeAt) / 1000, BUTTON_AWAKE_TIME, 0);
+  CHECK_NEAR(device.sleeps[1].secondOfDay + device.sleeps[1].durationUs / SECOND, SLEEP_WINDOW_END, 1);
+  CHECK(wakeCause == BOOT_WAKE_BUTTON);
+  device.step();
+  CHECK(servoA.actuations == 1 && servoB.actuations == 0);
+  CHECK(lastServo == SERVO_OFF);
+  CHECK_NEAR(secondOfDay(), device.wallSecondOfDay(), 1);
+}
+
+static void testLoopWaitsForEvents() {
+  CHECK(millisToSleepWindow(SLEEP_WINDOW_START * 1000L - 1) == 1);
+  CHECK(millisToSleepWindow(SLEEP_WINDOW_START * 1000L) == 0);
+  CHECK(millisToSleepWindow(23 * 3600 * 1000L) == 3 * 3600 * 1000L); // to 02:00
+
+  Device device;
+  device.powerOn();
+  device.phoneConnect(22 * 3600 + 30 * 60);
+  device.radio.connected = 0;
+  handleDisconnect(1, 0x13);
+
+  // An hour of the active window without a phone: a handful of wakeups for the deadlines instead of one every 5s
+  sim::loopWakeups = 0;
+  device.runFor(1 * HOUR);
+  CHECK(sim::loopWakeups <= 6);
+
+  // A command wakes the loop at once, and the device sleeps exactly IDLE_BEFORE_SLEEP later in the window
+  handlePhoneTime(1, "01:59:00", 8);
+  uint64_t syncedAt = sim::nowUs;
+  uint64_t wakeups = sim::loopWakeups;
+  device.step();
+  CHECK(sim::nowUs == syncedAt && sim::loopWakeups == wakeups + 1);
+  while (device.sleeps.empty()) device.step();
+  CHECK(device.sleeps[0].atUs - syncedAt == IDLE_BEFORE_SLEEP * 1000ULL);
+  CHECK(device.sleeps[0].secondOfDay == 2 * 3600 + 4 * 60);
+}
+
+static void testMultipleClients() {
+  Device device;
+  device.powerOn();
+  linkStats = {};
+  servoA = Servo();
+  servoB = Servo();
+  device.phoneConnect(22 * 3600 + 30 * 60, 1);
+  device.connect(2);
+  CHECK(linkClients() == 2);
+
+  // Each client has its own idle timer: a command on one link makes only that one active again
+  device.runFor(1 * MINUTE);
+  CHECK(linkSlots[linkSlot(1)].idle && linkSlots[linkSlot(2)].idle);
+  device.command("1", 1, 2);
+  CHECK(linkSlots[linkSlot(1)].idle && linkSlots[linkSlot(2)].latency == 0);
+
+  // One command per client in turn, a client's later command replaces its waiting one. All clients hear the result.
+  device.radio.notifications.clear();
+  handleServoSignal(1, "1", 1);
+  handleServoSignal(1, "0", 1);
+  handleServoSignal(2, "1", 1);
+  device.step();
+  CHECK(servoA.actuations == 1 && servoB.actuations == 2);
+  CHECK(device.radio.notifications.size() == 2);
+  CHECK(device.radio.notifications[0] == SERVO_OFF && device.radio.notifications[1] == SERVO_ON);
+
+  // A third phone gets in, the least recently active one makes room
+  device.runFor(1 * MINUTE);
+  uint64_t lastCommandAt = sim::nowUs;
+  device.command("0", 1, 1);
+  device.runFor(10 * MINUTE);
+  device.connect(3);
+  uint64_t connectedAt = sim::nowUs;
+  device.step();
+  CHECK(device.radio.dropped.size() == 1 && device.radio.dropped[0] == 2);
+  CHECK(linkStats.evictions == 1 && linkStats.connections == 3);
+  CHECK(linkClients() == 2 && linkSlot(2) < 0);
+  uint8_t link[LINK_STATS_LENGTH];
+  encodeLinkStats(link);
+  CHECK(link[30] == 1 && link[31] == 0 && link[32] == 2);
+
+  // And each of them is dropped MAX_IDLE_HOLD after its own last activity
+  while (device.radio.dropped.size() < 2) device.step();
+  CHECK(device.radio.dropped[1] == 1);
+  CHECK(device.radio.lastDisconnectUs - lastCommandAt == MAX_IDLE_HOLD * 1000ULL);
+  while (device.radio.dropped.size() < 3) device.step();
+  CHECK(device.radio.dropped[2] == 3);
+  CHECK(device.radio.lastDisconnectUs - connectedAt == MAX_IDLE_HOLD * 1000ULL);
+  CHECK(linkStats.idleHoldDisconnects == 2);
+}
+
+// A write on the host task can stamp its slot after linkLoop() took now
+static void testActivityAfterLoopStart() {
+  Device device;
+  device.powerOn();
+  linkStats = {};
+  device.phoneConnect(22 * 3600 + 30 * 60);
+  linkSlots[linkSlot(1)].lastActivity = millis() + 1000;
+  device.step();
+  CHECK(device.radio.disconnects == 0 && linkStats.idleHoldDisconnects == 0);
+  CHECK(linkClients() == 1);
+}
+
+// What the app advertises, see ConnectionlessFrame. phone -1 for a version 1 frame.
+static std::vector<uint8_t> connectionlessFrame(const uint8_t *key, uint32_t sequence, char command, uint32_t sentAt,
+                                                int phone = 0x0102) {
+  uint8_t digest[32];
+  mbedtls_sha256(SWITCH_ADDRESS, sizeof(SWITCH_ADDRESS), digest, 0);
+  uint8_t version = phone < 0 ? 1 : CONNECTIONLESS_VERSION;
+  std::vector<uint8_t> frame = {0xFF, 0xFF, version, digest[0], digest[1], digest[2], digest[3]};
+  if (phone >= 0) {
+    frame.push_back(phone & 0xFF);
+    frame.push_back(phone >> 8);
+  }
+  for (int i = 0; i < 4; i++) frame.push_back(sequence >> (8 * i));
+  frame.push_back(command);
+  for (int i = 0; i < 4; i++) frame.push_back(sentAt >> (8 * i));
+  uint8_t mac[32];
+  mbedtls_md_hmac(mbedtls_md_info_from_type(MBEDTLS_MD_SHA256), key, CONNECTIONLESS_KEY_LENGTH, frame.data() + 2, frame.size() - 2, mac);
+  frame.insert(frame.end(), mac, mac + CONNECTIONLESS_MAC_LENGTH);
+  return frame;
+}
+
+static void testConnectionlessCommand() {
+  // Same frame as ProtocolTest.connectionlessFrame_matchesFirmware: key 00..0f, sequence 5, '1' sent at 22:30:00.000
+  uint8_t testKey[CONNECTIONLESS_KEY_LENGTH];
+  for (int i = 0; i < CONNECTIONLESS_KEY_LENGTH; i++) testKey[i] = i;
+  const std::vector<uint8_t> expected = {
+    0xFF, 0xFF, 0x02, 0xAE, 0x05, 0xA1, 0xD5, 0x02, 0x01, 0x05, 0x00, 0x00, 0x00, 0x31,
+    0x40, 0xF6, 0xD3, 0x04, 0xE1, 0x86, 0x5B, 0x19, 0x54, 0x04, 0x95, 0x11};
+  CHECK(connectionlessFrame(testKey, 5, '1', 81000000) == expected);
+  const std::vector<uint8_t> expectedV1 = {
+    0xFF, 0xFF, 0x01, 0xAE, 0x05, 0xA1, 0xD5, 0x05, 0x00, 0x00, 0x00, 0x31,
+    0x40, 0xF6, 0xD3, 0x04, 0xE9, 0x16, 0xE2, 0x80, 0x19, 0x5E, 0x8E, 0xAF};
+  CHECK(connectionlessFrame(testKey, 5, '1', 81000000, -1) == expectedV1);
+
+  Device device;
+  device.powerOn();
+  connectionlessStats = {};
+  servoB = Servo();
+  uint8_t settings[CONNECTIONLESS_SETTINGS_LENGTH];
+  encodeConnectionlessSettings(settings);
+  uint8_t key[CONNECTIONLESS_KEY_LENGTH];
+  memcpy(key, settings, sizeof(key));
+  CHECK(settings[CONNECTIONLESS_KEY_LENGTH] == 0 && !device.radio.scanning);
+
+  // Off until the app turns it on
+  device.phoneConnect(22 * 3600 + 30 * 60);
+  std::vector<uint8_t> frame = connectionlessFrame(key, 1, '1', millisOfDay());
+  CHECK(connectionlessCommand(frame.data(), frame.size()) == -1);
+  const uint8_t enable[] = {CONNECTIONLESS_OP_ENABLE};
+  applyConnectionlessOp(enable, sizeof(enable));
+  device.step();
+  CHECK(device.radio.scanning);
+
+  // A frame 350ms after the phone started advertising it, then the same frame again
+  updateLocalTime();
+  frame = connectionlessFrame(key, 1, '1', millisOfDay());
+  sim::advance(350 * 1000);
+  uint8_t usage = usageHistogram[secondOfDay() / 3600];
+  handleAdvertisedCommand(frame.data(), frame.size());
+  CHECK(usageHistogram[secondOfDay() / 3600] == usage && connectionlessStats.accepted == 0); // left to the loop
+  device.step();
+  CHECK(usageHistogram[secondOfDay() / 3600] == usage + 1);
+  handleAdvertisedCommand(frame.data(), frame.size());
+  CHECK(!actuationPending());
+  CHECK(servoB.actuations == 1);
+  CHECK(connectionlessStats.accepted == 1 && connectionlessStats.lastLatencyMs == 350);
+
+  // A wrong MAC, a frame for another switch, an old frame recorded and sent again
+  frame = connectionlessFrame(key, 2, '0', millisOfDay());
+  frame[CONNECTIONLESS_FRAME_LENGTH - 1] ^= 1;
+  CHECK(connectionlessCommand(frame.data(), frame.size()) == -1);
+  frame = connectionlessFrame(key, 2, '0', millisOfDay());
+  frame[3] ^= 1;
+  CHECK(connectionlessCommand(frame.data(), frame.size()) == -1);
+  std::vector<uint8_t> old = connectionlessFrame(key, 2, '0', millisOfDay());
+  std::vector<uint8_t> next = connectionlessFrame(key, 3, '0', millisOfDay());
+  CHECK(connectionlessCommand(next.data(), next.size()) == SERVO_OFF);
+  CHECK(connectionlessCommand(old.data(), old.size()) == -1);
+  CHECK(connectionlessStats.accepted == 1 && connectionlessStats.rejected == 0); // counted by the loop
+  device.step();
+  CHECK(connectionlessStats.accepted == 2 && connectionlessStats.rejected == 1 && connectionlessStats.replayed == 1);
+  encodeConnectionlessSettings(settings);
+  CHECK(settings[CONNECTIONLESS_KEY_LENGTH] == 1 && settings[CONNECTIONLESS_KEY_LENGTH + 1] == 3);
+  CHECK(settings[CONNECTIONLESS_SETTINGS_LENGTH - 1] == CONNECTIONLESS_VERSION);
+
+  // Ten minutes of listening in 10% of the time, and what it cost
+  connectionlessStats.scanMillis = 0;
+  device.runFor(10 * MINUTE);
+  uint8_t stats[CONNECTIONLESS_STATS_LENGTH];
+  encodeConnectionlessStats(stats);
+  uint32_t scanSeconds = stats[5] | stats[6] << 8;
+  uint32_t chargeMicroAh = stats[9] | stats[10] << 8;
+  CHECK_NEAR(scanSeconds, 60, 1);
+  CHECK_NEAR(chargeMicroAh, 60 * SCAN_RX_CURRENT_MA * 1000 / 3600, 3);
+
+  // A new key locks out phones that read the old one
+  const uint8_t newKey[] = {CONNECTIONLESS_OP_NEW_KEY};
+  applyConnectionlessOp(newKey, sizeof(newKey));
+  next = connectionlessFrame(key, 4, '1', millisOfDay());
+  CHECK(connectionlessCommand(next.data(), next.size()) == -1);
+  const uint8_t disable[] = {CONNECTIONLESS_OP_DISABLE};
+  applyConnectionlessOp(disable, sizeof(disable));
+  device.step();
+  CHECK(!device.radio.scanning);
+}
+
+static uint32_t timingAt(const uint8_t *record, int step) {
+  const uint8_t *p = record + 4 + 4 * step;
+  return p[0] | p[1] << 8 | p[2] << 16 | (uint32_t)p[3] << 24;
+}
+
+// Every phone that read the key counts its own sequence
+static void testConnectionlessPhones() {
+  Device device;
+  device.powerOn();
+  connectionlessStats = {};
+  const uint8_t enable[] = {CONNECTIONLESS_OP_ENABLE};
+  applyConnectionlessOp(enable, sizeof(enable));
+  device.phoneConnect(22 * 3600 + 30 * 60);
+  device.step();
+  uint8_t key[CONNECTIONLESS_KEY_LENGTH];
+  encodeConnectionlessSettings(key); // the key comes first
+  auto send = [&](int phone, uint32_t sequence) {
+    std::vector<uint8_t> frame = connectionlessFrame(key, sequence, '1', millisOfDay(), phone);
+    return connectionlessCommand(frame.data(), frame.size());
+  };
+
+  // Phone 2 is behind phone 1 and still runs, only its own old numbers are refused. An older app is phone 0.
+  CHECK(send(1, 10) == SERVO_ON);
+  CHECK(send(2, 3) == SERVO_ON);
+  CHECK(send(2, 3) == -1); // the same frame again
+  CHECK(send(2, 2) == -1);
+  CHECK(send(-1, 1) == SERVO_ON);
+  device.step();
+  CHECK(connectionlessStats.accepted == 3 && connectionlessStats.replayed == 1);
+  uint8_t settings[CONNECTIONLESS_SETTINGS_LENGTH];
+  encodeConnectionlessSettings(settings);
+  CHECK(settings[CONNECTIONLESS_KEY_LENGTH + 1] == 10); // the highest, phones start above it
+
+  // Kept through a reset. More phones than the list holds: the one heard from longest ago makes room,
+  // the numbers it ran stay refused through the floor.
+  device.boot();
+  device.step();
+  CHECK(send(2, 3) == -1);
+  CHECK(send(1, 11) == SERVO_ON);
+  for (int phone = 10; phone < 10 + CONNECTIONLESS_PHONES - 3; phone++) CHECK(send(phone, 1) == SERVO_ON);
+  CHECK(send(20, 1) == SERVO_ON); // drops phone 2
+  CHECK(send(2, 3) == -1 && send(2, 2) == -1);
+  CHECK(send(2, 4) == SERVO_ON); // the floor is phone 2's own 3, not phone 1's 11
+  device.step();
+  CHECK(connectionlessStats.replayed == 2);
+
+  // From firmware without the list: what it ran stays refused for every phone
+  std::map<std::string, std::vector<uint8_t>> &nvs = Preferences::storage();
+  CHECK(nvs.erase("connless/phones") == 1);
+  device.boot();
+  device.step();
+  CHECK(send(30, 11) == -1 && send(30, 10) == -1);
+  CHECK(send(31, 12) == SERVO_ON);
+  device.step();
+  CHECK(connectionlessStats.replayed == 3);
+}
+
+static void testCommandTiming() {
+  Device device;
+  device.powerOn();
+  device.phoneConnect(22 * 3600 + 30 * 60, 1);
+  device.connect(2);
+  uint8_t first[COMMAND_TIMING_LENGTH], second[COMMAND_TIMING_LENGTH];
+  encodeCommandTiming(linkSlot(1), first);
+  CHECK(first[0] == 0 && first[1] == 0 && first[3] == 0);
+
+  // Both phones write at once, the loop wakes 4ms later. The second waits for the first to finish.
+  handleServoSignal(1, "1", 1);
+  handleServoSignal(2, "0", 1);
+  sim::advance(4000);
+  device.step();
+  encodeCommandTiming(linkSlot(1), first);
+  encodeCommandTiming(linkSlot(2), second);
+  CHECK((first[3] & TIMING_DONE) && (second[3] & TIMING_DONE));
+  CHECK(first[2] == SERVO_ON && second[2] == SERVO_OFF);
+  CHECK((uint16_t)(second[0] | second[1] << 8) == (uint16_t)(first[0] | first[1] << 8) + 1);
+  CHECK(timingAt(first, 0) == 4000);
+  // settle, travel out, hold, travel back
+  const ServoProfile &p = servoProfiles[SERVO_ON];
+  uint32_t travel = abs(p.targetAngle - p.returnAngle) * 3000;
+  CHECK(timingAt(first, 2) - timingAt(first, 1) == 30000);
+  CHECK(p.rampSpeed != 0 || timingAt(first, 3) - timingAt(first, 2) == travel);
+  CHECK(timingAt(first, 4) - timingAt(first, 3) == p.holdTime * 1000UL);
+  CHECK(timingAt(first, 5) - timingAt(first, 4) == timingAt(first, 3) - timingAt(first, 2));
+  CHECK(timingAt(second, 0) >= timingAt(first, 5));
+
+  // A scene command: the wait for its time is in the queue, before the loop takes it
+  updateLocalTime();
+  uint32_t at = (millisOfDay() + 500) % MILLIS_PER_DAY;
+  char scene[SCENE_COMMAND_LENGTH] = {'1', (char)(at & 0xFF), (char)(at >> 8 & 0xFF), (char)(at >> 16 & 0xFF), (char)(at >> 24)};
+  device.command(scene, sizeof(scene), 1);
+  device.step();
+  encodeCommandTiming(linkSlot(1), first);
+  CHECK((first[3] & TIMING_TIMED) && !(first[3] & TIMING_REFUSED));
+  CHECK_NEAR(timingAt(first, 0), 500000, 1000);
+
+  // A refused one has no servo steps
+  at = (millisOfDay() + 3600 * 1000) % MILLIS_PER_DAY;
+  char late[SCENE_COMMAND_LENGTH] = {'0', (char)(at & 0xFF), (char)(at >> 8 & 0xFF), (char)(at >> 16 & 0xFF), (char)(at >> 24)};
+  device.command(late, sizeof(late), 1);
+  encodeCommandTiming(linkSlot(1), first);
+  CHECK((first[3] & TIMING_REFUSED) && timingAt(first, 1) == 0 && timingAt(first, 5) == 0);
+
+  // The next phone on a slot starts without a record
+  handleDisconnect(2, 0x13);
+  device.radio.connected--;
+  device.connect(3);
+  encodeCommandTiming(linkSlot(3), second);
+  CHECK(second[0] == 0 && second[1] == 0 && second[3] == 0);
+}
+
+static void testBatteryGovernor() {
+  Device device;
+  device.powerOn();
+  servoB = Servo();
+  CHECK(batteryTier == BATTERY_TIER_NORMAL && device.radio.advertisedStatus == 0);
+  CHECK(batteryStats.millivolts == 4100 && batteryStats.tierChanges == 0);
+
+  // The first loop pass 10 minutes on finds a weak cell: the idle link is dropped at once, and at 22:41 the
+  // idle device is already in the day window, which now ends at 23:00
+  device.phoneConnect(22 * 3600 + 30 * 60);
+  sim::batteryMv = 3500;
+  device.runFor(11 * MINUTE);
+  CHECK(batteryTier == BATTERY_TIER_LOW && device.radio.dropped == std::vector<uint16_t>{1});
+  CHECK(device.sleeps.size() == 1);
+  CHECK_NEAR(device.sleeps[0].secondOfDay, 22 * 3600 + 41 * 60, 1);
+  CHECK_NEAR(device.sleeps[0].secondOfDay + device.sleeps[0].durationUs / SECOND, SLEEP_WINDOW_END + 3600, 0);
+  CHECK(device.radio.advertisedStatus == (BATTERY_STATUS_LOW | BATTERY_TIER_LOW)); // advertised from the boot on
+  CHECK(device.radio.mode == ADV_MODE_FAST); // the burst after the wake
+  device.runFor(FAST_ADV_BURST_TIME * 1000);
+  CHECK(device.radio.mode == ADV_MODE_SLOW);
+
+  // Reserve: the slowest advertising, no burst, the day window ends at 23:30 and commands are refused
+  sim::batteryMv = 3300;
+  device.runFor(10 * MINUTE);
+  CHECK(batteryTier == BATTERY_TIER_RESERVE && device.sleeps.size() == 2);
+  CHECK_NEAR(device.sleeps[1].secondOfDay + device.sleeps[1].durationUs / SECOND, SLEEP_WINDOW_END + 5400, 0);
+  CHECK(device.radio.mode == ADV_MODE_RESERVE);
+  device.phoneConnect(device.wallSecondOfDay(), 3);
+  device.command("1", 1, 3);
+  uint8_t timing[COMMAND_TIMING_LENGTH];
+  encodeCommandTiming(linkSlot(3), timing);
+  CHECK(servoB.actuations == 0 && (timing[3] & TIMING_REFUSED));
+
+  // Back up only past the margin
+  sim::batteryMv = 3380;
+  device.runFor(10 * MINUTE);
+  device.phoneConnect(device.wallSecondOfDay(), 4);
+  device.step();
+  CHECK(batteryTier == BATTERY_TIER_RESERVE);
+  sim::batteryMv = 3420;
+  device.runFor(10 * MINUTE);
+  device.phoneConnect(device.wallSecondOfDay(), 5);
+  device.step();
+  CHECK(batteryTier == BATTERY_TIER_LOW && device.radio.advertisedStatus == (BATTERY_STATUS_LOW | BATTERY_TIER_LOW));
+
+  uint8_t stats[BATTERY_STATS_LENGTH];
+  encodeBatteryStats(stats);
+  CHECK(stats[0] == BATTERY_TIER_LOW && (stats[1] | stats[2] << 8) == 3420);
+  CHECK((stats[3] | stats[4] << 8) == 3300 && (stats[5] | stats[6] << 8) == 3);
+}
+
+static void testProvisioning() {
+  Device device;
+  device.powerOn();
+  uint8_t value[PROVISIONING_MAX_LENGTH];
+  CHECK(encodeProvisioning(value) == 1 + PROVISIONING_WINDOWS_LENGTH && value[0] == 0);
+  CHECK((value[1] | value[2] << 8 | value[3] << 16) == SLEEP_WINDOW_START);
+  CHECK(!(device.radio.advertisedStatus & ADV_STATUS_PROVISIONED));
+
+  // The app's batch: the time, then day window 12:00 - 18:00, night window 1:00 - 6:00 and the label
+  device.phoneConnect(22 * 3600 + 30 * 60);
+  std::vector<uint8_t> write;
+  for (uint32_t second : {12 * 3600, 18 * 3600, 1 * 3600, 6 * 3600}) {
+    for (int i = 0; i < 4; i++) write.push_back(second >> (8 * i));
+  }
+  const char label[] = "Hall 2";
+  write.insert(write.end(), label, label + 6);
+  std::vector<uint8_t> bad = write;
+  bad[4] = 0x80; bad[5] = 0x51; bad[6] = 0x01; // 86400, not a second of day
+  applyProvisioning(bad.data(), bad.size());
+  CHECK(!provisioned());
+  applyProvisioning(write.data(), write.size());
+  CHECK(!provisioned() && sleepWindows[0][0] == SLEEP_WINDOW_START); // the loop applies it
+  device.step();
+  CHECK(provisioned() && (device.radio.advertisedStatus & ADV_STATUS_PROVISIONED));
+
+  // Sleeps in the new windows, and still knows them after every wake
+  device.runFor(DAY);
+  CHECK(device.sleeps.size() == 2);
+  CHECK_NEAR(device.sleeps[0].secondOfDay, 1 * 3600, 0);
+  CHECK_NEAR(device.sleeps[0].secondOfDay + device.sleeps[0].durationUs / SECOND, 6 * 3600, 0);
+  CHECK_NEAR(device.sleeps[1].secondOfDay, 12 * 3600, 0);
+  CHECK_NEAR(device.sleeps[1].secondOfDay + device.sleeps[1].durationUs / SECOND, 18 * 3600, 0);
+  CHECK(device.radio.advertisedStatus & ADV_STATUS_PROVISIONED);
+  size_t len = encodeProvisioning(value);
+  CHECK(len == 1 + write.size() && value[0] == 1 && memcmp(value + 1, write.data(), write.size()) == 0);
+}
+
+static void testWearCounters() {
+  Device device;
+  device.powerOn();
+  device.phoneConnect(22 * 3600 + 30 * 60);
+  CHECK(wearStats[SERVO_ON].actuations == 0 && wearStats[SERVO_OFF].actuations == 0);
+
+  // ON, and ON again right after: the first one probably did not flip the switch
+  device.command("1", 1);
+  CHECK(wearStats[SERVO_ON].actuations == 1);
+  CHECK(wearStats[SERVO_ON].activeMs == 30 + 90 + 1000 + 90); // settle, travel, hold, return
+  CHECK(wearStats[SERVO_ON].retried == 0);
+  device.command("1", 1);
+  CHECK(wearStats[SERVO_ON].actuations == 2 && wearStats[SERVO_ON].retried == 1);
+
+  // OFF later, against a switch that does not give
+  device.runFor(WEAR_RETRY_WINDOW * 1000ULL);
+  sim::servoCurrentMa = 700;
+  device.command("0", 1);
+  sim::servoCurrentMa = 0;
+  CHECK(wearStats[SERVO_OFF].actuations == 1 && wearStats[SERVO_OFF].failed == 1 && wearStats[SERVO_OFF].retried == 0);
+
+  // On the diagnostics characteristic, last entry
+  uint8_t buf[DIAGNOSTICS_MAX_LENGTH];
+  size_t len = buildDiagnostics(buf);
+  const uint8_t *wear = buf + len - WEAR_STATS_LENGTH;
+  CHECK(wear[-2] == DIAG_TAG_WEAR && wear[-1] == WEAR_STATS_LENGTH);
+  CHECK(wear[0] == 1 && wear[8] == 1 && wear[10] == 0); // servo OFF: actuations, failed, retried
+  CHECK(wear[12] == 2 && (wear[16] | wear[17] << 8) == 2 * 1210 && wear[22] == 1); // servo ON
+
+  // Through deep sleep, in NVS, until the servo is replaced
+  device.runFor(DAY);
+  CHECK(!device.sleeps.empty());
+  CHECK(wearStats[SERVO_ON].actuations == 2 && wearStats[SERVO_OFF].failed == 1);
+  const uint8_t reset[] = {PROFILE_OP_RESET_WEAR, SERVO_ON};
+  applyServoProfileOp(reset, sizeof(reset));
+  wearBoot();
+  CHECK(wearStats[SERVO_ON].actuations == 0 && wearStats[SERVO_ON].retried == 0);
+  CHECK(wearStats[SERVO_OFF].actuations == 1);
+}
+
+int main() {
+  const struct {
+    const char *name;
+    void (*run)();
+  } tests[] = {
+    {"parseTime", testParseTime},
+    {"servoActuationTiming", testServoActuationTiming},
+    {"idleLinkIsKept", testIdleLinkIsKept},
+    {"idleLinkEndsWithSleep", testIdleLinkEndsWithSleep},
+    {"timedCommand", testTimedCommand},
+    {"neverSleepsUnsynced", testNeverSleepsUnsynced},
+    {"dailySchedule", testDailySchedule},
+    {"operationDelaysSleep", testOperationDelaysSleep},
+    {"clockDoesNotDrift", testClockDoesNotDrift},
+    {"advertisingGovernor", testAdvertisingGovernor},
+    {"profileSurvivesDeepSleep", testProfileSurvivesDeepSleep},
+    {"calibrationStartsFromOppositeState", testCalibrationStartsFromOppositeState},
+    {"diagnosticsRecord", testDiagnosticsRecord},
+    {"bootTiming", testBootTiming},
+    {"buttonWake", testButtonWake},
+    {"loopWaitsForEvents", testLoopWaitsForEvents},
+    {"multipleClients", testMultipleClients},
+    {"activityAfterLoopStart", testActivityAfterLoopStart},
+    {"connectionlessCommand", testConnectionlessCommand},
+    {"connectionlessPhones", testConnectionlessPhones},
+    {"commandTiming", testCommandTiming},
+    {"batteryGovernor", testBatteryGovernor},
+    {"provisioning", testProvisioning},
+    {"wearCounters", testWearCounters},
+  };
+
+  for (const auto &test : tests) {
+    int before = failures;
+    auto start = std::chrono::steady_clock::now();
+    test.run();
+    auto ms = std::chrono::duration_cast<std::chrono::milliseconds>(std::chrono::steady_clock::now() - start).count();
+    ::printf("%s %s (%lld ms, %.1f simulated h)\n", failures == before ? "PASS" : "FAIL", test.name,
+             (long long)ms, sim::nowUs / 3.6e9);
+  }
+  return failures == 0 ? 0 : 1;
+}